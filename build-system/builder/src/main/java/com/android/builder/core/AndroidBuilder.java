@@ -2031,6 +2031,44 @@ public class AndroidBuilder {
             int minSdkVersion)
             throws DuplicateFileException, FileNotFoundException,
             KeytoolException, PackagerException, SigningException {
+        packageApk(androidResPkgLocation, dexFolders, javaResourcesLocations, jniLibsLocations,
+                abiFilters, jniDebugBuild, signingConfig, outApkLocation, minSdkVersion,
+                false /* incremental */);
+    }
+
+    /**
+     * Packages the apk, possibly updating the apk written by the previous build in place.
+     *
+     * @param androidResPkgLocation the location of the packaged resource file
+     * @param dexFolders the folder(s) with the dex file(s).
+     * @param javaResourcesLocations the processed Java resource folders and/or jars
+     * @param jniLibsLocations the folders containing jni shared libraries
+     * @param abiFilters optional ABI filter
+     * @param jniDebugBuild whether the app should include jni debug data
+     * @param signingConfig the signing configuration
+     * @param outApkLocation location of the APK.
+     * @param incremental whether to only write the entries of the existing APK at
+     *                    outApkLocation which were added, removed or changed.
+     * @throws DuplicateFileException
+     * @throws FileNotFoundException if the store location was not found
+     * @throws KeytoolException
+     * @throws PackagerException
+     * @throws SigningException when the key cannot be read from the keystore
+     *
+     */
+    public void packageApk(
+            @NonNull String androidResPkgLocation,
+            @NonNull Set<File> dexFolders,
+            @NonNull Collection<File> javaResourcesLocations,
+            @NonNull Collection<File> jniLibsLocations,
+            @NonNull Set<String> abiFilters,
+            boolean jniDebugBuild,
+            @Nullable SigningConfig signingConfig,
+            @NonNull String outApkLocation,
+            int minSdkVersion,
+            boolean incremental)
+            throws DuplicateFileException, FileNotFoundException,
+            KeytoolException, PackagerException, SigningException {
         checkNotNull(androidResPkgLocation, "androidResPkgLocation cannot be null.");
         checkNotNull(outApkLocation, "outApkLocation cannot be null.");
 
@@ -2046,7 +2084,7 @@ public class AndroidBuilder {
             Packager packager = new Packager(
                     outApkLocation, androidResPkgLocation,
                     certificateInfo, mCreatedBy, mLogger,
-                    minSdkVersion);
+                    minSdkVersion, incremental);
 
             // add dex folder to the apk root.
             if (!dexFolders.isEmpty()) {
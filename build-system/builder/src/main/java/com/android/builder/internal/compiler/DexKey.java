@@ -48,6 +48,12 @@ class DexKey extends PreProcessCache.Key {
         return mJumboMode;
     }
 
+    @NonNull
+    @Override
+    protected String getParameters() {
+        return super.getParameters() + ",jumboMode=" + mJumboMode;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) {
@@ -51,6 +51,9 @@ import java.util.List;
  *
  * After a build a call to {@link #clear(java.io.File, com.android.utils.ILogger)} with a file
  * will allow saving the known converted libraries for future reuse.
+ *
+ * Libraries can also be shared with other projects and Gradle daemons through a content-addressed
+ * folder, see {@link #setSharedStore(File)}.
  */
 public class JackConversionCache extends PreProcessCache<PreProcessCache.Key> {
 
@@ -85,14 +88,14 @@ public class JackConversionCache extends PreProcessCache<PreProcessCache.Key> {
      * @throws ProcessException
      */
     public void convertLibrary(
-            @NonNull File inputFile,
-            @NonNull File outFile,
-            @NonNull DexOptions dexOptions,
-            @NonNull BuildToolInfo buildToolInfo,
-            boolean verbose,
-            @NonNull JavaProcessExecutor processExecutor,
-            @NonNull ProcessOutputHandler processOutputHandler,
-            @NonNull ILogger logger)
+            @NonNull final File inputFile,
+            @NonNull final File outFile,
+            @NonNull final DexOptions dexOptions,
+            @NonNull final BuildToolInfo buildToolInfo,
+            final boolean verbose,
+            @NonNull final JavaProcessExecutor processExecutor,
+            @NonNull final ProcessOutputHandler processOutputHandler,
+            @NonNull final ILogger logger)
             throws ProcessException, InterruptedException, IOException {
 
         Key itemKey = Key.of(inputFile, buildToolInfo.getRevision());
@@ -103,19 +106,25 @@ public class JackConversionCache extends PreProcessCache<PreProcessCache.Key> {
         // if this is a new item
         if (pair.getSecond()) {
             try {
-                // haven't process this file yet so do it and record it.
-                List<File> files = AndroidBuilder.convertLibaryToJackUsingApis(
-                        inputFile,
-                        outFile,
-                        dexOptions,
-                        buildToolInfo,
-                        verbose,
-                        processExecutor,
-                        processOutputHandler,
-                        logger);
+                // haven't process this file yet so do it (or get it from the shared store)
+                // and record it.
+                List<File> files = processItem(itemKey, item, "", outFile, new Processor() {
+                    @NonNull
+                    @Override
+                    public List<File> process()
+                            throws ProcessException, IOException, InterruptedException {
+                        return AndroidBuilder.convertLibaryToJackUsingApis(
+                                inputFile,
+                                outFile,
+                                dexOptions,
+                                buildToolInfo,
+                                verbose,
+                                processExecutor,
+                                processOutputHandler,
+                                logger);
+                    }
+                });
                 item.getOutputFiles().addAll(files);
-
-                incrementMisses();
             } catch (ProcessException exception) {
                 // in case of error, delete (now obsolete) output file
                 outFile.delete();
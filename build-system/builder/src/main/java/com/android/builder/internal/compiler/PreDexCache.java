@@ -57,6 +57,9 @@ import java.util.logging.Logger;
  *
  * After a build a call to {@link #clear(java.io.File, com.android.utils.ILogger)} with a file
  * will allow saving the known pre-dexed libraries for future reuse.
+ *
+ * Libraries can also be shared with other projects and Gradle daemons through a content-addressed
+ * folder, see {@link #setSharedStore(File)}.
  */
 public class PreDexCache extends PreProcessCache<DexKey> {
 
@@ -94,12 +97,12 @@ public class PreDexCache extends PreProcessCache<DexKey> {
      * @throws InterruptedException
      */
     public void preDexLibrary(
-            @NonNull AndroidBuilder builder,
-            @NonNull File inputFile,
-            @NonNull File outFile,
-                     boolean multiDex,
-            @NonNull DexOptions dexOptions,
-            @NonNull ProcessOutputHandler processOutputHandler)
+            @NonNull final AndroidBuilder builder,
+            @NonNull final File inputFile,
+            @NonNull final File outFile,
+                     final boolean multiDex,
+            @NonNull final DexOptions dexOptions,
+            @NonNull final ProcessOutputHandler processOutputHandler)
             throws IOException, ProcessException, InterruptedException {
         checkState(!multiDex || outFile.isDirectory());
         checkState(builder.getTargetInfo() != null);
@@ -115,18 +118,27 @@ public class PreDexCache extends PreProcessCache<DexKey> {
         // if this is a new item
         if (pair.getSecond()) {
             try {
-                // haven't process this file yet so do it and record it.
-                List<File> files = builder.preDexLibraryNoCache(
-                        inputFile,
-                        outFile,
-                        multiDex,
-                        dexOptions,
-                        processOutputHandler);
+                // haven't process this file yet so do it (or get it from the shared store)
+                // and record it.
+                // Everything passed on to dx, other than the heap size, may change the output
+                String options = "multiDex=" + multiDex
+                        + ",threadCount=" + dexOptions.getThreadCount();
+                List<File> files = processItem(itemKey, item, options, outFile, new Processor() {
+                    @NonNull
+                    @Override
+                    public List<File> process()
+                            throws ProcessException, IOException, InterruptedException {
+                        return builder.preDexLibraryNoCache(
+                                inputFile,
+                                outFile,
+                                multiDex,
+                                dexOptions,
+                                processOutputHandler);
+                    }
+                });
 
                 item.getOutputFiles().clear();
                 item.getOutputFiles().addAll(files);
-
-                incrementMisses();
             } catch (ProcessException exception) {
                 // in case of error, delete (now obsolete) output file
                 FileUtils.deleteIfExists(outFile);
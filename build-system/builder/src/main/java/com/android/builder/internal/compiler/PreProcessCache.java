@@ -19,10 +19,11 @@ package com.android.builder.internal.compiler;
 import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 import com.android.annotations.VisibleForTesting;
-import com.android.annotations.concurrency.GuardedBy;
 import com.android.annotations.concurrency.Immutable;
+import com.android.ide.common.process.ProcessException;
 import com.android.ide.common.xml.XmlPrettyPrinter;
 import com.android.repository.Revision;
+import com.android.utils.FileUtils;
 import com.android.utils.ILogger;
 import com.android.utils.Pair;
 import com.android.utils.XmlUtils;
@@ -44,9 +45,11 @@ import org.w3c.dom.NodeList;
 import java.io.File;
 import java.io.IOException;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import javax.xml.parsers.DocumentBuilder;
@@ -54,6 +57,15 @@ import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 
 /**
+ * Base class of the caches of pre-processed libraries.
+ *
+ * Items are looked up without any global lock: the hash of a library is computed by the thread
+ * asking for it, and the latch of each item lets the threads asking for the same library wait for
+ * the one pre-processing it. Loading and clearing the cache only work on the concurrent maps too,
+ * they are meant to be called before and after the build, while no item is looked up.
+ *
+ * If a shared store is set with {@link #setSharedStore(File)}, libraries are also looked up by
+ * content in that store, so that the output of other projects and other Gradle daemons is reused.
  */
 public abstract class PreProcessCache<T extends PreProcessCache.Key> {
 
@@ -91,23 +103,29 @@ public abstract class PreProcessCache<T extends PreProcessCache.Key> {
         private final File mSourceFile;
         @NonNull
         private final List<File> mOutputFiles;
+        @Nullable
+        private final HashCode mSourceHash;
         @NonNull
         private final CountDownLatch mLatch;
 
         Item(
                 @NonNull File sourceFile,
                 @NonNull List<File> outputFiles,
+                @Nullable HashCode sourceHash,
                 @NonNull CountDownLatch latch) {
             mSourceFile = sourceFile;
             mOutputFiles = Lists.newArrayList(outputFiles);
+            mSourceHash = sourceHash;
             mLatch = latch;
         }
 
         Item(
                 @NonNull File sourceFile,
+                @Nullable HashCode sourceHash,
                 @NonNull CountDownLatch latch) {
             mSourceFile = sourceFile;
             mOutputFiles = Lists.newArrayList();
+            mSourceHash = sourceHash;
             mLatch = latch;
         }
 
@@ -123,10 +141,14 @@ public abstract class PreProcessCache<T extends PreProcessCache.Key> {
             return mOutputFiles;
         }
 
+        /**
+         * Returns the hash of the source file if it was computed when looking up the item, so that
+         * it is not computed again to look up the shared store or to save the item.
+         */
         @Nullable
         @Override
         public HashCode getSourceHash() {
-            return null;
+            return mSourceHash;
         }
 
         @NonNull
@@ -244,6 +266,15 @@ public abstract class PreProcessCache<T extends PreProcessCache.Key> {
             return mSourceFile;
         }
 
+        /**
+         * Returns the parameters of the pre-processing, other than the source file. Together with
+         * the content of the source file, they identify the output in the shared store.
+         */
+        @NonNull
+        protected String getParameters() {
+            return "revision=" + mBuildToolsRevision;
+        }
+
         @Override
         public boolean equals(Object o) {
             if (this == o) {
@@ -275,18 +306,29 @@ public abstract class PreProcessCache<T extends PreProcessCache.Key> {
         T of(@NonNull File sourceFile, @NonNull Revision revision, @NonNull NamedNodeMap attrMap);
     }
 
-    @GuardedBy("this")
-    private boolean mLoaded = false;
+    /**
+     * Pre-processes a library that was not found in the cache.
+     */
+    protected interface Processor {
+        /**
+         * Pre-processes the library.
+         *
+         * @return the output files
+         */
+        @NonNull
+        List<File> process() throws ProcessException, IOException, InterruptedException;
+    }
+
+    private final AtomicBoolean mLoaded = new AtomicBoolean();
 
-    @GuardedBy("this")
-    private final Map<T, Item> mMap = Maps.newHashMap();
-    @GuardedBy("this")
-    private final Map<T, StoredItem> mStoredItems = Maps.newHashMap();
+    private final ConcurrentMap<T, Item> mMap = Maps.newConcurrentMap();
+    private final ConcurrentMap<T, StoredItem> mStoredItems = Maps.newConcurrentMap();
+
+    @Nullable
+    private volatile PreProcessStore mSharedStore;
 
-    @GuardedBy("this")
-    private int mMisses = 0;
-    @GuardedBy("this")
-    private int mHits = 0;
+    private final AtomicInteger mMisses = new AtomicInteger();
+    private final AtomicInteger mHits = new AtomicInteger();
 
     @NonNull
     protected abstract KeyFactory<T> getKeyFactory();
@@ -295,67 +337,189 @@ public abstract class PreProcessCache<T extends PreProcessCache.Key> {
      * Loads the stored item. This can be called several times (per subproject), so only
      * the first call should do something.
      */
-    public synchronized void load(@NonNull File itemStorage) {
-        if (mLoaded) {
+    public void load(@NonNull File itemStorage) {
+        if (!mLoaded.compareAndSet(false, true)) {
             return;
         }
 
         loadItems(itemStorage);
+    }
 
-        mLoaded = true;
+    /**
+     * Sets the folder of the store shared with other projects and Gradle daemons, or disables
+     * sharing if null. This can be called several times (per subproject), the last folder wins.
+     */
+    public void setSharedStore(@Nullable File folder) {
+        PreProcessStore store = mSharedStore;
+        if (folder == null) {
+            mSharedStore = null;
+        } else if (store == null || !store.getDirectory().equals(folder)) {
+            mSharedStore = new PreProcessStore(folder);
+        }
     }
 
     /**
      * Returns an {@link Item} loaded from the cache. If no item can be found this, throws an
      * exception.
      *
+     * The second value of the pair is true if the item is new, in which case the caller must
+     * pre-process the library and then count down the latch of the item. Otherwise the caller
+     * must wait on the latch before using the output of the item.
+     *
      * @param itemKey the key of the item
      * @return a pair of item, boolean
      */
-    protected synchronized Pair<Item, Boolean> getItem(@NonNull T itemKey) {
+    protected Pair<Item, Boolean> getItem(@NonNull T itemKey) {
 
         // get the item
         Item item = mMap.get(itemKey);
+        if (item != null) {
+            return Pair.of(item, false);
+        }
 
-        boolean newItem = false;
+        // check if we have a stored version.
+        StoredItem storedItem = mStoredItems.get(itemKey);
 
-        if (item == null) {
-            // check if we have a stored version.
-            StoredItem storedItem = mStoredItems.get(itemKey);
+        File inputFile = itemKey.getSourceFile();
 
-            File inputFile = itemKey.getSourceFile();
+        // The hash is needed to check a stored item, and to look up the shared store if the
+        // library has to be pre-processed. This is done outside of any lock, several threads may
+        // hash the same file but they won't wait on each other.
+        HashCode sourceHash = null;
+        if (storedItem != null || mSharedStore != null) {
+            sourceHash = getHash(inputFile);
+        }
 
-            if (storedItem != null) {
-                // check the sha1 is still valid, and the pre-dex files are still there.
-                if (storedItem.areOutputFilesPresent() &&
-                        storedItem.getSourceHash().equals(getHash(inputFile))) {
+        Item newItem = null;
+        if (storedItem != null) {
+            // check the sha1 is still valid, and the pre-dex files are still there.
+            if (storedItem.areOutputFilesPresent() &&
+                    storedItem.getSourceHash().equals(sourceHash)) {
+
+                Logger.getAnonymousLogger().info("Cached result for getItem(" + inputFile + "): "
+                        + storedItem.getOutputFiles());
+                for (File f : storedItem.getOutputFiles()) {
+                    Logger.getAnonymousLogger().info(
+                            String.format("%s l:%d ts:%d", f, f.length(), f.lastModified()));
+                }
 
-                    Logger.getAnonymousLogger().info("Cached result for getItem(" + inputFile + "): "
-                            + storedItem.getOutputFiles());
-                    for (File f : storedItem.getOutputFiles()) {
-                        Logger.getAnonymousLogger().info(
-                                String.format("%s l:%d ts:%d", f, f.length(), f.lastModified()));
-                    }
+                // create an item where the outFile is the one stored since it
+                // represent the pre-dexed library already.
+                // Next time this lib needs to be pre-dexed, we'll use the item
+                // rather than the stored item, allowing us to not compute the sha1 again.
+                // Use a 0-count latch since there is nothing to do.
+                newItem = new Item(
+                        inputFile, storedItem.getOutputFiles(), sourceHash, new CountDownLatch(0));
+            }
+        }
+
+        // if we didn't find a valid stored item, create a new one.
+        if (newItem == null) {
+            newItem = new Item(inputFile, sourceHash, new CountDownLatch(1));
+        }
+
+        // only the first thread to put its item in the map is in charge of it.
+        item = mMap.putIfAbsent(itemKey, newItem);
+        if (item != null) {
+            return Pair.of(item, false);
+        }
+
+        return Pair.of(newItem, newItem.getLatch().getCount() != 0);
+    }
+
+    /**
+     * Pre-processes a new item, see {@link #getItem(Key)}. If there is a shared store, the output
+     * is copied from the store if the library was already pre-processed with the same parameters,
+     * otherwise it is added to the store.
+     *
+     * @param itemKey the key of the item
+     * @param item the new item returned by {@link #getItem(Key)}
+     * @param options the options of the pre-processing which change its output but are not part
+     *     of the key, e.g. whether multi-dex is enabled
+     * @param outFile the output file, or folder if there can be several output files
+     * @param processor the actual pre-processing
+     * @return the output files
+     */
+    @NonNull
+    protected List<File> processItem(
+            @NonNull T itemKey,
+            @NonNull Item item,
+            @NonNull String options,
+            @NonNull final File outFile,
+            @NonNull final Processor processor)
+            throws ProcessException, IOException, InterruptedException {
+        final PreProcessStore store = mSharedStore;
+        HashCode sourceHash = item.getSourceHash();
+        if (store != null && sourceHash == null) {
+            // the shared store was set after the item was looked up.
+            sourceHash = getHash(itemKey.getSourceFile());
+        }
+        if (store == null || sourceHash == null) {
+            List<File> files = processor.process();
+            incrementMisses();
+            return files;
+        }
+
+        final String storeKey = Hashing.sha1().newHasher()
+                .putString(sourceHash.toString(), Charsets.UTF_8)
+                .putString(itemKey.getParameters() + ";" + options, Charsets.UTF_8)
+                .putBoolean(outFile.isDirectory())
+                .putString(getClass().getSimpleName(), Charsets.UTF_8)
+                .hash()
+                .toString();
+
+        List<File> copies = copyStoredOutput(store, storeKey, outFile);
+        if (copies != null) {
+            return copies;
+        }
 
-                    // create an item where the outFile is the one stored since it
-                    // represent the pre-dexed library already.
-                    // Next time this lib needs to be pre-dexed, we'll use the item
-                    // rather than the stored item, allowing us to not compute the sha1 again.
-                    // Use a 0-count latch since there is nothing to do.
-                    item = new Item(inputFile, storedItem.getOutputFiles(), new CountDownLatch(0));
+        return store.withLock(storeKey, new Processor() {
+            @NonNull
+            @Override
+            public List<File> process()
+                    throws ProcessException, IOException, InterruptedException {
+                // another daemon may have created the entry while we waited for the lock.
+                List<File> copies = copyStoredOutput(store, storeKey, outFile);
+                if (copies != null) {
+                    return copies;
                 }
-            }
 
-            // if we didn't find a valid stored item, create a new one.
-            if (item == null) {
-                item = new Item(inputFile, new CountDownLatch(1));
-                newItem = true;
+                List<File> files = processor.process();
+                incrementMisses();
+                store.put(storeKey, files);
+                return files;
             }
+        });
+    }
+
+    /**
+     * Copies the files of a store entry to the output, if there is an entry for the key.
+     *
+     * @return the copied files, or null if there is no entry, or if it does not match the output:
+     *     an output file can only be replaced by an entry with a single file
+     */
+    @Nullable
+    private List<File> copyStoredOutput(
+            @NonNull PreProcessStore store,
+            @NonNull String storeKey,
+            @NonNull File outFile) throws IOException {
+        List<File> files = store.get(storeKey);
+        if (files == null || (!outFile.isDirectory() && files.size() != 1)) {
+            return null;
+        }
+        incrementHits();
 
-            mMap.put(itemKey, item);
+        if (!outFile.isDirectory()) {
+            Files.copy(files.get(0), outFile);
+            return Lists.newArrayList(outFile);
         }
 
-        return Pair.of(item, newItem);
+        List<File> copies = Lists.newArrayListWithCapacity(files.size());
+        for (File file : files) {
+            FileUtils.copy(file, outFile);
+            copies.add(new File(outFile, file.getName()));
+        }
+        return copies;
     }
 
     @Nullable
@@ -368,7 +532,7 @@ public abstract class PreProcessCache<T extends PreProcessCache.Key> {
         return null;
     }
 
-    public synchronized void clear(@Nullable File itemStorage, @Nullable ILogger logger) throws
+    public void clear(@Nullable File itemStorage, @Nullable ILogger logger) throws
             IOException {
         if (!mMap.isEmpty()) {
             if (itemStorage != null) {
@@ -383,11 +547,11 @@ public abstract class PreProcessCache<T extends PreProcessCache.Key> {
 
         mMap.clear();
         mStoredItems.clear();
-        mHits = 0;
-        mMisses = 0;
+        mHits.set(0);
+        mMisses.set(0);
     }
 
-    private synchronized void loadItems(@NonNull File itemStorage) {
+    private void loadItems(@NonNull File itemStorage) {
         if (!itemStorage.isFile()) {
             return;
         }
@@ -454,7 +618,7 @@ public abstract class PreProcessCache<T extends PreProcessCache.Key> {
         }
     }
 
-    protected synchronized void saveItems(@NonNull File itemStorage) throws IOException {
+    protected void saveItems(@NonNull File itemStorage) throws IOException {
         // write "compact" blob
         DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
         factory.setNamespaceAware(true);
@@ -560,22 +724,22 @@ public abstract class PreProcessCache<T extends PreProcessCache.Key> {
         return itemNode;
     }
 
-    protected synchronized void incrementMisses() {
-        mMisses++;
+    protected void incrementMisses() {
+        mMisses.incrementAndGet();
     }
 
-    protected synchronized void incrementHits() {
-        mHits++;
+    protected void incrementHits() {
+        mHits.incrementAndGet();
     }
 
     @VisibleForTesting
-    /*package*/ synchronized int getMisses() {
-        return mMisses;
+    /*package*/ int getMisses() {
+        return mMisses.get();
     }
 
     @VisibleForTesting
-    /*package*/ synchronized int getHits() {
-        return mHits;
+    /*package*/ int getHits() {
+        return mHits.get();
     }
 
 }
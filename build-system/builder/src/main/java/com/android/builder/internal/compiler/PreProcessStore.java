@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.internal.compiler;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.ide.common.process.ProcessException;
+import com.android.utils.FileUtils;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Content-addressed store of pre-processed libraries, shared by all the builds using the same
+ * directory, whatever their project or Gradle daemon.
+ *
+ * Each entry is a folder named after its key, which is expected to be a hash of the content of
+ * the library and of the parameters of the pre-processing. Entries are written to a temporary
+ * folder and renamed once complete, so a folder with the name of a key can always be used without
+ * locking.
+ *
+ * Creating an entry is done while holding a lock on the key, see {@link #lock(String)}, both
+ * inside this VM and with a file lock, so that libraries used by several projects at once are
+ * only pre-processed once. Neither the monitors nor the lock files outlive the creation of the
+ * entry, as anyone getting the lock after that finds the entry.
+ */
+class PreProcessStore {
+
+    private static final String LOCK_SUFFIX = ".lock";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    @NonNull
+    private final File mDirectory;
+
+    /**
+     * Monitors for the keys locked in this VM. File locks are held on behalf of the whole VM, so
+     * they cannot keep two threads apart. A monitor is removed by the thread releasing it, so a
+     * thread which was waiting on it must check it is still the monitor of the key.
+     */
+    @NonNull
+    private final ConcurrentMap<String, Object> mMonitors = Maps.newConcurrentMap();
+
+    PreProcessStore(@NonNull File directory) {
+        mDirectory = directory;
+    }
+
+    @NonNull
+    File getDirectory() {
+        return mDirectory;
+    }
+
+    /**
+     * Returns the files of an entry.
+     *
+     * @param key the key of the entry
+     * @return the files, sorted by name, or null if there is no entry for the key.
+     */
+    @Nullable
+    List<File> get(@NonNull String key) {
+        File entry = new File(mDirectory, key);
+        File[] files = entry.listFiles();
+        if (files == null || files.length == 0) {
+            return null;
+        }
+
+        // Mark the entry as used, for anything cleaning up old entries.
+        //noinspection ResultOfMethodCallIgnored
+        entry.setLastModified(System.currentTimeMillis());
+
+        Arrays.sort(files);
+        return ImmutableList.copyOf(files);
+    }
+
+    /**
+     * Creates an entry by copying the given files, unless there already is one.
+     *
+     * @param key the key of the entry, which should be locked by the caller
+     * @param files the files to copy, with distinct names
+     * @throws IOException if the files cannot be copied
+     */
+    void put(@NonNull String key, @NonNull List<File> files) throws IOException {
+        File entry = new File(mDirectory, key);
+        if (entry.isDirectory()) {
+            return;
+        }
+
+        File tmp = new File(mDirectory, key + TMP_SUFFIX);
+        if (tmp.exists()) {
+            // Left over by a build that died while holding the lock.
+            FileUtils.deleteFolder(tmp);
+        }
+        FileUtils.mkdirs(tmp);
+
+        for (File file : files) {
+            Files.copy(file, new File(tmp, file.getName()));
+        }
+
+        if (!tmp.renameTo(entry)) {
+            FileUtils.deleteFolder(tmp);
+            if (!entry.isDirectory()) {
+                throw new IOException("Failed to create " + entry);
+            }
+        }
+    }
+
+    /**
+     * Runs the given action while holding the lock on the key.
+     *
+     * @param key the key to lock
+     * @param action the action to run
+     * @return the result of the action
+     */
+    @NonNull
+    List<File> withLock(@NonNull String key, @NonNull PreProcessCache.Processor action)
+            throws ProcessException, IOException, InterruptedException {
+        while (true) {
+            Object monitor = mMonitors.get(key);
+            if (monitor == null) {
+                Object newMonitor = new Object();
+                monitor = mMonitors.putIfAbsent(key, newMonitor);
+                if (monitor == null) {
+                    monitor = newMonitor;
+                }
+            }
+
+            synchronized (monitor) {
+                if (mMonitors.get(key) != monitor) {
+                    // released and removed while we were waiting for it.
+                    continue;
+                }
+
+                try {
+                    return withFileLock(key, action);
+                } finally {
+                    mMonitors.remove(key);
+                }
+            }
+        }
+    }
+
+    @NonNull
+    private List<File> withFileLock(@NonNull String key, @NonNull PreProcessCache.Processor action)
+            throws ProcessException, IOException, InterruptedException {
+        FileUtils.mkdirs(mDirectory);
+        File lockFile = new File(mDirectory, key + LOCK_SUFFIX);
+        RandomAccessFile lockAccess = new RandomAccessFile(lockFile, "rw");
+        try {
+            FileLock lock = lockAccess.getChannel().lock();
+            try {
+                return action.process();
+            } finally {
+                lock.release();
+            }
+        } finally {
+            lockAccess.close();
+
+            // Another build may already wait on the file that is deleted, while a third one
+            // creates a new one, so both can get a lock. This is fine once the entry exists: they
+            // only copy it.
+            if (new File(mDirectory, key).isDirectory()) {
+                //noinspection ResultOfMethodCallIgnored
+                lockFile.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.internal.packaging;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.builder.internal.packaging.zip.ByteArrayEntrySource;
+import com.android.builder.internal.packaging.zip.CentralDirectoryHeader;
+import com.android.builder.internal.packaging.zip.CompressionMethod;
+import com.android.builder.internal.packaging.zip.CompressionRule;
+import com.android.builder.internal.packaging.zip.EntrySource;
+import com.android.builder.internal.packaging.zip.FileEntrySource;
+import com.android.builder.internal.packaging.zip.StoredEntry;
+import com.android.builder.internal.packaging.zip.ZFile;
+import com.android.builder.signing.SignedJarBuilder;
+import com.android.builder.signing.SignedJarBuilder.IZipEntryFilter;
+import com.google.common.base.Functions;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * {@link Packager.ApkWriter} that updates the package written by the previous build in place,
+ * through {@link ZFile}, instead of writing it again.
+ *
+ * Entries with the same size and CRC32 as the entry already in the package are left untouched.
+ * New and changed entries are compressed in parallel and written when the package is closed, and
+ * entries that were not written are removed from the package. If the package is signed, a
+ * {@link SignatureExtension} only computes the digests of the entries that changed.
+ *
+ * Nothing is written to the package before it is closed. If writing fails, the package is
+ * deleted, so that the next build writes a new one instead of updating a package which may only
+ * be partly updated.
+ */
+final class IncrementalApkWriter implements Packager.ApkWriter {
+
+    @NonNull
+    private final File mApkFile;
+
+    @NonNull
+    private final ZFile mZFile;
+
+    @Nullable
+    private final SignatureExtension mSignature;
+
+    /**
+     * Names of all entries written to the package, changed or not.
+     */
+    @NonNull
+    private final Set<String> mWritten = Sets.newHashSet();
+
+    /**
+     * Entries to add to the package when it is closed, in the order they were written.
+     */
+    @NonNull
+    private final Map<String, EntrySource> mSources = Maps.newLinkedHashMap();
+
+    @NonNull
+    private final Map<String, CompressionMethod> mMethods = Maps.newHashMap();
+
+    private boolean mClosed = false;
+
+    /**
+     * Creates a new writer. If either <code>key</code> or <code>certificate</code> is
+     * <code>null</code> then the package will not be signed.
+     *
+     * @param apkFile the package to update; if it does not exist or cannot be read, a new
+     * package is written
+     * @param key the {@link PrivateKey} used to sign the package, or <code>null</code>
+     * @param certificate the {@link X509Certificate} used to sign the package, or
+     * <code>null</code>
+     * @param builtBy the value of the "Built-By" attribute of the manifest, if any
+     * @param createdBy the value of the "Created-By" attribute of the manifest, if any
+     * @param minSdkVersion minSdkVersion of the package
+     */
+    IncrementalApkWriter(
+            @NonNull File apkFile,
+            @Nullable PrivateKey key,
+            @Nullable X509Certificate certificate,
+            @Nullable String builtBy,
+            @Nullable String createdBy,
+            int minSdkVersion) throws IOException, NoSuchAlgorithmException {
+        mApkFile = apkFile;
+        mZFile = openPackage(apkFile);
+
+        // Same level as SignedJarBuilder.
+        mZFile.getCompressionRules().add(
+                new CompressionRule(Pattern.compile(".*"), Deflater.BEST_COMPRESSION));
+
+        if (key != null && certificate != null) {
+            mSignature = new SignatureExtension(
+                    mZFile, key, certificate, builtBy, createdBy, minSdkVersion);
+        } else {
+            mSignature = null;
+        }
+    }
+
+    @NonNull
+    private static ZFile openPackage(@NonNull File apkFile) throws IOException {
+        if (apkFile.length() > 0) {
+            try {
+                return new ZFile(apkFile);
+            } catch (IOException e) {
+                // Not a zip file, e.g. the build that wrote it failed: write a new package.
+            }
+        }
+
+        if (apkFile.exists() && !apkFile.delete()) {
+            throw new IOException("Failed to delete " + apkFile);
+        }
+
+        return new ZFile(apkFile);
+    }
+
+    @Override
+    public void writeFile(@NonNull File file, @NonNull String archivePath) throws IOException {
+        mWritten.add(archivePath);
+        if (isUnchanged(archivePath, file.length(), Files.hash(file, Hashing.crc32()).padToLong(),
+                false)) {
+            return;
+        }
+
+        mSources.put(archivePath, new FileEntrySource(file));
+        mMethods.put(archivePath, CompressionMethod.DEFLATE);
+    }
+
+    @Override
+    public void writeZip(@NonNull File zip, @NonNull IZipEntryFilter filter)
+            throws IOException, IZipEntryFilter.ZipAbortException {
+        ZipFile zipFile = new ZipFile(zip);
+        try {
+            for (ZipEntry entry : Collections.list(zipFile.entries())) {
+                String name = entry.getName();
+                if (entry.isDirectory()
+                        || SignedJarBuilder.isSkippedZipEntry(name)
+                        || !filter.checkEntry(name)) {
+                    continue;
+                }
+
+                // Preserve the STORED method of the input entry, as SignedJarBuilder does.
+                boolean stored = entry.getMethod() == ZipEntry.STORED;
+                mWritten.add(name);
+                if (isUnchanged(name, entry.getSize(), entry.getCrc(), stored)) {
+                    continue;
+                }
+
+                byte[] data;
+                InputStream input = zipFile.getInputStream(entry);
+                boolean threw = true;
+                try {
+                    data = ByteStreams.toByteArray(input);
+                    threw = false;
+                } finally {
+                    Closeables.close(input, threw);
+                }
+
+                mSources.put(name, new ByteArrayEntrySource(data));
+                mMethods.put(name,
+                        stored ? CompressionMethod.STORE : CompressionMethod.DEFLATE);
+            }
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    /**
+     * Checks whether the package already has an entry with the given content.
+     */
+    private boolean isUnchanged(@NonNull String name, long size, long crc32, boolean stored) {
+        StoredEntry entry = mZFile.get(name);
+        if (entry == null || mSources.containsKey(name)) {
+            return false;
+        }
+
+        CentralDirectoryHeader cdh = entry.getCentralDirectoryHeader();
+        return cdh.getUncompressedSize() == size
+                && cdh.getCrc32() == crc32
+                && (!stored || cdh.getMethod() == CompressionMethod.STORE);
+    }
+
+    @Override
+    public void close() throws IOException {
+        mZFile.addAll(mSources, Functions.forMap(mMethods));
+
+        for (StoredEntry entry : mZFile.entries()) {
+            String name = entry.getCentralDirectoryHeader().getName();
+            if (!mWritten.contains(name)
+                    && (mSignature == null || !mSignature.isSignatureFile(name))) {
+                entry.delete();
+            }
+        }
+
+        mZFile.close();
+        mClosed = true;
+    }
+
+    @Override
+    public void cleanUp() {
+        if (mClosed) {
+            return;
+        }
+
+        // Closing the ZFile would update the package with whatever close() managed to do
+        // before failing, and sign it. Discard the package instead.
+        if (mApkFile.delete() || !mApkFile.exists()) {
+            return;
+        }
+
+        // The file may not be deleted while it is open, e.g. on Windows: an empty package is
+        // also written again from scratch.
+        try {
+            RandomAccessFile raf = new RandomAccessFile(mApkFile, "rw");
+            try {
+                raf.setLength(0);
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            // pass
+        }
+    }
+}
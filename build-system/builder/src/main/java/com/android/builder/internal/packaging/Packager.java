@@ -29,6 +29,7 @@ import com.android.builder.packaging.PackagerException;
 import com.android.builder.packaging.SealedPackageException;
 import com.android.builder.signing.SignedJarBuilder;
 import com.android.builder.signing.SignedJarBuilder.IZipEntryFilter;
+import com.android.builder.signing.SigningException;
 import com.android.ide.common.signing.CertificateInfo;
 import com.android.utils.ILogger;
 import com.google.common.collect.Iterables;
@@ -63,6 +64,78 @@ import java.util.regex.Pattern;
  */
 public final class Packager implements IArchiveBuilder {
 
+    /**
+     * Writes the entries of the package.
+     */
+    interface ApkWriter {
+
+        /**
+         * Writes a file to the package.
+         * @param file the file to write.
+         * @param archivePath the path of the file inside the package.
+         */
+        void writeFile(@NonNull File file, @NonNull String archivePath) throws IOException;
+
+        /**
+         * Copies the content of a Jar/Zip archive to the package, leaving out the entries
+         * skipped by {@link SignedJarBuilder}.
+         * @param zip the Jar/Zip archive.
+         * @param filter the filter selecting the entries to copy.
+         */
+        void writeZip(@NonNull File zip, @NonNull IZipEntryFilter filter)
+                throws IOException, IZipEntryFilter.ZipAbortException;
+
+        /**
+         * Closes the package, and signs it if necessary.
+         */
+        void close() throws IOException, SigningException;
+
+        /**
+         * Clean up of the writer for interrupted workflow.
+         * This does nothing if {@link #close()} was called successfully.
+         */
+        void cleanUp();
+    }
+
+    /**
+     * Writes a new package with a {@link SignedJarBuilder}.
+     */
+    private static final class SignedJarApkWriter implements ApkWriter {
+        @NonNull
+        private final SignedJarBuilder mBuilder;
+
+        private SignedJarApkWriter(@NonNull SignedJarBuilder builder) {
+            mBuilder = builder;
+        }
+
+        @Override
+        public void writeFile(@NonNull File file, @NonNull String archivePath)
+                throws IOException {
+            mBuilder.writeFile(file, archivePath);
+        }
+
+        @Override
+        public void writeZip(@NonNull File zip, @NonNull IZipEntryFilter filter)
+                throws IOException, IZipEntryFilter.ZipAbortException {
+            InputStream fis = new BufferedInputStream(new FileInputStream(zip));
+            try {
+                mBuilder.writeZip(fis, filter, null /* ZipEntryExtractor */);
+            } finally {
+                Closeables.close(fis, true /* swallowIOException */);
+            }
+        }
+
+        @Override
+        public void close() throws IOException, SigningException {
+            mBuilder.close();
+        }
+
+        @Override
+        public void cleanUp() {
+            mBuilder.cleanUp();
+        }
+    }
+
     /**
      * Filter to detect duplicate entries
      *
@@ -158,7 +231,7 @@ public final class Packager implements IArchiveBuilder {
         }
     }
 
-    private SignedJarBuilder mBuilder = null;
+    private ApkWriter mBuilder = null;
     private final ILogger mLogger;
     private boolean mJniDebugMode = false;
     private boolean mIsSealed = false;
@@ -193,6 +266,33 @@ public final class Packager implements IArchiveBuilder {
             @Nullable String createdBy,
             @NonNull ILogger logger,
             int minSdkVersion) throws PackagerException {
+        this(apkLocation, resLocation, certificateInfo, createdBy, logger, minSdkVersion, false);
+    }
+
+    /**
+     * Creates a new instance.
+     *
+     * In incremental mode, the package written by the previous build at the same location is
+     * updated in place: only the entries that were added, removed or changed are written, and
+     * only their digests are computed if the package is signed. Otherwise, the package is
+     * written again from scratch.
+     *
+     * @param apkLocation the file to create
+     * @param resLocation the file representing the packaged resource file.
+     * @param certificateInfo the signing information used to sign the package. Optional the OS path to the debug keystore, if needed or null.
+     * @param logger the logger.
+     * @param minSdkVersion minSdkVersion of the package.
+     * @param incremental whether to update the previous package instead of writing a new one.
+     * @throws com.android.builder.packaging.PackagerException
+     */
+    public Packager(
+            @NonNull String apkLocation,
+            @Nullable String resLocation,
+            @Nullable CertificateInfo certificateInfo,
+            @Nullable String createdBy,
+            @NonNull ILogger logger,
+            int minSdkVersion,
+            boolean incremental) throws PackagerException {
 
         try {
             File apkFile = new File(apkLocation);
@@ -206,13 +306,23 @@ public final class Packager implements IArchiveBuilder {
 
             mLogger = logger;
 
-            mBuilder = new SignedJarBuilder(
-                    new FileOutputStream(apkFile, false /* append */),
-                    certificateInfo != null ? certificateInfo.getKey() : null,
-                    certificateInfo != null ? certificateInfo.getCertificate() : null,
-                    getLocalVersion(),
-                    createdBy,
-                    minSdkVersion);
+            if (incremental) {
+                mBuilder = new IncrementalApkWriter(
+                        apkFile,
+                        certificateInfo != null ? certificateInfo.getKey() : null,
+                        certificateInfo != null ? certificateInfo.getCertificate() : null,
+                        getLocalVersion(),
+                        createdBy,
+                        minSdkVersion);
+            } else {
+                mBuilder = new SignedJarApkWriter(new SignedJarBuilder(
+                        new FileOutputStream(apkFile, false /* append */),
+                        certificateInfo != null ? certificateInfo.getKey() : null,
+                        certificateInfo != null ? certificateInfo.getCertificate() : null,
+                        getLocalVersion(),
+                        createdBy,
+                        minSdkVersion));
+            }
 
             mLogger.verbose("Packaging %s", apkFile.getName());
 
@@ -345,7 +455,6 @@ public final class Packager implements IArchiveBuilder {
             throw new SealedPackageException("APK is already sealed");
         }
 
-        FileInputStream fis = null;
         try {
             mLogger.verbose("%s:", zipFile);
 
@@ -353,20 +462,13 @@ public final class Packager implements IArchiveBuilder {
             mNoDuplicateFilter.reset(zipFile);
 
             // ask the builder to add the content of the file.
-            fis = new FileInputStream(zipFile);
-            mBuilder.writeZip(fis, mNoDuplicateFilter, null /* ZipEntryExtractor */);
+            mBuilder.writeZip(zipFile, mNoDuplicateFilter);
         } catch (DuplicateFileException e) {
             mBuilder.cleanUp();
             throw e;
         } catch (Exception e) {
             mBuilder.cleanUp();
             throw new PackagerException(e, "Failed to add %s", zipFile);
-        } finally {
-            try {
-                Closeables.close(fis, true /* swallowIOException */);
-            } catch (IOException e) {
-                // ignore
-            }
         }
     }
 
@@ -386,13 +488,11 @@ public final class Packager implements IArchiveBuilder {
         }
 
         mNoDuplicateFilter.reset(jarFileOrDirectory);
-        InputStream fis = null;
         try {
             if (jarFileOrDirectory.isDirectory()) {
                 addResourcesFromDirectory(jarFileOrDirectory, "");
             } else {
-                fis = new BufferedInputStream(new FileInputStream(jarFileOrDirectory));
-                mBuilder.writeZip(fis, mNoJavaClassZipFilter, null /* ZipEntryExtractor */);
+                mBuilder.writeZip(jarFileOrDirectory, mNoJavaClassZipFilter);
             }
         } catch (DuplicateFileException e) {
             mBuilder.cleanUp();
@@ -400,14 +500,6 @@ public final class Packager implements IArchiveBuilder {
         } catch (Exception e) {
             mBuilder.cleanUp();
             throw new PackagerException(e, "Failed to add %s", jarFileOrDirectory);
-        } finally {
-            try {
-                if (fis != null) {
-                    Closeables.close(fis, true /* swallowIOException */);
-                }
-            } catch (IOException e) {
-                // ignore.
-            }
         }
     }
 
@@ -458,13 +550,11 @@ public final class Packager implements IArchiveBuilder {
                 abiFilters, mNoDuplicateFilter, mJniDebugMode);
         mNoDuplicateFilter.reset(jarFileOrDirectory);
 
-        InputStream fis = null;
         try {
             if (jarFileOrDirectory.isDirectory()) {
                 addNativeLibrariesFromDirectory(jarFileOrDirectory, "", filter);
             } else {
-                fis = new BufferedInputStream(new FileInputStream(jarFileOrDirectory));
-                mBuilder.writeZip(fis, filter, null /* ZipEntryExtractor */);
+                mBuilder.writeZip(jarFileOrDirectory, filter);
             }
         } catch (DuplicateFileException e) {
             mBuilder.cleanUp();
@@ -472,14 +562,6 @@ public final class Packager implements IArchiveBuilder {
         } catch (Exception e) {
             mBuilder.cleanUp();
             throw new PackagerException(e, "Failed to add %s", jarFileOrDirectory);
-        } finally {
-            try {
-                if (fis != null) {
-                    Closeables.close(fis, true /* swallowIOException */);
-                }
-            } catch (IOException e) {
-                // ignore.
-            }
         }
     }
 
@@ -0,0 +1,365 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.internal.packaging;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.builder.internal.packaging.zip.ByteArrayEntrySource;
+import com.android.builder.internal.packaging.zip.CompressionMethod;
+import com.android.builder.internal.packaging.zip.StoredEntry;
+import com.android.builder.internal.packaging.zip.StoredEntryType;
+import com.android.builder.internal.packaging.zip.ZFile;
+import com.android.builder.internal.packaging.zip.ZFileExtension;
+import com.android.builder.internal.utils.IOExceptionRunnable;
+import com.android.builder.signing.SignedJarBuilder;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.Closeables;
+import com.google.common.primitives.Bytes;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+/**
+ * Extension that keeps a {@link ZFile} signed the same way {@link SignedJarBuilder} signs the
+ * archives it writes.
+ *
+ * <p>The extension records the entries added, replaced and removed since the archive was opened.
+ * Before the archive is updated, only the digests of those entries are computed; the digests of
+ * the other entries are read back from the manifest and signature file already in the archive,
+ * provided they were created for the same signing configuration. The manifest, signature file and
+ * signature block are only rewritten if an entry changed.
+ */
+class SignatureExtension extends ZFileExtension {
+
+    private static final String SIGNATURE_FILE = "META-INF/CERT.SF";
+
+    @NonNull
+    private final ZFile mZFile;
+    @NonNull
+    private final PrivateKey mKey;
+    @NonNull
+    private final X509Certificate mCertificate;
+    private final int mMinSdkVersion;
+    @NonNull
+    private final String mMessageDigestAlgorithm;
+    @NonNull
+    private final String mDigestAttributeName;
+    @NonNull
+    private final String mDigestManifestAttributeName;
+    @NonNull
+    private final MessageDigest mMessageDigest;
+    @NonNull
+    private final Manifest mManifest;
+
+    /**
+     * Digests of the manifest sections of the entries, as written in the signature file, by
+     * entry name.
+     */
+    @NonNull
+    private final Map<String, String> mSectionDigests = Maps.newHashMap();
+
+    /**
+     * Entries added, replaced or removed since the manifest was last written.
+     */
+    @NonNull
+    private final Set<String> mDirty = Sets.newHashSet();
+
+    /**
+     * Whether the signature files must be written even if no entry changed.
+     */
+    private boolean mChanged;
+
+    /**
+     * Creates a new extension and registers it with the archive.
+     *
+     * @param zFile the archive to sign
+     * @param key the key used to sign the archive
+     * @param certificate the certificate used to sign the archive
+     * @param builtBy the value of the "Built-By" attribute of the manifest, if any
+     * @param createdBy the value of the "Created-By" attribute of the manifest, if any
+     * @param minSdkVersion minSdkVersion of the package contained in the archive
+     * @throws IOException failed to read the signature files already in the archive
+     * @throws NoSuchAlgorithmException the digest algorithm is not available
+     */
+    SignatureExtension(
+            @NonNull ZFile zFile,
+            @NonNull PrivateKey key,
+            @NonNull X509Certificate certificate,
+            @Nullable String builtBy,
+            @Nullable String createdBy,
+            int minSdkVersion) throws IOException, NoSuchAlgorithmException {
+        mZFile = zFile;
+        mKey = key;
+        mCertificate = certificate;
+        mMinSdkVersion = minSdkVersion;
+        mMessageDigestAlgorithm = SignedJarBuilder.getMessageDigestAlgorithm(minSdkVersion);
+        String digestAttributeAlgorithm =
+                SignedJarBuilder.getDigestAttributeAlgorithm(minSdkVersion);
+        mDigestAttributeName = digestAttributeAlgorithm + "-Digest";
+        mDigestManifestAttributeName = digestAttributeAlgorithm + "-Digest-Manifest";
+        mMessageDigest = MessageDigest.getInstance(mMessageDigestAlgorithm);
+
+        mManifest = new Manifest();
+        Attributes main = mManifest.getMainAttributes();
+        main.putValue("Manifest-Version", "1.0");
+        if (builtBy != null) {
+            main.putValue("Built-By", builtBy);
+        }
+        if (createdBy != null) {
+            main.putValue("Created-By", createdBy);
+        }
+
+        readSignatureFiles();
+
+        for (StoredEntry entry : mZFile.entries()) {
+            String name = entry.getCentralDirectoryHeader().getName();
+            if (isSigned(entry) && !mManifest.getEntries().containsKey(name)) {
+                mDirty.add(name);
+            }
+        }
+
+        mZFile.addZFileExtension(this);
+    }
+
+    /**
+     * Reads the digests from the manifest and signature file in the archive, if they were written
+     * with the same attributes and signed with the same certificate.
+     */
+    private void readSignatureFiles() throws IOException {
+        StoredEntry manifestEntry = mZFile.get(JarFile.MANIFEST_NAME);
+        StoredEntry signatureFileEntry = mZFile.get(SIGNATURE_FILE);
+        StoredEntry signatureBlockEntry = mZFile.get(getSignatureBlockName());
+        if (manifestEntry == null || signatureFileEntry == null || signatureBlockEntry == null
+                || !isSignedWithCertificate(signatureBlockEntry.read())) {
+            mChanged = true;
+            return;
+        }
+
+        Manifest manifest = new Manifest(new ByteArrayInputStream(manifestEntry.read()));
+        Manifest signatureFile =
+                new Manifest(new ByteArrayInputStream(signatureFileEntry.read()));
+        if (!manifest.getMainAttributes().equals(mManifest.getMainAttributes())) {
+            mChanged = true;
+            return;
+        }
+
+        for (Map.Entry<String, Attributes> entry : manifest.getEntries().entrySet()) {
+            String name = entry.getKey();
+            String digest = entry.getValue().getValue(mDigestAttributeName);
+            StoredEntry stored = mZFile.get(name);
+            if (digest == null || stored == null || !isSigned(stored)) {
+                mChanged = true;
+                continue;
+            }
+
+            Attributes attr = new Attributes();
+            attr.putValue(mDigestAttributeName, digest);
+            mManifest.getEntries().put(name, attr);
+
+            Attributes sfAttr = signatureFile.getAttributes(name);
+            if (sfAttr != null && sfAttr.getValue(mDigestAttributeName) != null) {
+                mSectionDigests.put(name, sfAttr.getValue(mDigestAttributeName));
+            }
+        }
+    }
+
+    /**
+     * Checks whether a signature block embeds our certificate. The PKCS#7 structure holds the
+     * DER encoding of the certificate as is.
+     */
+    private boolean isSignedWithCertificate(@NonNull byte[] signatureBlock) throws IOException {
+        try {
+            return Bytes.indexOf(signatureBlock, mCertificate.getEncoded()) != -1;
+        } catch (CertificateEncodingException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @NonNull
+    private String getSignatureBlockName() {
+        return "META-INF/CERT." + mKey.getAlgorithm();
+    }
+
+    /**
+     * Checks whether an entry is one of the manifest, signature file and signature block written
+     * by this extension.
+     */
+    boolean isSignatureFile(@NonNull String name) {
+        return name.equals(JarFile.MANIFEST_NAME)
+                || name.equals(SIGNATURE_FILE)
+                || name.equals(getSignatureBlockName());
+    }
+
+    /**
+     * Checks whether an entry has a digest in the manifest: all files but the signature files.
+     */
+    private boolean isSigned(@NonNull StoredEntry entry) {
+        return entry.getType() == StoredEntryType.FILE
+                && !isSignatureFile(entry.getCentralDirectoryHeader().getName());
+    }
+
+    @Nullable
+    @Override
+    public IOExceptionRunnable added(@NonNull StoredEntry entry, @Nullable StoredEntry replaced) {
+        if (isSigned(entry)) {
+            mDirty.add(entry.getCentralDirectoryHeader().getName());
+        }
+
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public IOExceptionRunnable removed(@NonNull StoredEntry entry) {
+        if (isSigned(entry)) {
+            mDirty.add(entry.getCentralDirectoryHeader().getName());
+        }
+
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public IOExceptionRunnable beforeUpdate() throws IOException {
+        if (mDirty.isEmpty() && !mChanged) {
+            return null;
+        }
+
+        Map<String, Attributes> entries = mManifest.getEntries();
+        for (String name : mDirty) {
+            mSectionDigests.remove(name);
+
+            StoredEntry entry = mZFile.get(name);
+            if (entry == null) {
+                entries.remove(name);
+            } else {
+                Attributes attr = new Attributes();
+                attr.putValue(mDigestAttributeName, digest(entry.open()));
+                entries.put(name, attr);
+            }
+        }
+
+        mDirty.clear();
+        mChanged = false;
+
+        ByteArrayOutputStream manifestBytes = new ByteArrayOutputStream();
+        mManifest.write(manifestBytes);
+        byte[] signatureFile = createSignatureFile(manifestBytes.toByteArray());
+        byte[] signatureBlock;
+        try {
+            signatureBlock = SignedJarBuilder.createSignatureBlock(signatureFile, mCertificate,
+                    mKey, mMessageDigestAlgorithm, mMinSdkVersion);
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Failed to sign " + mZFile, e);
+        }
+
+        mZFile.add(JarFile.MANIFEST_NAME, new ByteArrayEntrySource(manifestBytes.toByteArray()),
+                CompressionMethod.DEFLATE);
+        mZFile.add(SIGNATURE_FILE, new ByteArrayEntrySource(signatureFile),
+                CompressionMethod.DEFLATE);
+        mZFile.add(getSignatureBlockName(), new ByteArrayEntrySource(signatureBlock),
+                CompressionMethod.DEFLATE);
+        return null;
+    }
+
+    /**
+     * Creates the .SF file: the digest of the whole manifest and of the manifest section of each
+     * entry. Only the sections of the entries that changed are digested.
+     */
+    @NonNull
+    private byte[] createSignatureFile(@NonNull byte[] manifestBytes) throws IOException {
+        Manifest sf = new Manifest();
+        Attributes main = sf.getMainAttributes();
+        main.putValue("Signature-Version", "1.0");
+        main.putValue("Created-By", "1.0 (Android)");
+        main.putValue(mDigestManifestAttributeName,
+                digest(new ByteArrayInputStream(manifestBytes)));
+
+        for (Map.Entry<String, Attributes> entry : mManifest.getEntries().entrySet()) {
+            String sectionDigest = mSectionDigests.get(entry.getKey());
+            if (sectionDigest == null) {
+                // Same stanza as the one digested by SignedJarBuilder.
+                StringBuilder section = new StringBuilder();
+                section.append("Name: ").append(entry.getKey()).append("\r\n");
+                for (Map.Entry<Object, Object> att : entry.getValue().entrySet()) {
+                    section.append(att.getKey()).append(": ").append(att.getValue())
+                            .append("\r\n");
+                }
+                section.append("\r\n");
+
+                sectionDigest = digest(new ByteArrayInputStream(
+                        section.toString().getBytes(Charsets.UTF_8)));
+                mSectionDigests.put(entry.getKey(), sectionDigest);
+            }
+
+            Attributes sfAttr = new Attributes();
+            sfAttr.putValue(mDigestAttributeName, sectionDigest);
+            sf.getEntries().put(entry.getKey(), sfAttr);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        sf.write(out);
+
+        // Same workaround as SignedJarBuilder for the spurious IOException thrown by Android
+        // platforms up to version 1.6 if the length of the file is a multiple of 1024 bytes.
+        if ((out.size() % 1024) == 0) {
+            out.write('\r');
+            out.write('\n');
+        }
+
+        return out.toByteArray();
+    }
+
+    /**
+     * Computes the base64-encoded digest of a stream, and closes it.
+     */
+    @NonNull
+    private String digest(@NonNull InputStream input) throws IOException {
+        mMessageDigest.reset();
+        boolean threw = true;
+        try {
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = input.read(buffer)) != -1) {
+                mMessageDigest.update(buffer, 0, count);
+            }
+
+            threw = false;
+        } finally {
+            Closeables.close(input, threw);
+        }
+
+        return BaseEncoding.base64().encode(mMessageDigest.digest());
+    }
+}
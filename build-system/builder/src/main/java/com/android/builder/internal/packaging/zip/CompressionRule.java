@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.internal.packaging.zip;
+
+import com.android.annotations.NonNull;
+import com.google.common.base.Preconditions;
+
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+
+/**
+ * A compression rule defines how hard should some files be deflated in a zip file. A rule is
+ * defined by two properties: a pattern and a compression level.
+ * <p>
+ * As with {@link AlignmentRule}, the pattern is applied to the file name (not to the
+ * <em>path</em>) and defines which files this rule applies to. The level is a {@link Deflater}
+ * compression level, from {@link Deflater#BEST_SPEED} to {@link Deflater#BEST_COMPRESSION}.
+ * Files that were not requested to be deflated will not be deflated, whatever their level.
+ */
+public class CompressionRule {
+
+    /**
+     * File name pattern.
+     */
+    @NonNull
+    private Pattern mPattern;
+
+    /**
+     * Compression level.
+     */
+    private int mLevel;
+
+    /**
+     * Creates a new compression rule.
+     *
+     * @param pattern the pattern to apply to file names to decide whether the rules applies or not
+     * to a file; this will be checked using {@code matches()}, not {@code find()}
+     * @param level the compression level, between {@link Deflater#BEST_SPEED} and
+     * {@link Deflater#BEST_COMPRESSION}
+     */
+    public CompressionRule(@NonNull Pattern pattern, int level) {
+        Preconditions.checkArgument(level >= Deflater.BEST_SPEED
+                && level <= Deflater.BEST_COMPRESSION, "invalid level (%s)", level);
+
+        mPattern = pattern;
+        mLevel = level;
+    }
+
+    /**
+     * Obtains the pattern used to match files.
+     *
+     * @return the pattern
+     */
+    @NonNull
+    public Pattern getPattern() {
+        return mPattern;
+    }
+
+    /**
+     * Obtains the compression level for the file.
+     *
+     * @return the level
+     */
+    public int getLevel() {
+        return mLevel;
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.internal.packaging.zip;
+
+import com.android.annotations.NonNull;
+import com.google.common.collect.Lists;
+
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * Compression rules maintains a list of {@link CompressionRule} and allows checking the
+ * compression level for a file. Rules in the list are kept in order and the first rule to apply to
+ * a file will be the one used.
+ */
+public class CompressionRules {
+
+    /**
+     * The compression rules.
+     */
+    @NonNull
+    private List<CompressionRule> mRules;
+
+    /**
+     * Creates a new empty set of rules.
+     */
+    public CompressionRules() {
+        mRules = Lists.newArrayList();
+    }
+
+    /**
+     * Adds a new compression rule to the end of the list.
+     *
+     * @param rule the rule to add
+     */
+    public void add(@NonNull CompressionRule rule) {
+        mRules.add(rule);
+    }
+
+    /**
+     * Finds the compression level of a file with a certain path.
+     *
+     * @param path the path
+     * @return the level or {@link Deflater#DEFAULT_COMPRESSION} if there are no rules for this
+     * file
+     */
+    public int level(@NonNull String path) {
+        if (mRules.isEmpty()) {
+            return Deflater.DEFAULT_COMPRESSION;
+        }
+
+        /*
+         * Rules apply to the file name, as alignment rules do. Directories are never compressed so
+         * we don't need to care about a trailing separator.
+         */
+        String name = path.substring(path.lastIndexOf(ZFile.SEPARATOR) + 1);
+        for (CompressionRule rule : mRules) {
+            if (rule.getPattern().matcher(name).matches()) {
+                return rule.getLevel();
+            }
+        }
+
+        return Deflater.DEFAULT_COMPRESSION;
+    }
+}
@@ -35,6 +35,10 @@ import java.util.TreeSet;
  * There are a couple of invariants in this structure: there are no gaps between map entries. The
  * map is fully covered up to its size. There are no two free entries next to each other, this
  * is guaranteed by coalescing the entries upon removal (see {@link #coalesce(FileUseMapEntry)}).
+ * <p>
+ * The free entries are also kept in a second set ordered by size, so that free space can be
+ * located without going through all the entries of the map
+ * (see {@link #locateFree(long, long, long)}).
  */
 class FileUseMap {
     /**
@@ -50,6 +54,12 @@ class FileUseMap {
     @NonNull
     private TreeSet<FileUseMapEntry<?>> mMap;
 
+    /**
+     * Tree with all free intervals of {@link #mMap}, ordered by size and then by start.
+     */
+    @NonNull
+    private TreeSet<FileUseMapEntry<?>> mFree;
+
     /**
      * Creates a new, empty file map.
      *
@@ -60,9 +70,34 @@ class FileUseMap {
 
         mSize = size;
         mMap = new TreeSet<FileUseMapEntry<?>>(FileUseMapEntry.COMPARE_BY_START);
+        mFree = new TreeSet<FileUseMapEntry<?>>(FileUseMapEntry.COMPARE_BY_SIZE);
 
         if (size > 0) {
-            mMap.add(FileUseMapEntry.makeFree(0, size));
+            internalAdd(FileUseMapEntry.makeFree(0, size));
+        }
+    }
+
+    /**
+     * Adds an entry to the map, and to the free entries if it is free.
+     *
+     * @param entry the entry to add
+     */
+    private void internalAdd(@NonNull FileUseMapEntry<?> entry) {
+        mMap.add(entry);
+        if (entry.isFree()) {
+            mFree.add(entry);
+        }
+    }
+
+    /**
+     * Removes an entry from the map, and from the free entries if it is free.
+     *
+     * @param entry the entry to remove
+     */
+    private void internalRemove(@NonNull FileUseMapEntry<?> entry) {
+        mMap.remove(entry);
+        if (entry.isFree()) {
+            mFree.remove(entry);
         }
     }
 
@@ -82,8 +117,10 @@ class FileUseMap {
         Verify.verify(container.isFree(), "!container.isFree()");
 
         Set<FileUseMapEntry<?>> replacements = split(container, entry);
-        mMap.remove(container);
-        mMap.addAll(replacements);
+        internalRemove(container);
+        for (FileUseMapEntry<?> replacement : replacements) {
+            internalAdd(replacement);
+        }
     }
 
     /**
@@ -95,9 +132,9 @@ class FileUseMap {
     void remove(@NonNull FileUseMapEntry<?> entry) {
         Preconditions.checkState(mMap.contains(entry), "!mMap.contains(entry)");
 
-        mMap.remove(entry);
+        internalRemove(entry);
         entry = FileUseMapEntry.makeFree(entry.getStart(), entry.getEnd());
-        mMap.add(entry);
+        internalAdd(entry);
         coalesce(entry);
     }
 
@@ -221,17 +258,17 @@ class FileUseMap {
         long newStart = start;
         if (prevToMerge != null) {
             newStart = prevToMerge.getStart();
-            mMap.remove(prevToMerge);
+            internalRemove(prevToMerge);
         }
 
         long newEnd = end;
         if (nextToMerge != null) {
             newEnd = nextToMerge.getEnd();
-            mMap.remove(nextToMerge);
+            internalRemove(nextToMerge);
         }
 
-        mMap.remove(entry);
-        mMap.add(FileUseMapEntry.makeFree(newStart, newEnd));
+        internalRemove(entry);
+        internalAdd(FileUseMapEntry.makeFree(newStart, newEnd));
     }
 
     /**
@@ -248,7 +285,7 @@ class FileUseMap {
         FileUseMapEntry<?> last = mMap.last();
         Verify.verifyNotNull(last, "last == null");
         if (last.isFree()) {
-            mMap.remove(last);
+            internalRemove(last);
             mSize = last.getStart();
         }
     }
@@ -279,7 +316,6 @@ class FileUseMap {
         FileUseMapEntry<?> last = mMap.last();
         Verify.verifyNotNull(last, "last == null");
         if (last.isFree()) {
-            mMap.remove(last);
             return last.getStart();
         }
 
@@ -300,7 +336,7 @@ class FileUseMap {
         }
 
         FileUseMapEntry<?> newBlock = FileUseMapEntry.makeFree(mSize, size);
-        mMap.add(newBlock);
+        internalAdd(newBlock);
 
         mSize = size;
 
@@ -324,12 +360,20 @@ class FileUseMap {
 
         FileUseMapEntry<?> best = null;
         long bestExtraSize = 0;
-        for (FileUseMapEntry<?> curr : mMap) {
+
+        /*
+         * Go through the free blocks that are at least size bytes large, smallest first. Blocks
+         * are only skipped if the alignment does not leave enough space in them, so at most the
+         * blocks smaller than size + align are looked at before one is found.
+         */
+        for (FileUseMapEntry<?> curr : mFree.tailSet(FileUseMapEntry.makeFree(0, size))) {
             /*
-             * We don't care about blocks that aren't free.
+             * We don't care about blocks that are bigger than the best so far (otherwise this
+             * wouldn't be a best-fit algorithm). Of the blocks with the same size, the last one
+             * in the file is used.
              */
-            if (!curr.isFree()) {
-                continue;
+            if (best != null && best.getSize() < curr.getSize()) {
+                break;
             }
 
             /*
@@ -345,14 +389,6 @@ class FileUseMap {
                 continue;
             }
 
-            /*
-             * We don't care about blocks that are bigger than the best so far (otherwise this
-             * wouldn't be a best-fit algorithm).
-             */
-            if (best != null && best.getSize() < curr.getSize()) {
-                continue;
-            }
-
             best = curr;
             bestExtraSize = extraSize;
         }
@@ -21,6 +21,7 @@ import com.android.annotations.Nullable;
 import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
 import com.google.common.primitives.Ints;
+import com.google.common.primitives.Longs;
 
 import java.util.Comparator;
 
@@ -47,6 +48,22 @@ class FileUseMapEntry<T> {
         }
     };
 
+    /**
+     * Comparator that compares entries by their size and then by their start.
+     */
+    public static final Comparator<FileUseMapEntry<?>> COMPARE_BY_SIZE =
+            new Comparator<FileUseMapEntry<?>>() {
+        @Override
+        public int compare(@NonNull FileUseMapEntry<?> o1, @NonNull FileUseMapEntry<?> o2) {
+            int bySize = Longs.compare(o1.getSize(), o2.getSize());
+            if (bySize != 0) {
+                return bySize;
+            }
+
+            return Longs.compare(o1.getStart(), o2.getStart());
+        }
+    };
+
     /**
      * The first byte in the entry.
      */
@@ -23,9 +23,12 @@ import com.android.builder.internal.packaging.zip.utils.LittleEndianUtils;
 import com.android.builder.internal.packaging.zip.utils.RandomAccessFileUtils;
 import com.android.builder.internal.utils.IOExceptionFunction;
 import com.android.builder.internal.utils.IOExceptionRunnable;
+import com.android.ide.common.internal.ExecutorSingleton;
 import com.android.utils.FileUtils;
 import com.google.common.base.Function;
+import com.google.common.base.Functions;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
 import com.google.common.base.Verify;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
@@ -34,7 +37,6 @@ import com.google.common.hash.Hashing;
 import com.google.common.io.ByteSource;
 import com.google.common.io.ByteStreams;
 import com.google.common.io.Closeables;
-import com.google.common.io.Closer;
 import com.google.common.primitives.Ints;
 import com.google.common.io.Files;
 
@@ -43,13 +45,17 @@ import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.RandomAccessFile;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
 import java.util.regex.Pattern;
 import java.util.zip.Deflater;
-import java.util.zip.DeflaterOutputStream;
 
 /**
  * The {@code ZFile} provides the main interface for interacting with zip files. A {@code ZFile}
@@ -85,7 +91,10 @@ import java.util.zip.DeflaterOutputStream;
  * <p>
  * When adding files to the zip file, unless files are explicitly required to be stored, files will
  * be deflated. However, deflating will not occur if the deflated file is larger then the stored
- * file, <em>e.g.</em> if compression would yield a bigger file.
+ * file, <em>e.g.</em> if compression would yield a bigger file. The compression level of deflated
+ * files can be chosen by file name pattern using the {@link CompressionRules} object obtained with
+ * {@link #getCompressionRules()}. Many files can be added at once using
+ * {@link #addAll(Map, Function)}, which compresses them in parallel.
  * <p>
  * Because {@code ZFile} was designed to be used in a build system and not as general-purpose
  * zip utility, it is very strict (and unforgiving) about the zip format and unsupported features.
@@ -155,6 +164,32 @@ public class ZFile implements Closeable {
      */
     private static final int IO_BUFFER_SIZE = 1024 * 1024;
 
+    /**
+     * Size of the buffer deflated data is written to before being collected.
+     */
+    private static final int DEFLATE_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Deflater of each thread compressing files. Deflaters hold native memory and are expensive
+     * to create, so they are reused by all files compressed in the same thread.
+     */
+    private static final ThreadLocal<Deflater> sDeflater = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        }
+    };
+
+    /**
+     * Buffer of each thread compressing files, see {@link #DEFLATE_BUFFER_SIZE}.
+     */
+    private static final ThreadLocal<byte[]> sDeflateBuffer = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[DEFLATE_BUFFER_SIZE];
+        }
+    };
+
     /**
      * File zip file.
      */
@@ -222,6 +257,12 @@ public class ZFile implements Closeable {
     @NonNull
     private final AlignmentRules mAlignmentRules;
 
+    /**
+     * The set of compression rules.
+     */
+    @NonNull
+    private final CompressionRules mCompressionRules;
+
     /**
      * Extensions registered with the file.
      */
@@ -264,6 +305,7 @@ public class ZFile implements Closeable {
         mDirty = false;
         mClosedControl = null;
         mAlignmentRules = new AlignmentRules();
+        mCompressionRules = new CompressionRules();
         mExtensions = Lists.newArrayList();
         mToRun = Lists.newArrayList();
 
@@ -1030,6 +1072,97 @@ public class ZFile implements Closeable {
      */
     public void add(@NonNull String name, @NonNull EntrySource source,
             @NonNull CompressionMethod method) throws IOException {
+        NewEntry newEntry = prepare(name, source, method, mCompressionRules.level(name));
+        add(newEntry.mHeader, newEntry.mSource);
+    }
+
+    /**
+     * Adds several files to the archive. This is equivalent to calling
+     * {@link #add(String, EntrySource, CompressionMethod)} for each file, in iteration order,
+     * except that files that are deflated are read and compressed in parallel. Compression is done
+     * in a shared thread pool and in the calling thread; files are added to the archive only once
+     * compressed, in the order of {@code sources}, so the resulting archive does not depend on
+     * the order by which compression finishes.
+     * <p>
+     * Adding the files will not update the archive immediately. Updating will only happen
+     * when the {@link #update()} method is invoked.
+     *
+     * @param sources the sources for the files' data, indexed by file name; see
+     * {@link #add(String, EntrySource, CompressionMethod)} for the file names
+     * @param method a function that decides what compression method to apply to each file name
+     * @throws IOException failed to read the source data of some file; files before it may have
+     * been added
+     */
+    public void addAll(@NonNull Map<String, EntrySource> sources,
+            @NonNull Function<String, CompressionMethod> method) throws IOException {
+        List<FutureTask<NewEntry>> tasks = Lists.newArrayListWithCapacity(sources.size());
+        ExecutorService executor = ExecutorSingleton.getExecutor();
+        for (Map.Entry<String, EntrySource> entry : sources.entrySet()) {
+            final String name = entry.getKey();
+            final EntrySource source = entry.getValue();
+            final CompressionMethod cm = Verify.verifyNotNull(method.apply(name),
+                    "method.apply() returned null");
+            final int level = mCompressionRules.level(name);
+
+            FutureTask<NewEntry> task = new FutureTask<NewEntry>(new Callable<NewEntry>() {
+                @Override
+                public NewEntry call() throws Exception {
+                    return prepare(name, source, cm, level);
+                }
+            });
+
+            tasks.add(task);
+            if (cm == CompressionMethod.DEFLATE) {
+                executor.execute(task);
+            }
+        }
+
+        try {
+            for (int i = 0; i < tasks.size(); i++) {
+                FutureTask<NewEntry> task = tasks.get(i);
+
+                /*
+                 * Run the task here if no pool thread has picked it up yet. This is a no-op if the
+                 * task has already started, and makes sure we never wait on a busy pool.
+                 */
+                task.run();
+
+                NewEntry newEntry;
+                try {
+                    newEntry = task.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while compressing files.");
+                } catch (ExecutionException e) {
+                    Throwables.propagateIfPossible(e.getCause(), IOException.class);
+                    throw new IOException(e.getCause());
+                }
+
+                add(newEntry.mHeader, newEntry.mSource);
+            }
+        } finally {
+            for (FutureTask<NewEntry> task : tasks) {
+                task.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Computes the header and the data source of a file to add to the archive. This reads the
+     * data of the file, compresses it if deflating, and does not access the archive, so it may be
+     * called from any thread.
+     *
+     * @param name the file name
+     * @param source the source for the file's data
+     * @param method the compression method to use for the file; {@link CompressionMethod#STORE}
+     * will still be used if deflating does not make the file smaller
+     * @param level the compression level to use if deflating
+     * @return the file to add
+     * @throws IOException failed to read the source data
+     */
+    @NonNull
+    private static NewEntry prepare(@NonNull String name, @NonNull EntrySource source,
+            @NonNull CompressionMethod method, int level) throws IOException {
         /*
          * Create the data structure with information about the file. Assume we will store (and
          * not compress) the file. We may need to change this later on.
@@ -1038,43 +1171,42 @@ public class ZFile implements Closeable {
                 source.size(), CompressionMethod.STORE);
 
         /*
-         * If we could be deflating, compress upfront so we can know whether the compressed data
-         * is smaller or larger than the uncompressed data. storeData will either be {@code null}
-         * if we didn't even try to read from the source, or will contain the raw data or
-         * compressed data if we read from the source. newMethod will have the actual method that
-         * will be used.
+         * Read the data upfront: the CRC32 is computed on the uncompressed data and, if we could
+         * be deflating, we need to know whether the compressed data is smaller or larger than the
+         * uncompressed data. storeData will contain the raw data or compressed data, and the
+         * method in newFileData the actual method that will be used.
          */
-        byte[] storeData = null;
-        if (method == CompressionMethod.DEFLATE) {
-            ByteArrayOutputStream sourceDataBytes = new ByteArrayOutputStream();
-
-            InputStream sourceIn = source.open();
-            ByteStreams.copy(sourceIn, sourceDataBytes);
+        byte[] storeData;
+        InputStream sourceIn = source.open();
+        boolean threw = true;
+        try {
+            storeData = ByteStreams.toByteArray(sourceIn);
+            threw = false;
+        } finally {
+            Closeables.close(sourceIn, threw);
+        }
 
-            storeData = sourceDataBytes.toByteArray();
+        newFileData.setCrc32(Hashing.crc32().hashBytes(storeData).padToLong());
 
-            byte[] deflatedData = deflate(storeData);
+        if (method == CompressionMethod.DEFLATE) {
+            byte[] deflatedData = deflate(storeData, level);
             if (deflatedData.length < storeData.length) {
                 storeData = deflatedData;
                 newFileData.setMethod(CompressionMethod.DEFLATE);
                 newFileData.setCompressedSize(deflatedData.length);
             }
-
-            newFileData.setCrc32(Hashing.crc32().hashBytes(storeData).padToLong());
         }
 
         /*
-         * If we are changing the data we're storing (by compressing), replace the source with
-         * a new one.
+         * Replace the source with one reading the data we have already read (and possibly
+         * compressed).
          */
-        if (storeData != null) {
-            source = new ByteArrayEntrySource(storeData);
-            if (newFileData.getMethod() == CompressionMethod.DEFLATE) {
-                source = new InflaterEntrySource(source, newFileData.getUncompressedSize());
-            }
+        source = new ByteArrayEntrySource(storeData);
+        if (newFileData.getMethod() == CompressionMethod.DEFLATE) {
+            source = new InflaterEntrySource(source, newFileData.getUncompressedSize());
         }
 
-        add(newFileData, source);
+        return new NewEntry(newFileData, source);
     }
 
     /**
@@ -1146,25 +1278,25 @@ public class ZFile implements Closeable {
     }
 
     /**
-     * Performs in-memory deflation of a byte array.
+     * Performs in-memory deflation of a byte array. The deflater of the calling thread is reused.
      *
      * @param in the input data
+     * @param level the compression level
      * @return the deflated data
-     * @throws IOException failed to deflate
      */
     @NonNull
-    private static byte[] deflate(@NonNull byte[] in) throws IOException {
-        ByteArrayOutputStream output = new ByteArrayOutputStream();
-        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
-
-        Closer closer = Closer.create();
-        try {
-            DeflaterOutputStream dos = closer.register(new DeflaterOutputStream(output, deflater));
-            dos.write(in);
-        } catch (IOException e) {
-            throw closer.rethrow(e);
-        } finally {
-            closer.close();
+    private static byte[] deflate(@NonNull byte[] in, int level) {
+        Deflater deflater = sDeflater.get();
+        deflater.reset();
+        deflater.setLevel(level);
+        deflater.setInput(in);
+        deflater.finish();
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream(in.length / 2 + 64);
+        byte[] buffer = sDeflateBuffer.get();
+        while (!deflater.finished()) {
+            int count = deflater.deflate(buffer);
+            output.write(buffer, 0, count);
         }
 
         return output.toByteArray();
@@ -1284,6 +1416,17 @@ public class ZFile implements Closeable {
         return mAlignmentRules;
     }
 
+    /**
+     * Obtains the compression rules used to choose the compression level of files that are
+     * deflated when added. Changing the rules does not affect files already added.
+     *
+     * @return the rules that can be changed
+     */
+    @NonNull
+    public CompressionRules getCompressionRules() {
+        return mCompressionRules;
+    }
+
     /**
      * Realigns all entries in the zip. This is equivalent to call {@link StoredEntry#realign()}
      * for all entries in the zip file.
@@ -1576,6 +1719,8 @@ public class ZFile implements Closeable {
             return;
         }
 
+        Map<String, EntrySource> sources = Maps.newLinkedHashMap();
+        Map<String, CompressionMethod> methods = Maps.newHashMap();
         for (File f : Files.fileTreeTraverser().preOrderTraversal(file).skip(1)) {
             String path = FileUtils.relativePath(f, file);
             path = FileUtils.toSystemIndependentPath(path);
@@ -1591,8 +1736,11 @@ public class ZFile implements Closeable {
                 Verify.verifyNotNull(cm, "method.apply() returned null");
             }
 
-            add(path, source, cm);
+            sources.put(path, source);
+            methods.put(path, cm);
         }
+
+        addAll(sources, Functions.forMap(methods));
     }
 
     /**
@@ -1690,4 +1838,27 @@ public class ZFile implements Closeable {
     public long getExtraDirectoryOffset() {
         return mExtraDirectoryOffset;
     }
+
+    /**
+     * A file ready to be added to the archive, with its data compressed if needed.
+     */
+    private static final class NewEntry {
+
+        /**
+         * The header of the file, with the final sizes, method and CRC32.
+         */
+        @NonNull
+        private final CentralDirectoryHeader mHeader;
+
+        /**
+         * The data of the file.
+         */
+        @NonNull
+        private final EntrySource mSource;
+
+        NewEntry(@NonNull CentralDirectoryHeader header, @NonNull EntrySource source) {
+            mHeader = header;
+            mSource = source;
+        }
+    }
 }
@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.png;
+
+import com.android.SdkConstants;
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.ide.common.internal.ExecutorSingleton;
+import com.android.ide.common.internal.PngCruncher;
+import com.android.ide.common.internal.PngException;
+import com.android.utils.ILogger;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Implementation of {@link PngCruncher} that crunches PNG files in this process with
+ * {@link PngOptimizer}, on the threads of {@link ExecutorSingleton}, instead of with aapt.
+ *
+ * Crunched files are keyed by the content of the original file. They are kept in memory for all
+ * the builds of this VM, and in a directory shared by all builds if one is given, so a PNG used by
+ * several libraries or variants is only crunched once.
+ *
+ * Nine-patch files are handed to another cruncher, as their borders need to be turned into the
+ * chunks written by aapt.
+ */
+public class JavaCruncher implements PngCruncher {
+
+    /**
+     * Version of the files crunched from a given PNG file. This needs to be changed whenever
+     * {@link PngOptimizer} changes, so that files crunched before are no longer used.
+     */
+    private static final int CRUNCHER_VERSION = 1;
+
+    private static final HashFunction HASH_FUNCTION = Hashing.sha1();
+
+    private static final long MAX_CACHED_BYTES = 32 * 1024 * 1024;
+
+    /**
+     * Crunched files, keyed by the hash of the original file. Loading an entry also makes the
+     * threads crunching the same file at the same time wait for the first one.
+     */
+    private static final Cache<HashCode, byte[]> sCrunched = CacheBuilder.newBuilder()
+            .maximumWeight(MAX_CACHED_BYTES)
+            .weigher(new Weigher<HashCode, byte[]>() {
+                @Override
+                public int weigh(@NonNull HashCode key, @NonNull byte[] value) {
+                    return value.length;
+                }
+            })
+            .build();
+
+    @NonNull private final PngCruncher mNinePatchCruncher;
+    @Nullable private final PngCache mCache;
+    @NonNull private final ILogger mLogger;
+    // list of outstanding jobs.
+    @NonNull private final Map<Integer, ConcurrentLinkedQueue<Future<Void>>> mOutstandingJobs =
+            new ConcurrentHashMap<Integer, ConcurrentLinkedQueue<Future<Void>>>();
+    // keys of the nine-patch cruncher for each set of requests.
+    @NonNull private final Map<Integer, Integer> mNinePatchKeys =
+            new ConcurrentHashMap<Integer, Integer>();
+    // unique key provider to remember which users enlisted which requests.
+    @NonNull private final AtomicInteger mKeyProvider = new AtomicInteger(0);
+
+    /**
+     * Creates a new cruncher.
+     *
+     * @param ninePatchCruncher the cruncher to use for nine-patch files
+     * @param cacheDir the directory where crunched files are stored to be reused by later builds,
+     * or null if they should not be
+     * @param logger the logger
+     */
+    public JavaCruncher(
+            @NonNull PngCruncher ninePatchCruncher,
+            @Nullable File cacheDir,
+            @NonNull ILogger logger) {
+        mNinePatchCruncher = ninePatchCruncher;
+        mCache = cacheDir != null ? new PngCache(cacheDir) : null;
+        mLogger = logger;
+    }
+
+    @Override
+    public int start() {
+        int key = mKeyProvider.incrementAndGet();
+        mOutstandingJobs.put(key, new ConcurrentLinkedQueue<Future<Void>>());
+        mNinePatchKeys.put(key, mNinePatchCruncher.start());
+        return key;
+    }
+
+    @Override
+    public void crunchPng(int key, @NonNull final File from, @NonNull final File to)
+            throws PngException {
+        if (from.getName().endsWith(SdkConstants.DOT_9PNG)) {
+            mNinePatchCruncher.crunchPng(mNinePatchKeys.get(key), from, to);
+            return;
+        }
+
+        mOutstandingJobs.get(key).add(ExecutorSingleton.getExecutor().submit(
+                new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        Files.write(crunch(Files.toByteArray(from)), to);
+                        return null;
+                    }
+                }));
+    }
+
+    /**
+     * Crunches the content of a PNG file, unless it was already crunched.
+     */
+    @NonNull
+    private byte[] crunch(@NonNull final byte[] png) throws IOException {
+        final HashCode key = HASH_FUNCTION.newHasher()
+                .putInt(CRUNCHER_VERSION)
+                .putBytes(png)
+                .hash();
+        try {
+            return sCrunched.get(key, new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws Exception {
+                    byte[] crunched = mCache != null ? mCache.get(key) : null;
+                    if (crunched == null) {
+                        crunched = PngOptimizer.optimize(png);
+                        if (mCache != null) {
+                            mCache.put(key, crunched);
+                        }
+                    }
+
+                    return crunched;
+                }
+            });
+        } catch (ExecutionException e) {
+            Throwables.propagateIfPossible(e.getCause(), IOException.class);
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    @Override
+    public void end(int key) throws InterruptedException {
+        long startTime = System.currentTimeMillis();
+        try {
+            Throwable failure = null;
+            ConcurrentLinkedQueue<Future<Void>> jobs = mOutstandingJobs.remove(key);
+            Future<Void> job = jobs.poll();
+            while (job != null) {
+                try {
+                    job.get();
+                } catch (ExecutionException e) {
+                    mLogger.error(e.getCause(), "Exception while crunching png");
+                    failure = e.getCause();
+                }
+                job = jobs.poll();
+            }
+
+            if (failure != null) {
+                throw new RuntimeException(
+                        "Some file crunching failed, see logs for details", failure);
+            }
+            mLogger.verbose("Job finished in %1$d", System.currentTimeMillis() - startTime);
+        } finally {
+            // even if we have failures, the nine-patch cruncher needs to be released.
+            mNinePatchCruncher.end(mNinePatchKeys.remove(key));
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.png;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.utils.FileUtils;
+import com.google.common.hash.HashCode;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.UUID;
+
+/**
+ * Content-addressed store of generated PNG files, shared by all the builds using the same
+ * directory.
+ *
+ * Each entry is a file named after its key, which is expected to be a hash of everything the
+ * content of the PNG depends on, so entries are never updated. They are written to a temporary
+ * file and renamed once complete, so a file with the name of a key can always be used without
+ * locking. Two builds generating the same entry at once will both write it, and one of the renames
+ * will win.
+ */
+class PngCache {
+
+    private static final String PNG_SUFFIX = ".png";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    @NonNull
+    private final File mDirectory;
+
+    PngCache(@NonNull File directory) {
+        mDirectory = directory;
+    }
+
+    /**
+     * Copies the entry with the given key to a file, if there is one.
+     *
+     * @param key the key of the entry
+     * @param to the file to write
+     * @return whether there was an entry for the key
+     * @throws IOException if the entry cannot be copied
+     */
+    boolean copyTo(@NonNull HashCode key, @NonNull File to) throws IOException {
+        File entry = getEntry(key);
+        if (!entry.isFile()) {
+            return false;
+        }
+
+        // Mark the entry as used, for anything cleaning up old entries.
+        //noinspection ResultOfMethodCallIgnored
+        entry.setLastModified(System.currentTimeMillis());
+
+        Files.copy(entry, to);
+        return true;
+    }
+
+    /**
+     * Reads the entry with the given key, if there is one.
+     *
+     * @param key the key of the entry
+     * @return the content of the entry, or null if there is no entry for the key
+     * @throws IOException if the entry cannot be read
+     */
+    @Nullable
+    byte[] get(@NonNull HashCode key) throws IOException {
+        File entry = getEntry(key);
+        if (!entry.isFile()) {
+            return null;
+        }
+
+        // Mark the entry as used, for anything cleaning up old entries.
+        //noinspection ResultOfMethodCallIgnored
+        entry.setLastModified(System.currentTimeMillis());
+
+        return Files.toByteArray(entry);
+    }
+
+    /**
+     * Creates an entry, unless there already is one.
+     *
+     * @param key the key of the entry
+     * @param data the content of the entry
+     * @throws IOException if the entry cannot be written
+     */
+    void put(@NonNull HashCode key, @NonNull byte[] data) throws IOException {
+        File entry = getEntry(key);
+        if (entry.isFile()) {
+            return;
+        }
+
+        FileUtils.mkdirs(mDirectory);
+        File tmp = new File(mDirectory, key + "-" + UUID.randomUUID() + TMP_SUFFIX);
+        Files.write(data, tmp);
+
+        if (!tmp.renameTo(entry)) {
+            FileUtils.delete(tmp);
+            if (!entry.isFile()) {
+                throw new IOException("Failed to create " + entry);
+            }
+        }
+    }
+
+    @NonNull
+    private File getEntry(@NonNull HashCode key) {
+        return new File(mDirectory, key + PNG_SUFFIX);
+    }
+}
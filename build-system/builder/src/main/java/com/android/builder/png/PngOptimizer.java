@@ -0,0 +1,571 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.png;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.google.common.base.Charsets;
+
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.Raster;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Re-encodes PNG files in the smallest of the formats able to hold their pixels, the way aapt
+ * crunches them.
+ *
+ * The pixels are analyzed to pick the color type: grayscale if all pixels are gray, a palette
+ * (with the smallest bit depth possible) if there are at most 256 colors, and no alpha channel if
+ * all pixels are opaque. Each row is then filtered with the filter giving the smallest sum of
+ * absolute differences, as libpng does, and the image data is deflated at the best compression
+ * level.
+ *
+ * Only the pixels are kept, as with aapt: ancillary chunks are not written. Images are never made
+ * larger, if the re-encoded image is not smaller the original is used as it is.
+ */
+final class PngOptimizer {
+
+    private static final byte[] SIGNATURE =
+            new byte[] { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' };
+
+    private static final int COLOR_GRAY = 0;
+    private static final int COLOR_RGB = 2;
+    private static final int COLOR_PALETTE = 3;
+    private static final int COLOR_GRAY_ALPHA = 4;
+    private static final int COLOR_RGBA = 6;
+
+    private static final int FILTER_NONE = 0;
+    private static final int FILTER_SUB = 1;
+    private static final int FILTER_UP = 2;
+    private static final int FILTER_AVERAGE = 3;
+    private static final int FILTER_PAETH = 4;
+
+    private static final int MAX_PALETTE_SIZE = 256;
+
+    private PngOptimizer() {
+    }
+
+    /**
+     * Re-encodes a PNG file.
+     *
+     * @param png the content of the PNG file
+     * @return the content of the re-encoded PNG file, or <code>png</code> if it could not be made
+     * smaller
+     * @throws IOException if <code>png</code> is not a valid PNG file
+     */
+    @NonNull
+    static byte[] optimize(@NonNull byte[] png) throws IOException {
+        BufferedImage image = read(png);
+        if (image == null) {
+            return png;
+        }
+
+        int[] pixels = getPixels(image);
+        if (pixels == null) {
+            return png;
+        }
+
+        byte[] optimized = write(image.getWidth(), image.getHeight(), pixels);
+        return optimized.length < png.length ? optimized : png;
+    }
+
+    /**
+     * Decodes a PNG file.
+     *
+     * @return the image, or null if the pixels of the image cannot be read exactly: ImageIO does
+     * not apply the transparent color of grayscale and RGB images
+     */
+    @Nullable
+    private static BufferedImage read(@NonNull byte[] png) throws IOException {
+        if (png.length < SIGNATURE.length
+                || !Arrays.equals(SIGNATURE, Arrays.copyOf(png, SIGNATURE.length))) {
+            throw new IOException("Not a PNG file");
+        }
+
+        int colorType = -1;
+        boolean hasTransparency = false;
+        int offset = SIGNATURE.length;
+        while (offset + 8 <= png.length) {
+            int length = readInt(png, offset);
+            String type = new String(png, offset + 4, 4, Charsets.US_ASCII);
+            if (type.equals("IHDR") && offset + 18 <= png.length) {
+                colorType = png[offset + 17] & 0xff;
+            } else if (type.equals("tRNS")) {
+                hasTransparency = true;
+            } else if (type.equals("IDAT")) {
+                // The tRNS chunk must be before the image data.
+                break;
+            }
+
+            offset += length + 12;
+        }
+
+        if (hasTransparency && colorType != COLOR_PALETTE) {
+            return null;
+        }
+
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(png));
+        if (image == null) {
+            throw new IOException("Failed to decode PNG file");
+        }
+
+        return image;
+    }
+
+    private static int readInt(@NonNull byte[] data, int offset) {
+        return ((data[offset] & 0xff) << 24)
+                | ((data[offset + 1] & 0xff) << 16)
+                | ((data[offset + 2] & 0xff) << 8)
+                | (data[offset + 3] & 0xff);
+    }
+
+    /**
+     * Obtains the pixels of an image as non-premultiplied ARGB values with 8 bits per channel.
+     *
+     * @return the pixels, or null if the image is not in the sRGB or gray color spaces, in which
+     * case its pixels cannot be read without converting them
+     */
+    @Nullable
+    private static int[] getPixels(@NonNull BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] pixels = new int[width * height];
+
+        ColorModel colorModel = image.getColorModel();
+        if (colorModel.getColorSpace().isCS_sRGB()) {
+            image.getRGB(0, 0, width, height, pixels, 0, width);
+            return pixels;
+        } else if (colorModel.getColorSpace().getType() != ColorSpace.TYPE_GRAY) {
+            return null;
+        }
+
+        // ImageIO reads grayscale images in a linear color space, and getRGB() would convert
+        // the gray levels to sRGB. Use the samples as they are in the file instead.
+        Raster raster = image.getRaster();
+        int grayBits = colorModel.getComponentSize(0);
+        boolean hasAlpha = colorModel.hasAlpha();
+        int alphaBits = hasAlpha ? colorModel.getComponentSize(1) : 8;
+        int[] sample = new int[raster.getNumBands()];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                raster.getPixel(x, y, sample);
+                int gray = to8Bits(sample[0], grayBits);
+                int alpha = hasAlpha ? to8Bits(sample[1], alphaBits) : 0xff;
+                pixels[y * width + x] = (alpha << 24) | (gray << 16) | (gray << 8) | gray;
+            }
+        }
+
+        return pixels;
+    }
+
+    private static int to8Bits(int sample, int bits) {
+        if (bits == 8) {
+            return sample;
+        } else if (bits > 8) {
+            return sample >>> (bits - 8);
+        } else {
+            return sample * 0xff / ((1 << bits) - 1);
+        }
+    }
+
+    /**
+     * Encodes pixels in the smallest format able to hold them.
+     */
+    @NonNull
+    private static byte[] write(int width, int height, @NonNull int[] pixels)
+            throws IOException {
+        boolean gray = true;
+        boolean opaque = true;
+        Palette palette = new Palette();
+        int last = ~pixels[0];
+        for (int pixel : pixels) {
+            if (pixel == last) {
+                continue;
+            }
+
+            last = pixel;
+            int alpha = pixel >>> 24;
+            int red = (pixel >> 16) & 0xff;
+            int green = (pixel >> 8) & 0xff;
+            int blue = pixel & 0xff;
+            gray &= red == green && green == blue;
+            opaque &= alpha == 0xff;
+            palette.add(pixel);
+        }
+
+        int colorType;
+        if (!palette.hasTooManyColors() && (palette.size() <= 16 || !(gray && opaque))) {
+            colorType = COLOR_PALETTE;
+        } else if (gray) {
+            colorType = opaque ? COLOR_GRAY : COLOR_GRAY_ALPHA;
+        } else {
+            colorType = opaque ? COLOR_RGB : COLOR_RGBA;
+        }
+
+        int bitDepth = 8;
+        int bytesPerPixel;
+        switch (colorType) {
+            case COLOR_PALETTE:
+                palette.sort();
+                if (palette.size() <= 2) {
+                    bitDepth = 1;
+                } else if (palette.size() <= 4) {
+                    bitDepth = 2;
+                } else if (palette.size() <= 16) {
+                    bitDepth = 4;
+                }
+                bytesPerPixel = 1;
+                break;
+            case COLOR_GRAY:
+                bytesPerPixel = 1;
+                break;
+            case COLOR_GRAY_ALPHA:
+                bytesPerPixel = 2;
+                break;
+            case COLOR_RGB:
+                bytesPerPixel = 3;
+                break;
+            default:
+                bytesPerPixel = 4;
+                break;
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DataOutputStream stream = new DataOutputStream(out);
+        stream.write(SIGNATURE);
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        DataOutputStream headerStream = new DataOutputStream(header);
+        headerStream.writeInt(width);
+        headerStream.writeInt(height);
+        headerStream.writeByte(bitDepth);
+        headerStream.writeByte(colorType);
+        headerStream.writeByte(0); // Compression method: deflate.
+        headerStream.writeByte(0); // Filter method: adaptive filtering.
+        headerStream.writeByte(0); // No interlacing.
+        writeChunk(stream, "IHDR", header.toByteArray());
+
+        if (colorType == COLOR_PALETTE) {
+            writeChunk(stream, "PLTE", palette.getColors());
+            byte[] alphas = palette.getAlphas();
+            if (alphas.length > 0) {
+                writeChunk(stream, "tRNS", alphas);
+            }
+        }
+
+        int rowBytes = (width * bitDepth * bytesPerPixel + 7) / 8;
+        // As with libpng, palette images are not filtered and the image data of filtered images
+        // is compressed with the strategy for filtered data.
+        boolean filter = colorType != COLOR_PALETTE;
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            deflater.setStrategy(filter ? Deflater.FILTERED : Deflater.DEFAULT_STRATEGY);
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            DeflaterOutputStream deflated = new DeflaterOutputStream(data, deflater);
+
+            byte[] previous = new byte[rowBytes];
+            byte[] row = new byte[rowBytes];
+            byte[][] filtered = new byte[FILTER_PAETH + 1][rowBytes];
+            for (int y = 0; y < height; y++) {
+                writeRow(pixels, y * width, width, colorType, bitDepth, palette, row);
+
+                int rowFilter = FILTER_NONE;
+                if (filter) {
+                    rowFilter = filterRow(row, previous, bytesPerPixel, filtered);
+                    deflated.write(rowFilter);
+                    deflated.write(filtered[rowFilter]);
+                } else {
+                    deflated.write(rowFilter);
+                    deflated.write(row);
+                }
+
+                byte[] tmp = previous;
+                previous = row;
+                row = tmp;
+            }
+
+            deflated.close();
+            writeChunk(stream, "IDAT", data.toByteArray());
+        } finally {
+            deflater.end();
+        }
+
+        writeChunk(stream, "IEND", new byte[0]);
+        stream.flush();
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes the bytes of a row of pixels, before filtering.
+     */
+    private static void writeRow(
+            @NonNull int[] pixels,
+            int start,
+            int width,
+            int colorType,
+            int bitDepth,
+            @NonNull Palette palette,
+            @NonNull byte[] row) {
+        int offset = 0;
+        switch (colorType) {
+            case COLOR_PALETTE:
+                Arrays.fill(row, (byte) 0);
+                int pixelsPerByte = 8 / bitDepth;
+                for (int x = 0; x < width; x++) {
+                    int index = palette.indexOf(pixels[start + x]);
+                    int shift = 8 - bitDepth * (x % pixelsPerByte + 1);
+                    row[x / pixelsPerByte] |= index << shift;
+                }
+                break;
+            case COLOR_GRAY:
+                for (int x = 0; x < width; x++) {
+                    row[x] = (byte) pixels[start + x];
+                }
+                break;
+            case COLOR_GRAY_ALPHA:
+                for (int x = 0; x < width; x++) {
+                    int pixel = pixels[start + x];
+                    row[offset++] = (byte) pixel;
+                    row[offset++] = (byte) (pixel >>> 24);
+                }
+                break;
+            case COLOR_RGB:
+                for (int x = 0; x < width; x++) {
+                    int pixel = pixels[start + x];
+                    row[offset++] = (byte) (pixel >> 16);
+                    row[offset++] = (byte) (pixel >> 8);
+                    row[offset++] = (byte) pixel;
+                }
+                break;
+            default:
+                for (int x = 0; x < width; x++) {
+                    int pixel = pixels[start + x];
+                    row[offset++] = (byte) (pixel >> 16);
+                    row[offset++] = (byte) (pixel >> 8);
+                    row[offset++] = (byte) pixel;
+                    row[offset++] = (byte) (pixel >>> 24);
+                }
+                break;
+        }
+    }
+
+    /**
+     * Applies all filters to a row and picks the one whose output has the smallest sum of
+     * absolute values, taken as signed bytes.
+     *
+     * @param row the row to filter
+     * @param previous the previous row, all zeros for the first row
+     * @param bytesPerPixel the number of bytes of a pixel
+     * @param filtered receives the output of each filter, indexed by filter type
+     * @return the filter to use
+     */
+    private static int filterRow(
+            @NonNull byte[] row,
+            @NonNull byte[] previous,
+            int bytesPerPixel,
+            @NonNull byte[][] filtered) {
+        long[] sums = new long[filtered.length];
+        for (int i = 0; i < row.length; i++) {
+            int x = row[i] & 0xff;
+            int a = i >= bytesPerPixel ? row[i - bytesPerPixel] & 0xff : 0;
+            int b = previous[i] & 0xff;
+            int c = i >= bytesPerPixel ? previous[i - bytesPerPixel] & 0xff : 0;
+
+            filtered[FILTER_NONE][i] = (byte) x;
+            filtered[FILTER_SUB][i] = (byte) (x - a);
+            filtered[FILTER_UP][i] = (byte) (x - b);
+            filtered[FILTER_AVERAGE][i] = (byte) (x - ((a + b) >>> 1));
+            filtered[FILTER_PAETH][i] = (byte) (x - paeth(a, b, c));
+
+            for (int f = 0; f < filtered.length; f++) {
+                sums[f] += Math.abs(filtered[f][i]);
+            }
+        }
+
+        int best = FILTER_NONE;
+        for (int f = 1; f < sums.length; f++) {
+            if (sums[f] < sums[best]) {
+                best = f;
+            }
+        }
+
+        return best;
+    }
+
+    private static int paeth(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) {
+            return a;
+        } else if (pb <= pc) {
+            return b;
+        } else {
+            return c;
+        }
+    }
+
+    private static void writeChunk(
+            @NonNull DataOutputStream stream,
+            @NonNull String type,
+            @NonNull byte[] data) throws IOException {
+        byte[] typeBytes = type.getBytes(Charsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data);
+
+        stream.writeInt(data.length);
+        stream.write(typeBytes);
+        stream.write(data);
+        stream.writeInt((int) crc.getValue());
+    }
+
+    /**
+     * The colors of an image, as long as there are no more than {@link #MAX_PALETTE_SIZE}.
+     */
+    private static final class Palette {
+
+        /**
+         * Open addressing hash table from colors to their index in {@link #mColors}.
+         */
+        private final int[] mTableColors = new int[MAX_PALETTE_SIZE * 4];
+        private final int[] mTableIndexes = new int[MAX_PALETTE_SIZE * 4];
+
+        private final int[] mColors = new int[MAX_PALETTE_SIZE];
+        private int mSize = 0;
+        private boolean mTooManyColors = false;
+
+        Palette() {
+            Arrays.fill(mTableIndexes, -1);
+        }
+
+        int size() {
+            return mSize;
+        }
+
+        /**
+         * Returns whether colors were added after the palette had {@link #MAX_PALETTE_SIZE}
+         * colors.
+         */
+        boolean hasTooManyColors() {
+            return mTooManyColors;
+        }
+
+        void add(int color) {
+            if (mTooManyColors) {
+                return;
+            }
+
+            int slot = findSlot(color);
+            if (mTableIndexes[slot] != -1) {
+                return;
+            }
+
+            if (mSize == MAX_PALETTE_SIZE) {
+                mTooManyColors = true;
+                return;
+            }
+
+            mTableColors[slot] = color;
+            mTableIndexes[slot] = mSize;
+            mColors[mSize++] = color;
+        }
+
+        int indexOf(int color) {
+            return mTableIndexes[findSlot(color)];
+        }
+
+        private int findSlot(int color) {
+            int mask = mTableIndexes.length - 1;
+            int slot = (color * 0x9E3779B9) >>> 22 & mask;
+            while (mTableIndexes[slot] != -1 && mTableColors[slot] != color) {
+                slot = (slot + 1) & mask;
+            }
+
+            return slot;
+        }
+
+        /**
+         * Puts translucent colors first, so that the tRNS chunk only needs their alpha.
+         */
+        void sort() {
+            int[] sorted = new int[mSize];
+            int count = 0;
+            for (int i = 0; i < mSize; i++) {
+                if (mColors[i] >>> 24 != 0xff) {
+                    sorted[count++] = mColors[i];
+                }
+            }
+            for (int i = 0; i < mSize; i++) {
+                if (mColors[i] >>> 24 == 0xff) {
+                    sorted[count++] = mColors[i];
+                }
+            }
+
+            for (int i = 0; i < mSize; i++) {
+                mColors[i] = sorted[i];
+                mTableIndexes[findSlot(sorted[i])] = i;
+            }
+        }
+
+        /**
+         * Returns the content of the PLTE chunk.
+         */
+        @NonNull
+        byte[] getColors() {
+            byte[] colors = new byte[mSize * 3];
+            for (int i = 0; i < mSize; i++) {
+                colors[i * 3] = (byte) (mColors[i] >> 16);
+                colors[i * 3 + 1] = (byte) (mColors[i] >> 8);
+                colors[i * 3 + 2] = (byte) mColors[i];
+            }
+
+            return colors;
+        }
+
+        /**
+         * Returns the content of the tRNS chunk: the alpha of all colors up to the last
+         * translucent one.
+         */
+        @NonNull
+        byte[] getAlphas() {
+            int count = 0;
+            while (count < mSize && mColors[count] >>> 24 != 0xff) {
+                count++;
+            }
+
+            byte[] alphas = new byte[count];
+            for (int i = 0; i < count; i++) {
+                alphas[i] = (byte) (mColors[i] >>> 24);
+            }
+
+            return alphas;
+        }
+    }
+}
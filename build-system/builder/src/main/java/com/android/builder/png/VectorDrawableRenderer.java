@@ -20,26 +20,37 @@ import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
 
 import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.builder.Version;
 import com.android.ide.common.res2.ResourcePreprocessor;
 import com.android.ide.common.resources.configuration.DensityQualifier;
 import com.android.ide.common.resources.configuration.FolderConfiguration;
 import com.android.ide.common.resources.configuration.VersionQualifier;
 import com.android.ide.common.vectordrawable.VdPreview;
+import com.android.ide.common.vectordrawable.VdTree;
 import com.android.resources.Density;
 import com.android.resources.ResourceFolderType;
 import com.android.utils.ILogger;
 import com.google.common.base.Charsets;
 import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.Lists;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
 import com.google.common.io.Files;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.util.Collection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 
 import javax.imageio.ImageIO;
 import javax.xml.parsers.DocumentBuilder;
@@ -47,24 +58,71 @@ import javax.xml.parsers.DocumentBuilderFactory;
 
 /**
  * Generates PNG images (and XML copies) from VectorDrawable files.
+ *
+ * <p>The PNGs of the different densities are generated by separate (and concurrent) calls to
+ * {@link #generateFile(File, File)}, which share the tree parsed from the XML file. If a cache
+ * directory is given, generated PNGs are also stored there, keyed by the content of the XML file
+ * and the density, and are copied from there instead of being generated again.
  */
 public class VectorDrawableRenderer implements ResourcePreprocessor {
     /** Projects with minSdk set to this or higher don't need to generate PNGs. */
     public static final int MIN_SDK_WITH_VECTOR_SUPPORT = 21;
 
+    /**
+     * Version of the PNGs generated from a given XML file and density. This needs to be changed
+     * whenever the rendering changes, so that PNGs stored in the cache are no longer used.
+     *
+     * <p>Most of the rendering is done by {@link VdPreview} in sdk-common, which is released with
+     * the builder, so the version of the builder is part of the cache key as well.
+     */
+    private static final int RENDERER_VERSION = 1;
+
+    private static final HashFunction HASH_FUNCTION = Hashing.sha1();
+
     private final ILogger mLogger;
     private final int mMinSdk;
     private final File mOutputDir;
     private final Collection<Density> mDensities;
 
+    @Nullable
+    private final PngCache mCache;
+
+    /**
+     * Trees parsed from the XML files, keyed by the hash of their content. They are only kept
+     * while memory allows, in practice long enough to generate all densities of a file.
+     */
+    @NonNull
+    private final Cache<HashCode, VdTree> mTrees =
+            CacheBuilder.newBuilder().softValues().build();
+
     public VectorDrawableRenderer(
             int minSdk,
             File outputDir,
             Collection<Density> densities,
             ILogger logger) {
+        this(minSdk, outputDir, densities, null, logger);
+    }
+
+    /**
+     * Creates a new renderer.
+     *
+     * @param minSdk minSdkVersion of the project
+     * @param outputDir the directory where generated files are written
+     * @param densities the densities to generate PNGs for
+     * @param cacheDir the directory where generated PNGs are stored to be reused by later builds,
+     * or null if they should not be
+     * @param logger the logger
+     */
+    public VectorDrawableRenderer(
+            int minSdk,
+            File outputDir,
+            Collection<Density> densities,
+            @Nullable File cacheDir,
+            ILogger logger) {
         mMinSdk = minSdk;
         mOutputDir = outputDir;
         mDensities = densities;
+        mCache = cacheDir != null ? new PngCache(cacheDir) : null;
         mLogger = logger;
     }
 
@@ -145,16 +203,50 @@ public class VectorDrawableRenderer implements ResourcePreprocessor {
             checkState(folderConfiguration.getDensityQualifier() != null);
             Density density = folderConfiguration.getDensityQualifier().getValue();
 
-            String xmlContent = Files.toString(original, Charsets.UTF_8);
+            final byte[] xmlContent = Files.toByteArray(original);
+            checkState(xmlContent.length > 0, "Generating the image failed.");
+            HashCode xmlHash = HASH_FUNCTION.hashBytes(xmlContent);
+
+            HashCode key = HASH_FUNCTION.newHasher()
+                    .putInt(RENDERER_VERSION)
+                    .putString(Version.ANDROID_GRADLE_PLUGIN_VERSION, Charsets.UTF_8)
+                    .putInt(density.getDpiValue())
+                    .putBytes(xmlHash.asBytes())
+                    .hash();
+            if (mCache != null && mCache.copyTo(key, toBeGenerated)) {
+                return;
+            }
+
             float scaleFactor = density.getDpiValue() / (float) Density.MEDIUM.getDpiValue();
             if (scaleFactor <= 0) {
                 scaleFactor = 1.0f;
             }
 
+            VdTree tree;
+            try {
+                tree = mTrees.get(xmlHash, new Callable<VdTree>() {
+                    @Override
+                    public VdTree call() throws Exception {
+                        VdTree parsed = VdPreview.parseVectorTree(xmlContent, null);
+                        checkState(parsed != null, "Generating the image failed.");
+                        return parsed;
+                    }
+                });
+            } catch (ExecutionException e) {
+                Throwables.propagateIfPossible(e.getCause(), IOException.class);
+                throw new RuntimeException(e.getCause());
+            }
+
             final VdPreview.TargetSize imageSize = VdPreview.TargetSize.createSizeFromScale(scaleFactor);
-            BufferedImage image = VdPreview.getPreviewFromVectorXml(imageSize, xmlContent, null);
-            checkState(image != null, "Generating the image failed.");
-            ImageIO.write(image, "png", toBeGenerated);
+            BufferedImage image = VdPreview.getPreviewFromVectorTree(imageSize, tree, null);
+
+            ByteArrayOutputStream png = new ByteArrayOutputStream();
+            ImageIO.write(image, "png", png);
+            Files.write(png.toByteArray(), toBeGenerated);
+
+            if (mCache != null) {
+                mCache.put(key, png.toByteArray());
+            }
         }
     }
 
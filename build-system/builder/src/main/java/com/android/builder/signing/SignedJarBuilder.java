@@ -199,25 +199,71 @@ public class SignedJarBuilder {
                 main.putValue("Created-By", createdBy);
             }
 
-            String digestAttributeDigestAlgorithm;
-            if (mMinSdkVersion < 18) {
-                // Android 2.3 (API Level 9) to 4.2 (API Level 17) (inclusive) do not support SHA-2
-                // JAR signatures.
-                mMessageDigestAlgorithm = "SHA-1";
-                // Moreover, platforms prior to API Level 18, without the additional
-                // Digest-Algorithms attribute, only support SHA or SHA1 algorithm names in .SF and
-                // MANIFEST.MF attributes.
-                digestAttributeDigestAlgorithm = "SHA1";
-            } else {
-                mMessageDigestAlgorithm = "SHA-256";
-                digestAttributeDigestAlgorithm = mMessageDigestAlgorithm;
-            }
+            mMessageDigestAlgorithm = getMessageDigestAlgorithm(mMinSdkVersion);
+            String digestAttributeDigestAlgorithm = getDigestAttributeAlgorithm(mMinSdkVersion);
             mDigestAttributeName = digestAttributeDigestAlgorithm + "-Digest";
             mDigestManifestAttributeName = digestAttributeDigestAlgorithm + "-Digest-Manifest";
             mMessageDigest = MessageDigest.getInstance(mMessageDigestAlgorithm);
         }
     }
 
+    /**
+     * Returns the name of the {@link MessageDigest} algorithm used to sign a package.
+     * @param minSdkVersion minSdkVersion of the package.
+     */
+    @NonNull
+    public static String getMessageDigestAlgorithm(int minSdkVersion) {
+        // Android 2.3 (API Level 9) to 4.2 (API Level 17) (inclusive) do not support SHA-2
+        // JAR signatures.
+        return minSdkVersion < 18 ? "SHA-1" : "SHA-256";
+    }
+
+    /**
+     * Returns the name of the digest algorithm used in the names of the digest attributes of the
+     * manifest and signature file of a package, e.g. "SHA1" for "SHA1-Digest".
+     * @param minSdkVersion minSdkVersion of the package.
+     */
+    @NonNull
+    public static String getDigestAttributeAlgorithm(int minSdkVersion) {
+        // Platforms prior to API Level 18, without the additional Digest-Algorithms attribute,
+        // only support SHA or SHA1 algorithm names in .SF and MANIFEST.MF attributes.
+        return minSdkVersion < 18 ? "SHA1" : getMessageDigestAlgorithm(minSdkVersion);
+    }
+
+    /**
+     * Checks whether an entry of a Jar/Zip archive is left out when copying the archive with
+     * {@link #writeZip(InputStream, IZipEntryFilter, ZipEntryExtractor)}: the manifest, the
+     * signature files and the Maven meta-data.
+     * @param name the archive file path of the entry.
+     */
+    public static boolean isSkippedZipEntry(@NonNull String name) {
+        // ignore some of the content in META-INF/ but not all
+        if (name.startsWith("META-INF/")) {
+            // ignore the manifest file.
+            String subName = name.substring(9);
+            if ("MANIFEST.MF".equals(subName)) {
+                return true;
+            }
+
+            // special case for Maven meta-data because we really don't care about them in apks.
+            if (name.startsWith("META-INF/maven/")) {
+                return true;
+            }
+
+
+            // check for subfolder
+            int index = subName.indexOf('/');
+            if (index == -1) {
+                // no sub folder, ignores signature files.
+                if (subName.endsWith(".SF") || name.endsWith(".RSA") || name.endsWith(".DSA")) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
     /**
      * Writes a new {@link File} into the archive.
      * @param inputFile the {@link File} to write.
@@ -272,34 +318,10 @@ public class SignedJarBuilder {
                 String name = entry.getName();
 
                 // do not take directories or anything inside a potential META-INF folder.
-                if (entry.isDirectory()) {
+                if (entry.isDirectory() || isSkippedZipEntry(name)) {
                     continue;
                 }
 
-                // ignore some of the content in META-INF/ but not all
-                if (name.startsWith("META-INF/")) {
-                    // ignore the manifest file.
-                    String subName = name.substring(9);
-                    if ("MANIFEST.MF".equals(subName)) {
-                        continue;
-                    }
-
-                    // special case for Maven meta-data because we really don't care about them in apks.
-                    if (name.startsWith("META-INF/maven/")) {
-                        continue;
-                    }
-
-
-                    // check for subfolder
-                    int index = subName.indexOf('/');
-                    if (index == -1) {
-                        // no sub folder, ignores signature files.
-                        if (subName.endsWith(".SF") || name.endsWith(".RSA") || name.endsWith(".DSA")) {
-                            continue;
-                        }
-                    }
-                }
-
                 // if we have a filter, we check the entry to see if it's a file that should be extracted.
                 if (extractor != null && extractor.checkEntry(name)) {
                     extractor.extract(name, zis);
@@ -352,7 +374,8 @@ public class SignedJarBuilder {
 
                 // CERT.*
                 mOutputJar.putNextEntry(new JarEntry("META-INF/CERT." + mKey.getAlgorithm()));
-                writeSignatureBlock(new CMSProcessableByteArray(signedData), mCertificate, mKey);
+                mOutputJar.write(createSignatureBlock(signedData, mCertificate, mKey,
+                        mMessageDigestAlgorithm, mMinSdkVersion));
             } catch (Exception e) {
                 throw new SigningException(e);
             }
@@ -458,21 +481,37 @@ public class SignedJarBuilder {
         }
     }
 
-    /** Write the certificate file with a digital signature. */
-    private void writeSignatureBlock(CMSTypedData data, X509Certificate publicKey,
-            PrivateKey privateKey)
+    /**
+     * Creates the certificate file with a digital signature of a signature file.
+     * @param signatureFile the content of the .SF file to sign.
+     * @param publicKey the {@link X509Certificate} used to sign the archive.
+     * @param privateKey the {@link PrivateKey} used to sign the archive.
+     * @param messageDigestAlgorithm the algorithm returned by
+     * {@link #getMessageDigestAlgorithm(int)}.
+     * @param minSdkVersion minSdkVersion of the package.
+     * @return the DER-encoded signature block.
+     */
+    @NonNull
+    public static byte[] createSignatureBlock(
+            @NonNull byte[] signatureFile,
+            @NonNull X509Certificate publicKey,
+            @NonNull PrivateKey privateKey,
+            @NonNull String messageDigestAlgorithm,
+            int minSdkVersion)
                         throws IOException,
                         CertificateEncodingException,
                         OperatorCreationException,
                         CMSException {
+        CMSTypedData data = new CMSProcessableByteArray(signatureFile);
 
         ArrayList<X509Certificate> certList = new ArrayList<X509Certificate>();
         certList.add(publicKey);
         JcaCertStore certs = new JcaCertStore(certList);
 
         CMSSignedDataGenerator gen = new CMSSignedDataGenerator();
-        ContentSigner sha1Signer =
-                new JcaContentSignerBuilder(getSignatureAlgorithm(privateKey)).build(privateKey);
+        ContentSigner sha1Signer = new JcaContentSignerBuilder(
+                getSignatureAlgorithm(privateKey, messageDigestAlgorithm, minSdkVersion))
+                .build(privateKey);
         gen.addSignerInfoGenerator(
             new JcaSignerInfoGeneratorBuilder(
                 new JcaDigestCalculatorProviderBuilder()
@@ -482,9 +521,10 @@ public class SignedJarBuilder {
         gen.addCertificates(certs);
         CMSSignedData sigData = gen.generate(data, false);
 
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
         ASN1InputStream asn1 = new ASN1InputStream(sigData.getEncoded());
         try {
-            DEROutputStream dos = new DEROutputStream(mOutputJar);
+            DEROutputStream dos = new DEROutputStream(block);
             try {
                 dos.writeObject(asn1.readObject());
             } finally {
@@ -494,11 +534,14 @@ public class SignedJarBuilder {
         } finally {
             asn1.close();
         }
+
+        return block.toByteArray();
     }
 
-    private String getSignatureAlgorithm(PrivateKey privateKey) {
+    private static String getSignatureAlgorithm(PrivateKey privateKey,
+            String messageDigestAlgorithm, int minSdkVersion) {
         String keyAlgorithm = privateKey.getAlgorithm();
-        String digestAlgorithm = mMessageDigestAlgorithm.replace("-", "");
+        String digestAlgorithm = messageDigestAlgorithm.replace("-", "");
 
         if ("RSA".equalsIgnoreCase(keyAlgorithm)) {
             // Digest algorithms in JCA Signature algorithms do not use the hyphen.
@@ -506,7 +549,7 @@ public class SignedJarBuilder {
             return digestAlgorithm + "withRSA";
         } else if ("EC".equalsIgnoreCase(keyAlgorithm)) {
             checkArgument(
-                    mMinSdkVersion >= 18,
+                    minSdkVersion >= 18,
                     "ECDSA signatures are not supported on API levels older than 18. Please increase "
                             + "your minSdkVersion or use RSA.");
             return digestAlgorithm + "withECDSA";
@@ -295,6 +295,7 @@ public class PreDexCacheTest extends TestCase {
         FileUtils.deleteFolder(toolFolder);
 
         PreDexCache.getCache().clear(null, null);
+        PreDexCache.getCache().setSharedStore(null);
 
         super.tearDown();
     }
@@ -480,6 +481,113 @@ public class PreDexCacheTest extends TestCase {
         assertEquals(1, cache.getHits());
     }
 
+    public void testSharedStore() throws IOException, ProcessException, InterruptedException {
+        final DexOptions dexOptions = new FakeDexOptions();
+        File store = Files.createTempDir();
+        PreDexCache.getCache().setSharedStore(store);
+
+        try {
+            String content = "Some Content";
+            File input = createInputFile(content);
+
+            File output = File.createTempFile("predex", ".jar");
+            output.deleteOnExit();
+
+            PreDexCache.getCache().preDexLibrary(
+                    mAndroidBuilder,
+                    input,
+                    output,
+                    false /*multidex*/,
+                    dexOptions,
+                    new FakeProcessOutputHandler());
+
+            checkOutputFile(content, output);
+            assertEquals(1, PreDexCache.getCache().getMisses());
+
+            // only the entry is left in the store, not its lock file.
+            String[] names = store.list();
+            assertNotNull(names);
+            assertEquals(1, names.length);
+            assertTrue(new File(store, names[0]).isDirectory());
+
+            // forget about the first library, as another Gradle daemon would.
+            PreDexCache.getCache().clear(null, null);
+
+            // pre-dex the same content, from another file.
+            File input2 = File.createTempFile("predex", ".jar");
+            input2.deleteOnExit();
+            Files.copy(input, input2);
+            File output2 = File.createTempFile("predex", ".jar");
+            output2.deleteOnExit();
+
+            PreDexCache.getCache().preDexLibrary(
+                    mAndroidBuilder,
+                    input2,
+                    output2,
+                    false /*multidex*/,
+                    dexOptions,
+                    new FakeProcessOutputHandler());
+
+            checkOutputFile(content, output2);
+
+            PreDexCache cache = PreDexCache.getCache();
+            assertEquals(0, cache.getMisses());
+            assertEquals(1, cache.getHits());
+        } finally {
+            FileUtils.deleteFolder(store);
+        }
+    }
+
+    public void testSharedStoreKeepsOptionsApart()
+            throws IOException, ProcessException, InterruptedException {
+        File store = Files.createTempDir();
+        PreDexCache.getCache().setSharedStore(store);
+
+        try {
+            String content = "Some Content";
+            File input = createInputFile(content);
+
+            File output = File.createTempFile("predex", ".jar");
+            output.deleteOnExit();
+
+            PreDexCache.getCache().preDexLibrary(
+                    mAndroidBuilder,
+                    input,
+                    output,
+                    false /*multidex*/,
+                    new FakeDexOptions(),
+                    new FakeProcessOutputHandler());
+
+            PreDexCache.getCache().clear(null, null);
+
+            // the same content, with other dx options, is not taken from the store.
+            File output2 = File.createTempFile("predex", ".jar");
+            output2.deleteOnExit();
+
+            PreDexCache.getCache().preDexLibrary(
+                    mAndroidBuilder,
+                    input,
+                    output2,
+                    false /*multidex*/,
+                    new FakeDexOptions() {
+                        @Override
+                        @Nullable
+                        public Integer getThreadCount() {
+                            return 2;
+                        }
+                    },
+                    new FakeProcessOutputHandler());
+
+            checkOutputFile(content, output2);
+
+            PreDexCache cache = PreDexCache.getCache();
+            assertEquals(1, cache.getMisses());
+            assertEquals(0, cache.getHits());
+        } finally {
+            FileUtils.deleteFolder(store);
+        }
+    }
+
     private static File createInputFile(String content) throws IOException {
         File input = File.createTempFile("predex", ".jar");
         input.deleteOnExit();
@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.internal.packaging;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.android.builder.internal.packaging.zip.StoredEntry;
+import com.android.builder.internal.packaging.zip.ZFile;
+import com.android.builder.packaging.PackagerException;
+import com.android.utils.NullLogger;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+public class IncrementalPackagerTest {
+    @Rule
+    public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private static byte[] readEntry(File zip, String name) throws IOException {
+        ZipFile zipFile = new ZipFile(zip);
+        try {
+            ZipEntry entry = zipFile.getEntry(name);
+            if (entry == null) {
+                return null;
+            }
+
+            InputStream is = zipFile.getInputStream(entry);
+            try {
+                return ByteStreams.toByteArray(is);
+            } finally {
+                is.close();
+            }
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    private static long offset(File zip, String name) throws IOException {
+        ZFile zf = new ZFile(zip);
+        try {
+            StoredEntry entry = zf.get(name);
+            assertNotNull(entry);
+            return entry.getCentralDirectoryHeader().getOffset();
+        } finally {
+            zf.close();
+        }
+    }
+
+    private File makeFile(String name, String content) throws IOException {
+        File file = new File(mTemporaryFolder.getRoot(), name);
+        Files.write(content, file, Charsets.US_ASCII);
+        return file;
+    }
+
+    private static void packageApk(File apk, File resources, File... files) throws Exception {
+        Packager packager = new Packager(apk.getAbsolutePath(), resources.getAbsolutePath(),
+                null, null, new NullLogger(), 1, true);
+        for (File file : files) {
+            packager.addFile(file, "assets/" + file.getName());
+        }
+
+        packager.sealApk();
+    }
+
+    @Test
+    public void onlyChangesAreWritten() throws Exception {
+        File resources = mTemporaryFolder.newFile("resources.ap_");
+        ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(resources));
+        try {
+            byte[] arsc = "resources".getBytes(Charsets.US_ASCII);
+            CRC32 crc = new CRC32();
+            crc.update(arsc);
+            ZipEntry stored = new ZipEntry("resources.arsc");
+            stored.setMethod(ZipEntry.STORED);
+            stored.setSize(arsc.length);
+            stored.setCrc(crc.getValue());
+            zos.putNextEntry(stored);
+            zos.write(arsc);
+            zos.putNextEntry(new ZipEntry("META-INF/MANIFEST.MF"));
+            zos.write("Manifest-Version: 1.0\r\n".getBytes(Charsets.US_ASCII));
+        } finally {
+            zos.close();
+        }
+
+        File a = makeFile("a", "aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa");
+        File b = makeFile("b", "bbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbb");
+        File apk = new File(mTemporaryFolder.getRoot(), "out.apk");
+
+        packageApk(apk, resources, a, b);
+        assertArrayEquals(Files.toByteArray(a), readEntry(apk, "assets/a"));
+        assertArrayEquals(Files.toByteArray(b), readEntry(apk, "assets/b"));
+        assertNull(readEntry(apk, "META-INF/MANIFEST.MF"));
+
+        ZipFile zipFile = new ZipFile(apk);
+        try {
+            assertEquals(ZipEntry.STORED, zipFile.getEntry("resources.arsc").getMethod());
+            assertEquals(ZipEntry.DEFLATED, zipFile.getEntry("assets/a").getMethod());
+        } finally {
+            zipFile.close();
+        }
+
+        long arscOffset = offset(apk, "resources.arsc");
+
+        // Change b, remove a and add c.
+        Files.write("changed", b, Charsets.US_ASCII);
+        File c = makeFile("c", "c");
+        packageApk(apk, resources, b, c);
+
+        assertNull(readEntry(apk, "assets/a"));
+        assertArrayEquals(Files.toByteArray(b), readEntry(apk, "assets/b"));
+        assertArrayEquals(Files.toByteArray(c), readEntry(apk, "assets/c"));
+        assertEquals(arscOffset, offset(apk, "resources.arsc"));
+
+        // Nothing changes: the package is left as it is.
+        long length = apk.length();
+        long bOffset = offset(apk, "assets/b");
+        packageApk(apk, resources, b, c);
+        assertEquals(length, apk.length());
+        assertEquals(bOffset, offset(apk, "assets/b"));
+        assertEquals(arscOffset, offset(apk, "resources.arsc"));
+    }
+
+    @Test
+    public void replacesInvalidPackage() throws Exception {
+        File resources = mTemporaryFolder.newFile("resources.ap_");
+        ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(resources));
+        try {
+            zos.putNextEntry(new ZipEntry("AndroidManifest.xml"));
+            zos.write(new byte[] { 3, 0, 8, 0 });
+        } finally {
+            zos.close();
+        }
+
+        File apk = new File(mTemporaryFolder.getRoot(), "out.apk");
+        Files.write("not a zip file", apk, Charsets.US_ASCII);
+
+        packageApk(apk, resources);
+        assertArrayEquals(new byte[] { 3, 0, 8, 0 }, readEntry(apk, "AndroidManifest.xml"));
+        assertEquals(ImmutableSet.of("AndroidManifest.xml"), entryNames(apk));
+    }
+
+    @Test
+    public void failedUpdateDiscardsPackage() throws Exception {
+        File resources = mTemporaryFolder.newFile("resources.ap_");
+        ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(resources));
+        try {
+            zos.putNextEntry(new ZipEntry("AndroidManifest.xml"));
+            zos.write(new byte[] { 3, 0, 8, 0 });
+        } finally {
+            zos.close();
+        }
+
+        File a = makeFile("a", "a");
+        File apk = new File(mTemporaryFolder.getRoot(), "out.apk");
+        packageApk(apk, resources, a);
+        assertTrue(apk.isFile());
+
+        // The previous package is not kept, as it may be partly updated.
+        try {
+            packageApk(apk, resources, a, new File(mTemporaryFolder.getRoot(), "missing"));
+            fail("PackagerException should have been thrown by the previous statement");
+        } catch (PackagerException e) {
+            // expected
+        }
+        assertFalse(apk.exists() && apk.length() > 0);
+
+        packageApk(apk, resources, a);
+        assertArrayEquals(Files.toByteArray(a), readEntry(apk, "assets/a"));
+        assertEquals(ImmutableSet.of("AndroidManifest.xml", "assets/a"), entryNames(apk));
+    }
+
+    private static ImmutableSet<String> entryNames(File zip) throws IOException {
+        ImmutableSet.Builder<String> names = ImmutableSet.builder();
+        ZipFile zipFile = new ZipFile(zip);
+        try {
+            for (ZipEntry entry : Collections.list(zipFile.entries())) {
+                names.add(entry.getName());
+            }
+        } finally {
+            zipFile.close();
+        }
+
+        return names.build();
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.internal.packaging.zip;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Function;
+import com.google.common.base.Functions;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+public class CompressionTest {
+    @Rule
+    public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    /**
+     * Creates text that compresses differently depending on the compression level.
+     */
+    private static byte[] makeText(long seed) {
+        Random random = new Random(seed);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            text.append("word").append(random.nextInt(500)).append(' ');
+        }
+
+        return text.toString().getBytes(Charsets.US_ASCII);
+    }
+
+    private static byte[] readEntry(File zip, String name) throws IOException {
+        ZipFile zipFile = new ZipFile(zip);
+        try {
+            ZipEntry entry = zipFile.getEntry(name);
+            assertNotNull(entry);
+            InputStream is = zipFile.getInputStream(entry);
+            try {
+                return ByteStreams.toByteArray(is);
+            } finally {
+                is.close();
+            }
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    @Test
+    public void addAllSameAsAdd() throws Exception {
+        Map<String, EntrySource> sources = Maps.newLinkedHashMap();
+        for (int i = 0; i < 50; i++) {
+            sources.put("file" + i + ".txt", new ByteArrayEntrySource(makeText(i)));
+        }
+
+        sources.put("small.txt", new ByteArrayEntrySource("a".getBytes(Charsets.US_ASCII)));
+        sources.put("stored.txt", new ByteArrayEntrySource(makeText(100)));
+
+        Map<String, CompressionMethod> methods = Maps.newHashMap();
+        for (String name : sources.keySet()) {
+            methods.put(name, CompressionMethod.DEFLATE);
+        }
+
+        methods.put("stored.txt", CompressionMethod.STORE);
+
+        File addedZip = new File(mTemporaryFolder.getRoot(), "added.zip");
+        ZFile added = new ZFile(addedZip);
+        for (Map.Entry<String, EntrySource> entry : sources.entrySet()) {
+            added.add(entry.getKey(), entry.getValue(), methods.get(entry.getKey()));
+        }
+
+        added.close();
+
+        File addedAllZip = new File(mTemporaryFolder.getRoot(), "addedAll.zip");
+        ZFile addedAll = new ZFile(addedAllZip);
+        addedAll.addAll(sources, Functions.forMap(methods));
+        addedAll.close();
+
+        long lastOffset = -1;
+        for (String name : sources.keySet()) {
+            CentralDirectoryHeader expected = added.get(name).getCentralDirectoryHeader();
+            CentralDirectoryHeader actual = addedAll.get(name).getCentralDirectoryHeader();
+            assertEquals(expected.getMethod(), actual.getMethod());
+            assertEquals(expected.getCompressedSize(), actual.getCompressedSize());
+            assertEquals(expected.getCrc32(), actual.getCrc32());
+
+            /*
+             * Files are laid out in the order they were given.
+             */
+            assertEquals(expected.getOffset(), actual.getOffset());
+            assertTrue(actual.getOffset() > lastOffset);
+            lastOffset = actual.getOffset();
+
+            assertArrayEquals(
+                    ByteStreams.toByteArray(sources.get(name).open()),
+                    readEntry(addedAllZip, name));
+        }
+
+        assertEquals(CompressionMethod.STORE,
+                addedAll.get("small.txt").getCentralDirectoryHeader().getMethod());
+        assertEquals(CompressionMethod.STORE,
+                addedAll.get("stored.txt").getCentralDirectoryHeader().getMethod());
+        assertEquals(CompressionMethod.DEFLATE,
+                addedAll.get("file0.txt").getCentralDirectoryHeader().getMethod());
+    }
+
+    @Test
+    public void compressionLevelByPattern() throws Exception {
+        File newZFile = new File(mTemporaryFolder.getRoot(), "test.zip");
+        byte[] text = makeText(0);
+
+        ZFile zf = new ZFile(newZFile);
+        zf.getCompressionRules().add(
+                new CompressionRule(Pattern.compile(".*\\.fast"), Deflater.BEST_SPEED));
+        zf.getCompressionRules().add(
+                new CompressionRule(Pattern.compile(".*"), Deflater.BEST_COMPRESSION));
+        zf.add("dir/a.fast", new ByteArrayEntrySource(text), CompressionMethod.DEFLATE);
+        zf.add("dir/a.best", new ByteArrayEntrySource(text), CompressionMethod.DEFLATE);
+        zf.close();
+
+        long fastSize = zf.get("dir/a.fast").getCentralDirectoryHeader().getCompressedSize();
+        long bestSize = zf.get("dir/a.best").getCentralDirectoryHeader().getCompressedSize();
+        assertTrue(bestSize < fastSize);
+
+        assertArrayEquals(text, readEntry(newZFile, "dir/a.fast"));
+        assertArrayEquals(text, readEntry(newZFile, "dir/a.best"));
+    }
+
+    @Test
+    public void compressionRulesDefault() throws Exception {
+        CompressionRules rules = new CompressionRules();
+        assertEquals(Deflater.DEFAULT_COMPRESSION, rules.level("foo/bar.png"));
+
+        rules.add(new CompressionRule(Pattern.compile(".*\\.png"), Deflater.BEST_SPEED));
+        assertEquals(Deflater.BEST_SPEED, rules.level("foo/bar.png"));
+        assertEquals(Deflater.BEST_SPEED, rules.level("bar.png"));
+        assertEquals(Deflater.DEFAULT_COMPRESSION, rules.level("foo.png/bar"));
+    }
+
+    @Test
+    public void addAllFailsIfSourceFails() throws Exception {
+        File newZFile = new File(mTemporaryFolder.getRoot(), "test.zip");
+
+        Map<String, EntrySource> sources = Maps.newLinkedHashMap();
+        sources.put("good", new ByteArrayEntrySource(makeText(0)));
+        sources.put("bad", new EntrySource() {
+            @Override
+            public InputStream open() throws IOException {
+                throw new IOException("bad source");
+            }
+
+            @Override
+            public long size() {
+                return 10;
+            }
+
+            @Override
+            public EntrySource innerCompressed() {
+                return null;
+            }
+        });
+
+        ZFile zf = new ZFile(newZFile);
+        try {
+            zf.addAll(sources, new Function<String, CompressionMethod>() {
+                @Override
+                public CompressionMethod apply(String input) {
+                    return CompressionMethod.DEFLATE;
+                }
+            });
+            throw new AssertionError("Expected an IOException");
+        } catch (IOException e) {
+            assertEquals("bad source", e.getMessage());
+        }
+
+        assertNotNull(zf.get("good"));
+        assertFalse(zf.entries().size() > 1);
+        zf.close();
+    }
+}
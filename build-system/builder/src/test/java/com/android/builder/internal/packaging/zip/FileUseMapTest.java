@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.internal.packaging.zip;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+public class FileUseMapTest {
+
+    /**
+     * Simple model of a {@link FileUseMap}: the used intervals, mapped from start to end.
+     */
+    private static class Model {
+        final TreeMap<Long, Long> mUsed = Maps.newTreeMap();
+        long mSize;
+
+        /**
+         * Locates free space the way {@link FileUseMap} always did, going through all free
+         * intervals in order.
+         */
+        long locateFree(long size, long alignOffset, long align) {
+            long bestStart = -1;
+            long bestSize = 0;
+            long bestExtraSize = 0;
+
+            long start = 0;
+            List<long[]> free = Lists.newArrayList();
+            for (Map.Entry<Long, Long> used : mUsed.entrySet()) {
+                if (used.getKey() > start) {
+                    free.add(new long[] { start, used.getKey() });
+                }
+
+                start = used.getValue();
+            }
+
+            if (mSize > start) {
+                free.add(new long[] { start, mSize });
+            }
+
+            for (long[] curr : free) {
+                long currSize = curr[1] - curr[0];
+                long extraSize = (align - ((curr[0] + alignOffset) % align)) % align;
+                if (currSize < size + extraSize) {
+                    continue;
+                }
+
+                if (bestStart != -1 && bestSize < currSize) {
+                    continue;
+                }
+
+                bestStart = curr[0];
+                bestSize = currSize;
+                bestExtraSize = extraSize;
+            }
+
+            if (bestStart != -1) {
+                return bestStart + bestExtraSize;
+            }
+
+            long firstFree = mUsed.isEmpty() ? 0 : mUsed.lastEntry().getValue();
+            return firstFree + (align - ((firstFree + alignOffset) % align)) % align;
+        }
+    }
+
+    @Test
+    public void bestFitWithAlignment() {
+        FileUseMap map = new FileUseMap(100);
+        FileUseMapEntry<?> a = map.add(0, 10, "a");
+        map.add(10, 20, "b");
+        FileUseMapEntry<?> c = map.add(20, 50, "c");
+        map.add(50, 60, "d");
+        map.add(60, 100, "e");
+
+        map.remove(a);
+        map.remove(c);
+
+        // Both holes fit, the smallest one is used.
+        assertEquals(0, map.locateFree(8, 0, 1));
+
+        // The smallest hole is only used if the entry still fits in it once aligned.
+        assertEquals(0, map.locateFree(8, 0, 8));
+        assertEquals(22, map.locateFree(8, 2, 8));
+        assertEquals(20, map.locateFree(8, 4, 8));
+
+        // Nothing fits: the entry goes at the end.
+        assertEquals(100, map.locateFree(40, 0, 1));
+        assertEquals(104, map.locateFree(40, 0, 8));
+    }
+
+    @Test
+    public void sameAsLinearScan() {
+        Random random = new Random(4242);
+        FileUseMap map = new FileUseMap(0);
+        Model model = new Model();
+        List<FileUseMapEntry<?>> entries = Lists.newArrayList();
+
+        for (int i = 0; i < 50000; i++) {
+            int op = random.nextInt(10);
+            if (op < 5 || entries.isEmpty()) {
+                /*
+                 * Add an entry, possibly aligned.
+                 */
+                long size = 1 + random.nextInt(random.nextBoolean() ? 64 : 4096);
+                long alignOffset = random.nextInt(30);
+                long align = random.nextBoolean() ? 1 : 4;
+
+                long start = map.locateFree(size, alignOffset, align);
+                assertEquals(model.locateFree(size, alignOffset, align), start);
+
+                if (start + size > map.size()) {
+                    map.extend(start + size);
+                    model.mSize = start + size;
+                }
+
+                entries.add(map.add(start, start + size, Integer.valueOf(i)));
+                model.mUsed.put(start, start + size);
+            } else if (op < 9) {
+                /*
+                 * Remove an entry and, half of the times, add it back elsewhere with another
+                 * alignment.
+                 */
+                FileUseMapEntry<?> entry = entries.remove(random.nextInt(entries.size()));
+                map.remove(entry);
+                model.mUsed.remove(entry.getStart());
+
+                if (random.nextBoolean()) {
+                    long size = entry.getSize();
+                    long start = map.locateFree(size, 0, 4096);
+                    assertEquals(model.locateFree(size, 0, 4096), start);
+
+                    if (start + size > map.size()) {
+                        map.extend(start + size);
+                        model.mSize = start + size;
+                    }
+
+                    entries.add(map.add(start, start + size, Integer.valueOf(i)));
+                    model.mUsed.put(start, start + size);
+                }
+            } else {
+                long used = model.mUsed.isEmpty() ? 0 : model.mUsed.lastEntry().getValue();
+                assertEquals(used, map.usedSize());
+
+                map.truncate();
+                model.mSize = used;
+                assertEquals(model.mSize, map.size());
+            }
+        }
+    }
+}
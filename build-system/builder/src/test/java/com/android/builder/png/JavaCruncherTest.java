@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.png;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import com.android.annotations.NonNull;
+import com.android.ide.common.internal.PngCruncher;
+import com.android.ide.common.internal.PngException;
+import com.android.utils.NullLogger;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Unit tests for {@link JavaCruncher}.
+ */
+public class JavaCruncherTest {
+    @Rule
+    public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+    /**
+     * Cruncher for nine-patch files which only records the files it is given.
+     */
+    private static class RecordingCruncher implements PngCruncher {
+        final List<File> mCrunched = Lists.newArrayList();
+        int mStarted = 0;
+        int mEnded = 0;
+
+        @Override
+        public int start() {
+            return ++mStarted;
+        }
+
+        @Override
+        public void crunchPng(int key, @NonNull File from, @NonNull File to)
+                throws PngException {
+            mCrunched.add(from);
+        }
+
+        @Override
+        public void end(int key) throws InterruptedException {
+            mEnded++;
+        }
+    }
+
+    private File writeImage(String name, BufferedImage image) throws IOException {
+        File file = new File(tmpFolder.getRoot(), name);
+        assertTrue(ImageIO.write(image, "png", file));
+        return file;
+    }
+
+    private static void crunch(PngCruncher cruncher, File from, File to) throws Exception {
+        int key = cruncher.start();
+        cruncher.crunchPng(key, from, to);
+        cruncher.end(key);
+    }
+
+    private static void assertSamePixels(File expected, File actual) throws IOException {
+        BufferedImage expectedImage = ImageIO.read(expected);
+        BufferedImage actualImage = ImageIO.read(actual);
+        assertNotNull(actualImage);
+        int width = expectedImage.getWidth();
+        int height = expectedImage.getHeight();
+        assertEquals(width, actualImage.getWidth());
+        assertEquals(height, actualImage.getHeight());
+        assertArrayEquals(
+                expectedImage.getRGB(0, 0, width, height, null, 0, width),
+                actualImage.getRGB(0, 0, width, height, null, 0, width));
+    }
+
+    @Test
+    public void fewColors() throws Exception {
+        BufferedImage image = new BufferedImage(100, 60, BufferedImage.TYPE_INT_ARGB);
+        int[] colors = new int[] { 0x00000000, 0x80ff0000, 0xff00ff00, 0xff0000ff, 0x40123456 };
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                image.setRGB(x, y, colors[(x / 7 + y / 5) % colors.length]);
+            }
+        }
+
+        File from = writeImage("few.png", image);
+        File to = new File(tmpFolder.getRoot(), "few-crunched.png");
+        crunch(new JavaCruncher(new RecordingCruncher(), null, new NullLogger()), from, to);
+
+        assertSamePixels(from, to);
+        assertTrue(to.length() < from.length());
+    }
+
+    @Test
+    public void manyColors() throws Exception {
+        Random random = new Random(42);
+        BufferedImage image = new BufferedImage(64, 64, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                int alpha = x < 32 ? 0xff : random.nextInt(256);
+                image.setRGB(x, y, (alpha << 24) | (x * 4 << 16) | (y * 4 << 8) | (x + y));
+            }
+        }
+
+        File from = writeImage("many.png", image);
+        File to = new File(tmpFolder.getRoot(), "many-crunched.png");
+        crunch(new JavaCruncher(new RecordingCruncher(), null, new NullLogger()), from, to);
+
+        assertSamePixels(from, to);
+        assertTrue(to.length() <= from.length());
+    }
+
+    @Test
+    public void grayscale() throws Exception {
+        BufferedImage image = new BufferedImage(256, 16, BufferedImage.TYPE_BYTE_GRAY);
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                image.getRaster().setSample(x, y, 0, (x + y) & 0xff);
+            }
+        }
+
+        File from = writeImage("gray.png", image);
+        File to = new File(tmpFolder.getRoot(), "gray-crunched.png");
+        crunch(new JavaCruncher(new RecordingCruncher(), null, new NullLogger()), from, to);
+
+        BufferedImage crunched = ImageIO.read(to);
+        assertEquals(BufferedImage.TYPE_BYTE_GRAY, crunched.getType());
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                assertEquals(
+                        image.getRaster().getSample(x, y, 0),
+                        crunched.getRaster().getSample(x, y, 0));
+            }
+        }
+    }
+
+    @Test
+    public void cache() throws Exception {
+        File cacheDir = tmpFolder.newFolder("cache");
+        BufferedImage image = new BufferedImage(40, 40, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                image.setRGB(x, y, (x ^ y) % 3 == 0 ? 0xff336699 : 0xff996633);
+            }
+        }
+
+        File from = writeImage("cached.png", image);
+        File to = new File(tmpFolder.getRoot(), "cached-crunched.png");
+        crunch(new JavaCruncher(new RecordingCruncher(), cacheDir, new NullLogger()), from, to);
+
+        File[] cached = cacheDir.listFiles();
+        assertNotNull(cached);
+        assertEquals(1, cached.length);
+        assertArrayEquals(Files.toByteArray(to), Files.toByteArray(cached[0]));
+
+        // The same file from another library is not crunched again.
+        File copy = new File(tmpFolder.newFolder("library"), "cached.png");
+        Files.copy(from, copy);
+        File copyTo = new File(tmpFolder.getRoot(), "copy-crunched.png");
+        crunch(new JavaCruncher(new RecordingCruncher(), cacheDir, new NullLogger()), copy, copyTo);
+
+        assertArrayEquals(Files.toByteArray(to), Files.toByteArray(copyTo));
+        assertEquals(1, cacheDir.listFiles().length);
+    }
+
+    @Test
+    public void ninePatch() throws Exception {
+        BufferedImage image = new BufferedImage(5, 5, BufferedImage.TYPE_INT_ARGB);
+        File from = writeImage("button.9.png", image);
+        File to = new File(tmpFolder.getRoot(), "button-crunched.9.png");
+
+        RecordingCruncher ninePatchCruncher = new RecordingCruncher();
+        crunch(new JavaCruncher(ninePatchCruncher, null, new NullLogger()), from, to);
+
+        assertEquals(1, ninePatchCruncher.mStarted);
+        assertEquals(1, ninePatchCruncher.mEnded);
+        assertEquals(Lists.newArrayList(from), ninePatchCruncher.mCrunched);
+    }
+}
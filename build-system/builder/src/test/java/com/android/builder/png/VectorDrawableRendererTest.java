@@ -17,7 +17,10 @@
 package com.android.builder.png;
 
 import static java.nio.charset.Charset.defaultCharset;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
 import com.android.resources.Density;
@@ -32,11 +35,14 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
+import java.awt.image.BufferedImage;
 import java.io.File;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Set;
 
+import javax.imageio.ImageIO;
+
 /**
  * Unit tests for {@link VectorDrawableRenderer}.
  */
@@ -299,4 +305,53 @@ public class VectorDrawableRendererTest {
 
         assertFalse(mRenderer.needsPreprocessing(input));
     }
+
+    @Test
+    public void generateFile_cache() throws Exception {
+        File cacheDir = tmpFolder.newFolder("cache");
+        mRenderer = new VectorDrawableRenderer(
+                19, mOutput, mDensities, cacheDir, new NullLogger());
+        File drawable = new File(mRes, "drawable");
+        File input = new File(drawable, "icon.xml");
+
+        Files.createParentDirs(input);
+        Files.write(
+                "<vector xmlns:android=\"http://schemas.android.com/apk/res/android\"\n"
+                        + "    android:width=\"24dp\" android:height=\"16dp\"\n"
+                        + "    android:viewportWidth=\"24\" android:viewportHeight=\"16\">\n"
+                        + "  <path android:fillColor=\"#FF000000\"\n"
+                        + "      android:pathData=\"M0,0h12v8z\"/>\n"
+                        + "</vector>",
+                input,
+                defaultCharset());
+
+        File hdpi = FileUtils.join(tmpFolder.getRoot(), "out", "drawable-hdpi", "icon.png");
+        mRenderer.generateFile(hdpi, input);
+        BufferedImage image = ImageIO.read(hdpi);
+        assertNotNull(image);
+        assertEquals(36, image.getWidth());
+        assertEquals(24, image.getHeight());
+
+        File[] cached = cacheDir.listFiles();
+        assertNotNull(cached);
+        assertEquals(1, cached.length);
+        assertArrayEquals(Files.toByteArray(hdpi), Files.toByteArray(cached[0]));
+
+        // Another build with the same file uses the cached PNG.
+        byte[] marker = new byte[] { 1, 2, 3 };
+        Files.write(marker, cached[0]);
+        mRenderer = new VectorDrawableRenderer(
+                19, mOutput, mDensities, cacheDir, new NullLogger());
+        File copy = FileUtils.join(tmpFolder.getRoot(), "copy", "drawable-hdpi", "icon.png");
+        mRenderer.generateFile(copy, input);
+        assertArrayEquals(marker, Files.toByteArray(copy));
+
+        // Other densities are not in the cache yet.
+        File mdpi = FileUtils.join(tmpFolder.getRoot(), "copy", "drawable-mdpi", "icon.png");
+        mRenderer.generateFile(mdpi, input);
+        image = ImageIO.read(mdpi);
+        assertEquals(24, image.getWidth());
+        assertEquals(16, image.getHeight());
+        assertEquals(2, cacheDir.listFiles().length);
+    }
 }
\ No newline at end of file
@@ -24,6 +24,7 @@ import com.google.common.collect.Maps;
 
 import org.gradle.api.Project;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.EnumSet;
 import java.util.List;
@@ -55,6 +56,16 @@ public class AndroidGradleOptions {
 
     private static final String PROPERTY_USE_OLD_PACKAGING = "android.useOldPackaging";
 
+    private static final String PROPERTY_SHARED_PRE_PROCESS_CACHE_DIR =
+            "android.sharedPreProcessCacheDir";
+
+    private static final String PROPERTY_VECTOR_DRAWABLE_CACHE_DIR =
+            "android.vectorDrawableCacheDir";
+
+    private static final String PROPERTY_USE_JAVA_PNG_CRUNCHER = "android.useJavaPngCruncher";
+
+    private static final String PROPERTY_PNG_CRUNCHER_CACHE_DIR = "android.pngCruncherCacheDir";
+
     @NonNull
     public static Map<String, String> getExtraInstrumentationTestRunnerArgs(@NonNull Project project) {
         Map<String, String> argsMap = Maps.newHashMap();
@@ -96,6 +107,10 @@ public class AndroidGradleOptions {
         return getBoolean(project, PROPERTY_USE_OLD_PACKAGING, true);
     }
 
+    public static boolean useJavaPngCruncher(@NonNull Project project) {
+        return getBoolean(project, PROPERTY_USE_JAVA_PNG_CRUNCHER);
+    }
+
     @Nullable
     public static String getApkLocation(@NonNull Project project) {
         return getString(project, AndroidProject.PROPERTY_APK_LOCATION);
@@ -202,6 +217,36 @@ public class AndroidGradleOptions {
         return !getBoolean(project, PROPERTY_DISABLE_RESOURCE_VALIDATION);
     }
 
+    /**
+     * Returns the folder where pre-dexed and jilled libraries are shared with other projects and
+     * Gradle daemons, or null if they are only cached for the current build.
+     */
+    @Nullable
+    public static File getSharedPreProcessCacheDir(@NonNull Project project) {
+        String path = getString(project, PROPERTY_SHARED_PRE_PROCESS_CACHE_DIR);
+        return path != null ? project.file(path) : null;
+    }
+
+    /**
+     * Returns the folder where PNGs generated from vector drawables are kept for later builds,
+     * including clean builds and builds of other projects, or null if they are always generated.
+     */
+    @Nullable
+    public static File getVectorDrawableCacheDir(@NonNull Project project) {
+        String path = getString(project, PROPERTY_VECTOR_DRAWABLE_CACHE_DIR);
+        return path != null ? project.file(path) : null;
+    }
+
+    /**
+     * Returns the folder where PNGs crunched in process are kept for later builds and other
+     * projects, or null if they are only kept in memory.
+     */
+    @Nullable
+    public static File getPngCruncherCacheDir(@NonNull Project project) {
+        String path = getString(project, PROPERTY_PNG_CRUNCHER_CACHE_DIR);
+        return path != null ? project.file(path) : null;
+    }
+
     @Nullable
     private static String getString(@NonNull Project project, String propertyName) {
         return (String) project.getProperties().get(propertyName);
@@ -217,6 +217,12 @@ public class LintGradleClient extends LintCliClient {
         // do not really do that, even for long-running jobs.
     }
 
+    @Override
+    public boolean isCachingLibraryClasses() {
+        // The Gradle daemon keeps running lint on the same dependencies
+        return true;
+    }
+
     @Nullable
     @Override
     public BuildToolInfo getBuildTools(@NonNull Project project) {
@@ -32,9 +32,9 @@ import com.android.build.api.transform.TransformOutputProvider;
 import com.android.build.gradle.internal.pipeline.TransformManager;
 import com.android.build.gradle.internal.scope.VariantScope;
 import com.android.build.gradle.shrinker.AbstractShrinker.CounterSet;
+import com.android.build.gradle.shrinker.CompactShrinkerGraph;
 import com.android.build.gradle.shrinker.FullRunShrinker;
 import com.android.build.gradle.shrinker.IncrementalShrinker;
-import com.android.build.gradle.shrinker.JavaSerializationShrinkerGraph;
 import com.android.build.gradle.shrinker.KeepRules;
 import com.android.build.gradle.shrinker.ProguardConfig;
 import com.android.build.gradle.shrinker.ProguardFlagsKeepRules;
@@ -164,10 +164,10 @@ public class NewShrinkerTransform extends ProguardConfigurable {
         ShrinkerLogger shrinkerLogger =
                 new ShrinkerLogger(config.getFlags().getDontWarnSpecs(), logger);
 
-        FullRunShrinker<String> shrinker =
-                new FullRunShrinker<String>(
+        FullRunShrinker<Integer> shrinker =
+                new FullRunShrinker<Integer>(
                         new WaitableExecutor<Void>(),
-                        JavaSerializationShrinkerGraph.empty(incrementalDir),
+                        CompactShrinkerGraph.empty(incrementalDir),
                         platformJars,
                         shrinkerLogger);
 
@@ -233,10 +233,7 @@ public class NewShrinkerTransform extends ProguardConfigurable {
             @NonNull TransformOutputProvider output) throws IOException {
         try {
             Stopwatch stopwatch = Stopwatch.createStarted();
-            JavaSerializationShrinkerGraph graph =
-                    JavaSerializationShrinkerGraph.readFromDir(
-                            incrementalDir,
-                            this.getClass().getClassLoader());
+            CompactShrinkerGraph graph = CompactShrinkerGraph.readFromDir(incrementalDir);
             logTime("loading state", stopwatch);
 
             ProguardConfig config = getConfig();
@@ -244,8 +241,8 @@ public class NewShrinkerTransform extends ProguardConfigurable {
             ShrinkerLogger shrinkerLogger =
                     new ShrinkerLogger(config.getFlags().getDontWarnSpecs(), logger);
 
-            IncrementalShrinker<String> shrinker =
-                    new IncrementalShrinker<String>(new WaitableExecutor<Void>(), graph, shrinkerLogger);
+            IncrementalShrinker<Integer> shrinker =
+                    new IncrementalShrinker<Integer>(new WaitableExecutor<Void>(), graph, shrinkerLogger);
             shrinker.incrementalRun(inputs, output);
             checkForWarnings(config, shrinkerLogger);
         } catch (IncrementalShrinker.IncrementalRunImpossibleException e) {
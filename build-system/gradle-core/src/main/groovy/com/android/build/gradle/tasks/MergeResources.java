@@ -26,6 +26,7 @@ import com.android.build.gradle.internal.tasks.IncrementalTask;
 import com.android.build.gradle.internal.variant.BaseVariantData;
 import com.android.build.gradle.internal.variant.BaseVariantOutputData;
 import com.android.builder.model.VectorDrawablesOptions;
+import com.android.builder.png.JavaCruncher;
 import com.android.builder.png.QueuedCruncher;
 import com.android.builder.png.VectorDrawableRenderer;
 import com.android.ide.common.internal.PngCruncher;
@@ -79,6 +80,8 @@ public class MergeResources extends IncrementalTask {
 
     private File generatedPngsOutputDir;
 
+    private File vectorDrawableCacheDir;
+
     // ----- PRIVATE TASK API -----
 
     /**
@@ -92,6 +95,10 @@ public class MergeResources extends IncrementalTask {
 
     private boolean useNewCruncher;
 
+    private boolean useJavaCruncher;
+
+    private File pngCruncherCacheDir;
+
     private boolean validateEnabled;
 
     private File blameLogFolder;
@@ -123,6 +130,16 @@ public class MergeResources extends IncrementalTask {
     }
 
     private PngCruncher getCruncher() {
+        PngCruncher aaptCruncher = getAaptCruncher();
+        if (getUseJavaCruncher()) {
+            // aapt is then only used for nine-patch files.
+            return new JavaCruncher(aaptCruncher, getPngCruncherCacheDir(), getFilteringLogger());
+        }
+
+        return aaptCruncher;
+    }
+
+    private PngCruncher getAaptCruncher() {
         if (getUseNewCruncher()) {
             // At this point ensureTargetSetup() has been called, so no NPE below.
             // noinspection ConstantConditions
@@ -275,6 +292,7 @@ public class MergeResources extends IncrementalTask {
                 getMinSdk(),
                 getGeneratedPngsOutputDir(),
                 densities,
+                getVectorDrawableCacheDir(),
                 getILogger());
     }
 
@@ -313,6 +331,27 @@ public class MergeResources extends IncrementalTask {
         this.useNewCruncher = useNewCruncher;
     }
 
+    public boolean getUseJavaCruncher() {
+        return useJavaCruncher;
+    }
+
+    public void setUseJavaCruncher(boolean useJavaCruncher) {
+        this.useJavaCruncher = useJavaCruncher;
+    }
+
+    /**
+     * Directory where PNGs crunched in process are kept between builds. This is not an input:
+     * cached PNGs only depend on the content of the original files.
+     */
+    @Nullable
+    public File getPngCruncherCacheDir() {
+        return pngCruncherCacheDir;
+    }
+
+    public void setPngCruncherCacheDir(@Nullable File pngCruncherCacheDir) {
+        this.pngCruncherCacheDir = pngCruncherCacheDir;
+    }
+
     @OutputDirectory
     public File getOutputDir() {
         return outputDir;
@@ -377,6 +416,19 @@ public class MergeResources extends IncrementalTask {
         this.generatedPngsOutputDir = generatedPngsOutputDir;
     }
 
+    /**
+     * Directory where PNGs generated from vector drawables are kept between builds. This is not
+     * an input: cached PNGs only depend on the content of the XML files and the density.
+     */
+    @Nullable
+    public File getVectorDrawableCacheDir() {
+        return vectorDrawableCacheDir;
+    }
+
+    public void setVectorDrawableCacheDir(@Nullable File vectorDrawableCacheDir) {
+        this.vectorDrawableCacheDir = vectorDrawableCacheDir;
+    }
+
     @Input
     public Collection<String> getGeneratedDensities() {
         return generatedDensities;
@@ -480,6 +532,10 @@ public class MergeResources extends IncrementalTask {
                             || mergeResourcesTask.getGeneratedDensities().isEmpty());
 
             mergeResourcesTask.setUseNewCruncher(extension.getAaptOptions().getUseNewCruncher());
+            mergeResourcesTask.setUseJavaCruncher(AndroidGradleOptions.useJavaPngCruncher(
+                    scope.getGlobalScope().getProject()));
+            mergeResourcesTask.setPngCruncherCacheDir(AndroidGradleOptions.getPngCruncherCacheDir(
+                    scope.getGlobalScope().getProject()));
 
             final boolean validateEnabled = AndroidGradleOptions.isResourceValidationEnabled(
                     scope.getGlobalScope().getProject());
@@ -515,6 +571,9 @@ public class MergeResources extends IncrementalTask {
                             : scope.getDefaultMergeResourcesOutputDir());
 
             mergeResourcesTask.setGeneratedPngsOutputDir(scope.getGeneratedPngsOutputDir());
+            mergeResourcesTask.setVectorDrawableCacheDir(
+                    AndroidGradleOptions.getVectorDrawableCacheDir(
+                            scope.getGlobalScope().getProject()));
 
             variantData.mergeResourcesTask = mergeResourcesTask;
         }
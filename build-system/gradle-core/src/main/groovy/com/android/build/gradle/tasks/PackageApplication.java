@@ -282,7 +282,8 @@ public class PackageApplication extends IncrementalTask implements FileSupplier
                     getJniDebugBuild(),
                     getSigningConfig(),
                     getOutputFile().getAbsolutePath(),
-                    getMinSdkVersion());
+                    getMinSdkVersion(),
+                    !useOldPackaging);
         } catch (DuplicateFileException e) {
             Logger logger = getLogger();
             logger.error("Error: duplicate files during packaging of APK " + getOutputFile()
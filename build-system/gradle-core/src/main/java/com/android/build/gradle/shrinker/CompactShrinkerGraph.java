@@ -0,0 +1,1031 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.build.gradle.shrinker;
+
+import static com.android.build.gradle.shrinker.AbstractShrinker.isSdkPackage;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.build.gradle.shrinker.AbstractShrinker.CounterSet;
+import com.android.build.gradle.shrinker.IncrementalShrinker.IncrementalRunImpossibleException;
+import com.android.ide.common.internal.WaitableExecutor;
+import com.android.utils.AsmUtils;
+import com.android.utils.FileUtils;
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * {@link ShrinkerGraph} implementation that interns the names of classes and members to int ids
+ * and keeps the graph in primitive arrays indexed by these ids, instead of maps keyed by strings.
+ *
+ * <p>Classes and members share the same ids, and members are named "owner.name:desc", like in
+ * {@link JavaSerializationShrinkerGraph}. Since a class or member is reachable as soon as one of
+ * the kinds of counters it needs is non-zero, the counters are kept as flags in atomic int arrays.
+ *
+ * <p>The state is saved in a compact binary file instead of using Java serialization, see
+ * {@link #saveState()}.
+ */
+public class CompactShrinkerGraph implements ShrinkerGraph<Integer> {
+
+    /** "SHRK" */
+    private static final int STATE_MAGIC = 0x5348524B;
+
+    private static final int STATE_VERSION = 1;
+
+    private static final int PAGE_BITS = 12;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    private static final int NO_ID = -1;
+
+    // Counter flags.
+    private static final int REQUIRED = 1;
+    private static final int IF_CLASS_KEPT = 1 << 1;
+    private static final int CLASS_IS_KEPT = 1 << 2;
+    private static final int SUPERINTERFACE_KEPT = 1 << 3;
+    private static final int INTERFACE_IMPLEMENTED = 1 << 4;
+
+    private static final DependencyType[] DEPENDENCY_TYPES = DependencyType.values();
+
+    private final File mStateDir;
+
+    private final ConcurrentMap<String, Integer> mIds = Maps.newConcurrentMap();
+
+    /** Guards the allocation of new ids. */
+    private final Object mIdLock = new Object();
+
+    /** Number of ids allocated so far. */
+    private volatile int mSize;
+
+    /** The per-id data, {@link #PAGE_SIZE} ids per page. Pages are never moved or dropped. */
+    private volatile Page[] mPages = new Page[0];
+
+    private final ConcurrentMap<Integer, DependencyType> mShrinkRoots = Maps.newConcurrentMap();
+
+    private final ConcurrentMap<Integer, DependencyType> mMultidexRoots = Maps.newConcurrentMap();
+
+    private CompactShrinkerGraph(@NonNull File stateDir) {
+        mStateDir = checkNotNull(stateDir);
+    }
+
+    public static CompactShrinkerGraph empty(@NonNull File stateDir) {
+        return new CompactShrinkerGraph(stateDir);
+    }
+
+    /**
+     * Constructs a graph from saved state.
+     *
+     * @param dir directory where the state was saved
+     * @throws IOException if the state cannot be read
+     * @throws IncrementalRunImpossibleException if the state was saved in another format
+     */
+    public static CompactShrinkerGraph readFromDir(@NonNull File dir) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.toByteArray(getStateFile(dir)));
+        CompactShrinkerGraph graph = new CompactShrinkerGraph(dir);
+        try {
+            if (buffer.getInt() != STATE_MAGIC || buffer.getInt() != STATE_VERSION) {
+                throw new IncrementalRunImpossibleException("Failed to load incremental state.");
+            }
+            graph.readState(buffer);
+        } catch (BufferUnderflowException e) {
+            throw new IncrementalRunImpossibleException("Failed to load incremental state.", e);
+        } catch (IndexOutOfBoundsException e) {
+            throw new IncrementalRunImpossibleException("Failed to load incremental state.", e);
+        }
+        return graph;
+    }
+
+    /**
+     * Saves the state in the following format (numbers are big endian):
+     * <ul>
+     *     <li>{@link #STATE_MAGIC} and {@link #STATE_VERSION} [4 bytes each]</li>
+     *     <li>The number of ids [4 bytes], followed by the name of each id: the number of
+     *     bytes [4 bytes] and the UTF-8 bytes</li>
+     *     <li>For each id: the declaring class plus one, or 0 for classes [4 bytes], the
+     *     modifiers [4 bytes], the shrink and multidex counter flags [1 byte each]</li>
+     *     <li>The number of classes [4 bytes], and for each: the id, the superclass id or -1,
+     *     the number of interfaces or -1 and the interface ids [4 bytes each], followed by the
+     *     path of the class file in the same format as names, or -1 for library classes</li>
+     *     <li>The number of ids with dependencies [4 bytes], and for each: the id and the
+     *     number of dependencies [4 bytes each], and the dependencies [8 bytes each]</li>
+     *     <li>The number of ids with annotations [4 bytes], and for each: the id, the number
+     *     of annotations and the annotation ids [4 bytes each]</li>
+     *     <li>For the shrink and the multidex roots: the number of roots [4 bytes] and for
+     *     each the id [4 bytes] and the ordinal of the dependency type [1 byte]</li>
+     * </ul>
+     * The members of the classes are not saved, since they follow from the declaring classes.
+     */
+    @Override
+    public void saveState() throws IOException {
+        File stateFile = getStateFile(mStateDir);
+        FileUtils.deleteIfExists(stateFile);
+        Files.createParentDirs(stateFile);
+
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(stateFile)));
+        try {
+            int size = mSize;
+            out.writeInt(STATE_MAGIC);
+            out.writeInt(STATE_VERSION);
+
+            out.writeInt(size);
+            for (int id = 0; id < size; id++) {
+                writeString(out, page(id).names[id & PAGE_MASK]);
+            }
+            int classCount = 0;
+            int dependenciesCount = 0;
+            int annotationsCount = 0;
+            for (int id = 0; id < size; id++) {
+                Page page = page(id);
+                int index = id & PAGE_MASK;
+                out.writeInt(page.owners.get(index));
+                out.writeInt(page.modifiers.get(index));
+                out.writeByte(page.shrinkCounters.get(index));
+                out.writeByte(page.multidexCounters.get(index));
+                if (page.classes.get(index) != null) {
+                    classCount++;
+                }
+                if (page.dependencies.get(index) != null) {
+                    dependenciesCount++;
+                }
+                if (page.annotations.get(index) != null) {
+                    annotationsCount++;
+                }
+            }
+
+            out.writeInt(classCount);
+            for (int id = 0; id < size; id++) {
+                ClassInfo classInfo = page(id).classes.get(id & PAGE_MASK);
+                if (classInfo == null) {
+                    continue;
+                }
+                out.writeInt(id);
+                out.writeInt(classInfo.superclass);
+                if (classInfo.interfaces == null) {
+                    out.writeInt(-1);
+                } else {
+                    out.writeInt(classInfo.interfaces.length);
+                    for (int anInterface : classInfo.interfaces) {
+                        out.writeInt(anInterface);
+                    }
+                }
+                if (classInfo.classFile == null) {
+                    out.writeInt(-1);
+                } else {
+                    writeString(out, classInfo.classFile.getPath());
+                }
+            }
+
+            out.writeInt(dependenciesCount);
+            for (int id = 0; id < size; id++) {
+                IdList dependencies = page(id).dependencies.get(id & PAGE_MASK);
+                if (dependencies == null) {
+                    continue;
+                }
+                long[] values = dependencies.toArray();
+                out.writeInt(id);
+                out.writeInt(values.length);
+                for (long value : values) {
+                    out.writeLong(value);
+                }
+            }
+
+            out.writeInt(annotationsCount);
+            for (int id = 0; id < size; id++) {
+                IdList annotations = page(id).annotations.get(id & PAGE_MASK);
+                if (annotations == null) {
+                    continue;
+                }
+                long[] values = annotations.toArray();
+                out.writeInt(id);
+                out.writeInt(values.length);
+                for (long value : values) {
+                    out.writeInt((int) value);
+                }
+            }
+
+            writeRoots(out, mShrinkRoots);
+            writeRoots(out, mMultidexRoots);
+        } finally {
+            out.close();
+        }
+    }
+
+    private void readState(@NonNull ByteBuffer buffer) {
+        int size = buffer.getInt();
+        for (int id = 0; id < size; id++) {
+            if (intern(readString(buffer)) != id) {
+                throw new IncrementalRunImpossibleException("Duplicate name in incremental state.");
+            }
+        }
+        for (int id = 0; id < size; id++) {
+            Page page = page(id);
+            int index = id & PAGE_MASK;
+            int owner = buffer.getInt();
+            page.owners.set(index, owner);
+            if (owner != 0) {
+                getOrCreate(page(owner - 1).members, (owner - 1) & PAGE_MASK).add(id);
+            }
+            page.modifiers.set(index, buffer.getInt());
+            page.shrinkCounters.set(index, buffer.get());
+            page.multidexCounters.set(index, buffer.get());
+        }
+
+        for (int i = 0, n = buffer.getInt(); i < n; i++) {
+            int id = buffer.getInt();
+            int superclass = buffer.getInt();
+            int interfaceCount = buffer.getInt();
+            int[] interfaces = null;
+            if (interfaceCount >= 0) {
+                interfaces = new int[interfaceCount];
+                for (int j = 0; j < interfaceCount; j++) {
+                    interfaces[j] = buffer.getInt();
+                }
+            }
+            String path = readNullableString(buffer);
+            page(id).classes.set(id & PAGE_MASK, new ClassInfo(
+                    path != null ? new File(path) : null, superclass, interfaces));
+        }
+
+        for (int i = 0, n = buffer.getInt(); i < n; i++) {
+            int id = buffer.getInt();
+            IdList dependencies = getOrCreate(page(id).dependencies, id & PAGE_MASK);
+            for (int j = 0, count = buffer.getInt(); j < count; j++) {
+                dependencies.add(buffer.getLong());
+            }
+        }
+
+        for (int i = 0, n = buffer.getInt(); i < n; i++) {
+            int id = buffer.getInt();
+            IdList annotations = getOrCreate(page(id).annotations, id & PAGE_MASK);
+            for (int j = 0, count = buffer.getInt(); j < count; j++) {
+                annotations.add(buffer.getInt());
+            }
+        }
+
+        readRoots(buffer, mShrinkRoots);
+        readRoots(buffer, mMultidexRoots);
+    }
+
+    @NonNull
+    @Override
+    public Integer addMember(
+            @NonNull Integer owner,
+            @NonNull String name,
+            @NonNull String desc,
+            int modifiers) {
+        int member = intern(getFullMethodName(getName(owner), name, desc));
+        Page page = page(member);
+        page.owners.set(member & PAGE_MASK, owner + 1);
+        page.modifiers.set(member & PAGE_MASK, modifiers);
+        getOrCreate(page(owner).members, owner & PAGE_MASK).add(member);
+        return member;
+    }
+
+    @NonNull
+    @Override
+    public Integer getMemberReference(
+            @NonNull String className,
+            @NonNull String memberName,
+            @NonNull String desc) {
+        return intern(getFullMethodName(className, memberName, desc));
+    }
+
+    @Override
+    public void addDependency(
+            @NonNull Integer source,
+            @NonNull Integer target,
+            @NonNull DependencyType type) {
+        getOrCreate(page(source).dependencies, source & PAGE_MASK)
+                .add(encodeDependency(target, type));
+    }
+
+    @NonNull
+    @Override
+    public Set<Dependency<Integer>> getDependencies(@NonNull Integer member) {
+        IdList dependencies = page(member).dependencies.get(member & PAGE_MASK);
+        if (dependencies == null) {
+            return Sets.newHashSet();
+        }
+        long[] values = dependencies.toArray();
+        Set<Dependency<Integer>> result = Sets.newHashSetWithExpectedSize(values.length);
+        for (long value : values) {
+            result.add(new Dependency<Integer>(getTarget(value), getType(value)));
+        }
+        return result;
+    }
+
+    @NonNull
+    @Override
+    public Set<Integer> getMethods(@NonNull Integer klass) {
+        return getMembers(klass, true);
+    }
+
+    @NonNull
+    @Override
+    public Set<Integer> getFields(@NonNull Integer klass) {
+        return getMembers(klass, false);
+    }
+
+    @NonNull
+    private Set<Integer> getMembers(int klass, boolean methods) {
+        Set<Integer> result = Sets.newHashSet();
+        IdList members = page(klass).members.get(klass & PAGE_MASK);
+        if (members != null) {
+            for (long member : members.toArray()) {
+                if (isMethod(getName((int) member)) == methods) {
+                    result.add((int) member);
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public boolean incrementAndCheck(
+            @NonNull Integer memberOrClass,
+            @NonNull DependencyType type,
+            @NonNull CounterSet counterSet) {
+        AtomicIntegerArray counters = getCounters(page(memberOrClass), counterSet);
+        int index = memberOrClass & PAGE_MASK;
+        int flag = getCounterFlag(type);
+        while (true) {
+            int before = counters.get(index);
+            int after = before | flag;
+            if (before == after) {
+                return false;
+            }
+            if (counters.compareAndSet(index, before, after)) {
+                return isReachable(before) != isReachable(after);
+            }
+        }
+    }
+
+    @Override
+    public boolean isReachable(@NonNull Integer klass, @NonNull CounterSet counterSet) {
+        return isReachable(getCounters(page(klass), counterSet).get(klass & PAGE_MASK));
+    }
+
+    @Override
+    public void removeAllCodeDependencies(@NonNull Integer source) {
+        IdList dependencies = page(source).dependencies.get(source & PAGE_MASK);
+        if (dependencies == null) {
+            return;
+        }
+        long[] values = dependencies.toArray();
+        long[] removed = new long[values.length];
+        int removedCount = 0;
+        for (long value : values) {
+            DependencyType type = getType(value);
+            if (type == DependencyType.REQUIRED_CODE_REFERENCE
+                    || type == DependencyType.REQUIRED_CODE_REFERENCE_REFLECTION) {
+                removed[removedCount++] = value;
+            }
+        }
+        dependencies.removeAll(removed, removedCount);
+    }
+
+    @Nullable
+    @Override
+    public Integer getSuperclass(@NonNull Integer klass) throws ClassLookupException {
+        ClassInfo classInfo = getClassInfo(klass);
+        if (classInfo == null) {
+            throw new ClassLookupException(getName(klass));
+        }
+        int superclass = classInfo.superclass;
+        if (superclass == NO_ID) {
+            return null;
+        }
+        if (getClassInfo(superclass) == null) {
+            throw new ClassLookupException(getName(superclass));
+        }
+        return superclass;
+    }
+
+    @Nullable
+    @Override
+    public Integer findMatchingMethod(@NonNull Integer klass, @NonNull Integer method) {
+        // Common case:
+        if (isDeclaredIn(method, klass)) {
+            return method;
+        }
+
+        Integer methodToLookFor = mIds.get(getName(klass) + "." + getMemberId(getName(method)));
+        if (methodToLookFor != null && isDeclaredIn(methodToLookFor, klass)) {
+            return methodToLookFor;
+        } else {
+            return null;
+        }
+    }
+
+    @Override
+    public boolean isLibraryClass(@NonNull Integer klass) {
+        if (isSdkPackage(getName(klass))) {
+            return true;
+        }
+
+        ClassInfo classInfo = getClassInfo(klass);
+        return classInfo == null || classInfo.isLibraryClass();
+    }
+
+    @NonNull
+    @Override
+    public Integer[] getInterfaces(Integer klass) throws ClassLookupException {
+        ClassInfo classInfo = getClassInfo(klass);
+        if (classInfo == null) {
+            throw new ClassLookupException(getName(klass));
+        }
+
+        if (classInfo.interfaces == null) {
+            return new Integer[0];
+        }
+        Integer[] interfaces = new Integer[classInfo.interfaces.length];
+        for (int i = 0; i < interfaces.length; i++) {
+            interfaces[i] = classInfo.interfaces[i];
+        }
+        return interfaces;
+    }
+
+    @Override
+    public void checkDependencies(ShrinkerLogger shrinkerLogger) {
+        for (int source = 0, size = mSize; source < size; source++) {
+            IdList dependencies = page(source).dependencies.get(source & PAGE_MASK);
+            if (dependencies == null) {
+                continue;
+            }
+            long[] values = dependencies.toArray();
+            long[] removed = new long[values.length];
+            int removedCount = 0;
+            for (long value : values) {
+                int target = getTarget(value);
+                String targetName = getName(target);
+                if (!targetName.contains(".")) {
+                    if (getClassInfo(target) == null) {
+                        // We don't warn about by-name references in strings.
+                        if (getType(value) != DependencyType.REQUIRED_CODE_REFERENCE_REFLECTION) {
+                            shrinkerLogger.invalidClassReference(getName(source), targetName);
+                            removed[removedCount++] = value;
+                        }
+                    }
+                } else {
+                    if (page(target).owners.get(target & PAGE_MASK) == 0) {
+                        shrinkerLogger.invalidMemberReference(getName(source), targetName);
+                        removed[removedCount++] = value;
+                    }
+                }
+            }
+            dependencies.removeAll(removed, removedCount);
+        }
+    }
+
+    @NonNull
+    @Override
+    public Set<Integer> getReachableClasses(@NonNull CounterSet counterSet) {
+        Set<Integer> classesToKeep = Sets.newHashSet();
+        for (int klass = 0, size = mSize; klass < size; klass++) {
+            ClassInfo classInfo = getClassInfo(klass);
+            if (classInfo == null || classInfo.isLibraryClass()) {
+                // Skip lib
+                continue;
+            }
+            if (isReachable(klass, counterSet)) {
+                classesToKeep.add(klass);
+            }
+        }
+
+        return classesToKeep;
+    }
+
+    @Nullable
+    @Override
+    public File getSourceFile(@NonNull Integer klass) {
+        ClassInfo classInfo = getClassInfo(klass);
+        return classInfo != null ? classInfo.classFile : null;
+    }
+
+    @NonNull
+    @Override
+    public Set<String> getReachableMembersLocalNames(
+            @NonNull Integer klass,
+            @NonNull CounterSet counterSet) {
+        Set<String> memberIds = Sets.newHashSet();
+        IdList members = page(klass).members.get(klass & PAGE_MASK);
+        if (members != null) {
+            for (long member : members.toArray()) {
+                if (isReachable((int) member, counterSet)) {
+                    memberIds.add(getMemberId(getName((int) member)));
+                }
+            }
+        }
+
+        return memberIds;
+    }
+
+    @NonNull
+    @Override
+    public Integer getClassForMember(@NonNull Integer member) {
+        int owner = page(member).owners.get(member & PAGE_MASK);
+        if (owner != 0) {
+            return owner - 1;
+        }
+        return intern(AsmUtils.getClassName(getName(member)));
+    }
+
+    @NonNull
+    @Override
+    public Integer getClassReference(@NonNull String className) {
+        checkNotNull(className);
+        return intern(className);
+    }
+
+    @NonNull
+    @Override
+    public Integer addClass(
+            @NonNull String name,
+            @Nullable String superName,
+            @Nullable String[] interfaces,
+            int modifiers,
+            @Nullable File classFile) {
+        int klass = intern(name);
+        int[] interfaceIds = null;
+        if (interfaces != null) {
+            interfaceIds = new int[interfaces.length];
+            for (int i = 0; i < interfaces.length; i++) {
+                interfaceIds[i] = intern(interfaces[i]);
+            }
+        }
+        ClassInfo classInfo = new ClassInfo(
+                classFile, superName != null ? intern(superName) : NO_ID, interfaceIds);
+        Page page = page(klass);
+        page.modifiers.set(klass & PAGE_MASK, modifiers);
+        page.classes.set(klass & PAGE_MASK, classInfo);
+        return klass;
+    }
+
+    @NonNull
+    @Override
+    public Iterable<Integer> getAllProgramClasses() {
+        List<Integer> classes = Lists.newArrayList();
+        for (int klass = 0, size = mSize; klass < size; klass++) {
+            ClassInfo classInfo = getClassInfo(klass);
+            if (classInfo != null && !classInfo.isLibraryClass()) {
+                classes.add(klass);
+            }
+        }
+
+        return classes;
+    }
+
+    @NonNull
+    @Override
+    public String getClassName(@NonNull Integer klass) {
+        return getName(klass);
+    }
+
+    @NonNull
+    @Override
+    public String getMethodNameAndDesc(@NonNull Integer method) {
+        return getMemberId(getName(method));
+    }
+
+    @NonNull
+    @Override
+    public String getFieldName(@NonNull Integer field) {
+        String name = getName(field);
+        return name.substring(name.indexOf('.') + 1, name.indexOf(':'));
+    }
+
+    @NonNull
+    @Override
+    public String getFieldDesc(@NonNull Integer field) {
+        String name = getName(field);
+        return name.substring(name.indexOf(':') + 1);
+    }
+
+    @Override
+    public int getClassModifiers(@NonNull Integer klass) {
+        return page(klass).modifiers.get(klass & PAGE_MASK);
+    }
+
+    @Override
+    public int getMemberModifiers(@NonNull Integer member) {
+        return page(member).modifiers.get(member & PAGE_MASK);
+    }
+
+    @Override
+    public void addAnnotation(@NonNull Integer classOrMember, @NonNull String annotationName) {
+        Preconditions.checkArgument(!annotationName.endsWith(";"));
+        getOrCreate(page(classOrMember).annotations, classOrMember & PAGE_MASK)
+                .add(intern(annotationName));
+    }
+
+    @NonNull
+    @Override
+    public Iterable<String> getAnnotations(@NonNull Integer classOrMember) {
+        IdList annotations = page(classOrMember).annotations.get(classOrMember & PAGE_MASK);
+        if (annotations == null) {
+            return Collections.emptyList();
+        }
+        long[] values = annotations.toArray();
+        List<String> names = Lists.newArrayListWithCapacity(values.length);
+        for (long value : values) {
+            names.add(getName((int) value));
+        }
+        return names;
+    }
+
+    @Override
+    public void addRoots(
+            @NonNull Map<Integer, DependencyType> symbolsToKeep,
+            @NonNull CounterSet counterSet) {
+        getRootsMap(counterSet).putAll(symbolsToKeep);
+    }
+
+    @NonNull
+    @Override
+    public Map<Integer, DependencyType> getRoots(@NonNull CounterSet counterSet) {
+        return ImmutableMap.copyOf(getRootsMap(counterSet));
+    }
+
+    @Override
+    public void clearCounters(@NonNull WaitableExecutor<Void> executor) {
+        for (Page page : mPages) {
+            for (int i = 0; i < PAGE_SIZE; i++) {
+                page.shrinkCounters.set(i, 0);
+                page.multidexCounters.set(i, 0);
+            }
+        }
+    }
+
+    @Override
+    public String getMemberName(@NonNull Integer member) {
+        return getName(member);
+    }
+
+    @Override
+    public boolean isClassKnown(@NonNull Integer klass) {
+        return getClassInfo(klass) != null;
+    }
+
+    /**
+     * Returns the id of the given class or member name, allocating a new one if needed.
+     */
+    private int intern(@NonNull String name) {
+        Integer id = mIds.get(name);
+        if (id != null) {
+            return id;
+        }
+
+        synchronized (mIdLock) {
+            id = mIds.get(name);
+            if (id != null) {
+                return id;
+            }
+
+            int newId = mSize;
+            Page[] pages = mPages;
+            if ((newId >> PAGE_BITS) == pages.length) {
+                pages = Arrays.copyOf(pages, pages.length + 1);
+                pages[pages.length - 1] = new Page();
+                mPages = pages;
+            }
+            pages[newId >> PAGE_BITS].names[newId & PAGE_MASK] = name;
+            mSize = newId + 1;
+            // Published last, such that the page and the name are visible to whoever sees the id.
+            mIds.put(name, newId);
+            return newId;
+        }
+    }
+
+    @NonNull
+    private Page page(int id) {
+        return mPages[id >> PAGE_BITS];
+    }
+
+    @NonNull
+    private String getName(int id) {
+        return page(id).names[id & PAGE_MASK];
+    }
+
+    @Nullable
+    private ClassInfo getClassInfo(int klass) {
+        return page(klass).classes.get(klass & PAGE_MASK);
+    }
+
+    private boolean isDeclaredIn(int member, int klass) {
+        return page(member).owners.get(member & PAGE_MASK) == klass + 1;
+    }
+
+    @NonNull
+    private ConcurrentMap<Integer, DependencyType> getRootsMap(@NonNull CounterSet counterSet) {
+        return counterSet == CounterSet.SHRINK ? mShrinkRoots : mMultidexRoots;
+    }
+
+    @NonNull
+    private static AtomicIntegerArray getCounters(
+            @NonNull Page page,
+            @NonNull CounterSet counterSet) {
+        return counterSet == CounterSet.SHRINK ? page.shrinkCounters : page.multidexCounters;
+    }
+
+    private static int getCounterFlag(@NonNull DependencyType type) {
+        switch (type) {
+            case REQUIRED_CLASS_STRUCTURE:
+            case REQUIRED_CODE_REFERENCE:
+            case REQUIRED_CODE_REFERENCE_REFLECTION:
+                return REQUIRED;
+            case IF_CLASS_KEPT:
+                return IF_CLASS_KEPT;
+            case CLASS_IS_KEPT:
+                return CLASS_IS_KEPT;
+            case SUPERINTERFACE_KEPT:
+                return SUPERINTERFACE_KEPT;
+            case INTERFACE_IMPLEMENTED:
+                return INTERFACE_IMPLEMENTED;
+            default:
+                throw new IllegalArgumentException("Unknown dependency type.");
+        }
+    }
+
+    private static boolean isReachable(int flags) {
+        return (flags & REQUIRED) != 0
+                || (flags & (IF_CLASS_KEPT | CLASS_IS_KEPT)) == (IF_CLASS_KEPT | CLASS_IS_KEPT)
+                || (flags & (SUPERINTERFACE_KEPT | INTERFACE_IMPLEMENTED))
+                        == (SUPERINTERFACE_KEPT | INTERFACE_IMPLEMENTED);
+    }
+
+    private static long encodeDependency(int target, @NonNull DependencyType type) {
+        return ((long) target << 8) | type.ordinal();
+    }
+
+    private static int getTarget(long dependency) {
+        return (int) (dependency >>> 8);
+    }
+
+    @NonNull
+    private static DependencyType getType(long dependency) {
+        return DEPENDENCY_TYPES[(int) (dependency & 0xff)];
+    }
+
+    @NonNull
+    private static IdList getOrCreate(@NonNull AtomicReferenceArray<IdList> lists, int index) {
+        IdList list = lists.get(index);
+        if (list == null) {
+            lists.compareAndSet(index, null, new IdList());
+            list = lists.get(index);
+        }
+        return list;
+    }
+
+    private static void writeString(@NonNull DataOutputStream out, @NonNull String string)
+            throws IOException {
+        byte[] bytes = string.getBytes(Charsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    @NonNull
+    private static String readString(@NonNull ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, Charsets.UTF_8);
+    }
+
+    @Nullable
+    private static String readNullableString(@NonNull ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, Charsets.UTF_8);
+    }
+
+    private static void writeRoots(
+            @NonNull DataOutputStream out,
+            @NonNull Map<Integer, DependencyType> roots) throws IOException {
+        // Copied first, since the map is concurrent.
+        Map<Integer, DependencyType> copy = ImmutableMap.copyOf(roots);
+        out.writeInt(copy.size());
+        for (Map.Entry<Integer, DependencyType> entry : copy.entrySet()) {
+            out.writeInt(entry.getKey());
+            out.writeByte(entry.getValue().ordinal());
+        }
+    }
+
+    private static void readRoots(
+            @NonNull ByteBuffer buffer,
+            @NonNull Map<Integer, DependencyType> roots) {
+        for (int i = 0, n = buffer.getInt(); i < n; i++) {
+            int id = buffer.getInt();
+            roots.put(id, DEPENDENCY_TYPES[buffer.get()]);
+        }
+    }
+
+    @NonNull
+    private static String getFullMethodName(String className, String methodName, String typeDesc) {
+        return className + "." + methodName + ":" + typeDesc;
+    }
+
+    @NonNull
+    private static String getMemberId(String member) {
+        return member.substring(member.indexOf('.') + 1);
+    }
+
+    @NonNull
+    private static File getStateFile(File dir) {
+        return new File(dir, "shrinker.bin");
+    }
+
+    private static boolean isMethod(String member) {
+        return member.contains("(");
+    }
+
+    /** The data of {@link #PAGE_SIZE} consecutive ids. */
+    private static final class Page {
+        final String[] names = new String[PAGE_SIZE];
+
+        /** For members, the id of the class which declares them plus one, 0 otherwise. */
+        final AtomicIntegerArray owners = new AtomicIntegerArray(PAGE_SIZE);
+
+        final AtomicIntegerArray modifiers = new AtomicIntegerArray(PAGE_SIZE);
+
+        final AtomicIntegerArray shrinkCounters = new AtomicIntegerArray(PAGE_SIZE);
+
+        final AtomicIntegerArray multidexCounters = new AtomicIntegerArray(PAGE_SIZE);
+
+        final AtomicReferenceArray<ClassInfo> classes =
+                new AtomicReferenceArray<ClassInfo>(PAGE_SIZE);
+
+        /** For classes, the ids of the members they declare. */
+        final AtomicReferenceArray<IdList> members = new AtomicReferenceArray<IdList>(PAGE_SIZE);
+
+        /** The dependencies, see {@link #encodeDependency(int, DependencyType)}. */
+        final AtomicReferenceArray<IdList> dependencies =
+                new AtomicReferenceArray<IdList>(PAGE_SIZE);
+
+        /** The ids of the annotation classes. */
+        final AtomicReferenceArray<IdList> annotations =
+                new AtomicReferenceArray<IdList>(PAGE_SIZE);
+    }
+
+    /**
+     * Set of ids or encoded dependencies, in insertion order. Once a list holds more than a few
+     * values, the positions of its values are also kept in a hash table, such that adding a value
+     * does not scan the whole list.
+     */
+    private static final class IdList {
+        private static final int MAX_UNINDEXED_SIZE = 8;
+
+        private long[] mValues = new long[4];
+        private int mSize;
+
+        /** Open addressing table of the positions of the values plus one, 0 for free slots. */
+        @Nullable
+        private int[] mIndex;
+
+        synchronized void add(long value) {
+            if (contains(value)) {
+                return;
+            }
+            if (mSize == mValues.length) {
+                mValues = Arrays.copyOf(mValues, mSize * 2);
+            }
+            mValues[mSize++] = value;
+            if (mSize > MAX_UNINDEXED_SIZE) {
+                if (mIndex == null || mSize * 2 > mIndex.length) {
+                    rebuildIndex();
+                } else {
+                    insert(mSize - 1);
+                }
+            }
+        }
+
+        /** Removes the first {@code count} values of the given array, in one pass. */
+        synchronized void removeAll(@NonNull long[] values, int count) {
+            if (count == 0) {
+                return;
+            }
+            long[] removed = Arrays.copyOf(values, count);
+            Arrays.sort(removed);
+            int size = 0;
+            for (int i = 0; i < mSize; i++) {
+                if (Arrays.binarySearch(removed, mValues[i]) < 0) {
+                    mValues[size++] = mValues[i];
+                }
+            }
+            mSize = size;
+            mIndex = null;
+            if (mSize > MAX_UNINDEXED_SIZE) {
+                rebuildIndex();
+            }
+        }
+
+        @NonNull
+        synchronized long[] toArray() {
+            return Arrays.copyOf(mValues, mSize);
+        }
+
+        private boolean contains(long value) {
+            if (mIndex == null) {
+                for (int i = 0; i < mSize; i++) {
+                    if (mValues[i] == value) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            int mask = mIndex.length - 1;
+            for (int slot = hash(value) & mask; mIndex[slot] != 0; slot = (slot + 1) & mask) {
+                if (mValues[mIndex[slot] - 1] == value) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void rebuildIndex() {
+            mIndex = new int[Integer.highestOneBit(mSize) * 4];
+            for (int i = 0; i < mSize; i++) {
+                insert(i);
+            }
+        }
+
+        private void insert(int position) {
+            int[] index = mIndex;
+            assert index != null;
+            int mask = index.length - 1;
+            int slot = hash(mValues[position]) & mask;
+            while (index[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            index[slot] = position + 1;
+        }
+
+        private static int hash(long value) {
+            int hash = (int) (value ^ (value >>> 32)) * 0x9E3779B9;
+            return hash ^ (hash >>> 16);
+        }
+    }
+
+    private static final class ClassInfo {
+        @Nullable
+        final File classFile;
+
+        /** The id of the superclass, or {@link #NO_ID}. */
+        final int superclass;
+
+        @Nullable
+        final int[] interfaces;
+
+        private ClassInfo(
+                @Nullable File classFile,
+                int superclass,
+                @Nullable int[] interfaces) {
+            this.classFile = classFile;
+            this.superclass = superclass;
+            this.interfaces = interfaces;
+        }
+
+        boolean isLibraryClass() {
+            return classFile == null;
+        }
+    }
+}
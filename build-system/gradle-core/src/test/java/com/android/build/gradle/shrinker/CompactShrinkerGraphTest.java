@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.build.gradle.shrinker;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.android.build.gradle.shrinker.AbstractShrinker.CounterSet;
+import com.android.build.gradle.shrinker.IncrementalShrinker.IncrementalRunImpossibleException;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Files;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.objectweb.asm.Opcodes;
+
+import java.io.File;
+
+/**
+ * Tests for {@link CompactShrinkerGraph}.
+ */
+public class CompactShrinkerGraphTest {
+
+    @Rule
+    public TemporaryFolder tmpDir = new TemporaryFolder();
+
+    private File mStateDir;
+
+    private File mClassFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mStateDir = tmpDir.newFolder("incremental");
+        mClassFile = tmpDir.newFile("Main.class");
+    }
+
+    @Test
+    public void reachability() throws Exception {
+        CompactShrinkerGraph graph = CompactShrinkerGraph.empty(mStateDir);
+        Integer main = graph.addClass("test/Main", "java/lang/Object", null, 0, mClassFile);
+        Integer method = graph.addMember(main, "main", "()V", Opcodes.ACC_PUBLIC);
+
+        assertFalse(graph.isReachable(method, CounterSet.SHRINK));
+        assertFalse(graph.incrementAndCheck(method, DependencyType.IF_CLASS_KEPT, CounterSet.SHRINK));
+        assertTrue(graph.incrementAndCheck(method, DependencyType.CLASS_IS_KEPT, CounterSet.SHRINK));
+        assertFalse(graph.incrementAndCheck(method, DependencyType.REQUIRED_CODE_REFERENCE, CounterSet.SHRINK));
+        assertTrue(graph.isReachable(method, CounterSet.SHRINK));
+        assertFalse(graph.isReachable(method, CounterSet.LEGACY_MULTIDEX));
+
+        assertThat(graph.getReachableMembersLocalNames(main, CounterSet.SHRINK))
+                .containsExactly("main:()V");
+        assertThat(graph.getReachableClasses(CounterSet.SHRINK)).isEmpty();
+    }
+
+    @Test
+    public void references() throws Exception {
+        CompactShrinkerGraph graph = CompactShrinkerGraph.empty(mStateDir);
+        Integer main = graph.addClass("test/Main", "test/Base", null, 0, mClassFile);
+        Integer field = graph.addMember(main, "sField", "I", Opcodes.ACC_STATIC);
+        Integer method = graph.addMember(main, "run", "()V", 0);
+
+        assertEquals(main, graph.getClassReference("test/Main"));
+        assertEquals(field, graph.getMemberReference("test/Main", "sField", "I"));
+        assertEquals(main, graph.getClassForMember(method));
+        assertThat(graph.getMethods(main)).containsExactly(method);
+        assertThat(graph.getFields(main)).containsExactly(field);
+        assertEquals("sField", graph.getFieldName(field));
+        assertEquals("I", graph.getFieldDesc(field));
+        assertEquals("run:()V", graph.getMethodNameAndDesc(method));
+        assertEquals(Opcodes.ACC_STATIC, graph.getMemberModifiers(field));
+
+        // The superclass was never added.
+        assertFalse(graph.isClassKnown(graph.getClassReference("test/Base")));
+        assertTrue(graph.isLibraryClass(graph.getClassReference("test/Base")));
+        try {
+            graph.getSuperclass(main);
+            throw new AssertionError("Expected a ClassLookupException");
+        } catch (ClassLookupException e) {
+            // expected
+        }
+
+        Integer other = graph.addClass("test/Other", null, null, 0, mClassFile);
+        assertNull(graph.findMatchingMethod(other, method));
+        Integer otherMethod = graph.addMember(other, "run", "()V", 0);
+        assertEquals(otherMethod, graph.findMatchingMethod(other, method));
+    }
+
+    @Test
+    public void manyDependencies() throws Exception {
+        CompactShrinkerGraph graph = CompactShrinkerGraph.empty(mStateDir);
+        Integer main = graph.addClass("test/Main", "java/lang/Object", null, 0, mClassFile);
+        Integer method = graph.addMember(main, "main", "()V", Opcodes.ACC_PUBLIC);
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < 1000; i++) {
+                Integer target = graph.getClassReference("test/Target" + i);
+                graph.addDependency(method, target, DependencyType.REQUIRED_CODE_REFERENCE);
+                graph.addDependency(method, target, DependencyType.REQUIRED_CLASS_STRUCTURE);
+            }
+        }
+        assertEquals(2000, graph.getDependencies(method).size());
+
+        graph.removeAllCodeDependencies(method);
+        assertEquals(1000, graph.getDependencies(method).size());
+        for (Dependency<Integer> dependency : graph.getDependencies(method)) {
+            assertEquals(DependencyType.REQUIRED_CLASS_STRUCTURE, dependency.type);
+        }
+        graph.addDependency(method, graph.getClassReference("test/Target0"),
+                DependencyType.REQUIRED_CLASS_STRUCTURE);
+        assertEquals(1000, graph.getDependencies(method).size());
+    }
+
+    @Test
+    public void saveAndRead() throws Exception {
+        CompactShrinkerGraph graph = CompactShrinkerGraph.empty(mStateDir);
+        graph.addClass("java/lang/Object", null, null, Opcodes.ACC_PUBLIC, null);
+        Integer main = graph.addClass(
+                "test/Main",
+                "java/lang/Object",
+                new String[] {"java/lang/Runnable"},
+                Opcodes.ACC_PUBLIC,
+                mClassFile);
+        Integer run = graph.addMember(main, "run", "()V", Opcodes.ACC_PUBLIC);
+        Integer init = graph.addMember(main, "<init>", "()V", Opcodes.ACC_PUBLIC);
+        graph.addDependency(run, init, DependencyType.REQUIRED_CODE_REFERENCE);
+        graph.addDependency(run, main, DependencyType.REQUIRED_CLASS_STRUCTURE);
+        graph.addAnnotation(run, "test/Keep");
+        graph.addRoots(ImmutableMap.of(run, DependencyType.REQUIRED_CLASS_STRUCTURE),
+                CounterSet.SHRINK);
+        graph.incrementAndCheck(main, DependencyType.REQUIRED_CLASS_STRUCTURE, CounterSet.SHRINK);
+        graph.incrementAndCheck(run, DependencyType.REQUIRED_CLASS_STRUCTURE, CounterSet.SHRINK);
+        graph.saveState();
+
+        CompactShrinkerGraph loaded = CompactShrinkerGraph.readFromDir(mStateDir);
+        Integer loadedMain = loaded.getClassReference("test/Main");
+        Integer loadedRun = loaded.getMemberReference("test/Main", "run", "()V");
+        Integer loadedInit = loaded.getMemberReference("test/Main", "<init>", "()V");
+        assertTrue(loaded.isClassKnown(loadedMain));
+        assertEquals(mClassFile, loaded.getSourceFile(loadedMain));
+        assertEquals(Opcodes.ACC_PUBLIC, loaded.getClassModifiers(loadedMain));
+        assertEquals("java/lang/Object", loaded.getClassName(loaded.getSuperclass(loadedMain)));
+        assertEquals(1, loaded.getInterfaces(loadedMain).length);
+        assertEquals("java/lang/Runnable", loaded.getClassName(loaded.getInterfaces(loadedMain)[0]));
+        assertThat(loaded.getMethods(loadedMain)).containsExactly(loadedRun, loadedInit);
+        assertThat(loaded.getDependencies(loadedRun)).containsExactly(
+                new Dependency<Integer>(loadedInit, DependencyType.REQUIRED_CODE_REFERENCE),
+                new Dependency<Integer>(loadedMain, DependencyType.REQUIRED_CLASS_STRUCTURE));
+        assertThat(loaded.getAnnotations(loadedRun)).containsExactly("test/Keep");
+        assertEquals(ImmutableMap.of(loadedRun, DependencyType.REQUIRED_CLASS_STRUCTURE),
+                loaded.getRoots(CounterSet.SHRINK));
+        assertThat(loaded.getReachableClasses(CounterSet.SHRINK)).containsExactly(loadedMain);
+        assertThat(loaded.getAllProgramClasses()).containsExactly(loadedMain);
+
+        loaded.removeAllCodeDependencies(loadedRun);
+        assertThat(loaded.getDependencies(loadedRun)).containsExactly(
+                new Dependency<Integer>(loadedMain, DependencyType.REQUIRED_CLASS_STRUCTURE));
+    }
+
+    @Test(expected = IncrementalRunImpossibleException.class)
+    public void readOtherFormat() throws Exception {
+        Files.write(new byte[] {(byte) 0xac, (byte) 0xed, 0, 5}, new File(mStateDir, "shrinker.bin"));
+        CompactShrinkerGraph.readFromDir(mStateDir);
+    }
+}
@@ -37,11 +37,11 @@ import java.util.Collections;
  */
 public class FullRunShrinkerTest extends AbstractShrinkerTest {
 
-    private FullRunShrinker<String> mShrinker;
+    private FullRunShrinker<Integer> mShrinker;
 
     @Before
     public void createShrinker() throws Exception {
-        mShrinker = new FullRunShrinker<String>(
+        mShrinker = new FullRunShrinker<Integer>(
                 new WaitableExecutor<Void>(),
                 buildGraph(),
                 getPlatformJars(),
@@ -49,8 +49,8 @@ public class FullRunShrinkerTest extends AbstractShrinkerTest {
     }
 
     @NonNull
-    private ShrinkerGraph<String> buildGraph() throws IOException {
-        return JavaSerializationShrinkerGraph.empty(mIncrementalDir);
+    private ShrinkerGraph<Integer> buildGraph() throws IOException {
+        return CompactShrinkerGraph.empty(mIncrementalDir);
     }
 
     @Test
@@ -50,16 +50,16 @@ import java.util.Map;
  */
 public class IncrementalShrinkerTest extends AbstractShrinkerTest {
 
-    private FullRunShrinker<String> mFullRunShrinker;
+    private FullRunShrinker<Integer> mFullRunShrinker;
 
     @Rule
     public ExpectedException mException = ExpectedException.none();
 
     @Before
     public void createShrinker() throws Exception {
-        mFullRunShrinker = new FullRunShrinker<String>(
+        mFullRunShrinker = new FullRunShrinker<Integer>(
                 new WaitableExecutor<Void>(),
-                JavaSerializationShrinkerGraph.empty(mIncrementalDir),
+                CompactShrinkerGraph.empty(mIncrementalDir),
                 getPlatformJars(),
                 mShrinkerLogger);
     }
@@ -459,11 +459,9 @@ public class IncrementalShrinkerTest extends AbstractShrinkerTest {
     }
 
     private void incrementalRun(Map<String, Status> changes) throws Exception {
-        IncrementalShrinker<String> incrementalShrinker = new IncrementalShrinker<String>(
+        IncrementalShrinker<Integer> incrementalShrinker = new IncrementalShrinker<Integer>(
                 new WaitableExecutor<Void>(),
-                JavaSerializationShrinkerGraph.readFromDir(
-                        mIncrementalDir,
-                        this.getClass().getClassLoader()),
+                CompactShrinkerGraph.readFromDir(mIncrementalDir),
                 mShrinkerLogger);
 
         Map<File, Status> files = Maps.newHashMap();
@@ -239,18 +239,23 @@ public class BaseComponentModelPlugin implements Plugin<Project> {
 
         project.getGradle().getTaskGraph().whenReady(new Closure<Void>(this, this) {
             public void doCall(TaskExecutionGraph taskGraph) {
+                File sharedCacheDir = AndroidGradleOptions.getSharedPreProcessCacheDir(project);
                 for (Task task : taskGraph.getAllTasks()) {
                     if (task instanceof TransformTask) {
                         if (((TransformTask) task).getTransform() instanceof DexTransform) {
                             PreDexCache.getCache().load(project.getRootProject()
                                     .file(String.valueOf(project.getRootProject().getBuildDir())
                                             + "/" + FD_INTERMEDIATES + "/dex-cache/cache.xml"));
+                            PreDexCache.getCache().setSharedStore(sharedCacheDir == null
+                                    ? null : new File(sharedCacheDir, "dex"));
                             break;
                         }
                     } else if (task instanceof JillTask) {
                         JackConversionCache.getCache().load(project.getRootProject()
                                 .file(String.valueOf(project.getRootProject().getBuildDir())
                                         + "/" + FD_INTERMEDIATES + "/jack-cache/cache.xml"));
+                        JackConversionCache.getCache().setSharedStore(sharedCacheDir == null
+                                ? null : new File(sharedCacheDir, "jack"));
                         break;
                     }
                 }
@@ -412,18 +412,25 @@ public abstract class BasePlugin {
                 new TaskExecutionGraphListener() {
                     @Override
                     public void graphPopulated(TaskExecutionGraph taskGraph) {
+                        File sharedCacheDir =
+                                AndroidGradleOptions.getSharedPreProcessCacheDir(project);
                         for (Task task : taskGraph.getAllTasks()) {
                             if (task instanceof TransformTask) {
                                 if (((TransformTask) task).getTransform() instanceof DexTransform) {
                                     PreDexCache.getCache().load(
                                             new File(project.getRootProject().getBuildDir(),
                                                     FD_INTERMEDIATES + "/dex-cache/cache.xml"));
+                                    PreDexCache.getCache().setSharedStore(sharedCacheDir == null
+                                            ? null : new File(sharedCacheDir, "dex"));
                                     break;
                                 }
                             } else if (task instanceof JillTask) {
                                 JackConversionCache.getCache().load(
                                         new File(project.getRootProject().getBuildDir(),
                                                 FD_INTERMEDIATES + "/jack-cache/cache.xml"));
+                                JackConversionCache.getCache().setSharedStore(
+                                        sharedCacheDir == null
+                                                ? null : new File(sharedCacheDir, "jack"));
                                 break;
                             }
                         }
@@ -72,6 +72,21 @@ public class PositionXmlParser {
     private static final String LOAD_EXTERNAL_DTD =
             "http://apache.org/xml/features/nonvalidating/load-external-dtd";; //$NON-NLS-1$
 
+    /**
+     * The SAX parsers of each thread, without and with namespace support. Parsers are
+     * expensive to create and are reset and reused by the next parse on the same thread.
+     */
+    private static final ThreadLocal<SAXParser[]> sParsers = new ThreadLocal<SAXParser[]>() {
+        @Override
+        protected SAXParser[] initialValue() {
+            return new SAXParser[2];
+        }
+    };
+
+    /** The document builder of each thread, used to create the parsed documents */
+    private static final ThreadLocal<DocumentBuilder> sDocumentBuilder =
+            new ThreadLocal<DocumentBuilder>();
+
     /**
      * Parses the XML content from the given input stream.
      *
@@ -163,23 +178,19 @@ public class PositionXmlParser {
                                   boolean checkDtd)
             throws ParserConfigurationException, SAXException, IOException {
         try {
-            SAXParserFactory factory = SAXParserFactory.newInstance();
-            if (checkDtd) {
-                factory.setFeature(NAMESPACE_FEATURE, true);
-                factory.setFeature(NAMESPACE_PREFIX_FEATURE, true);
-                factory.setFeature(PROVIDE_XMLNS_URIS, true);
-            } else {
-                factory.setFeature(LOAD_EXTERNAL_DTD, false);
+            SAXParser parser = getParser(checkDtd);
+            try {
+                DomBuilder handler = new DomBuilder(xml);
+                XMLReader xmlReader = parser.getXMLReader();
+                xmlReader.setProperty(
+                        "http://xml.org/sax/properties/lexical-handler",
+                        handler
+                );
+                parser.parse(input, handler);
+                return handler.getDocument();
+            } finally {
+                parser.reset();
             }
-            SAXParser parser = factory.newSAXParser();
-            DomBuilder handler = new DomBuilder(xml);
-            XMLReader xmlReader = parser.getXMLReader();
-            xmlReader.setProperty(
-                    "http://xml.org/sax/properties/lexical-handler",
-                    handler
-            );
-            parser.parse(input, handler);
-            return handler.getDocument();
         } catch (SAXException e) {
             if (checkBom && e.getMessage().contains("Content is not allowed in prolog")) {
                 // Byte order mark in the string? Skip it. There are many markers
@@ -192,6 +203,42 @@ public class PositionXmlParser {
         }
     }
 
+    /** Returns the SAX parser of the current thread for the given configuration */
+    @NonNull
+    private static SAXParser getParser(boolean checkDtd)
+            throws ParserConfigurationException, SAXException {
+        SAXParser[] parsers = sParsers.get();
+        int index = checkDtd ? 1 : 0;
+        SAXParser parser = parsers[index];
+        if (parser == null) {
+            SAXParserFactory factory = SAXParserFactory.newInstance();
+            if (checkDtd) {
+                factory.setFeature(NAMESPACE_FEATURE, true);
+                factory.setFeature(NAMESPACE_PREFIX_FEATURE, true);
+                factory.setFeature(PROVIDE_XMLNS_URIS, true);
+            } else {
+                factory.setFeature(LOAD_EXTERNAL_DTD, false);
+            }
+            parser = factory.newSAXParser();
+            parsers[index] = parser;
+        }
+        return parser;
+    }
+
+    /** Returns the document builder of the current thread */
+    @NonNull
+    private static DocumentBuilder getDocumentBuilder() throws ParserConfigurationException {
+        DocumentBuilder builder = sDocumentBuilder.get();
+        if (builder == null) {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setNamespaceAware(true);
+            factory.setValidating(false);
+            builder = factory.newDocumentBuilder();
+            sDocumentBuilder.set(builder);
+        }
+        return builder;
+    }
+
     /**
      * Returns the String corresponding to the given byte array of XML data
      * (with unknown encoding). This method attempts to guess the encoding based
@@ -376,8 +423,17 @@ public class PositionXmlParser {
         //  -- Second, it uses that, as well as the original XML text, to search
         //     within the node range for an exact text match on the attribute name
         //     and if found uses that as the exact node offsets instead.
+        // The exact range of the attributes is normally recorded while parsing, by
+        // scanning the open tag of each element; the search is only needed for the
+        // ranges within attributes.
         if (node instanceof Attr) {
             Attr attr = (Attr) node;
+            if (start == -1 && end == -1) {
+                Position pos = (Position) attr.getUserData(POS_KEY);
+                if (pos != null) {
+                    return pos;
+                }
+            }
             Position pos = (Position) attr.getOwnerElement().getUserData(POS_KEY);
             if (pos != null) {
                 int startOffset = pos.getOffset();
@@ -541,12 +597,7 @@ public class PositionXmlParser {
 
         private DomBuilder(String xml) throws ParserConfigurationException {
             mXml = xml;
-
-            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-            factory.setNamespaceAware(true);
-            factory.setValidating(false);
-            DocumentBuilder docBuilder = factory.newDocumentBuilder();
-            mDocument = docBuilder.newDocument();
+            mDocument = getDocumentBuilder().newDocument();
             mDocument.setUserData(CONTENT_KEY, xml, null);
         }
 
@@ -592,7 +643,11 @@ public class PositionXmlParser {
                 // the beginning since pos.offset will typically point to the first character
                 // AFTER the element open tag, which could be a closing tag or a child open
                 // tag
-                element.setUserData(POS_KEY, findOpeningTag(pos), null);
+                Position openingTag = findOpeningTag(pos);
+                element.setUserData(POS_KEY, openingTag, null);
+                if (attributes.getLength() > 0 && openingTag != pos) {
+                    recordAttributePositions(element, openingTag, pos.getOffset());
+                }
                 mStack.add(element);
             } catch (Exception t) {
                 throw new SAXException(t);
@@ -641,6 +696,89 @@ public class PositionXmlParser {
             }
         }
 
+        /**
+         * Scans the open tag of the given element, between the given position of its
+         * {@code <} and the given end offset, and records the range of each attribute,
+         * from the start of its name to the end of its quoted value, on the attribute
+         * nodes of the element.
+         */
+        private void recordAttributePositions(@NonNull Element element,
+                @NonNull Position openingTag, int endOffset) {
+            String xml = mXml;
+            int line = openingTag.getLine();
+            int column = openingTag.getColumn();
+            int offset = openingTag.getOffset();
+            endOffset = Math.min(endOffset, xml.length());
+
+            // Skip the < and the tag name
+            while (offset < endOffset && !isTagDelimiter(xml.charAt(offset))) {
+                offset++;
+                column++;
+            }
+
+            while (offset < endOffset) {
+                char c = xml.charAt(offset);
+                if (c == '\n') {
+                    line++;
+                    column = 0;
+                    offset++;
+                    continue;
+                } else if (Character.isWhitespace(c)) {
+                    column++;
+                    offset++;
+                    continue;
+                } else if (c == '/' || c == '>') {
+                    return;
+                }
+
+                // Attribute name
+                int nameStart = offset;
+                while (offset < endOffset && !isTagDelimiter(xml.charAt(offset))
+                        && xml.charAt(offset) != '=') {
+                    offset++;
+                }
+                String name = xml.substring(nameStart, offset);
+                int startLine = line;
+                int startColumn = column;
+                column += offset - nameStart;
+
+                // =, and the quoted value, possibly spanning lines
+                char quote = 0;
+                while (offset < endOffset) {
+                    c = xml.charAt(offset++);
+                    if (c == '\n') {
+                        line++;
+                        column = 0;
+                    } else {
+                        column++;
+                    }
+                    if (quote == 0) {
+                        if (c == '"' || c == '\'') {
+                            quote = c;
+                        } else if (c != '=' && !Character.isWhitespace(c)) {
+                            return; // Not well formed: leave it to the text search
+                        }
+                    } else if (c == quote) {
+                        break;
+                    }
+                }
+
+                Attr attr = element.getAttributeNode(name);
+                if (attr != null) {
+                    Position position = new Position(startLine, startColumn, nameStart);
+                    // Like the text search, the end column assumes the attribute is
+                    // on a single line
+                    position.setEnd(new Position(startLine,
+                            startColumn + offset - nameStart, offset));
+                    attr.setUserData(POS_KEY, position, null);
+                }
+            }
+        }
+
+        private static boolean isTagDelimiter(char c) {
+            return Character.isWhitespace(c) || c == '/' || c == '>';
+        }
+
         /**
          * Find opening tags from the current position.
          * < cannot appear in attribute values or anywhere else within
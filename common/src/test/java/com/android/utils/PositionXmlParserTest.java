@@ -35,6 +35,7 @@ import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @SuppressWarnings({"javadoc", "IOResourceOpenedButNotSafelyClosed"})
 public class PositionXmlParserTest extends TestCase {
@@ -476,6 +477,79 @@ public class PositionXmlParserTest extends TestCase {
     }
 
 
+    public void testAttributePositions() throws Exception {
+        String xml = ""
+                + "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n"
+                + "<LinearLayout xmlns:android=\"http://schemas.android.com/apk/res/android\">\n"
+                + "    <Button android:id = '@+id/button1' android:text=\"a > 'b'\"\n"
+                + "        android:contentDescription=\"first\n"
+                + "second\" tag=\"t\"/>\n"
+                + "</LinearLayout>\n";
+        Document document = PositionXmlParser.parse(xml);
+        Element button = (Element) document.getElementsByTagName("Button").item(0);
+        final String ANDROID_URI = "http://schemas.android.com/apk/res/android";
+
+        SourcePosition position = PositionXmlParser.getPosition(
+                button.getAttributeNodeNS(ANDROID_URI, "id"));
+        assertEquals("android:id = '@+id/button1'",
+                xml.substring(position.getStartOffset(), position.getEndOffset()));
+        assertEquals(2, position.getStartLine());
+        assertEquals(12, position.getStartColumn());
+
+        position = PositionXmlParser.getPosition(button.getAttributeNodeNS(ANDROID_URI, "text"));
+        assertEquals("android:text=\"a > 'b'\"",
+                xml.substring(position.getStartOffset(), position.getEndOffset()));
+
+        position = PositionXmlParser.getPosition(
+                button.getAttributeNodeNS(ANDROID_URI, "contentDescription"));
+        assertEquals("android:contentDescription=\"first\nsecond\"",
+                xml.substring(position.getStartOffset(), position.getEndOffset()));
+        assertEquals(3, position.getStartLine());
+        assertEquals(8, position.getStartColumn());
+
+        position = PositionXmlParser.getPosition(button.getAttributeNode("tag"));
+        assertEquals("tag=\"t\"",
+                xml.substring(position.getStartOffset(), position.getEndOffset()));
+        assertEquals(4, position.getStartLine());
+        assertEquals(8, position.getStartColumn());
+    }
+
+    public void testParseOnSeveralThreads() throws Exception {
+        final String xml = ""
+                + "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n"
+                + "<LinearLayout xmlns:android=\"http://schemas.android.com/apk/res/android\"\n"
+                + "    android:orientation=\"vertical\" />\n";
+        final int expectedOffset = xml.indexOf("android:orientation");
+        final AtomicInteger failures = new AtomicInteger();
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < 50; j++) {
+                            Document document = PositionXmlParser.parse(xml);
+                            Attr attr = document.getDocumentElement().getAttributeNodeNS(
+                                    "http://schemas.android.com/apk/res/android",
+                                    "orientation");
+                            if (PositionXmlParser.getPosition(attr).getStartOffset()
+                                    != expectedOffset) {
+                                failures.incrementAndGet();
+                            }
+                        }
+                    } catch (Exception e) {
+                        failures.incrementAndGet();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, failures.get());
+    }
+
     public void testTagNamespace() throws Exception {
 
         final String NAMESPACE_URL = "http://example.org/path";
@@ -22,10 +22,12 @@ import com.android.ddmlib.log.LogReceiver;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.UnsupportedEncodingException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.util.concurrent.TimeUnit;
 
@@ -33,15 +35,15 @@ import java.util.concurrent.TimeUnit;
  * Helper class to handle requests and connections to adb.
  * <p/>{@link AndroidDebugBridge} is the public API to connection to adb, while {@link AdbHelper}
  * does the low level stuff.
- * <p/>This currently uses spin-wait non-blocking I/O. A Selector would be more efficient,
- * but seems like overkill for what we're doing here.
+ * <p/>This uses non-blocking I/O, and waits for the channels to be ready through a
+ * {@link ChannelWaiter}.
  */
 final class AdbHelper {
 
     // public static final long kOkay = 0x59414b4fL;
     // public static final long kFail = 0x4c494146L;
 
-    static final int WAIT_TIME = 5; // spin-wait sleep, in ms
+    static final int CANCEL_CHECK_TIME = 100; // how often long running services check for cancellation, in ms
 
     static final String DEFAULT_ENCODING = "ISO-8859-1"; //$NON-NLS-1$
 
@@ -416,7 +418,8 @@ final class AdbHelper {
      *            wait forever for command output and never throw.
      * @param maxTimeUnits Units for non-zero {@code maxTimeToOutputResponse} values.
      * @param is a optional {@link InputStream} to be streamed up after invoking the command
-     *           and before retrieving the response.
+     *           and before retrieving the response. Streaming it is not subject to a timeout,
+     *           but stops if <var>rcvr</var> is cancelled.
      * @throws TimeoutException in case of timeout on the connection when sending the command.
      * @throws AdbCommandRejectedException if adb rejects the command
      * @throws ShellCommandUnresponsiveException in case the shell command doesn't send any output
@@ -461,26 +464,21 @@ final class AdbHelper {
 
             byte[] data = new byte[16384];
 
-            // stream the input file if present.
+            // stream the input file if present. As before the input is not subject to a timeout,
+            // since the command may take a long time to consume it, but it can be cancelled.
             if (is != null) {
                 int read;
                 while ((read = is.read(data)) != -1) {
-                    ByteBuffer buf = ByteBuffer.wrap(data, 0, read);
-                    int written = 0;
-                    while (buf.hasRemaining()) {
-                        written += adbChan.write(buf);
-                    }
-                    if (written != read) {
-                        Log.e("ddms",
-                                "ADB write inconsistency, wrote " + written + "expected " + read);
-                        throw new AdbCommandRejectedException("write failed");
+                    if (!writeInput(adbChan, ByteBuffer.wrap(data, 0, read), rcvr)) {
+                        Log.v("ddms", "execute: cancelled");
+                        return;
                     }
                 }
             }
 
             ByteBuffer buf = ByteBuffer.wrap(data);
             buf.clear();
-            long timeToResponseCount = 0;
+            long outputDeadline = getDeadline(maxTimeToOutputMs);
             while (true) {
                 int count;
 
@@ -497,22 +495,18 @@ final class AdbHelper {
                             + count);
                     break;
                 } else if (count == 0) {
-                    try {
-                        int wait = WAIT_TIME * 5;
-                        timeToResponseCount += wait;
-                        if (maxTimeToOutputMs > 0 && timeToResponseCount > maxTimeToOutputMs) {
-                            throw new ShellCommandUnresponsiveException();
-                        }
-                        Thread.sleep(wait);
-                    }
-                    catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                        // Throw a timeout exception in place of interrupted exception to avoid API changes.
-                        throw new TimeoutException("executeRemoteCommand interrupted with immediate timeout via interruption.");
+                    long wait = CANCEL_CHECK_TIME;
+                    long remaining = getRemainingTime(maxTimeToOutputMs, outputDeadline);
+                    if (remaining < 0) {
+                        throw new ShellCommandUnresponsiveException();
+                    } else if (remaining > 0) {
+                        wait = Math.min(wait, remaining);
                     }
+                    waitFor(adbChan, SelectionKey.OP_READ, wait, "executeRemoteCommand");
                 } else {
-                    // reset timeout
-                    timeToResponseCount = 0;
+                    // maxTimeToOutputResponse is the time allowed between two outputs, so the
+                    // deadline moves with each output.
+                    outputDeadline = getDeadline(maxTimeToOutputMs);
 
                     // send data to receiver if present
                     if (rcvr != null) {
@@ -589,14 +583,7 @@ final class AdbHelper {
                 if (count < 0) {
                     break;
                 } else if (count == 0) {
-                    try {
-                        Thread.sleep(WAIT_TIME * 5);
-                    }
-                    catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                        // Throw a timeout exception in place of interrupted exception to avoid API changes.
-                        throw new TimeoutException("runLogService interrupted with immediate timeout via interruption.");
-                    }
+                    waitFor(adbChan, SelectionKey.OP_READ, CANCEL_CHECK_TIME, "runLogService");
                 } else {
                     if (rcvr != null) {
                         rcvr.parseNewData(buf.array(), buf.arrayOffset(), buf.position());
@@ -739,9 +726,8 @@ final class AdbHelper {
     /**
      * Reads from the socket until the array is filled, the optional length
      * is reached, or no more data is coming (because the socket closed or the
-     * timeout expired). After "timeout" milliseconds since the
-     * previous successful read, this will return whether or not new data has
-     * been found.
+     * timeout expired). The timeout applies to the whole read, not to each
+     * chunk of data.
      *
      * @param chan the opened socket to read from. It must be in non-blocking
      *      mode for timeouts to work
@@ -750,8 +736,21 @@ final class AdbHelper {
      * @param timeout The timeout value in ms. A timeout of zero means "wait forever".
      */
     static void read(SocketChannel chan, byte[] data, int length, long timeout) throws TimeoutException, IOException {
-        ByteBuffer buf = ByteBuffer.wrap(data, 0, length != -1 ? length : data.length);
-        int numWaits = 0;
+        read(chan, ByteBuffer.wrap(data, 0, length != -1 ? length : data.length), timeout);
+    }
+
+    /**
+     * Reads from the socket until the buffer is filled up to its limit, or no more data is coming
+     * (because the socket closed or the timeout expired). The timeout applies to the whole read,
+     * not to each chunk of data.
+     *
+     * @param chan the opened socket to read from. It must be in non-blocking
+     *      mode for timeouts to work
+     * @param buf the buffer to store the read data into, from its position to its limit.
+     * @param timeout The timeout value in ms. A timeout of zero means "wait forever".
+     */
+    static void read(SocketChannel chan, ByteBuffer buf, long timeout) throws TimeoutException, IOException {
+        long deadline = getDeadline(timeout);
 
         while (buf.position() != buf.limit()) {
             int count;
@@ -761,23 +760,12 @@ final class AdbHelper {
                 Log.d("ddms", "read: channel EOF");
                 throw new IOException("EOF");
             } else if (count == 0) {
-                // TODO: need more accurate timeout?
-                if (timeout != 0 && numWaits * WAIT_TIME > timeout) {
+                long remaining = getRemainingTime(timeout, deadline);
+                if (remaining < 0) {
                     Log.d("ddms", "read: timeout");
                     throw new TimeoutException();
                 }
-                try {
-                    // non-blocking spin
-                    Thread.sleep(WAIT_TIME);
-                }
-                catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    // Throw a timeout exception in place of interrupted exception to avoid API changes.
-                    throw new TimeoutException("Read interrupted with immediate timeout via interruption.");
-                }
-                numWaits++;
-            } else {
-                numWaits = 0;
+                waitFor(chan, SelectionKey.OP_READ, remaining, "Read");
             }
         }
     }
@@ -806,8 +794,20 @@ final class AdbHelper {
      * @throws IOException in case of I/O error on the connection.
      */
     static void write(SocketChannel chan, byte[] data, int length, int timeout) throws TimeoutException, IOException {
-        ByteBuffer buf = ByteBuffer.wrap(data, 0, length != -1 ? length : data.length);
-        int numWaits = 0;
+        write(chan, ByteBuffer.wrap(data, 0, length != -1 ? length : data.length), timeout);
+    }
+
+    /**
+     * Write until all the remaining data of the buffer is written, the timeout expires, or the
+     * connection fails. The timeout applies to the whole write, not to each chunk of data.
+     * @param chan the opened socket to write to.
+     * @param buf the buffer to send, from its position to its limit.
+     * @param timeout The timeout value. A timeout of zero means "wait forever".
+     * @throws TimeoutException in case of timeout on the connection.
+     * @throws IOException in case of I/O error on the connection.
+     */
+    static void write(SocketChannel chan, ByteBuffer buf, int timeout) throws TimeoutException, IOException {
+        long deadline = getDeadline(timeout);
 
         while (buf.position() != buf.limit()) {
             int count;
@@ -817,27 +817,77 @@ final class AdbHelper {
                 Log.d("ddms", "write: channel EOF");
                 throw new IOException("channel EOF");
             } else if (count == 0) {
-                // TODO: need more accurate timeout?
-                if (timeout != 0 && numWaits * WAIT_TIME > timeout) {
+                long remaining = getRemainingTime(timeout, deadline);
+                if (remaining < 0) {
                     Log.d("ddms", "write: timeout");
                     throw new TimeoutException();
                 }
-                try {
-                    // non-blocking spin
-                    Thread.sleep(WAIT_TIME);
-                }
-                catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    // Throw a timeout exception in place of interrupted exception to avoid API changes.
-                    throw new TimeoutException("Write interrupted with immediate timeout via interruption.");
-                }
-                numWaits++;
-            } else {
-                numWaits = 0;
+                waitFor(chan, SelectionKey.OP_WRITE, remaining, "Write");
             }
         }
     }
 
+    /**
+     * Returns the {@link System#nanoTime()} at which an operation started now times out.
+     * @param timeout the timeout value in ms. A timeout of zero means "wait forever".
+     */
+    static long getDeadline(long timeout) {
+        return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+    }
+
+    /**
+     * Returns how long to wait for a channel, in ms.
+     * @param timeout the timeout value in ms. A timeout of zero means "wait forever".
+     * @param deadline the deadline of the operation, from {@link #getDeadline(long)}.
+     * @return the remaining time, which is at least 1 ms; 0 to wait forever; or a negative value
+     *      if the timeout expired.
+     */
+    static long getRemainingTime(long timeout, long deadline) {
+        if (timeout == 0) {
+            return 0;
+        }
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+            return -1;
+        }
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining));
+    }
+
+    /**
+     * Writes the input of a remote command, with no timeout, checking the receiver for
+     * cancellation while the command does not consume its input.
+     * @return false if the receiver was cancelled before all the input was written.
+     */
+    private static boolean writeInput(SocketChannel chan, ByteBuffer buf,
+            @Nullable IShellOutputReceiver rcvr) throws TimeoutException, IOException {
+        while (buf.hasRemaining()) {
+            if (rcvr != null && rcvr.isCancelled()) {
+                return false;
+            }
+            if (chan.write(buf) == 0) {
+                waitFor(chan, SelectionKey.OP_WRITE, CANCEL_CHECK_TIME, "executeRemoteCommand");
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Waits for a channel to be ready for the given operation, converting interruptions to
+     * {@link TimeoutException}s.
+     * @param timeout The timeout value in ms. A timeout of zero means "wait forever".
+     * @param operation the name of the operation, for the error message.
+     */
+    private static void waitFor(SocketChannel chan, int op, long timeout, String operation)
+            throws TimeoutException, IOException {
+        try {
+            ChannelWaiter.waitFor(chan, op, timeout);
+        } catch (InterruptedIOException e) {
+            // Throw a timeout exception in place of interrupted exception to avoid API changes.
+            throw new TimeoutException(
+                    operation + " interrupted with immediate timeout via interruption.");
+        }
+    }
+
     /**
      * tells adb to talk to a specific device
      *
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.VisibleForTesting;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Waits for non-blocking {@link SocketChannel}s to become readable or writable, instead of
+ * polling them with sleeps.
+ * <p/>The channel is temporarily registered with a {@link Selector} taken from a shared pool,
+ * so there are never more selectors than threads waiting at the same time. At most
+ * {@link #MAX_IDLE_SELECTORS} selectors are kept once they are released, the others are closed.
+ * The key is cancelled and flushed before the selector goes back to the pool, so the channel can
+ * be registered again or closed right away.
+ * <p/>Waits are split in selects of at most {@link #MAX_SELECT_TIME}, since closing the channel
+ * from another thread doesn't wake up the selector on every platform. Between two selects, a
+ * closed channel or an interrupted thread ends the wait.
+ */
+final class ChannelWaiter {
+
+    static final int MAX_IDLE_SELECTORS = 4;
+
+    /** Longest time spent in a single select, in ms */
+    static final long MAX_SELECT_TIME = 25;
+
+    private static final BlockingQueue<Selector> sSelectors =
+            new ArrayBlockingQueue<Selector>(MAX_IDLE_SELECTORS);
+
+    /** do not instantiate */
+    private ChannelWaiter() {
+    }
+
+    /**
+     * Blocks until the channel is ready for the given operation, or the timeout expires.
+     * <p/>Returns immediately for channels in blocking mode, whose reads and writes block anyway.
+     *
+     * @param chan the channel to wait for.
+     * @param op the operation to wait for, {@link SelectionKey#OP_READ} or
+     *      {@link SelectionKey#OP_WRITE}.
+     * @param timeout the maximum time to wait in ms. A timeout of zero means "wait forever", or
+     *      until the channel is closed.
+     * @return true if the channel is ready, false if the timeout expired or the channel was
+     *      closed.
+     * @throws InterruptedIOException if the thread was interrupted while waiting. The interrupted
+     *      status of the thread is left set.
+     * @throws IOException in case of I/O error on the channel.
+     */
+    static boolean waitFor(@NonNull SocketChannel chan, int op, long timeout) throws IOException {
+        if (chan.isBlocking()) {
+            return true;
+        }
+
+        Selector selector = sSelectors.poll();
+        if (selector == null) {
+            selector = Selector.open();
+        }
+
+        boolean ready = false;
+        try {
+            SelectionKey key = chan.register(selector, op);
+            try {
+                ready = select(chan, selector, timeout);
+            } finally {
+                key.cancel();
+                // deregisters the channel
+                selector.selectNow();
+            }
+        } catch (IOException e) {
+            selector.close();
+            throw e;
+        }
+        if (!sSelectors.offer(selector)) {
+            selector.close();
+        }
+
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException();
+        }
+        return ready;
+    }
+
+    private static boolean select(@NonNull SocketChannel chan, @NonNull Selector selector,
+            long timeout) throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        while (chan.isOpen() && !Thread.currentThread().isInterrupted()) {
+            long selectTime = MAX_SELECT_TIME;
+            if (timeout != 0) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                selectTime = Math.min(selectTime,
+                        Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining)));
+            }
+            if (selector.select(selectTime) > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @VisibleForTesting
+    static int getIdleSelectorCount() {
+        return sSelectors.size();
+    }
+}
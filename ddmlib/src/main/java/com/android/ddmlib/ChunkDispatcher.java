@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.annotations.NonNull;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs the chunk handlers off the {@link MonitorShard} threads reading from the clients.
+ * <p/>Each client has its own queue, so its chunks are handled one at a time and in the order
+ * they were read, while the queues of different clients are drained concurrently by a shared
+ * pool. A chunk that takes long to process, like a heap dump, only delays the chunks of the
+ * client which sent it.
+ * <p/>Small chunks of a client with nothing queued are handled right away on the calling
+ * thread, as the monitor thread used to, which saves copying them.
+ */
+final class ChunkDispatcher {
+
+    /** Chunks larger than this are always handled on the pool. */
+    static final int INLINE_CHUNK_SIZE = 4096;
+
+    private final ExecutorService mWorkers;
+
+    /** The chunks waiting to be handled, by client. Only clients with pending chunks are in. */
+    private final Map<Client, ArrayDeque<Chunk>> mQueues = new HashMap<Client, ArrayDeque<Chunk>>();
+
+    ChunkDispatcher() {
+        this(DdmPreferences.getMonitorThreadCount());
+    }
+
+    ChunkDispatcher(int threadCount) {
+        mWorkers = Executors.newFixedThreadPool(Math.max(1, threadCount),
+                new ThreadFactoryBuilder()
+                        .setNameFormat("Monitor-handler-%d")
+                        .setDaemon(true)
+                        .build());
+    }
+
+    /**
+     * Handles a chunk, either now or after the chunks already queued for the same client.
+     * <p/>The chunks of a client must be dispatched from one thread at a time, which is the case
+     * since a client is read by a single {@link MonitorShard}.
+     * <p/>The content of "data" is only valid during this call, so it is copied if the chunk is
+     * queued.
+     */
+    void dispatch(@NonNull Client client, @NonNull ChunkHandler handler, int type,
+            @NonNull ByteBuffer data, boolean isReply, int msgId) {
+        boolean inline = false;
+        boolean schedule = false;
+        synchronized (mQueues) {
+            ArrayDeque<Chunk> queue = mQueues.get(client);
+            if (queue == null && data.remaining() <= INLINE_CHUNK_SIZE) {
+                inline = true;
+            } else {
+                if (queue == null) {
+                    queue = new ArrayDeque<Chunk>();
+                    mQueues.put(client, queue);
+                    schedule = true;
+                }
+                queue.add(new Chunk(handler, type, copy(data), isReply, msgId));
+            }
+        }
+
+        if (inline) {
+            handle(client, handler, type, data, isReply, msgId);
+        } else if (schedule) {
+            schedule(client);
+        }
+    }
+
+    /**
+     * Stops the workers. Queued chunks are dropped.
+     */
+    void shutdown() {
+        mWorkers.shutdownNow();
+        synchronized (mQueues) {
+            mQueues.clear();
+        }
+    }
+
+    /**
+     * Has a worker handle the next chunk of the client, then schedule the following one, so a
+     * client with many chunks doesn't hold on to a worker.
+     */
+    private void schedule(@NonNull final Client client) {
+        try {
+            mWorkers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Chunk chunk;
+                    synchronized (mQueues) {
+                        ArrayDeque<Chunk> queue = mQueues.get(client);
+                        chunk = queue != null ? queue.peek() : null;
+                    }
+                    if (chunk == null) {
+                        return;
+                    }
+
+                    handle(client, chunk.mHandler, chunk.mType, chunk.mData, chunk.mIsReply,
+                            chunk.mMsgId);
+
+                    boolean more;
+                    synchronized (mQueues) {
+                        ArrayDeque<Chunk> queue = mQueues.get(client);
+                        if (queue == null) {
+                            return;
+                        }
+                        queue.poll();
+                        more = !queue.isEmpty();
+                        if (!more) {
+                            mQueues.remove(client);
+                        }
+                    }
+                    if (more) {
+                        schedule(client);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // shutting down, the chunks are dropped along with the client.
+        }
+    }
+
+    private static void handle(@NonNull Client client, @NonNull ChunkHandler handler, int type,
+            @NonNull ByteBuffer data, boolean isReply, int msgId) {
+        try {
+            handler.handleChunk(client, type, data, isReply, msgId);
+        } catch (Exception e) {
+            // same as the monitor thread, a bad chunk must not stop the others.
+            Log.e("ddms", "Exception while handling chunk from " + client);
+            Log.e("ddms", e);
+        }
+    }
+
+    @NonNull
+    private static ByteBuffer copy(@NonNull ByteBuffer data) {
+        ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+        copy.put(data.duplicate());
+        copy.flip();
+        ByteBuffer roCopy = copy.asReadOnlyBuffer(); // enforce R/O
+        roCopy.order(data.order());
+        return roCopy;
+    }
+
+    private static final class Chunk {
+        final ChunkHandler mHandler;
+        final int mType;
+        final ByteBuffer mData;
+        final boolean mIsReply;
+        final int mMsgId;
+
+        Chunk(ChunkHandler handler, int type, ByteBuffer data, boolean isReply, int msgId) {
+            mHandler = handler;
+            mType = type;
+            mData = data;
+            mIsReply = isReply;
+            mMsgId = msgId;
+        }
+    }
+}
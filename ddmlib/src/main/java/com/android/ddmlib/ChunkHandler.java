@@ -219,7 +219,13 @@ abstract class ChunkHandler extends JdwpInterceptor {
         ByteBuffer roBuf = ibuf.asReadOnlyBuffer(); // enforce R/O
         roBuf.order(CHUNK_ORDER);
 
-        handleChunk(client, type, roBuf, packet.isReply(), packet.getId());
+        MonitorThread monitorThread = MonitorThread.getInstance();
+        if (monitorThread != null) {
+            monitorThread.getChunkDispatcher().dispatch(client, this, type, roBuf,
+                    packet.isReply(), packet.getId());
+        } else {
+            handleChunk(client, type, roBuf, packet.isReply(), packet.getId());
+        }
     }
 
     @Override
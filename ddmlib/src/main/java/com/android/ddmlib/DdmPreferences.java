@@ -47,6 +47,9 @@ public final class DdmPreferences {
     /** Default values for the use of the ADBHOST environment variable. */
     public static final boolean DEFAULT_USE_ADBHOST = false;
     public static final String DEFAULT_ADBHOST_VALUE = "127.0.0.1";
+    /** Default number of threads watching the client connections. */
+    public static final int DEFAULT_MONITOR_THREAD_COUNT =
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
 
     private static boolean sThreadUpdate = DEFAULT_INITIAL_THREAD_UPDATE;
     private static boolean sInitialHeapUpdate = DEFAULT_INITIAL_HEAP_UPDATE;
@@ -60,6 +63,8 @@ public final class DdmPreferences {
     private static boolean sUseAdbHost = DEFAULT_USE_ADBHOST;
     private static String sAdbHostValue = DEFAULT_ADBHOST_VALUE;
 
+    private static int sMonitorThreadCount = DEFAULT_MONITOR_THREAD_COUNT;
+
     /**
      * Returns the initial {@link Client} flag for thread updates.
      * @see #setInitialThreadUpdate(boolean)
@@ -211,6 +216,24 @@ public final class DdmPreferences {
         sAdbHostValue = adbHostValue;
     }
 
+    /**
+     * Returns the number of threads watching the client connections, which is also the number
+     * of threads handling their chunks.
+     */
+    public static int getMonitorThreadCount() {
+        return sMonitorThreadCount;
+    }
+
+    /**
+     * Sets the number of threads watching the client connections, and the number of threads
+     * handling their chunks. The chunks of one client are always handled one at a time.
+     * <p/>This change takes effect the next time the bridge is initialized.
+     * @param count the number of threads, at least 1.
+     */
+    public static void setMonitorThreadCount(int count) {
+        sMonitorThreadCount = Math.max(1, count);
+    }
+
     /**
      * Non accessible constructor.
      */
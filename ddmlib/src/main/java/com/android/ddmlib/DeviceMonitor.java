@@ -32,6 +32,7 @@ import com.google.common.util.concurrent.Uninterruptibles;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.nio.channels.AsynchronousCloseException;
@@ -619,6 +620,8 @@ final class DeviceMonitor {
 
     /**
      * Fills a buffer by reading data from a socket.
+     * <p/>Non-blocking sockets are only read once they have data, but a message may arrive in
+     * several parts: the rest of the message must come within {@link DdmPreferences#getTimeOut()}.
      * @return the content of the buffer as a string, or null if it failed to convert the buffer.
      * @throws IOException if there was not enough data to fill the buffer
      */
@@ -626,6 +629,8 @@ final class DeviceMonitor {
     private static String read(@NonNull SocketChannel socket, @NonNull byte[] buffer)
             throws IOException {
         ByteBuffer buf = ByteBuffer.wrap(buffer, 0, buffer.length);
+        int timeout = DdmPreferences.getTimeOut();
+        long deadline = AdbHelper.getDeadline(timeout);
 
         while (buf.position() != buf.limit()) {
             int count;
@@ -633,6 +638,12 @@ final class DeviceMonitor {
             count = socket.read(buf);
             if (count < 0) {
                 throw new IOException("EOF");
+            } else if (count == 0) {
+                long remaining = AdbHelper.getRemainingTime(timeout, deadline);
+                if (remaining < 0) {
+                    throw new SocketTimeoutException("Timed out reading from adb");
+                }
+                ChannelWaiter.waitFor(socket, SelectionKey.OP_READ, remaining);
             }
         }
 
@@ -17,14 +17,13 @@
 package com.android.ddmlib;
 
 
-import com.android.ddmlib.DebugPortManager.IDebugPortProvider;
+import com.android.annotations.Nullable;
 import com.android.ddmlib.Log.LogLevel;
 import com.android.ddmlib.jdwp.JdwpExtension;
 
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.nio.BufferOverflowException;
 import java.nio.channels.CancelledKeyException;
 import java.nio.channels.NotYetBoundException;
 import java.nio.channels.SelectionKey;
@@ -33,13 +32,18 @@ import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
  * Monitor open connections.
+ * <p/>The connections to the clients and their debuggers are spread over several
+ * {@link MonitorShard}s, each with its own selector and thread. This thread only handles the
+ * "debug selected" port.
  */
 final class MonitorThread extends Thread {
 
@@ -51,8 +55,20 @@ final class MonitorThread extends Thread {
     // Used for locking so final.
     final private ArrayList<Client> mClientList;
 
-    // The almighty mux
-    private Selector mSelector;
+    // The shard watching each client, guarded by mClientList
+    private final Map<Client, MonitorShard> mClientShards;
+
+    // The almighty muxes, created when the thread starts or the first client is added,
+    // guarded by mClientList
+    private MonitorShard[] mShards;
+
+    // Number of clients watched by each shard, guarded by mClientList
+    private int[] mShardClientCounts;
+
+    // The mux for the "debug selected" port
+    private volatile Selector mSelector;
+
+    private final ChunkDispatcher mChunkDispatcher;
 
     private final List<JdwpExtension> mJdwpExtensions;
 
@@ -77,6 +93,8 @@ final class MonitorThread extends Thread {
     private MonitorThread() {
         super("Monitor");
         mClientList = new ArrayList<Client>();
+        mClientShards = new HashMap<Client, MonitorShard>();
+        mChunkDispatcher = new ChunkDispatcher();
 
         mNewDebugSelectedPort = DdmPreferences.getSelectedDebugPort();
 
@@ -189,26 +207,23 @@ final class MonitorThread extends Thread {
     public void run() {
         Log.d("ddms", "Monitor is up");
 
-        // create a selector
-        try {
-            mSelector = Selector.open();
-        } catch (IOException ioe) {
-            Log.logAndDisplay(LogLevel.ERROR, "ddms",
-                    "Failed to initialize Monitor Thread: " + ioe.getMessage());
-            return;
+        // create the selectors
+        synchronized (mClientList) {
+            try {
+                mSelector = Selector.open();
+            } catch (IOException ioe) {
+                Log.logAndDisplay(LogLevel.ERROR, "ddms",
+                        "Failed to initialize Monitor Thread: " + ioe.getMessage());
+                return;
+            }
+            if (getShards() == null) {
+                return;
+            }
         }
 
         while (!mQuit) {
 
             try {
-                /*
-                 * sync with new registrations: we wait until addClient is done before going through
-                 * and doing mSelector.select() again.
-                 * @see {@link #addClient(Client)}
-                 */
-                synchronized (mClientList) {
-                }
-
                 // (re-)open the "debug selected" port, if it's not opened yet or
                 // if the port changed.
                 try {
@@ -252,13 +267,7 @@ final class MonitorThread extends Thread {
                     iter.remove();
 
                     try {
-                        if (key.attachment() instanceof Client) {
-                            processClientActivity(key);
-                        }
-                        else if (key.attachment() instanceof Debugger) {
-                            processDebuggerActivity(key);
-                        }
-                        else if (key.attachment() instanceof MonitorThread) {
+                        if (key.attachment() instanceof MonitorThread) {
                             processDebugSelectedActivity(key);
                         }
                         else {
@@ -288,57 +297,6 @@ final class MonitorThread extends Thread {
         return mDebugSelectedPort;
     }
 
-    /*
-     * Something happened. Figure out what.
-     */
-    private void processClientActivity(SelectionKey key) {
-        Client client = (Client)key.attachment();
-
-        try {
-            if (!key.isReadable() || !key.isValid()) {
-                Log.d("ddms", "Invalid key from " + client + ". Dropping client.");
-                dropClient(client, true /* notify */);
-                return;
-            }
-
-            client.read();
-
-            /*
-             * See if we have a full packet in the buffer. It's possible we have
-             * more than one packet, so we have to loop.
-             */
-            JdwpPacket packet = client.getJdwpPacket();
-            while (packet != null) {
-                client.incoming(packet, client.getDebugger());
-
-                packet.consume();
-                // find next
-                packet = client.getJdwpPacket();
-            }
-        } catch (CancelledKeyException e) {
-            // key was canceled probably due to a disconnected client before we could
-            // read stuff coming from the client, so we drop it.
-            dropClient(client, true /* notify */);
-        } catch (IOException ex) {
-            // something closed down, no need to print anything. The client is simply dropped.
-            dropClient(client, true /* notify */);
-        } catch (Exception ex) {
-            Log.e("ddms", ex);
-
-            /* close the client; automatically un-registers from selector */
-            dropClient(client, true /* notify */);
-
-            if (ex instanceof BufferOverflowException) {
-                Log.w("ddms",
-                        "Client data packet exceeded maximum buffer size "
-                                + client);
-            } else {
-                // don't know what this is, display it
-                Log.e("ddms", ex);
-            }
-        }
-    }
-
     /**
      * Drops a client from the monitor.
      * <p/>This will lock the {@link Client} list of the {@link Device} running <var>client</var>.
@@ -350,10 +308,12 @@ final class MonitorThread extends Thread {
             return;
         }
 
+        MonitorShard shard;
         synchronized (mClientList) {
             if (!mClientList.remove(client)) {
                 return;
             }
+            shard = removeShard(client);
         }
         client.close(notify);
         mDdmJdwpExtension.broadcast(DdmJdwpExtension.Event.CLIENT_DISCONNECTED, client);
@@ -362,7 +322,9 @@ final class MonitorThread extends Thread {
          * http://forum.java.sun.com/thread.jspa?threadID=726715&start=0
          * http://bugs.sun.com/bugdatabase/view_bug.do?bug_id=5073504
          */
-        wakeup();
+        if (shard != null) {
+            shard.wakeup();
+        }
     }
 
     /**
@@ -375,133 +337,14 @@ final class MonitorThread extends Thread {
         }
     }
 
-    /*
-     * Process activity from one of the debugger sockets. This could be a new
-     * connection or a data packet.
-     */
-    private void processDebuggerActivity(SelectionKey key) {
-        Debugger dbg = (Debugger)key.attachment();
-
-        try {
-            if (key.isAcceptable()) {
-                try {
-                    acceptNewDebugger(dbg, null);
-                } catch (IOException ioe) {
-                    Log.w("ddms", "debugger accept() failed");
-                    ioe.printStackTrace();
-                }
-            } else if (key.isReadable()) {
-                processDebuggerData(key);
-            } else {
-                Log.d("ddm-debugger", "key in unknown state");
-            }
-        } catch (CancelledKeyException cke) {
-            // key has been cancelled we can ignore that.
-        }
-    }
-
-    /*
-     * Accept a new connection from a debugger. If successful, register it with
-     * the Selector.
-     */
-    private void acceptNewDebugger(Debugger dbg, ServerSocketChannel acceptChan)
-            throws IOException {
-
-        synchronized (mClientList) {
-            SocketChannel chan;
-
-            if (acceptChan == null)
-                chan = dbg.accept();
-            else
-                chan = dbg.accept(acceptChan);
-
-            if (chan != null) {
-                chan.socket().setTcpNoDelay(true);
-
-                wakeup();
-
-                try {
-                    chan.register(mSelector, SelectionKey.OP_READ, dbg);
-                } catch (IOException ioe) {
-                    // failed, drop the connection
-                    dbg.closeData();
-                    throw ioe;
-                } catch (RuntimeException re) {
-                    // failed, drop the connection
-                    dbg.closeData();
-                    throw re;
-                }
-            } else {
-                Log.w("ddms", "ignoring duplicate debugger");
-                // new connection already closed
-            }
-        }
-    }
-
-    /*
-     * We have incoming data from the debugger. Forward it to the client.
-     */
-    private void processDebuggerData(SelectionKey key) {
-        Debugger dbg = (Debugger)key.attachment();
-
-        try {
-            /*
-             * Read pending data.
-             */
-            dbg.read();
-
-            /*
-             * See if we have a full packet in the buffer. It's possible we have
-             * more than one packet, so we have to loop.
-             */
-            JdwpPacket packet = dbg.getJdwpPacket();
-            while (packet != null) {
-                Log.v("ddms", "Forwarding dbg req 0x"
-                        + Integer.toHexString(packet.getId()) + " to "
-                        + dbg.getClient());
-
-                dbg.incoming(packet, dbg.getClient());
-
-                packet.consume();
-                packet = dbg.getJdwpPacket();
-            }
-        } catch (IOException ioe) {
-            /*
-             * Close data connection; automatically un-registers dbg from
-             * selector. The failure could be caused by the debugger going away,
-             * or by the client going away and failing to accept our data.
-             * Either way, the debugger connection does not need to exist any
-             * longer. We also need to recycle the connection to the client, so
-             * that the VM sees the debugger disconnect. For a DDM-aware client
-             * this won't be necessary, and we can just send a "debugger
-             * disconnected" message.
-             */
-            Log.d("ddms", "Closing connection to debugger " + dbg);
-            dbg.closeData();
-            Client client = dbg.getClient();
-            if (client.isDdmAware()) {
-                // TODO: soft-disconnect DDM-aware clients
-                Log.d("ddms", " (recycling client connection as well)");
-
-                // we should drop the client, but also attempt to reopen it.
-                // This is done by the DeviceMonitor.
-                client.getDeviceImpl().getMonitor().addClientToDropAndReopen(client,
-                        IDebugPortProvider.NO_STATIC_PORT);
-            } else {
-                Log.d("ddms", " (recycling client connection as well)");
-                // we should drop the client, but also attempt to reopen it.
-                // This is done by the DeviceMonitor.
-                client.getDeviceImpl().getMonitor().addClientToDropAndReopen(client,
-                        IDebugPortProvider.NO_STATIC_PORT);
-            }
-        }
-    }
-
     /*
      * Tell the thread that something has changed.
      */
     private void wakeup() {
-        mSelector.wakeup();
+        Selector selector = mSelector;
+        if (selector != null) {
+            selector.wakeup();
+        }
     }
 
     /**
@@ -513,6 +356,17 @@ final class MonitorThread extends Thread {
         Log.d("ddms", "Waiting for Monitor thread");
         try {
             this.join();
+            MonitorShard[] shards;
+            synchronized (mClientList) {
+                shards = mShards;
+            }
+            if (shards != null) {
+                for (MonitorShard shard : shards) {
+                    shard.quit();
+                }
+            }
+            mChunkDispatcher.shutdown();
+
             // since we're quitting, lets drop all the client and disconnect
             // the DebugSelectedPort
             synchronized (mClientList) {
@@ -521,6 +375,7 @@ final class MonitorThread extends Thread {
                     mDdmJdwpExtension.broadcast(DdmJdwpExtension.Event.CLIENT_DISCONNECTED, c);
                 }
                 mClientList.clear();
+                mClientShards.clear();
             }
 
             if (mDebugSelectedChan != null) {
@@ -528,7 +383,9 @@ final class MonitorThread extends Thread {
                 mDebugSelectedChan.socket().close();
                 mDebugSelectedChan = null;
             }
-            mSelector.close();
+            if (mSelector != null) {
+                mSelector.close();
+            }
         } catch (InterruptedException ie) {
             ie.printStackTrace();
         } catch (IOException e) {
@@ -541,7 +398,8 @@ final class MonitorThread extends Thread {
 
     /**
      * Add a new Client to the list of things we monitor. Also adds the client's
-     * channel and the client's debugger listener to the selection list. This
+     * channel and the client's debugger listener to the selection list of the
+     * shard watching the fewest clients. This
      * should only be called from one thread (the VMWatcherThread) to avoid a
      * race between "alreadyOpen" and Client creation.
      */
@@ -560,22 +418,24 @@ final class MonitorThread extends Thread {
             }
 
             /*
-             * Register the Client's socket channel with the selector. We attach
-             * the Client to the SelectionKey. If you try to register a new
-             * channel with the Selector while it is waiting for I/O, you will
-             * block. The solution is to call wakeup() and then hold a lock to
-             * ensure that the registration happens before the Selector goes
-             * back to sleep.
+             * Register the Client's socket channel with the selector of a shard.
+             * We attach the Client to the SelectionKey.
              */
-            try {
-                wakeup();
-
-                client.register(mSelector);
-
-                Debugger dbg = client.getDebugger();
-                if (dbg != null) {
-                    dbg.registerListener(mSelector);
+            MonitorShard[] shards = getShards();
+            if (shards == null) {
+                return;
+            }
+            int index = 0;
+            for (int i = 1; i < shards.length; i++) {
+                if (mShardClientCounts[i] < mShardClientCounts[index]) {
+                    index = i;
                 }
+            }
+            mClientShards.put(client, shards[index]);
+            mShardClientCounts[index]++;
+
+            try {
+                shards[index].register(client);
             } catch (IOException ioe) {
                 // not really expecting this to happen
                 ioe.printStackTrace();
@@ -583,6 +443,49 @@ final class MonitorThread extends Thread {
         }
     }
 
+    /**
+     * Returns the shards, creating and starting them the first time, since clients may be added
+     * before this thread runs. Must be called while holding the lock on mClientList.
+     * @return the shards, or null if they could not be created.
+     */
+    @Nullable
+    private MonitorShard[] getShards() {
+        if (mShards == null) {
+            MonitorShard[] shards = new MonitorShard[DdmPreferences.getMonitorThreadCount()];
+            try {
+                for (int i = 0; i < shards.length; i++) {
+                    shards[i] = new MonitorShard(this, i);
+                }
+            } catch (IOException ioe) {
+                Log.logAndDisplay(LogLevel.ERROR, "ddms",
+                        "Failed to initialize Monitor Thread: " + ioe.getMessage());
+                return null;
+            }
+            for (MonitorShard shard : shards) {
+                shard.start();
+            }
+            mShards = shards;
+            mShardClientCounts = new int[shards.length];
+        }
+        return mShards;
+    }
+
+    /**
+     * Removes the client from its shard, and returns the shard. Must be called while holding
+     * the lock on mClientList.
+     */
+    private MonitorShard removeShard(Client client) {
+        MonitorShard shard = mClientShards.remove(client);
+        if (shard != null) {
+            for (int i = 0; i < mShards.length; i++) {
+                if (mShards[i] == shard) {
+                    mShardClientCounts[i]--;
+                }
+            }
+        }
+        return shard;
+    }
+
     /**
      * Opens (or reopens) the "debug selected" port and listen for connections.
      * @return true if the port was opened successfully.
@@ -634,13 +537,18 @@ final class MonitorThread extends Thread {
         /*
          * Find the debugger associated with the currently-selected client.
          */
-        if (mSelectedClient != null) {
-            Debugger dbg = mSelectedClient.getDebugger();
+        Client selectedClient = mSelectedClient;
+        if (selectedClient != null) {
+            Debugger dbg = selectedClient.getDebugger();
+            MonitorShard shard;
+            synchronized (mClientList) {
+                shard = mClientShards.get(selectedClient);
+            }
 
-            if (dbg != null) {
+            if (dbg != null && shard != null) {
                 Log.d("ddms", "Accepting connection on 'debug selected' port");
                 try {
-                    acceptNewDebugger(dbg, acceptChan);
+                    shard.acceptNewDebugger(dbg, acceptChan);
                 } catch (IOException ioe) {
                     // client should be gone, keep going
                 }
@@ -672,4 +580,8 @@ final class MonitorThread extends Thread {
     public DdmJdwpExtension getDdmExtension() {
         return mDdmJdwpExtension;
     }
+
+    ChunkDispatcher getChunkDispatcher() {
+        return mChunkDispatcher;
+    }
 }
@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.annotations.NonNull;
+import com.android.ddmlib.SyncException.SyncError;
+import com.android.ddmlib.SyncService.ISyncProgressMonitor;
+import com.android.ddmlib.SyncService.ISyncThroughputMonitor;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Transfers several files to or from a device at the same time, each over its own sync
+ * connection.
+ * <p/>A single sync connection moves one file at a time, so pushing or pulling many files is
+ * usually bound by the round trips between files rather than by the bandwidth.
+ */
+public final class ParallelSync {
+
+    private final IDevice mDevice;
+    private final int mConnections;
+
+    /**
+     * Creates an object to transfer files to or from the given device.
+     * @param device the device to transfer files to or from.
+     * @param connections the maximum number of sync connections to open at once.
+     */
+    public ParallelSync(@NonNull IDevice device, int connections) {
+        mDevice = device;
+        mConnections = Math.max(1, connections);
+    }
+
+    /**
+     * Pushes local files to the device.
+     * @param files a map from local paths to remote paths.
+     * @param monitor The progress monitor. Cannot be null. It is called from several threads,
+     *      but never concurrently.
+     * @throws SyncException if a file could not be pushed
+     * @throws AdbCommandRejectedException if adb rejects a sync connection
+     * @throws IOException in case of I/O error on a connection.
+     * @throws TimeoutException in case of a timeout reading responses from the device.
+     */
+    public void pushFiles(@NonNull Map<String, String> files,
+            @NonNull ISyncProgressMonitor monitor) throws SyncException,
+            AdbCommandRejectedException, IOException, TimeoutException {
+        long total = 0;
+        for (String local : files.keySet()) {
+            File f = new File(local);
+            if (!f.isFile()) {
+                throw new SyncException(f.isDirectory()
+                        ? SyncError.LOCAL_IS_DIRECTORY : SyncError.NO_LOCAL_FILE);
+            }
+            total += f.length();
+        }
+        // the monitor only takes an int, as in SyncService
+        transfer(files, (int) Math.min(total, Integer.MAX_VALUE), true, monitor);
+    }
+
+    /**
+     * Pulls files from the device.
+     * <p/>The size of the files is unknown, so the monitor is started with a total work of 0.
+     * @param files a map from remote paths to local paths.
+     * @param monitor The progress monitor. Cannot be null. It is called from several threads,
+     *      but never concurrently.
+     * @throws SyncException if a file could not be pulled
+     * @throws AdbCommandRejectedException if adb rejects a sync connection
+     * @throws IOException in case of I/O error on a connection.
+     * @throws TimeoutException in case of a timeout reading responses from the device.
+     */
+    public void pullFiles(@NonNull Map<String, String> files,
+            @NonNull ISyncProgressMonitor monitor) throws SyncException,
+            AdbCommandRejectedException, IOException, TimeoutException {
+        transfer(files, 0, false, monitor);
+    }
+
+    private void transfer(@NonNull Map<String, String> files, int totalWork, final boolean push,
+            @NonNull ISyncProgressMonitor monitor) throws SyncException,
+            AdbCommandRejectedException, IOException, TimeoutException {
+        final Queue<Map.Entry<String, String>> queue =
+                new ConcurrentLinkedQueue<Map.Entry<String, String>>(files.entrySet());
+        final SynchronizedMonitor sharedMonitor = new SynchronizedMonitor(monitor);
+        final FileMonitor fileMonitor = new FileMonitor(sharedMonitor);
+
+        int connections = Math.min(mConnections, files.size());
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(connections);
+        for (int i = 0; i < connections; i++) {
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    SyncService sync = mDevice.getSyncService();
+                    if (sync == null) {
+                        throw new AdbCommandRejectedException("Unable to open sync connection");
+                    }
+                    try {
+                        Map.Entry<String, String> file;
+                        while ((file = queue.poll()) != null) {
+                            if (sharedMonitor.isCanceled()) {
+                                throw new SyncException(SyncError.CANCELED);
+                            }
+                            sharedMonitor.startSubTask(push ? file.getValue() : file.getKey());
+                            if (push) {
+                                sync.pushFile(file.getKey(), file.getValue(), fileMonitor);
+                            } else {
+                                sync.pullFile(file.getKey(), file.getValue(), fileMonitor);
+                            }
+                        }
+                    } catch (Exception e) {
+                        // stop the other connections
+                        sharedMonitor.fail();
+                        throw e;
+                    } finally {
+                        sync.close();
+                    }
+                    return null;
+                }
+            });
+        }
+
+        monitor.start(totalWork);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, connections),
+                new ThreadFactoryBuilder()
+                        .setNameFormat("sync-%d")
+                        .setDaemon(true)
+                        .build());
+        try {
+            Throwable failure = null;
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    // report the first failure, not the cancellations it caused
+                    if (failure == null || isCancellation(failure)) {
+                        failure = e.getCause();
+                    }
+                }
+            }
+            if (failure instanceof SyncException) {
+                throw (SyncException) failure;
+            } else if (failure instanceof AdbCommandRejectedException) {
+                throw (AdbCommandRejectedException) failure;
+            } else if (failure instanceof IOException) {
+                throw (IOException) failure;
+            } else if (failure instanceof TimeoutException) {
+                throw (TimeoutException) failure;
+            } else if (failure != null) {
+                throw Throwables.propagate(failure);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SyncException(SyncError.CANCELED);
+        } finally {
+            executor.shutdownNow();
+            monitor.stop();
+        }
+    }
+
+    private static boolean isCancellation(@NonNull Throwable e) {
+        return e instanceof SyncException && ((SyncException) e).wasCanceled();
+    }
+
+    /**
+     * Forwards the progress of a single file to the monitor of the whole transfer, which is only
+     * started and stopped once.
+     */
+    private static final class FileMonitor implements ISyncThroughputMonitor {
+        private final SynchronizedMonitor mMonitor;
+
+        FileMonitor(@NonNull SynchronizedMonitor monitor) {
+            mMonitor = monitor;
+        }
+
+        @Override
+        public void start(int totalWork) {
+        }
+
+        @Override
+        public void stop() {
+        }
+
+        @Override
+        public boolean isCanceled() {
+            return mMonitor.isCanceled();
+        }
+
+        @Override
+        public void startSubTask(String name) {
+            mMonitor.startSubTask(name);
+        }
+
+        @Override
+        public void advance(int work) {
+            mMonitor.advance(work);
+        }
+
+        @Override
+        public void fileTransferred(String remotePath, long bytes, long nanos) {
+            mMonitor.fileTransferred(remotePath, bytes, nanos);
+        }
+    }
+
+    /**
+     * Serializes the calls to a monitor, and cancels the transfers once one of them failed.
+     */
+    private static final class SynchronizedMonitor implements ISyncThroughputMonitor {
+        private final ISyncProgressMonitor mMonitor;
+        private volatile boolean mFailed;
+
+        SynchronizedMonitor(@NonNull ISyncProgressMonitor monitor) {
+            mMonitor = monitor;
+        }
+
+        void fail() {
+            mFailed = true;
+        }
+
+        @Override
+        public synchronized void start(int totalWork) {
+            mMonitor.start(totalWork);
+        }
+
+        @Override
+        public synchronized void stop() {
+            mMonitor.stop();
+        }
+
+        @Override
+        public synchronized boolean isCanceled() {
+            return mFailed || mMonitor.isCanceled();
+        }
+
+        @Override
+        public synchronized void startSubTask(String name) {
+            mMonitor.startSubTask(name);
+        }
+
+        @Override
+        public synchronized void advance(int work) {
+            mMonitor.advance(work);
+        }
+
+        @Override
+        public synchronized void fileTransferred(String remotePath, long bytes, long nanos) {
+            if (mMonitor instanceof ISyncThroughputMonitor) {
+                ((ISyncThroughputMonitor) mMonitor).fileTransferred(remotePath, bytes, nanos);
+            }
+        }
+    }
+}
@@ -29,6 +29,9 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.Date;
@@ -79,6 +82,12 @@ public class SyncService {
 */
 
     private static final int SYNC_DATA_MAX = 64*1024;
+    /**
+     * Socket buffer size of sync connections, large enough to buffer several DATA packets while
+     * the local file is read or written. Packets are still sent one after the other, as the
+     * protocol requires.
+     */
+    private static final int SYNC_WINDOW_SIZE = 8 * (SYNC_DATA_MAX + 8);
     private static final int REMOTE_PATH_MAX_LENGTH = 1024;
 
     /**
@@ -112,6 +121,20 @@ public class SyncService {
         void advance(int work);
     }
 
+    /**
+     * A {@link ISyncProgressMonitor} that is also told how long each file took to transfer, to
+     * compute throughput.
+     */
+    public interface ISyncThroughputMonitor extends ISyncProgressMonitor {
+        /**
+         * Sent when a file has been transferred.
+         * @param remotePath the path of the file on the device.
+         * @param bytes the number of bytes transferred.
+         * @param nanos the duration of the transfer, in nanoseconds.
+         */
+        void fileTransferred(String remotePath, long bytes, long nanos);
+    }
+
     public static class FileStat {
       private final int myMode;
       private final int mySize;
@@ -168,6 +191,12 @@ public class SyncService {
      */
     private byte[] mBuffer;
 
+    /**
+     * Direct buffer holding a DATA packet, header included. Allocated when needed and reused
+     * afterward.
+     */
+    private ByteBuffer mDataBuffer;
+
     /**
      * Creates a Sync service object.
      * @param address The address to connect to
@@ -188,7 +217,11 @@ public class SyncService {
      */
     boolean openSync() throws TimeoutException, AdbCommandRejectedException, IOException {
         try {
-            mChannel = SocketChannel.open(mAddress);
+            mChannel = SocketChannel.open();
+            // the window has to be set before connecting for the receive side to use it
+            mChannel.socket().setSendBufferSize(SYNC_WINDOW_SIZE);
+            mChannel.socket().setReceiveBufferSize(SYNC_WINDOW_SIZE);
+            mChannel.connect(mAddress);
             mChannel.configureBlocking(false);
 
             // target a specific device
@@ -510,6 +543,8 @@ public class SyncService {
      */
     private void doPullFile(String remotePath, String localPath,
             ISyncProgressMonitor monitor) throws IOException, SyncException, TimeoutException {
+        long start = System.nanoTime();
+        long transferred = 0;
         byte[] msg = null;
         byte[] pullResult = new byte[8];
 
@@ -550,9 +585,10 @@ public class SyncService {
         FileOutputStream fos = null;
         try {
             fos = new FileOutputStream(f);
+            FileChannel fileChannel = fos.getChannel();
 
-            // the buffer to read the data
-            byte[] data = new byte[SYNC_DATA_MAX];
+            // the buffer to read the data, followed by the header of the next packet
+            ByteBuffer data = getDataBuffer();
 
             // loop to get data until we're done.
             while (true) {
@@ -577,19 +613,25 @@ public class SyncService {
                     throw new SyncException(SyncError.BUFFER_OVERRUN);
                 }
 
-                // now read the length we received
-                AdbHelper.read(mChannel, data, length, timeOut);
-
-                // get the header for the next packet.
-                AdbHelper.read(mChannel, pullResult, -1, timeOut);
+                // now read the length we received, and the header for the next packet, which is
+                // always there (DATA, DONE or FAIL)
+                data.clear();
+                data.limit(length + pullResult.length);
+                AdbHelper.read(mChannel, data, timeOut);
+                data.position(length);
+                data.get(pullResult);
 
                 // write the content in the file
-                fos.write(data, 0, length);
+                data.position(0);
+                data.limit(length);
+                while (data.hasRemaining()) {
+                    fileChannel.write(data);
+                }
 
                 monitor.advance(length);
+                transferred += length;
             }
 
-            fos.flush();
         } catch (IOException e) {
             Log.e("ddms", String.format("Failed to open local file %s for writing, Reason: %s",
                     f.getAbsolutePath(), e.toString()));
@@ -599,6 +641,8 @@ public class SyncService {
                 fos.close();
             }
         }
+
+        reportTransfer(monitor, remotePath, transferred, start);
     }
 
 
@@ -649,6 +693,8 @@ public class SyncService {
      */
     private void doPushFile(String localPath, String remotePath,
             ISyncProgressMonitor monitor) throws SyncException, IOException, TimeoutException {
+        long start = System.nanoTime();
+        long transferred = 0;
         FileInputStream fis = null;
         byte[] msg;
 
@@ -664,6 +710,7 @@ public class SyncService {
 
             // create the stream to read the file
             fis = new FileInputStream(f);
+            FileChannel fileChannel = fis.getChannel();
 
             // create the header for the action
             msg = createSendFileReq(ID_SEND, remotePathContent, 0644);
@@ -672,7 +719,7 @@ public class SyncService {
             // file and network IO exceptions.
             AdbHelper.write(mChannel, msg, -1, timeOut);
 
-            System.arraycopy(ID_DATA, 0, getBuffer(), 0, ID_DATA.length);
+            ByteBuffer data = getDataBuffer();
 
             // look while there is something to read
             while (true) {
@@ -681,23 +728,29 @@ public class SyncService {
                     throw new SyncException(SyncError.CANCELED);
                 }
 
-                // read up to SYNC_DATA_MAX
-                int readCount = fis.read(getBuffer(), 8, SYNC_DATA_MAX);
+                // read up to SYNC_DATA_MAX, after the room for the header
+                data.clear();
+                data.position(8);
+                while (data.hasRemaining() && fileChannel.read(data) > 0) {
+                    // fill the packet
+                }
+                int readCount = data.position() - 8;
 
-                if (readCount == -1) {
+                if (readCount == 0) {
                     // we reached the end of the file
                     break;
                 }
 
-                // now send the data to the device
-                // first write the amount read
-                ArrayHelper.swap32bitsToArray(readCount, getBuffer(), 4);
-
-                // now write it
-                AdbHelper.write(mChannel, getBuffer(), readCount+8, timeOut);
+                // now send the data to the device, after the header with the amount read
+                data.flip();
+                data.put(ID_DATA);
+                data.putInt(readCount);
+                data.position(0);
+                AdbHelper.write(mChannel, data, timeOut);
 
                 // and advance the monitor
                 monitor.advance(readCount);
+                transferred += readCount;
             }
         } catch (UnsupportedEncodingException e) {
             throw new SyncException(SyncError.REMOTE_PATH_ENCODING, e);
@@ -724,6 +777,16 @@ public class SyncService {
             throw new SyncException(SyncError.TRANSFER_PROTOCOL_ERROR,
                     readErrorMessage(result, timeOut));
         }
+
+        reportTransfer(monitor, remotePath, transferred, start);
+    }
+
+    private static void reportTransfer(ISyncProgressMonitor monitor, String remotePath,
+            long bytes, long start) {
+        if (monitor instanceof ISyncThroughputMonitor) {
+            ((ISyncThroughputMonitor) monitor).fileTransferred(remotePath, bytes,
+                    System.nanoTime() - start);
+        }
     }
 
     /**
@@ -913,4 +976,16 @@ public class SyncService {
         }
         return mBuffer;
     }
+
+    /**
+     * Returns the direct buffer used for DATA packets, in the little endian order of the sync
+     * protocol.
+     */
+    private ByteBuffer getDataBuffer() {
+        if (mDataBuffer == null) {
+            mDataBuffer = ByteBuffer.allocateDirect(SYNC_DATA_MAX + 8);
+            mDataBuffer.order(ByteOrder.LITTLE_ENDIAN);
+        }
+        return mDataBuffer;
+    }
 }
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import junit.framework.TestCase;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+public class AdbHelperTest extends TestCase {
+    private ServerSocketChannel mServer;
+    private SocketChannel mClient;
+    private SocketChannel mPeer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        mServer = ServerSocketChannel.open();
+        mServer.socket().bind(new InetSocketAddress(InetAddress.getByName("localhost"), 0));
+        mClient = SocketChannel.open(mServer.socket().getLocalSocketAddress());
+        mClient.configureBlocking(false);
+        mPeer = mServer.accept();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mClient.close();
+        mPeer.close();
+        mServer.close();
+
+        super.tearDown();
+    }
+
+    public void testReadTimeout() throws Exception {
+        long start = System.nanoTime();
+        try {
+            AdbHelper.read(mClient, new byte[4], -1, 200);
+            fail("TimeoutException should've been thrown by the previous statement");
+        } catch (TimeoutException e) {
+            // expected
+        }
+        long elapsedMs = (System.nanoTime() - start) / 1000000;
+        assertTrue("timed out after " + elapsedMs + "ms", elapsedMs >= 200);
+    }
+
+    public void testReadWaitsForData() throws Exception {
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                    mPeer.write(ByteBuffer.wrap(new byte[] { 1, 2 }));
+                    Thread.sleep(50);
+                    mPeer.write(ByteBuffer.wrap(new byte[] { 3, 4 }));
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        writer.start();
+
+        byte[] data = new byte[4];
+        AdbHelper.read(mClient, data, -1, 5000);
+        writer.join();
+        assertTrue(Arrays.equals(new byte[] { 1, 2, 3, 4 }, data));
+    }
+
+    public void testReadTimeoutCoversWholeRead() throws Exception {
+        // Data trickling in more often than the timeout doesn't extend it.
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < 5; i++) {
+                        Thread.sleep(100);
+                        mPeer.write(ByteBuffer.wrap(new byte[] { 1 }));
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        writer.start();
+
+        long start = System.nanoTime();
+        try {
+            AdbHelper.read(mClient, new byte[8], -1, 300);
+            fail("TimeoutException should've been thrown by the previous statement");
+        } catch (TimeoutException e) {
+            long elapsedMs = (System.nanoTime() - start) / 1000000;
+            assertTrue("timed out after " + elapsedMs + "ms", elapsedMs < 450);
+        } finally {
+            writer.join();
+        }
+    }
+
+    public void testIdleSelectorsAreCapped() throws Exception {
+        int threadCount = ChannelWaiter.MAX_IDLE_SELECTORS * 2;
+        final CountDownLatch started = new CountDownLatch(threadCount);
+        final List<SocketChannel> channels = new ArrayList<SocketChannel>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < threadCount; i++) {
+            final SocketChannel client =
+                    SocketChannel.open(mServer.socket().getLocalSocketAddress());
+            client.configureBlocking(false);
+            channels.add(client);
+            channels.add(mServer.accept());
+            Thread waiter = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        started.countDown();
+                        ChannelWaiter.waitFor(client, SelectionKey.OP_READ, 200);
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            waiter.start();
+            threads.add(waiter);
+        }
+        started.await();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (SocketChannel channel : channels) {
+            channel.close();
+        }
+        assertTrue(ChannelWaiter.getIdleSelectorCount() <= ChannelWaiter.MAX_IDLE_SELECTORS);
+    }
+
+    public void testInterruptedRead() throws Exception {
+        Thread.currentThread().interrupt();
+        try {
+            AdbHelper.read(mClient, new byte[4], -1, 0 /* wait forever */);
+            fail("TimeoutException should've been thrown by the previous statement");
+        } catch (TimeoutException e) {
+            // expected
+        } finally {
+            assertTrue(Thread.interrupted());
+        }
+    }
+
+    public void testCloseEndsWaitWithoutTimeout() throws Exception {
+        Thread closer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                    mClient.close();
+                } catch (Exception e) {
+                    // the wait below never ends
+                }
+            }
+        };
+        closer.start();
+        long start = System.nanoTime();
+        assertFalse(ChannelWaiter.waitFor(mClient, SelectionKey.OP_READ, 0 /* wait forever */));
+        long elapsedMs = (System.nanoTime() - start) / 1000000;
+        assertTrue("returned after " + elapsedMs + "ms", elapsedMs < 5000);
+        closer.join();
+    }
+
+    public void testWriteRead() throws Exception {
+        byte[] request = AdbHelper.formAdbRequest("host:version");
+        AdbHelper.write(mClient, request);
+
+        byte[] received = new byte[request.length];
+        ByteBuffer buf = ByteBuffer.wrap(received);
+        while (buf.hasRemaining()) {
+            mPeer.read(buf);
+        }
+        assertTrue(Arrays.equals(request, received));
+    }
+}
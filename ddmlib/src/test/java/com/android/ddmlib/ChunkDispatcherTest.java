@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ChunkDispatcherTest extends TestCase {
+    private static final int TYPE = ChunkHandler.type("TEST");
+
+    private ChunkDispatcher mDispatcher;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDispatcher = new ChunkDispatcher(4);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDispatcher.shutdown();
+        super.tearDown();
+    }
+
+    public void testSmallChunksAreHandledInline() throws Exception {
+        RecordingHandler handler = new RecordingHandler(null);
+        Client client = new Client(null, null, 1);
+
+        mDispatcher.dispatch(client, handler, TYPE, ByteBuffer.wrap(new byte[] { 1 }), false, 1);
+
+        List<String> handled = handler.getHandled();
+        assertEquals(Collections.singletonList(Thread.currentThread().getName() + ":1"),
+                handled);
+    }
+
+    public void testChunksAreCopiedAndKeepTheirOrder() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingHandler handler = new RecordingHandler(release);
+        Client client = new Client(null, null, 1);
+
+        // the buffer is reused for the following chunks, like the read buffer of a client. The
+        // first chunk is too large to be handled inline, and the small ones are queued behind it.
+        ByteBuffer data = ByteBuffer.allocate(ChunkDispatcher.INLINE_CHUNK_SIZE + 1);
+        data.put(0, (byte) 1);
+        mDispatcher.dispatch(client, handler, TYPE, data, false, 1);
+        data.limit(1);
+        for (int i = 2; i <= 3; i++) {
+            data.put(0, (byte) i);
+            mDispatcher.dispatch(client, handler, TYPE, data, false, i);
+        }
+        assertTrue(handler.getHandled().isEmpty());
+
+        release.countDown();
+        handler.waitFor(3);
+
+        List<String> handled = handler.getHandled();
+        assertEquals(3, handled.size());
+        for (int i = 0; i < 3; i++) {
+            assertTrue(handled.get(i), handled.get(i).endsWith(":" + (i + 1)));
+            assertFalse(handled.get(i).startsWith(Thread.currentThread().getName() + ":"));
+        }
+    }
+
+    public void testSlowClientDoesNotBlockOthers() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingHandler slowHandler = new RecordingHandler(release);
+        RecordingHandler handler = new RecordingHandler(null);
+
+        byte[] large = new byte[ChunkDispatcher.INLINE_CHUNK_SIZE + 1];
+        mDispatcher.dispatch(new Client(null, null, 1), slowHandler, TYPE,
+                ByteBuffer.wrap(large), false, 1);
+        mDispatcher.dispatch(new Client(null, null, 2), handler, TYPE,
+                ByteBuffer.wrap(large), false, 2);
+
+        handler.waitFor(1);
+        assertEquals(1, handler.getHandled().size());
+        assertTrue(slowHandler.getHandled().isEmpty());
+
+        release.countDown();
+        slowHandler.waitFor(1);
+        assertEquals(1, slowHandler.getHandled().size());
+    }
+
+    public void testEachClientKeepsItsOrder() throws Exception {
+        final int threadCount = 4;
+        final int chunkCount = 50;
+        final RecordingHandler[] handlers = new RecordingHandler[threadCount];
+        List<Thread> readers = new ArrayList<Thread>();
+        for (int t = 0; t < threadCount; t++) {
+            final Client client = new Client(null, null, t);
+            final RecordingHandler handler = handlers[t] = new RecordingHandler(null);
+            Thread reader = new Thread("reader-" + t) {
+                @Override
+                public void run() {
+                    for (int i = 0; i < chunkCount; i++) {
+                        // mix small and large chunks, so some are handled inline
+                        ByteBuffer data = ByteBuffer.allocate(
+                                i % 3 == 0 ? ChunkDispatcher.INLINE_CHUNK_SIZE + 1 : 1);
+                        data.put(0, (byte) i);
+                        mDispatcher.dispatch(client, handler, TYPE, data, false, i);
+                    }
+                }
+            };
+            reader.start();
+            readers.add(reader);
+        }
+        for (Thread reader : readers) {
+            reader.join();
+        }
+
+        for (RecordingHandler handler : handlers) {
+            handler.waitFor(chunkCount);
+            List<String> handled = handler.getHandled();
+            assertEquals(chunkCount, handled.size());
+            for (int i = 0; i < chunkCount; i++) {
+                assertTrue(handled.get(i), handled.get(i).endsWith(":" + i));
+            }
+            assertEquals(1, handler.getMaxConcurrency());
+        }
+    }
+
+    private static final class RecordingHandler extends ChunkHandler {
+        private final CountDownLatch mRelease;
+        private final List<String> mHandled = new ArrayList<String>();
+        private final AtomicInteger mRunning = new AtomicInteger();
+        private volatile int mMaxConcurrency;
+
+        RecordingHandler(CountDownLatch release) {
+            mRelease = release;
+        }
+
+        @Override
+        void clientReady(Client client) {}
+
+        @Override
+        void clientDisconnected(Client client) {}
+
+        @Override
+        void handleChunk(Client client, int type, ByteBuffer data, boolean isReply, int msgId) {
+            int running = mRunning.incrementAndGet();
+            mMaxConcurrency = Math.max(mMaxConcurrency, running);
+            try {
+                if (mRelease != null) {
+                    try {
+                        mRelease.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                synchronized (mHandled) {
+                    mHandled.add(Thread.currentThread().getName() + ":" + data.get(0));
+                    mHandled.notifyAll();
+                }
+            } finally {
+                mRunning.decrementAndGet();
+            }
+        }
+
+        List<String> getHandled() {
+            synchronized (mHandled) {
+                return new ArrayList<String>(mHandled);
+            }
+        }
+
+        int getMaxConcurrency() {
+            return mMaxConcurrency;
+        }
+
+        void waitFor(int count) throws InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            synchronized (mHandled) {
+                while (mHandled.size() < count && System.nanoTime() < deadline) {
+                    mHandled.wait(100);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fake adb server which only implements the sync service, over files kept in memory.
+ * <p/>Each connection is served by its own thread, so several sync connections can be open at
+ * the same time.
+ */
+class FakeSyncServer {
+    private static final int SYNC_DATA_MAX = 64 * 1024;
+
+    private final ServerSocket mServerSocket;
+    private final Map<String, byte[]> mFiles = new ConcurrentHashMap<String, byte[]>();
+    private final AtomicInteger mConnectionCount = new AtomicInteger();
+
+    FakeSyncServer() throws IOException {
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("localhost"));
+        Thread acceptThread = new Thread("Fake sync server") {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        final Socket socket = mServerSocket.accept();
+                        mConnectionCount.incrementAndGet();
+                        new Thread("Fake sync connection") {
+                            @Override
+                            public void run() {
+                                serve(socket);
+                            }
+                        }.start();
+                    }
+                } catch (IOException e) {
+                    // server closed
+                }
+            }
+        };
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    InetSocketAddress getAddress() {
+        return (InetSocketAddress) mServerSocket.getLocalSocketAddress();
+    }
+
+    /** Returns the files on the fake device, by path. */
+    Map<String, byte[]> getFiles() {
+        return mFiles;
+    }
+
+    int getConnectionCount() {
+        return mConnectionCount.get();
+    }
+
+    /** Opens a sync connection to this server. */
+    SyncService openSync() throws Exception {
+        SyncService sync = new SyncService(getAddress(), null);
+        if (!sync.openSync()) {
+            throw new IOException("sync refused");
+        }
+        return sync;
+    }
+
+    void close() throws IOException {
+        mServerSocket.close();
+    }
+
+    private void serve(Socket socket) {
+        try {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+
+            byte[] length = new byte[4];
+            in.readFully(length);
+            byte[] request = new byte[Integer.parseInt(new String(length, "ISO-8859-1"), 16)];
+            in.readFully(request);
+            if (!"sync:".equals(new String(request, "ISO-8859-1"))) {
+                out.write(new byte[] { 'F', 'A', 'I', 'L' });
+                return;
+            }
+            out.write(new byte[] { 'O', 'K', 'A', 'Y' });
+
+            while (true) {
+                String id = readId(in);
+                String path = new String(readBytes(in, readInt(in)), "ISO-8859-1");
+                if ("STAT".equals(id)) {
+                    byte[] content = mFiles.get(path);
+                    out.write(id.getBytes("ISO-8859-1"));
+                    writeInt(out, content != null ? 0100644 : 0);
+                    writeInt(out, content != null ? content.length : 0);
+                    writeInt(out, 0);
+                } else if ("RECV".equals(id)) {
+                    sendFile(out, path);
+                } else if ("SEND".equals(id)) {
+                    receiveFile(in, out, path.substring(0, path.lastIndexOf(',')));
+                } else {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            // the client closed the connection
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private void sendFile(OutputStream out, String path) throws IOException {
+        byte[] content = mFiles.get(path);
+        if (content == null) {
+            byte[] message = "No such file or directory".getBytes("ISO-8859-1");
+            out.write(new byte[] { 'F', 'A', 'I', 'L' });
+            writeInt(out, message.length);
+            out.write(message);
+            return;
+        }
+        for (int offset = 0; offset < content.length; offset += SYNC_DATA_MAX) {
+            int count = Math.min(SYNC_DATA_MAX, content.length - offset);
+            out.write(new byte[] { 'D', 'A', 'T', 'A' });
+            writeInt(out, count);
+            out.write(content, offset, count);
+        }
+        out.write(new byte[] { 'D', 'O', 'N', 'E' });
+        writeInt(out, 0);
+    }
+
+    private void receiveFile(DataInputStream in, OutputStream out, String path)
+            throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        while (true) {
+            String id = readId(in);
+            int value = readInt(in);
+            if ("DATA".equals(id)) {
+                if (value > SYNC_DATA_MAX) {
+                    throw new IOException("DATA packet too large: " + value);
+                }
+                content.write(readBytes(in, value));
+            } else if ("DONE".equals(id)) {
+                mFiles.put(path, content.toByteArray());
+                out.write(new byte[] { 'O', 'K', 'A', 'Y' });
+                writeInt(out, 0);
+                return;
+            } else {
+                throw new IOException("Unexpected packet " + id);
+            }
+        }
+    }
+
+    private static String readId(DataInputStream in) throws IOException {
+        return new String(readBytes(in, 4), "ISO-8859-1");
+    }
+
+    private static byte[] readBytes(DataInputStream in, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static int readInt(DataInputStream in) throws IOException {
+        return Integer.reverseBytes(in.readInt());
+    }
+
+    private static void writeInt(OutputStream out, int value) throws IOException {
+        out.write(value);
+        out.write(value >> 8);
+        out.write(value >> 16);
+        out.write(value >> 24);
+    }
+}
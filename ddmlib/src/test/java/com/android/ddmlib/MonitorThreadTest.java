@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import junit.framework.TestCase;
+
+public class MonitorThreadTest extends TestCase {
+    /** A client without a device, which can be closed. */
+    private static Client createClient(int pid) {
+        return new Client(null, null, pid) {
+            @Override
+            void close(boolean notify) {
+            }
+        };
+    }
+
+    public void testAddClientBeforeStart() throws Exception {
+        MonitorThread monitor = MonitorThread.createInstance();
+        try {
+            for (int i = 0; i < DdmPreferences.getMonitorThreadCount() + 1; i++) {
+                monitor.addClient(createClient(i));
+            }
+            assertEquals(DdmPreferences.getMonitorThreadCount() + 1,
+                    monitor.getClients().length);
+        } finally {
+            monitor.quit();
+        }
+        assertNull(MonitorThread.getInstance());
+    }
+}
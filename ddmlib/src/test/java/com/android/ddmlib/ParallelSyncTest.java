@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.ddmlib.SyncServiceTest.RecordingMonitor;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+public class ParallelSyncTest extends TestCase {
+    private static final int FILE_COUNT = 10;
+
+    private FakeSyncServer mServer;
+    private File mTempDir;
+    private IDevice mDevice;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new FakeSyncServer();
+        mTempDir = Files.createTempDir();
+
+        mDevice = DeviceTest.createMockDevice();
+        EasyMock.expect(mDevice.getSyncService()).andStubAnswer(new IAnswer<SyncService>() {
+            @Override
+            public SyncService answer() throws Throwable {
+                return mServer.openSync();
+            }
+        });
+        EasyMock.replay(mDevice);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.close();
+        for (File file : mTempDir.listFiles()) {
+            file.delete();
+        }
+        mTempDir.delete();
+        super.tearDown();
+    }
+
+    public void testPushFiles() throws Exception {
+        Map<String, String> files = Maps.newHashMap();
+        long total = 0;
+        for (int i = 0; i < FILE_COUNT; i++) {
+            byte[] content = SyncServiceTest.createContent(i * 40000, i);
+            File local = new File(mTempDir, "file" + i);
+            Files.write(content, local);
+            files.put(local.getPath(), "/data/local/tmp/file" + i);
+            total += content.length;
+        }
+
+        RecordingMonitor monitor = new RecordingMonitor();
+        new ParallelSync(mDevice, 4).pushFiles(files, monitor);
+
+        for (Map.Entry<String, String> entry : files.entrySet()) {
+            assertTrue(Arrays.equals(Files.toByteArray(new File(entry.getKey())),
+                    mServer.getFiles().get(entry.getValue())));
+        }
+        assertEquals(4, mServer.getConnectionCount());
+        // the monitor is started and stopped once for the whole transfer
+        assertEquals(1, monitor.mStarted);
+        assertEquals(1, monitor.mStopped);
+        assertEquals(total, monitor.mTotalWork);
+        assertEquals(total, monitor.mWork);
+        assertEquals(FILE_COUNT, monitor.mTransferred.size());
+        assertEquals(total, monitor.mTransferredBytes);
+    }
+
+    public void testPullFiles() throws Exception {
+        Map<String, String> files = Maps.newHashMap();
+        long total = 0;
+        for (int i = 0; i < FILE_COUNT; i++) {
+            byte[] content = SyncServiceTest.createContent(i * 40000, i);
+            mServer.getFiles().put("/sdcard/file" + i, content);
+            files.put("/sdcard/file" + i, new File(mTempDir, "file" + i).getPath());
+            total += content.length;
+        }
+
+        RecordingMonitor monitor = new RecordingMonitor();
+        new ParallelSync(mDevice, 3).pullFiles(files, monitor);
+
+        for (Map.Entry<String, String> entry : files.entrySet()) {
+            assertTrue(Arrays.equals(mServer.getFiles().get(entry.getKey()),
+                    Files.toByteArray(new File(entry.getValue()))));
+        }
+        assertEquals(3, mServer.getConnectionCount());
+        assertEquals(1, monitor.mStarted);
+        assertEquals(1, monitor.mStopped);
+        assertEquals(total, monitor.mWork);
+        assertEquals(FILE_COUNT, monitor.mTransferred.size());
+    }
+
+    public void testFailureIsReported() throws Exception {
+        Map<String, String> files = Maps.newHashMap();
+        for (int i = 0; i < FILE_COUNT; i++) {
+            mServer.getFiles().put("/sdcard/file" + i, new byte[10]);
+            files.put("/sdcard/file" + i, new File(mTempDir, "file" + i).getPath());
+        }
+        files.put("/sdcard/missing", new File(mTempDir, "missing").getPath());
+
+        try {
+            new ParallelSync(mDevice, 4).pullFiles(files, new RecordingMonitor());
+            fail("SyncException should've been thrown by the previous statement");
+        } catch (SyncException e) {
+            assertEquals(SyncException.SyncError.NO_REMOTE_OBJECT, e.getErrorCode());
+        }
+    }
+
+    public void testNoFiles() throws Exception {
+        RecordingMonitor monitor = new RecordingMonitor();
+        new ParallelSync(mDevice, 4).pushFiles(Collections.<String, String>emptyMap(), monitor);
+        assertEquals(0, mServer.getConnectionCount());
+        assertEquals(1, monitor.mStarted);
+        assertEquals(1, monitor.mStopped);
+    }
+}
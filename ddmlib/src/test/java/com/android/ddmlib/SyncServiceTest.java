@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ddmlib;
+
+import com.android.ddmlib.SyncService.ISyncThroughputMonitor;
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class SyncServiceTest extends TestCase {
+    private FakeSyncServer mServer;
+    private File mTempDir;
+
+    /**
+     * Monitor recording the progress and the transferred files.
+     */
+    static class RecordingMonitor implements ISyncThroughputMonitor {
+        int mStarted;
+        int mStopped;
+        int mTotalWork;
+        long mWork;
+        final List<String> mTransferred = new ArrayList<String>();
+        long mTransferredBytes;
+
+        @Override
+        public void start(int totalWork) {
+            mStarted++;
+            mTotalWork = totalWork;
+        }
+
+        @Override
+        public void stop() {
+            mStopped++;
+        }
+
+        @Override
+        public boolean isCanceled() {
+            return false;
+        }
+
+        @Override
+        public void startSubTask(String name) {
+        }
+
+        @Override
+        public void advance(int work) {
+            mWork += work;
+        }
+
+        @Override
+        public void fileTransferred(String remotePath, long bytes, long nanos) {
+            assertTrue(nanos >= 0);
+            mTransferred.add(remotePath);
+            mTransferredBytes += bytes;
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new FakeSyncServer();
+        mTempDir = Files.createTempDir();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.close();
+        for (File file : mTempDir.listFiles()) {
+            file.delete();
+        }
+        mTempDir.delete();
+        super.tearDown();
+    }
+
+    static byte[] createContent(int size, long seed) {
+        byte[] content = new byte[size];
+        new Random(seed).nextBytes(content);
+        return content;
+    }
+
+    public void testPushFile() throws Exception {
+        // several DATA packets, the last one partial
+        byte[] content = createContent(3 * 64 * 1024 + 123, 1);
+        File local = new File(mTempDir, "local");
+        Files.write(content, local);
+
+        RecordingMonitor monitor = new RecordingMonitor();
+        SyncService sync = mServer.openSync();
+        try {
+            sync.pushFile(local.getPath(), "/data/local/tmp/file", monitor);
+        } finally {
+            sync.close();
+        }
+
+        assertTrue(Arrays.equals(content, mServer.getFiles().get("/data/local/tmp/file")));
+        assertEquals(content.length, monitor.mTotalWork);
+        assertEquals(content.length, monitor.mWork);
+        assertEquals(Arrays.asList("/data/local/tmp/file"), monitor.mTransferred);
+        assertEquals(content.length, monitor.mTransferredBytes);
+    }
+
+    public void testPushEmptyFile() throws Exception {
+        File local = new File(mTempDir, "empty");
+        Files.write(new byte[0], local);
+
+        SyncService sync = mServer.openSync();
+        try {
+            sync.pushFile(local.getPath(), "/data/local/tmp/empty",
+                    SyncService.getNullProgressMonitor());
+        } finally {
+            sync.close();
+        }
+
+        assertEquals(0, mServer.getFiles().get("/data/local/tmp/empty").length);
+    }
+
+    public void testPullFile() throws Exception {
+        byte[] content = createContent(2 * 64 * 1024 + 7, 2);
+        mServer.getFiles().put("/sdcard/file", content);
+        File local = new File(mTempDir, "pulled");
+
+        RecordingMonitor monitor = new RecordingMonitor();
+        SyncService sync = mServer.openSync();
+        try {
+            sync.pullFile("/sdcard/file", local.getPath(), monitor);
+        } finally {
+            sync.close();
+        }
+
+        assertTrue(Arrays.equals(content, Files.toByteArray(local)));
+        assertEquals(content.length, monitor.mWork);
+        assertEquals(Arrays.asList("/sdcard/file"), monitor.mTransferred);
+        assertEquals(content.length, monitor.mTransferredBytes);
+    }
+
+    public void testPullMissingFile() throws Exception {
+        SyncService sync = mServer.openSync();
+        try {
+            sync.pullFile("/sdcard/missing", new File(mTempDir, "missing").getPath(),
+                    SyncService.getNullProgressMonitor());
+            fail("SyncException should've been thrown by the previous statement");
+        } catch (SyncException e) {
+            assertEquals(SyncException.SyncError.NO_REMOTE_OBJECT, e.getErrorCode());
+        } finally {
+            sync.close();
+        }
+    }
+}
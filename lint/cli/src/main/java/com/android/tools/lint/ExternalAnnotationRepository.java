@@ -54,9 +54,11 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Sets;
+import com.google.common.hash.Hashing;
 import com.google.common.io.ByteStreams;
 import com.google.common.io.Closeables;
 import com.google.common.io.Files;
+import com.google.common.primitives.UnsignedBytes;
 
 import org.eclipse.jdt.internal.compiler.lookup.FieldBinding;
 import org.eclipse.jdt.internal.compiler.lookup.MethodBinding;
@@ -89,18 +91,24 @@ import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.WeakHashMap;
 import java.util.jar.JarInputStream;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -119,8 +127,31 @@ public class ExternalAnnotationRepository {
 
     private static final boolean DEBUG = false;
 
+    /** The number of repositories kept for the projects checked last */
+    private static final int MAX_CACHED_REPOSITORIES = 4;
+
+    /** The repository set by tests, returned to all clients when not null */
     private static ExternalAnnotationRepository sSingleton;
 
+    /** The repository of each client; each lint run has its own client */
+    private static final Map<LintClient, ExternalAnnotationRepository> sClientRepositories =
+            new WeakHashMap<LintClient, ExternalAnnotationRepository>();
+
+    /**
+     * The repositories created last, by the annotation files they were read from. A long
+     * running process such as the {@link LintDaemon} shares them between the runs on the
+     * same projects, while runs on other projects, or after the files changed, get their
+     * own.
+     */
+    private static final Map<String, ExternalAnnotationRepository> sRepositories =
+            new LinkedHashMap<String, ExternalAnnotationRepository>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<String, ExternalAnnotationRepository> eldest) {
+                    return size() > MAX_CACHED_REPOSITORIES;
+                }
+            };
+
     private final List<AnnotationsDatabase> mDatabases;
 
     private ExternalAnnotationRepository(@NonNull List<AnnotationsDatabase> databases) {
@@ -129,53 +160,72 @@ public class ExternalAnnotationRepository {
 
     @NonNull
     public static synchronized ExternalAnnotationRepository get(@NonNull LintClient client) {
-        if (sSingleton == null) {
-            Collection<Project> projects = client.getKnownProjects();
-            if (Project.isAospBuildEnvironment()) {
-                for (Project project : projects) {
-                    // If we are dealing with the AOSP frameworks project, we explicitly
-                    // set the ExternalAnnotationRepository to a no-op.
-                    if (Project.isAospFrameworksProject(project.getDir())) {
-                        return sSingleton = new ExternalAnnotationRepository(
-                                Collections.<AnnotationsDatabase>emptyList());
-                    }
+        if (sSingleton != null) {
+            return sSingleton;
+        }
+        ExternalAnnotationRepository repository = sClientRepositories.get(client);
+        if (repository == null) {
+            List<File> files = getAnnotationFiles(client);
+            StringBuilder key = new StringBuilder();
+            for (File file : files) {
+                key.append(file.getPath()).append(File.pathSeparatorChar)
+                        .append(file.lastModified()).append(File.pathSeparatorChar)
+                        .append(file.length()).append('\n');
+            }
+            repository = sRepositories.get(key.toString());
+            if (repository == null) {
+                repository = create(client, files);
+                sRepositories.put(key.toString(), repository);
+            }
+            sClientRepositories.put(client, repository);
+        }
+        return repository;
+    }
+
+    /** Returns the annotation files of the projects known to the given client */
+    @NonNull
+    private static List<File> getAnnotationFiles(@NonNull LintClient client) {
+        List<File> files = Lists.newArrayListWithExpectedSize(2);
+        Collection<Project> projects = client.getKnownProjects();
+        if (Project.isAospBuildEnvironment()) {
+            for (Project project : projects) {
+                // If we are dealing with the AOSP frameworks project, we explicitly
+                // set the ExternalAnnotationRepository to a no-op.
+                if (Project.isAospFrameworksProject(project.getDir())) {
+                    return files;
                 }
             }
-            HashSet<AndroidLibrary> seen = Sets.newHashSet();
-            List<File> files = Lists.newArrayListWithExpectedSize(2);
-            for (Project project : projects) {
-                if (project.isGradleProject()) {
-                    Variant variant = project.getCurrentVariant();
-                    AndroidProject model = project.getGradleProjectModel();
-                    if (model != null && variant != null) {
-                        Dependencies dependencies = variant.getMainArtifact().getDependencies();
-                        for (AndroidLibrary library : dependencies.getLibraries()) {
-                            addLibraries(files, library, seen);
-                        }
+        }
+        HashSet<AndroidLibrary> seen = Sets.newHashSet();
+        for (Project project : projects) {
+            if (project.isGradleProject()) {
+                Variant variant = project.getCurrentVariant();
+                AndroidProject model = project.getGradleProjectModel();
+                if (model != null && variant != null) {
+                    Dependencies dependencies = variant.getMainArtifact().getDependencies();
+                    for (AndroidLibrary library : dependencies.getLibraries()) {
+                        addLibraries(files, library, seen);
                     }
                 }
             }
+        }
 
-            File sdkAnnotations = client.findResource(SDK_ANNOTATIONS_PATH);
-            if (sdkAnnotations == null) {
-                // Until the SDK annotations are bundled in platform tools, provide
-                // a fallback for Gradle builds to point to a locally installed version
-                String path = System.getenv("SDK_ANNOTATIONS");
-                if (path != null) {
-                    sdkAnnotations = new File(path);
-                    if (!sdkAnnotations.exists()) {
-                        sdkAnnotations = null;
-                    }
+        File sdkAnnotations = client.findResource(SDK_ANNOTATIONS_PATH);
+        if (sdkAnnotations == null) {
+            // Until the SDK annotations are bundled in platform tools, provide
+            // a fallback for Gradle builds to point to a locally installed version
+            String path = System.getenv("SDK_ANNOTATIONS");
+            if (path != null) {
+                sdkAnnotations = new File(path);
+                if (!sdkAnnotations.exists()) {
+                    sdkAnnotations = null;
                 }
             }
-            if (sdkAnnotations != null) {
-                files.add(sdkAnnotations);
-            }
-
-            sSingleton = create(client, files);
         }
-
-        return sSingleton;
+        if (sdkAnnotations != null) {
+            files.add(sdkAnnotations);
+        }
+        return files;
     }
 
     @VisibleForTesting
@@ -188,10 +238,11 @@ public class ExternalAnnotationRepository {
             begin = System.currentTimeMillis();
         }
 
+        File cacheDir = client != null ? client.getCacheDir(true) : null;
         List<AnnotationsDatabase> databases = Lists.newArrayListWithExpectedSize(files.size());
         for (File file : files) {
             try {
-                AnnotationsDatabase database = getDatabase(file);
+                AnnotationsDatabase database = getDatabase(cacheDir, file);
                 if (database != null) {
                     databases.add(database);
                 }
@@ -242,7 +293,8 @@ public class ExternalAnnotationRepository {
             @NonNull LintClient client,
             @NonNull File file) {
         try {
-            return file.isFile() ? new AnnotationsDatabase(file) : null;
+            return file.isFile()
+                    ? AnnotationsDatabase.create(client.getCacheDir(true), file) : null;
         } catch (IOException ioe) {
             client.log(ioe, "Could not read %1$s", file.getPath());
             return null;
@@ -251,8 +303,9 @@ public class ExternalAnnotationRepository {
 
     @VisibleForTesting
     @Nullable
-    static AnnotationsDatabase getDatabase(@NonNull File file) throws IOException {
-        return file.exists() ? new AnnotationsDatabase(file) : null;
+    static AnnotationsDatabase getDatabase(@Nullable File cacheDir, @NonNull File file)
+            throws IOException {
+        return file.exists() ? AnnotationsDatabase.create(cacheDir, file) : null;
     }
 
     @Nullable
@@ -631,16 +684,85 @@ public class ExternalAnnotationRepository {
      * into the various databases through a single entrypoint.
      * */
     static class AnnotationsDatabase {
-        AnnotationsDatabase(@NonNull File file) throws IOException {
-            String path = file.getPath();
-            if (path.endsWith(DOT_JAR) || path.endsWith(FN_ANNOTATIONS_ZIP)) {
-                initializeFromJar(file);
-            } else {
-                assert file.isDirectory() : file;
-                initializeFromDirectory(file);
+        private static final String FILE_HEADER = "Annotations database used by Android lint\000";
+        private static final int BINARY_FORMAT_VERSION = 1;
+        /** Size of the header, the format version and the length and time stamp of the source */
+        private static final int HEADER_SIZE = FILE_HEADER.length() + 1 + 8 + 8;
+
+        private static final int ITEM_CLASS = 0;
+        private static final int ITEM_FIELD = 1;
+        private static final int ITEM_METHOD = 2;
+
+        /** The binary index of the database; see {@link #createIndex(File)} for the format */
+        private final ByteBuffer mIndex;
+        private final int mClassCount;
+
+        AnnotationsDatabase(@NonNull ByteBuffer index) {
+            mIndex = index;
+            mClassCount = index.getInt(HEADER_SIZE);
+        }
+
+        /**
+         * Opens the database of the given annotations .zip file or directory. The database
+         * is indexed the first time, and the index of a .zip file is kept in the given cache
+         * directory (and memory mapped) for the next times.
+         */
+        @NonNull
+        static AnnotationsDatabase create(@Nullable File cacheDir, @NonNull File file)
+                throws IOException {
+            if (cacheDir == null || !file.isFile()) {
+                // Directories (in the dev tree) are indexed in memory
+                return new AnnotationsDatabase(ByteBuffer.wrap(createIndex(file)));
+            }
+
+            File indexFile = new File(cacheDir, getCacheFileName(file));
+            if (indexFile.isFile() && indexFile.length() >= HEADER_SIZE + 4) {
+                ByteBuffer index = Files.map(indexFile);
+                if (isIndexOf(index, file)) {
+                    return new AnnotationsDatabase(index);
+                }
+            }
+
+            byte[] bytes = createIndex(file);
+            try {
+                // Written to a temporary file first such that other lint processes never
+                // map a partially written index
+                File temp = new File(indexFile.getPath() + ".tmp"); //$NON-NLS-1$
+                Files.write(bytes, temp);
+                if (indexFile.exists() && !indexFile.delete() || !temp.renameTo(indexFile)) {
+                    temp.delete();
+                    throw new IOException("Could not write " + indexFile);
+                }
+                return new AnnotationsDatabase(Files.map(indexFile));
+            } catch (IOException ignore) {
+                // Read-only cache directory, or index in use: keep the index in memory
+                return new AnnotationsDatabase(ByteBuffer.wrap(bytes));
             }
         }
 
+        @NonNull
+        private static String getCacheFileName(@NonNull File file) {
+            // Incorporate version number in the filename to avoid upgrade filename
+            // conflicts on Windows (see ApiLookup)
+            return "annotations-" //$NON-NLS-1$
+                    + Hashing.sha1().hashString(file.getPath(), Charsets.UTF_8).toString()
+                    + '-' + BINARY_FORMAT_VERSION + ".bin"; //$NON-NLS-1$
+        }
+
+        /** Returns true if the given index is up to date with the given source file */
+        private static boolean isIndexOf(@NonNull ByteBuffer index, @NonNull File file) {
+            byte[] expectedHeader = FILE_HEADER.getBytes(Charsets.US_ASCII);
+            int offset = 0;
+            for (byte b : expectedHeader) {
+                if (index.get(offset++) != b) {
+                    return false;
+                }
+            }
+            return index.get(offset++) == BINARY_FORMAT_VERSION
+                    && index.getLong(offset) == file.length()
+                    && index.getLong(offset + 8) == file.lastModified();
+        }
+
         // ---- Query methods ----
 
         @Nullable
@@ -897,21 +1019,96 @@ public class ExternalAnnotationRepository {
 
         // ---- Initialization ----
 
-        private void initializeFromDirectory(File file) throws IOException {
+        /**
+         * Parses the annotations .zip file or directory, and returns its binary index:
+         * <pre>
+         * (Note: all numbers are big endian; strings are stored as their length [2 bytes]
+         * followed by their UTF-8 representation.)
+         *
+         * 1. A file header, which is the exact contents of {@link #FILE_HEADER} encoded
+         *    as ASCII characters, followed by the {@link #BINARY_FORMAT_VERSION} [1 byte],
+         *    and the length and last modification time of the indexed file [8 bytes each].
+         * 2. The number of classes [4 bytes], followed by the offsets of the class entries
+         *    [4 bytes each], sorted by the UTF-8 representation of the class names such that
+         *    they can be binary searched.
+         * 3. The class entries -- one for each class or package (as a package-info class)
+         *    a. The fully qualified name of the class [a string]
+         *    b. The number of annotated items of the class [2 bytes]
+         *    c. For each item:
+         *       I. The kind of item [1 byte]: {@link #ITEM_CLASS}, {@link #ITEM_FIELD} or
+         *          {@link #ITEM_METHOD}
+         *       II. For fields, the name of the field [a string]. For methods, the name of
+         *           the method [a string], 1 for constructors and 0 otherwise [1 byte], the
+         *           parameter types [a string], and the index of the annotated parameter,
+         *           or -1 for the method itself [2 bytes]
+         *       III. The number of annotations [2 bytes], and for each, its fully qualified
+         *            name [a string], the number of values [2 bytes] and the name and value
+         *            of each, as written in the XML file [2 strings]
+         * </pre>
+         */
+        @NonNull
+        private static byte[] createIndex(@NonNull File file) throws IOException {
+            Map<String, IndexedClass> classes = Maps.newHashMapWithExpectedSize(800);
+            String path = file.getPath();
+            if (path.endsWith(DOT_JAR) || path.endsWith(FN_ANNOTATIONS_ZIP)) {
+                indexJar(file, classes);
+            } else {
+                assert file.isDirectory() : file;
+                indexDirectory(file, classes);
+            }
+
+            final Map<String, byte[]> names = Maps.newHashMapWithExpectedSize(classes.size());
+            for (String name : classes.keySet()) {
+                names.put(name, name.getBytes(Charsets.UTF_8));
+            }
+            List<String> sorted = Lists.newArrayList(classes.keySet());
+            Collections.sort(sorted, new Comparator<String>() {
+                @Override
+                public int compare(String s1, String s2) {
+                    return UnsignedBytes.lexicographicalComparator().compare(
+                            names.get(s1), names.get(s2));
+                }
+            });
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(100000);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.write(FILE_HEADER.getBytes(Charsets.US_ASCII));
+            out.writeByte(BINARY_FORMAT_VERSION);
+            out.writeLong(file.isFile() ? file.length() : 0);
+            out.writeLong(file.isFile() ? file.lastModified() : 0);
+            out.writeInt(sorted.size());
+            int offset = HEADER_SIZE + 4 + 4 * sorted.size();
+            for (String name : sorted) {
+                out.writeInt(offset);
+                offset += 2 + names.get(name).length + 2 + classes.get(name).items.size();
+            }
+            for (String name : sorted) {
+                IndexedClass cls = classes.get(name);
+                writeString(out, name);
+                out.writeShort(cls.itemCount);
+                cls.items.writeTo(out);
+            }
+            out.close();
+            return bytes.toByteArray();
+        }
+
+        private static void indexDirectory(@NonNull File file,
+                @NonNull Map<String, IndexedClass> classes) throws IOException {
             if (file.isDirectory()) {
                 File[] files = file.listFiles();
                 if (files != null) {
                     for (File f : files) {
-                        initializeFromDirectory(f);
+                        indexDirectory(f, classes);
                     }
                 }
             } else if (file.getPath().endsWith(FN_ANNOTATIONS_XML)) {
                 String xml = Files.toString(file, Charsets.UTF_8);
-                initializePackage(xml, file.getPath());
+                indexPackage(xml, file.getPath(), classes);
             }
         }
 
-        private void initializeFromJar(File file) throws IOException {
+        private static void indexJar(@NonNull File file,
+                @NonNull Map<String, IndexedClass> classes) throws IOException {
             // Reads in an existing annotations jar and merges in entries found there
             // with the annotations analyzed from source.
             JarInputStream zis = null;
@@ -924,7 +1121,7 @@ public class ExternalAnnotationRepository {
                     if (entry.getName().endsWith(".xml")) {
                         byte[] bytes = ByteStreams.toByteArray(zis);
                         String xml = new String(bytes, Charsets.UTF_8);
-                        initializePackage(xml, entry.getName());
+                        indexPackage(xml, entry.getName(), classes);
                     }
                     entry = zis.getNextEntry();
                 }
@@ -938,11 +1135,11 @@ public class ExternalAnnotationRepository {
         }
 
         /**
-         * Takes the XML contents of an annotations.xml file, parses it and initialize
-         * the necessary data structures
+         * Takes the XML contents of an annotations.xml file, parses it and adds its
+         * items to the given classes
          */
-        private void initializePackage(@NonNull String xml, @NonNull String path)
-                throws IOException {
+        private static void indexPackage(@NonNull String xml, @NonNull String path,
+                @NonNull Map<String, IndexedClass> classes) throws IOException {
             try {
                 Document document = XmlUtils.parseDocument(xml, false);
 
@@ -963,19 +1160,29 @@ public class ExternalAnnotationRepository {
                         if (containingClass == null) {
                             throw new IOException("Could not find class for " + signature);
                         }
+                        IndexedClass cls = getIndexedClass(classes, containingClass);
                         String methodName = matcher.group(5);
                         if (methodName != null) {
                             String type = matcher.group(4);
                             boolean isConstructor = type == null;
-                            String parameters = matcher.group(6);
-                            mergeMethodOrParameter(item, matcher, containingClass, methodName,
-                                    isConstructor, parameters);
+                            String parameters = fixParameterString(matcher.group(6));
+                            String argNum = matcher.group(7);
+                            cls.items.writeByte(ITEM_METHOD);
+                            writeString(cls.items, methodName);
+                            cls.items.writeBoolean(isConstructor);
+                            writeString(cls.items, parameters);
+                            cls.items.writeShort(argNum != null
+                                    ? Integer.parseInt(argNum.trim()) : -1);
                         } else {
                             String fieldName = matcher.group(2);
-                            mergeField(item, containingClass, fieldName);
+                            cls.items.writeByte(ITEM_FIELD);
+                            writeString(cls.items, fieldName);
                         }
+                        writeAnnotations(cls, item);
                     } else if (signature.indexOf(' ') == -1 && signature.indexOf('.') != -1) {
-                        mergeClass(item, signature);
+                        IndexedClass cls = getIndexedClass(classes, signature);
+                        cls.items.writeByte(ITEM_CLASS);
+                        writeAnnotations(cls, item);
                     } else {
                         throw new IOException("No merge match for signature " + signature);
                     }
@@ -985,12 +1192,204 @@ public class ExternalAnnotationRepository {
             }
         }
 
-        // SDK annotations
-        private Map<String,ClassInfo> mClassMap = Maps.newHashMapWithExpectedSize(800);
+        @NonNull
+        private static IndexedClass getIndexedClass(@NonNull Map<String, IndexedClass> classes,
+                @NonNull String name) {
+            IndexedClass cls = classes.get(name);
+            if (cls == null) {
+                cls = new IndexedClass();
+                classes.put(name, cls);
+            }
+            return cls;
+        }
+
+        private static void writeAnnotations(@NonNull IndexedClass cls, @NonNull Element item)
+                throws IOException {
+            List<Element> annotations = getChildren(item);
+            cls.items.writeShort(annotations.size());
+            for (Element annotationElement : annotations) {
+                String tagName = annotationElement.getTagName();
+                assert tagName.equals("annotation") : tagName;
+                String fqName = annotationElement.getAttribute(ATTR_NAME);
+                assert fqName != null && !fqName.isEmpty();
+                writeString(cls.items, fqName);
+
+                List<String> values = Lists.newArrayList();
+                for (Element valueElement : getChildren(annotationElement)) {
+                    if (valueElement.getTagName().equals("val")) {
+                        String valueName = valueElement.getAttribute(ATTR_NAME);
+                        String valueString = valueElement.getAttribute("val");
+                        if (!valueName.isEmpty() && !valueString.isEmpty()) {
+                            values.add(valueName);
+                            values.add(valueString);
+                        }
+                    }
+                }
+                cls.items.writeShort(values.size() / 2);
+                for (String value : values) {
+                    writeString(cls.items, value);
+                }
+            }
+            cls.itemCount++;
+        }
+
+        private static void writeString(@NonNull DataOutputStream out, @NonNull String s)
+                throws IOException {
+            byte[] bytes = s.getBytes(Charsets.UTF_8);
+            if (bytes.length > 0xFFFF) {
+                throw new IOException("String too long: " + s.substring(0, 100));
+            }
+            out.writeShort(bytes.length);
+            out.write(bytes);
+        }
+
+        /** The items of a class, as written in the index */
+        private static class IndexedClass {
+            public final ByteArrayDataOutputStream items = new ByteArrayDataOutputStream();
+            public int itemCount;
+        }
+
+        /** A {@link DataOutputStream} writing to a byte array */
+        private static class ByteArrayDataOutputStream extends DataOutputStream {
+            ByteArrayDataOutputStream() {
+                super(new ByteArrayOutputStream(200));
+            }
+
+            void writeTo(@NonNull OutputStream out) throws IOException {
+                flush();
+                ((ByteArrayOutputStream) this.out).writeTo(out);
+            }
+        }
+
+        // ---- Reading the index ----
+
+        /** The classes read from the index so far, or null for the classes not in it */
+        private final Map<String,ClassInfo> mClassMap = Maps.newHashMap();
+
+        /** Returns the annotations of the given class, reading them from the index if needed */
+        @Nullable
+        private synchronized ClassInfo getClassInfo(@NonNull String name) {
+            if (mClassMap.containsKey(name)) {
+                return mClassMap.get(name);
+            }
+            int offset = findClassEntry(name);
+            ClassInfo cls = offset != -1 ? readClass(offset) : null;
+            mClassMap.put(name, cls);
+            return cls;
+        }
+
+        /** Returns the offset of the entry of the given class in the index, or -1 */
+        private int findClassEntry(@NonNull String name) {
+            byte[] key = name.getBytes(Charsets.UTF_8);
+            int low = 0;
+            int high = mClassCount - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                int offset = mIndex.getInt(HEADER_SIZE + 4 + 4 * middle);
+                int compare = compare(key, offset);
+                if (compare == 0) {
+                    return offset;
+                } else if (compare < 0) {
+                    high = middle - 1;
+                } else {
+                    low = middle + 1;
+                }
+            }
+            return -1;
+        }
+
+        /** Compares the given class name with the name of the class entry at the given offset */
+        private int compare(@NonNull byte[] key, int offset) {
+            int length = mIndex.getShort(offset) & 0xFFFF;
+            offset += 2;
+            for (int i = 0, n = Math.min(key.length, length); i < n; i++) {
+                int delta = (key[i] & 0xFF) - (mIndex.get(offset + i) & 0xFF);
+                if (delta != 0) {
+                    return delta;
+                }
+            }
+            return key.length - length;
+        }
+
+        @NonNull
+        private ClassInfo readClass(int offset) {
+            IndexReader in = new IndexReader(mIndex, offset);
+            in.readString(); // class name
+            ClassInfo cls = new ClassInfo();
+            for (int i = 0, n = in.readUnsignedShort(); i < n; i++) {
+                int kind = in.readByte();
+                if (kind == ITEM_METHOD) {
+                    String methodName = in.readString();
+                    boolean constructor = in.readByte() != 0;
+                    String parameters = in.readString();
+                    int parameter = in.readShort();
+                    mergeMethodOrParameter(cls, methodName, constructor, parameters, parameter,
+                            readAnnotations(in));
+                } else if (kind == ITEM_FIELD) {
+                    String fieldName = in.readString();
+                    mergeField(cls, fieldName, readAnnotations(in));
+                } else {
+                    mergeClass(cls, readAnnotations(in));
+                }
+            }
+            return cls;
+        }
+
+        @NonNull
+        private List<UAnnotation> readAnnotations(@NonNull IndexReader in) {
+            int count = in.readUnsignedShort();
+            List<UAnnotation> result = Lists.newArrayListWithExpectedSize(count);
+            for (int i = 0; i < count; i++) {
+                String fqName = in.readString();
+                int valueCount = in.readUnsignedShort();
+                List<String> names = Lists.newArrayListWithExpectedSize(valueCount);
+                List<String> values = Lists.newArrayListWithExpectedSize(valueCount);
+                for (int j = 0; j < valueCount; j++) {
+                    names.add(in.readString());
+                    values.add(in.readString());
+                }
+                result.add(createAnnotation(fqName, names, values));
+            }
+            return result;
+        }
+
+        /** Reads the index from a given offset, without moving the position of the buffer */
+        private static class IndexReader {
+            private final ByteBuffer mBuffer;
+            private int mOffset;
+
+            IndexReader(@NonNull ByteBuffer buffer, int offset) {
+                mBuffer = buffer;
+                mOffset = offset;
+            }
+
+            int readByte() {
+                return mBuffer.get(mOffset++);
+            }
+
+            int readShort() {
+                short value = mBuffer.getShort(mOffset);
+                mOffset += 2;
+                return value;
+            }
+
+            int readUnsignedShort() {
+                return readShort() & 0xFFFF;
+            }
+
+            @NonNull
+            String readString() {
+                byte[] bytes = new byte[readUnsignedShort()];
+                for (int i = 0; i < bytes.length; i++) {
+                    bytes[i] = mBuffer.get(mOffset++);
+                }
+                return new String(bytes, Charsets.UTF_8);
+            }
+        }
 
         @Nullable
         private ClassInfo findClass(@NonNull ResolvedClass cls) {
-            return mClassMap.get(cls.getName());
+            return getClassInfo(cls.getName());
         }
 
         @Nullable
@@ -999,7 +1398,7 @@ public class ExternalAnnotationRepository {
             if (fqName == null) {
                 return null;
             }
-            return mClassMap.get(fqName);
+            return getClassInfo(fqName);
         }
 
         @Nullable
@@ -1017,11 +1416,11 @@ public class ExternalAnnotationRepository {
 
         @Nullable
         private ClassInfo findClass(@NonNull ResolvedAnnotation cls) {
-            return mClassMap.get(cls.getName());
+            return getClassInfo(cls.getName());
         }
 
         private ClassInfo findPackage(@NonNull ResolvedPackage pkg) {
-            return mClassMap.get(pkg.getName() +".package-info");
+            return getClassInfo(pkg.getName() +".package-info");
         }
 
         @Nullable
@@ -1030,7 +1429,7 @@ public class ExternalAnnotationRepository {
             if (packageName == null) {
                 return null;
             }
-            return mClassMap.get(packageName + ".package-info");
+            return getClassInfo(packageName + ".package-info");
         }
 
         @Nullable
@@ -1298,9 +1697,8 @@ public class ExternalAnnotationRepository {
         }
 
         @NonNull
-        private MethodInfo createMethod(@NonNull String containingClass, @NonNull String methodName,
+        private static MethodInfo createMethod(@NonNull ClassInfo cls, @NonNull String methodName,
                 boolean constructor, @NonNull String parameters) {
-            ClassInfo cls = createClass(containingClass);
             if (cls.methods != null) {
                 Collection<MethodInfo> methods = cls.methods.get(methodName);
                 if (methods != null) {
@@ -1325,18 +1723,7 @@ public class ExternalAnnotationRepository {
         }
 
         @NonNull
-        private ClassInfo createClass(@NonNull String containingClass) {
-            ClassInfo cls = mClassMap.get(containingClass);
-            if (cls == null) {
-                cls = new ClassInfo();
-                mClassMap.put(containingClass, cls);
-            }
-            return cls;
-        }
-
-        @NonNull
-        private FieldInfo createField(@NonNull String containingClass, @NonNull String fieldName) {
-            ClassInfo cls = createClass(containingClass);
+        private static FieldInfo createField(@NonNull ClassInfo cls, @NonNull String fieldName) {
             if (cls.fields != null) {
                 FieldInfo field = cls.fields.get(fieldName);
                 if (field != null) {
@@ -1352,18 +1739,11 @@ public class ExternalAnnotationRepository {
             return field;
         }
 
-        private void mergeMethodOrParameter(Element item, Matcher matcher, String containingClass,
-                String methodName, boolean constructor, String parameters) {
-            parameters = fixParameterString(parameters);
-
-            MethodInfo method = createMethod(containingClass, methodName, constructor, parameters);
-            List<UAnnotation> annotations = createAnnotations(item);
-
-            String argNum = matcher.group(7);
-            if (argNum != null) {
-                argNum = argNum.trim();
-                int parameter = Integer.parseInt(argNum);
-
+        private static void mergeMethodOrParameter(ClassInfo cls, String methodName,
+                boolean constructor, String parameters, int parameter,
+                List<UAnnotation> annotations) {
+            MethodInfo method = createMethod(cls, methodName, constructor, parameters);
+            if (parameter != -1) {
                 if (method.psiParameterAnnotations == null) {
                     // Do I know the parameter count here?
                     int parameterCount = 4;
@@ -1380,37 +1760,22 @@ public class ExternalAnnotationRepository {
             }
         }
 
-        private void mergeField(Element item, String containingClass, String fieldName) {
-            FieldInfo field = createField(containingClass, fieldName);
-            List<UAnnotation> annotations = createAnnotations(item);
+        private static void mergeField(ClassInfo cls, String fieldName,
+                List<UAnnotation> annotations) {
+            FieldInfo field = createField(cls, fieldName);
             if (field.psiAnnotations == null) {
                 field.psiAnnotations = Lists.newArrayListWithExpectedSize(annotations.size());
             }
             field.psiAnnotations.addAll(annotations);
         }
 
-        private void mergeClass(Element item, String containingClass) {
-            ClassInfo cls = createClass(containingClass);
-            List<UAnnotation> annotations = createAnnotations(item);
+        private static void mergeClass(ClassInfo cls, List<UAnnotation> annotations) {
             if (cls.psiAnnotations == null) {
                 cls.psiAnnotations = Lists.newArrayListWithExpectedSize(annotations.size());
             }
             cls.psiAnnotations.addAll(annotations);
         }
 
-        private List<UAnnotation> createAnnotations(Element itemElement) {
-            List<Element> children = getChildren(itemElement);
-            List<UAnnotation> result = Lists.newArrayListWithExpectedSize(children.size());
-            for (Element annotationElement : children) {
-                UAnnotation annotation = createAnnotation(annotationElement);
-                if (annotation != null) {
-                    result.add(annotation);
-                }
-            }
-
-            return result;
-        }
-
         private static class ResolvedExternalAnnotation extends ResolvedAnnotation {
 
             @NonNull
@@ -1480,12 +1845,12 @@ public class ExternalAnnotationRepository {
 
         private Map<String, UAnnotation> mMarkerAnnotations = Maps.newHashMapWithExpectedSize(30);
 
-        private UAnnotation createAnnotation(Element annotationElement) {
-            String tagName = annotationElement.getTagName();
-            assert tagName.equals("annotation") : tagName;
-            String fqName = annotationElement.getAttribute(ATTR_NAME);
-            assert fqName != null && !fqName.isEmpty();
-
+        /**
+         * Creates an annotation with the given values, as written in the XML file
+         * (parallel lists of value names and value strings)
+         */
+        private UAnnotation createAnnotation(@NonNull String fqName,
+                @NonNull List<String> valueNames, @NonNull List<String> valueStrings) {
             UAnnotation annotation = mMarkerAnnotations.get(fqName);
             if (annotation != null) {
                 return annotation;
@@ -1495,8 +1860,7 @@ public class ExternalAnnotationRepository {
             List<UNamedExpression> expressions = new ArrayList<UNamedExpression>();
             annotation = new DumbUAnnotation(fqName, values, expressions, /* parent = */ null);
 
-            List<Element> valueElements = getChildren(annotationElement);
-            if (valueElements.isEmpty()
+            if (valueNames.isEmpty()
                     // Permission annotations are sometimes used as marker annotations (on
                     // parameters) but that shouldn't let us conclude that any future
                     // permission annotations are. Ditto for @CheckResult, where we sometimes
@@ -1515,65 +1879,61 @@ public class ExternalAnnotationRepository {
                 }
             };
 
-            for (Element valueElement : valueElements) {
-                if (valueElement.getTagName().equals("val")) {
-                    String valueName = valueElement.getAttribute(ATTR_NAME);
-                    String valueString = valueElement.getAttribute("val");
-                    if (!valueName.isEmpty() && !valueString.isEmpty()) {
-                        // Guess type
-                        if (valueString.equals(VALUE_TRUE)) {
-                            values.put(valueName, new UBooleanValue(true, originalFactory));
-                        } else if (valueString.equals(VALUE_FALSE)) {
-                            values.put(valueName, new UBooleanValue(false, originalFactory));
-                        } else if (valueString.startsWith("\"") && valueString.endsWith("\"") &&
-                                valueString.length() >= 2) {
-                            String s = valueString.substring(1, valueString.length() - 1);
-                            values.put(valueName, new UStringValue(s, originalFactory));
-                        } else if (valueString.startsWith("{") && valueString.endsWith("}")) {
-                            // Array of values
-                            String listString = valueString.substring(1, valueString.length() - 1);
-                            // We don't know the types, but we'll assume that they're either
-                            // all strings (the most common array type in our annotations), or
-                            // field references. We can't know the types of the fields; it's
-                            // not part of the annotation metadata. We'll place them in an Object[]
-                            // for now.
-                            Splitter splitter = Splitter.on(',').omitEmptyStrings().trimResults();
-                            List<UConstantValue<?>> result = Lists.newArrayList();
-                            for (String reference : splitter.split(listString)) {
-                                if (reference.startsWith("\"")) {
-                                    String s = reference.substring(1, reference.length() - 1);
-                                    result.add(new UStringValue(s, originalFactory));
-                                } else {
-                                    result.add(new UExpressionValue(
-                                            DumbUQualifiedExpression.make(reference, annotation),
-                                            originalFactory));
-                                }
-                            }
-
-                            values.put(valueName, new UArrayValue(result, originalFactory));
-
-                            // We don't know the actual type of these fields; we'll assume they're
-                            // a special form of
-                        } else if (Character.isDigit(valueString.charAt(0))) {
-                            Object value;
-                            try {
-                                if (valueString.contains(".")) {
-                                    value = Double.parseDouble(valueString);
-                                } else {
-                                    value = Long.parseLong(valueString);
-                                }
-                            } catch (NumberFormatException nufe) {
-                                value = valueString;
-                            }
-                            values.put(valueName, createUConstantValue(value, originalFactory));
+            for (int i = 0, n = valueNames.size(); i < n; i++) {
+                String valueName = valueNames.get(i);
+                String valueString = valueStrings.get(i);
+                // Guess type
+                if (valueString.equals(VALUE_TRUE)) {
+                    values.put(valueName, new UBooleanValue(true, originalFactory));
+                } else if (valueString.equals(VALUE_FALSE)) {
+                    values.put(valueName, new UBooleanValue(false, originalFactory));
+                } else if (valueString.startsWith("\"") && valueString.endsWith("\"") &&
+                        valueString.length() >= 2) {
+                    String s = valueString.substring(1, valueString.length() - 1);
+                    values.put(valueName, new UStringValue(s, originalFactory));
+                } else if (valueString.startsWith("{") && valueString.endsWith("}")) {
+                    // Array of values
+                    String listString = valueString.substring(1, valueString.length() - 1);
+                    // We don't know the types, but we'll assume that they're either
+                    // all strings (the most common array type in our annotations), or
+                    // field references. We can't know the types of the fields; it's
+                    // not part of the annotation metadata. We'll place them in an Object[]
+                    // for now.
+                    Splitter splitter = Splitter.on(',').omitEmptyStrings().trimResults();
+                    List<UConstantValue<?>> result = Lists.newArrayList();
+                    for (String reference : splitter.split(listString)) {
+                        if (reference.startsWith("\"")) {
+                            String s = reference.substring(1, reference.length() - 1);
+                            result.add(new UStringValue(s, originalFactory));
                         } else {
-                            values.put(valueName, new UStringValue(valueString, originalFactory));
+                            result.add(new UExpressionValue(
+                                    DumbUQualifiedExpression.make(reference, annotation),
+                                    originalFactory));
                         }
+                    }
+
+                    values.put(valueName, new UArrayValue(result, originalFactory));
 
-                        expressions.add(new UNamedExpression(
-                                valueName, new EmptyUExpression(annotation), /* parent = */ null));
+                    // We don't know the actual type of these fields; we'll assume they're
+                    // a special form of
+                } else if (Character.isDigit(valueString.charAt(0))) {
+                    Object value;
+                    try {
+                        if (valueString.contains(".")) {
+                            value = Double.parseDouble(valueString);
+                        } else {
+                            value = Long.parseLong(valueString);
+                        }
+                    } catch (NumberFormatException nufe) {
+                        value = valueString;
                     }
+                    values.put(valueName, createUConstantValue(value, originalFactory));
+                } else {
+                    values.put(valueName, new UStringValue(valueString, originalFactory));
                 }
+
+                expressions.add(new UNamedExpression(
+                        valueName, new EmptyUExpression(annotation), /* parent = */ null));
             }
 
             return annotation;
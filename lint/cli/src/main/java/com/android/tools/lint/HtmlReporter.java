@@ -339,7 +339,7 @@ public class HtmlReporter extends Reporter {
         if (!mClient.getFlags().isQuiet()
                 && (mDisplayEmpty || errorCount > 0 || warningCount > 0)) {
             String url = SdkUtils.fileToUrlString(mOutput.getAbsoluteFile());
-            System.out.println(String.format("Wrote HTML report to %1$s", url));
+            mClient.getOutput().println(String.format("Wrote HTML report to %1$s", url));
         }
     }
 
@@ -51,6 +51,7 @@ import com.google.common.io.Closeables;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -89,6 +90,8 @@ public class LintCliClient extends LintClient {
     protected final LintCliFlags mFlags;
     private Configuration mConfiguration;
     private boolean mValidatedIds;
+    private PrintStream mOut = System.out;
+    private PrintStream mErr = System.err;
 
     /** Creates a CLI driver */
     public LintCliClient() {
@@ -105,6 +108,27 @@ public class LintCliClient extends LintClient {
         mFlags = flags;
     }
 
+    /**
+     * Sets the streams the progress, summary and log messages are written to, instead of
+     * {@link System#out} and {@link System#err}
+     */
+    public void setOutput(@NonNull PrintStream out, @NonNull PrintStream err) {
+        mOut = out;
+        mErr = err;
+    }
+
+    /** Returns the stream the progress and summary messages are written to */
+    @NonNull
+    public PrintStream getOutput() {
+        return mOut;
+    }
+
+    /** Returns the stream the log messages are written to */
+    @NonNull
+    public PrintStream getErrorOutput() {
+        return mErr;
+    }
+
     /**
      * Runs the static analysis command line driver. You need to add at least one error reporter
      * to the command line flags.
@@ -115,6 +139,8 @@ public class LintCliClient extends LintClient {
         mDriver = new LintDriver(registry, this);
 
         mDriver.setAbbreviating(!mFlags.isShowEverything());
+        mDriver.setThreadCount(mFlags.getThreadCount());
+        mDriver.setCacheResults(mFlags.isIncremental());
         addProgressPrinter();
         mDriver.addLintListener(new LintListener() {
             @Override
@@ -141,7 +167,7 @@ public class LintCliClient extends LintClient {
         }
 
         if (!mFlags.isQuiet() && !hasConsoleOutput) {
-            System.out.println(String.format(
+            mOut.println(String.format(
                     "Lint found %1$d errors and %2$d warnings", mErrorCount, mWarningCount));
         }
 
@@ -166,20 +192,25 @@ public class LintCliClient extends LintClient {
             @Nullable Throwable exception,
             @Nullable String format,
             @Nullable Object... args) {
-        System.out.flush();
+        mOut.flush();
         if (!mFlags.isQuiet()) {
             // Place the error message on a line of its own since we're printing '.' etc
             // with newlines during analysis
-            System.err.println();
+            mErr.println();
         }
         if (format != null) {
-            System.err.println(String.format(format, args));
+            mErr.println(String.format(format, args));
         }
         if (exception != null) {
-            exception.printStackTrace();
+            exception.printStackTrace(mErr);
         }
     }
 
+    @Override
+    public boolean isCachingLibraryClasses() {
+        return mFlags.isCacheLibraryClasses();
+    }
+
     @Override
     public XmlParser getXmlParser() {
         return new LintCliXmlParser();
@@ -560,7 +591,7 @@ public class LintCliClient extends LintClient {
         }
     }
 
-    private static class ProgressPrinter implements LintListener {
+    private class ProgressPrinter implements LintListener {
         @Override
         public void update(
                 @NonNull LintDriver lint,
@@ -570,12 +601,12 @@ public class LintCliClient extends LintClient {
                 case SCANNING_PROJECT: {
                     String name = context != null ? context.getProject().getName() : "?";
                     if (lint.getPhase() > 1) {
-                        System.out.print(String.format(
+                        mOut.print(String.format(
                                 "\nScanning %1$s (Phase %2$d): ",
                                 name,
                                 lint.getPhase()));
                     } else {
-                        System.out.print(String.format(
+                        mOut.print(String.format(
                                 "\nScanning %1$s: ",
                                 name));
                     }
@@ -583,20 +614,20 @@ public class LintCliClient extends LintClient {
                 }
                 case SCANNING_LIBRARY_PROJECT: {
                     String name = context != null ? context.getProject().getName() : "?";
-                    System.out.print(String.format(
+                    mOut.print(String.format(
                             "\n         - %1$s: ",
                             name));
                     break;
                 }
                 case SCANNING_FILE:
-                    System.out.print('.');
+                    mOut.print('.');
                     break;
                 case NEW_PHASE:
                     // Ignored for now: printing status as part of next project's status
                     break;
                 case CANCELED:
                 case COMPLETED:
-                    System.out.println();
+                    mOut.println();
                     break;
                 case STARTING:
                     // Ignored for now
@@ -694,7 +725,11 @@ public class LintCliClient extends LintClient {
         return mDriver;
     }
 
-    private static Set<File> sAlreadyWarned;
+    /**
+     * The missing configuration files already warned about. Kept per client rather than
+     * per process, such that each run in a {@link LintDaemon} warns again
+     */
+    private Set<File> mAlreadyWarned;
 
     /** Returns the configuration used by this client */
     Configuration getConfiguration() {
@@ -702,14 +737,14 @@ public class LintCliClient extends LintClient {
             File configFile = mFlags.getDefaultConfiguration();
             if (configFile != null) {
                 if (!configFile.exists()) {
-                    if (sAlreadyWarned == null || !sAlreadyWarned.contains(configFile)) {
+                    if (mAlreadyWarned == null || !mAlreadyWarned.contains(configFile)) {
                         log(Severity.ERROR, null,
                                 "Warning: Configuration file %1$s does not exist", configFile);
                     }
-                    if (sAlreadyWarned == null) {
-                        sAlreadyWarned = Sets.newHashSet();
+                    if (mAlreadyWarned == null) {
+                        mAlreadyWarned = Sets.newHashSet();
                     }
-                    sAlreadyWarned.add(configFile);
+                    mAlreadyWarned.add(configFile);
                 }
                 mConfiguration = createConfigurationFromFile(configFile);
             }
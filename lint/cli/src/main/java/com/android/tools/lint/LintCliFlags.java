@@ -60,6 +60,9 @@ public class LintCliFlags {
 
     private File mDefaultConfiguration;
     private boolean mShowAll;
+    private int mThreadCount = 1;
+    private boolean mIncremental;
+    private boolean mCacheLibraryClasses;
 
     public static final int ERRNO_SUCCESS = 0;
     public static final int ERRNO_ERRORS = 1;
@@ -226,6 +229,53 @@ public class LintCliFlags {
         mShowAll = showAll;
     }
 
+    /**
+     * Returns the number of threads lint should use to check files
+     */
+    public int getThreadCount() {
+        return mThreadCount;
+    }
+
+    /**
+     * Sets the number of threads lint should use to check files. Lint checks files
+     * sequentially with a single thread, which is the default.
+     */
+    public void setThreadCount(int threadCount) {
+        mThreadCount = threadCount;
+    }
+
+    /**
+     * Returns whether lint should reuse the results of the cacheable checks from the
+     * previous run for the files which did not change since
+     */
+    public boolean isIncremental() {
+        return mIncremental;
+    }
+
+    /**
+     * Sets whether lint should reuse the results of the cacheable checks from the
+     * previous run for the files which did not change since
+     */
+    public void setIncremental(boolean incremental) {
+        mIncremental = incremental;
+    }
+
+    /**
+     * Returns whether the classes of library jar files should be kept in memory for
+     * the next runs in the same process
+     */
+    public boolean isCacheLibraryClasses() {
+        return mCacheLibraryClasses;
+    }
+
+    /**
+     * Sets whether the classes of library jar files should be kept in memory for
+     * the next runs in the same process
+     */
+    public void setCacheLibraryClasses(boolean cacheLibraryClasses) {
+        mCacheLibraryClasses = cacheLibraryClasses;
+    }
+
     /**
      * Returns the default configuration file to use as a fallback
      */
@@ -0,0 +1,367 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint;
+
+import static com.android.tools.lint.LintCliFlags.ERRNO_ERRORS;
+import static com.android.tools.lint.LintCliFlags.ERRNO_USAGE;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.Files;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A long running lint process, which runs the lint command lines sent to it over a local
+ * socket (see {@link #forward}). Since the process stays up, the parsers, the API, typo and
+ * annotation databases and the classes of the libraries stay loaded from one run to the
+ * next. The command lines of different connections run concurrently.
+ * <p>
+ * Since lint reads and writes files on behalf of its clients, only the user who started
+ * the daemon may send it requests: the daemon writes a random token to a file only this
+ * user can read, in {@code ~/.android}, and rejects the requests which don't come with it.
+ * <p>
+ * The protocol is as follows (numbers are big endian, strings are written with
+ * {@link DataOutputStream#writeUTF(String)}):
+ * <ul>
+ *     <li>The client sends the {@link #PROTOCOL_VERSION} [4 bytes], the token [a string],
+ *     the directory relative paths are resolved against [a string], and the number of
+ *     arguments [4 bytes] followed by the arguments [a string each]</li>
+ *     <li>The daemon sends back what lint writes to its output and error streams as frames:
+ *     {@link #FRAME_OUT} or {@link #FRAME_ERR} [1 byte], the number of bytes [4 bytes] and
+ *     the bytes. It ends with {@link #FRAME_EXIT} [1 byte] and the exit code [4 bytes].</li>
+ * </ul>
+ * <p>
+ * <b>NOTE: This is not a public or final API; if you rely on this be prepared
+ * to adjust your code for the next tools release.</b>
+ */
+public class LintDaemon {
+    /**
+     * The system property or environment variable with the port of the daemon the command
+     * line driver should run lint in
+     */
+    public static final String PROP_PORT = "com.android.tools.lint.daemon"; //$NON-NLS-1$
+
+    private static final int PROTOCOL_VERSION = 2;
+    private static final int TOKEN_SIZE = 32;
+    private static final int FRAME_OUT = 1;
+    private static final int FRAME_ERR = 2;
+    private static final int FRAME_EXIT = 3;
+
+    private final ServerSocket mServerSocket;
+    private final ExecutorService mExecutor;
+    private final byte[] mToken;
+    private final File mTokenFile;
+
+    /**
+     * Creates a daemon listening on the given port of the loopback interface
+     *
+     * @param port the port to listen on, or 0 to pick a free port
+     * @throws IOException if the port cannot be bound, or the token cannot be written
+     */
+    public LintDaemon(int port) throws IOException {
+        this(port, getDefaultTokenDir());
+    }
+
+    @VisibleForTesting
+    LintDaemon(int port, @NonNull File tokenDir) throws IOException {
+        mServerSocket = new ServerSocket(port, 50, InetAddress.getByName(null));
+        byte[] token = new byte[TOKEN_SIZE];
+        new SecureRandom().nextBytes(token);
+        mToken = BaseEncoding.base16().encode(token).getBytes(Charsets.UTF_8);
+        mTokenFile = getTokenFile(tokenDir, getPort());
+        try {
+            writeToken(mTokenFile, mToken);
+        } catch (IOException e) {
+            mServerSocket.close();
+            throw e;
+        }
+        mExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(@NonNull Runnable runnable) {
+                Thread thread = new Thread(runnable, "Lint request " + mCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /** Returns the port the daemon listens on */
+    public int getPort() {
+        return mServerSocket.getLocalPort();
+    }
+
+    /** Accepts and runs lint requests, until the daemon is {@link #close() closed} */
+    public void run() {
+        System.out.println(String.format("Lint daemon listening on port %1$d", getPort()));
+        while (!mServerSocket.isClosed()) {
+            final Socket socket;
+            try {
+                socket = mServerSocket.accept();
+            } catch (IOException e) {
+                if (!mServerSocket.isClosed()) {
+                    e.printStackTrace();
+                }
+                continue;
+            }
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    handle(socket);
+                }
+            });
+        }
+    }
+
+    /** Stops accepting requests; the requests already running are completed */
+    public void close() throws IOException {
+        mServerSocket.close();
+        mExecutor.shutdown();
+        mTokenFile.delete();
+    }
+
+    /** Returns the directory the daemons write their tokens to */
+    @NonNull
+    private static File getDefaultTokenDir() {
+        return new File(System.getProperty("user.home"), ".android"); //$NON-NLS-1$
+    }
+
+    @NonNull
+    private static File getTokenFile(@NonNull File tokenDir, int port) {
+        return new File(tokenDir, "lint-daemon-" + port + ".token"); //$NON-NLS-1$ //$NON-NLS-2$
+    }
+
+    /** Writes the token to a new file, which only the current user can read or write */
+    private static void writeToken(@NonNull File file, @NonNull byte[] token)
+            throws IOException {
+        Files.createParentDirs(file);
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Could not delete " + file);
+        }
+        if (!file.createNewFile()) {
+            throw new IOException("Could not create " + file);
+        }
+        // Restricted before the token is written. Removing the permissions of the other
+        // users is not supported everywhere (e.g. on Windows, where the home directory is
+        // private anyway), so only granting those of the owner has to succeed
+        file.setReadable(false, false);
+        file.setWritable(false, false);
+        file.setExecutable(false, false);
+        if (!file.setReadable(true, true) || !file.setWritable(true, true)) {
+            file.delete();
+            throw new IOException("Could not restrict the permissions of " + file);
+        }
+        Files.write(token, file);
+    }
+
+    private void handle(@NonNull Socket socket) {
+        try {
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(socket.getOutputStream()));
+            int exitCode;
+            if (in.readInt() != PROTOCOL_VERSION) {
+                exitCode = ERRNO_USAGE;
+            } else if (!MessageDigest.isEqual(mToken, in.readUTF().getBytes(Charsets.UTF_8))) {
+                byte[] message = "Invalid lint daemon token\n".getBytes(Charsets.UTF_8);
+                out.writeByte(FRAME_ERR);
+                out.writeInt(message.length);
+                out.write(message);
+                exitCode = ERRNO_USAGE;
+            } else {
+                String workDir = in.readUTF();
+                String[] args = new String[in.readInt()];
+                for (int i = 0; i < args.length; i++) {
+                    args[i] = in.readUTF();
+                }
+
+                PrintStream stdout = new PrintStream(new FrameOutputStream(out, FRAME_OUT), true);
+                PrintStream stderr = new PrintStream(new FrameOutputStream(out, FRAME_ERR), true);
+                try {
+                    Main main = new Main(stdout, stderr,
+                            workDir.isEmpty() ? null : new File(workDir));
+                    main.getFlags().setCacheLibraryClasses(true);
+                    exitCode = main.execute(args);
+                } catch (RuntimeException e) {
+                    // Keep the daemon up for the next requests
+                    e.printStackTrace(stderr);
+                    exitCode = ERRNO_ERRORS;
+                }
+                stdout.flush();
+                stderr.flush();
+            }
+            synchronized (out) {
+                out.writeByte(FRAME_EXIT);
+                out.writeInt(exitCode);
+                out.flush();
+            }
+        } catch (IOException e) {
+            // The client went away: nobody to report to
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // pass
+            }
+        }
+    }
+
+    /**
+     * Runs the given lint command line in the daemon listening on the given local port,
+     * and copies what it writes to the given streams.
+     *
+     * @param port the port of the daemon
+     * @param args the lint arguments
+     * @param workDir the directory relative paths are resolved against
+     * @param out the stream to copy the output of lint to
+     * @param err the stream to copy the errors of lint to
+     * @return the exit code of lint, or -1 if no daemon of the current user is listening
+     *     on the port
+     */
+    public static int forward(int port, @NonNull String[] args, @NonNull File workDir,
+            @NonNull PrintStream out, @NonNull PrintStream err) {
+        return forward(port, getDefaultTokenDir(), args, workDir, out, err);
+    }
+
+    @VisibleForTesting
+    static int forward(int port, @NonNull File tokenDir, @NonNull String[] args,
+            @NonNull File workDir, @NonNull PrintStream out, @NonNull PrintStream err) {
+        String token;
+        try {
+            token = Files.toString(getTokenFile(tokenDir, port), Charsets.UTF_8);
+        } catch (IOException e) {
+            return -1;
+        }
+
+        Socket socket;
+        try {
+            socket = new Socket(InetAddress.getByName(null), port);
+        } catch (IOException e) {
+            return -1;
+        }
+
+        try {
+            DataOutputStream output = new DataOutputStream(
+                    new BufferedOutputStream(socket.getOutputStream()));
+            output.writeInt(PROTOCOL_VERSION);
+            output.writeUTF(token);
+            output.writeUTF(workDir.getPath());
+            output.writeInt(args.length);
+            for (String arg : args) {
+                output.writeUTF(arg);
+            }
+            output.flush();
+
+            DataInputStream input = new DataInputStream(
+                    new BufferedInputStream(socket.getInputStream()));
+            while (true) {
+                int frame = input.readByte();
+                if (frame == FRAME_EXIT) {
+                    return input.readInt();
+                }
+                byte[] bytes = new byte[input.readInt()];
+                input.readFully(bytes);
+                PrintStream stream = frame == FRAME_OUT ? out : err;
+                stream.write(bytes);
+                stream.flush();
+            }
+        } catch (IOException e) {
+            err.println("Lost the connection to the lint daemon: " + e.getMessage());
+            return ERRNO_ERRORS;
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // pass
+            }
+        }
+    }
+
+    /**
+     * Returns the port of the daemon the command line driver should run lint in, as set
+     * by the {@link #PROP_PORT} system property or environment variable, if any
+     */
+    @Nullable
+    public static Integer getDaemonPort() {
+        // First check the Java properties (e.g. set using "java -jar ... -Dname=value")
+        String port = System.getProperty(PROP_PORT);
+        if (port == null || port.isEmpty()) {
+            // If not found, check environment variables.
+            port = System.getenv(PROP_PORT);
+        }
+        if (port != null && !port.isEmpty()) {
+            try {
+                return Integer.parseInt(port);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /** Writes each chunk of bytes written to it as a frame of the given kind */
+    private static class FrameOutputStream extends OutputStream {
+        private final DataOutputStream mOut;
+        private final int mKind;
+
+        FrameOutputStream(@NonNull DataOutputStream out, int kind) {
+            mOut = out;
+            mKind = kind;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(@NonNull byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            synchronized (mOut) {
+                mOut.writeByte(mKind);
+                mOut.writeInt(len);
+                mOut.write(b, off, len);
+                // Flushed right away such that the progress shows up as lint runs
+                mOut.flush();
+            }
+        }
+    }
+}
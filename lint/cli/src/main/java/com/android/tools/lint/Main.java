@@ -91,6 +91,9 @@ public class Main {
     private static final String ARG_URL        = "--url";          //$NON-NLS-1$
     private static final String ARG_VERSION    = "--version";      //$NON-NLS-1$
     private static final String ARG_EXIT_CODE  = "--exitcode";     //$NON-NLS-1$
+    private static final String ARG_THREADS    = "--threads";      //$NON-NLS-1$
+    private static final String ARG_INCREMENTAL = "--incremental"; //$NON-NLS-1$
+    private static final String ARG_DAEMON     = "--daemon";       //$NON-NLS-1$
     private static final String ARG_CLASSES    = "--classpath";    //$NON-NLS-1$
     private static final String ARG_SOURCES    = "--sources";      //$NON-NLS-1$
     private static final String ARG_RESOURCES  = "--resources";    //$NON-NLS-1$
@@ -105,9 +108,27 @@ public class Main {
     private static final String PROP_WORK_DIR = "com.android.tools.lint.workdir"; //$NON-NLS-1$
     private LintCliFlags mFlags = new LintCliFlags();
     private IssueRegistry mGlobalRegistry;
+    private final PrintStream mOut;
+    private final PrintStream mErr;
+    private final File mWorkDir;
 
     /** Creates a CLI driver */
     public Main() {
+        this(System.out, System.err, null);
+    }
+
+    /**
+     * Creates a CLI driver writing to the given streams
+     *
+     * @param out the stream to write the output to
+     * @param err the stream to write the errors to
+     * @param workDir the directory relative paths are resolved against, or null to use
+     *            the lint.workdir property
+     */
+    public Main(@NonNull PrintStream out, @NonNull PrintStream err, @Nullable File workDir) {
+        mOut = out;
+        mErr = err;
+        mWorkDir = workDir;
     }
 
     /**
@@ -116,6 +137,32 @@ public class Main {
      * @param args program arguments
      */
     public static void main(String[] args) {
+        if (args.length == 2 && args[0].equals(ARG_DAEMON)) {
+            try {
+                new LintDaemon(Integer.parseInt(args[1])).run();
+            } catch (NumberFormatException e) {
+                System.err.println("Invalid port: " + args[1]);
+                System.exit(ERRNO_INVALID_ARGS);
+            } catch (IOException e) {
+                System.err.println("Could not start the lint daemon: " + e.getMessage());
+                System.exit(ERRNO_EXISTS);
+            }
+            return;
+        }
+
+        Integer port = LintDaemon.getDaemonPort();
+        if (port != null) {
+            File workDir = getLintWorkDir();
+            if (workDir == null) {
+                workDir = new File(System.getProperty("user.dir"));
+            }
+            int exitCode = LintDaemon.forward(port, args, workDir, System.out, System.err);
+            if (exitCode != -1) {
+                System.exit(exitCode);
+            }
+            // No daemon listening: run in this process
+        }
+
         new Main().run(args);
     }
 
@@ -124,11 +171,21 @@ public class Main {
      *
      * @param args program arguments
      */
-    @SuppressWarnings("UnnecessaryLocalVariable")
     public void run(String[] args) {
+        System.exit(execute(args));
+    }
+
+    /**
+     * Runs the static analysis command line driver, without exiting
+     *
+     * @param args program arguments
+     * @return the exit code of the command line driver
+     */
+    @SuppressWarnings("UnnecessaryLocalVariable")
+    public int execute(String[] args) {
         if (args.length < 1) {
-            printUsage(System.err);
-            System.exit(ERRNO_USAGE);
+            printUsage(mErr);
+            return ERRNO_USAGE;
         }
 
 
@@ -215,6 +272,7 @@ public class Main {
                 }
             }
         };
+        client.setOutput(mOut, mErr);
 
         // Mapping from file path prefix to URL. Applies only to HTML reports
         String urlMap = null;
@@ -229,14 +287,14 @@ public class Main {
                     String topic = args[index + 1];
                     if (topic.equals("suppress") || topic.equals("ignore")) {
                         printHelpTopicSuppress();
-                        System.exit(ERRNO_HELP);
+                        return ERRNO_HELP;
                     } else {
-                        System.err.println(String.format("Unknown help topic \"%1$s\"", topic));
-                        System.exit(ERRNO_INVALID_ARGS);
+                        mErr.println(String.format("Unknown help topic \"%1$s\"", topic));
+                        return ERRNO_INVALID_ARGS;
                     }
                 }
-                printUsage(System.out);
-                System.exit(ERRNO_HELP);
+                printUsage(mOut);
+                return ERRNO_HELP;
             } else if (arg.equals(ARG_LIST_IDS)) {
                 IssueRegistry registry = getGlobalRegistry(client);
                 // Did the user provide a category list?
@@ -251,19 +309,19 @@ public class Main {
                                 // will match issue category "Usability:Icons" etc.
                                 if (issue.getCategory().getName().startsWith(category) ||
                                         issue.getCategory().getFullName().startsWith(category)) {
-                                    listIssue(System.out, issue);
+                                    listIssue(mOut, issue);
                                 }
                             }
                         } else {
-                            System.err.println("Invalid category \"" + id + "\".\n");
-                            displayValidIds(registry, System.err);
-                            System.exit(ERRNO_INVALID_ARGS);
+                            mErr.println("Invalid category \"" + id + "\".\n");
+                            displayValidIds(registry, mErr);
+                            return ERRNO_INVALID_ARGS;
                         }
                     }
                 } else {
-                    displayValidIds(registry, System.out);
+                    displayValidIds(registry, mOut);
                 }
-                System.exit(ERRNO_SUCCESS);
+                return ERRNO_SUCCESS;
             } else if (arg.equals(ARG_SHOW)) {
                 IssueRegistry registry = getGlobalRegistry(client);
                 // Show specific issues?
@@ -279,22 +337,22 @@ public class Main {
                                 if (issue.getCategory().getName().startsWith(category) ||
                                         issue.getCategory().getFullName().startsWith(category)) {
                                     describeIssue(issue);
-                                    System.out.println();
+                                    mOut.println();
                                 }
                             }
                         } else if (registry.isIssueId(id)) {
                             describeIssue(registry.getIssue(id));
-                            System.out.println();
+                            mOut.println();
                         } else {
-                            System.err.println("Invalid id or category \"" + id + "\".\n");
-                            displayValidIds(registry, System.err);
-                            System.exit(ERRNO_INVALID_ARGS);
+                            mErr.println("Invalid id or category \"" + id + "\".\n");
+                            displayValidIds(registry, mErr);
+                            return ERRNO_INVALID_ARGS;
                         }
                     }
                 } else {
                     showIssues(registry);
                 }
-                System.exit(ERRNO_SUCCESS);
+                return ERRNO_SUCCESS;
             } else if (arg.equals(ARG_FULL_PATH)
                     || arg.equals(ARG_FULL_PATH + "s")) { // allow "--fullpaths" too
                 mFlags.setFullPath(true);
@@ -306,13 +364,27 @@ public class Main {
                 mFlags.setShowSourceLines(false);
             } else if (arg.equals(ARG_EXIT_CODE)) {
                 mFlags.setSetExitCode(true);
+            } else if (arg.equals(ARG_THREADS)) {
+                if (index == args.length - 1) {
+                    mErr.println("Missing thread count");
+                    return ERRNO_INVALID_ARGS;
+                }
+                String count = args[++index];
+                try {
+                    mFlags.setThreadCount(Math.max(1, Integer.parseInt(count)));
+                } catch (NumberFormatException e) {
+                    mErr.println("Invalid thread count: " + count);
+                    return ERRNO_INVALID_ARGS;
+                }
+            } else if (arg.equals(ARG_INCREMENTAL)) {
+                mFlags.setIncremental(true);
             } else if (arg.equals(ARG_VERSION)) {
                 printVersion(client);
-                System.exit(ERRNO_SUCCESS);
+                return ERRNO_SUCCESS;
             } else if (arg.equals(ARG_URL)) {
                 if (index == args.length - 1) {
-                    System.err.println("Missing URL mapping string");
-                    System.exit(ERRNO_INVALID_ARGS);
+                    mErr.println("Missing URL mapping string");
+                    return ERRNO_INVALID_ARGS;
                 }
                 String map = args[++index];
                 // Allow repeated usage of the argument instead of just comma list
@@ -323,19 +395,19 @@ public class Main {
                 }
             } else if (arg.equals(ARG_CONFIG)) {
                 if (index == args.length - 1 || !endsWith(args[index + 1], DOT_XML)) {
-                    System.err.println("Missing XML configuration file argument");
-                    System.exit(ERRNO_INVALID_ARGS);
+                    mErr.println("Missing XML configuration file argument");
+                    return ERRNO_INVALID_ARGS;
                 }
                 File file = getInArgumentPath(args[++index]);
                 if (!file.exists()) {
-                    System.err.println(file.getAbsolutePath() + " does not exist");
-                    System.exit(ERRNO_INVALID_ARGS);
+                    mErr.println(file.getAbsolutePath() + " does not exist");
+                    return ERRNO_INVALID_ARGS;
                 }
                 mFlags.setDefaultConfiguration(file);
             } else if (arg.equals(ARG_HTML) || arg.equals(ARG_SIMPLE_HTML)) {
                 if (index == args.length - 1) {
-                    System.err.println("Missing HTML output file name");
-                    System.exit(ERRNO_INVALID_ARGS);
+                    mErr.println("Missing HTML output file name");
+                    return ERRNO_INVALID_ARGS;
                 }
                 File output = getOutArgumentPath(args[++index]);
                 // Get an absolute path such that we can ask its parent directory for
@@ -347,7 +419,7 @@ public class Main {
                         boolean mkdirs = output.mkdirs();
                         if (!mkdirs) {
                             log(null, "Could not create output directory %1$s", output);
-                            System.exit(ERRNO_EXISTS);
+                            return ERRNO_EXISTS;
                         }
                     }
                     try {
@@ -359,20 +431,20 @@ public class Main {
                         mFlags.getReporters().add(reporter);
                     } catch (IOException e) {
                         log(e, null);
-                        System.exit(ERRNO_INVALID_ARGS);
+                        return ERRNO_INVALID_ARGS;
                     }
                     continue;
                 }
                 if (output.exists()) {
                     boolean delete = output.delete();
                     if (!delete) {
-                        System.err.println("Could not delete old " + output);
-                        System.exit(ERRNO_EXISTS);
+                        mErr.println("Could not delete old " + output);
+                        return ERRNO_EXISTS;
                     }
                 }
                 if (output.getParentFile() != null && !output.getParentFile().canWrite()) {
-                    System.err.println("Cannot write HTML output file " + output);
-                    System.exit(ERRNO_EXISTS);
+                    mErr.println("Cannot write HTML output file " + output);
+                    return ERRNO_EXISTS;
                 }
                 try {
                     HtmlReporter htmlReporter = new HtmlReporter(client, output);
@@ -382,12 +454,12 @@ public class Main {
                     mFlags.getReporters().add(htmlReporter);
                 } catch (IOException e) {
                     log(e, null);
-                    System.exit(ERRNO_INVALID_ARGS);
+                    return ERRNO_INVALID_ARGS;
                 }
             } else if (arg.equals(ARG_XML)) {
                 if (index == args.length - 1) {
-                    System.err.println("Missing XML output file name");
-                    System.exit(ERRNO_INVALID_ARGS);
+                    mErr.println("Missing XML output file name");
+                    return ERRNO_INVALID_ARGS;
                 }
                 File output = getOutArgumentPath(args[++index]);
                 // Get an absolute path such that we can ask its parent directory for
@@ -397,24 +469,24 @@ public class Main {
                 if (output.exists()) {
                     boolean delete = output.delete();
                     if (!delete) {
-                        System.err.println("Could not delete old " + output);
-                        System.exit(ERRNO_EXISTS);
+                        mErr.println("Could not delete old " + output);
+                        return ERRNO_EXISTS;
                     }
                 }
                 if (output.getParentFile() != null && !output.getParentFile().canWrite()) {
-                    System.err.println("Cannot write XML output file " + output);
-                    System.exit(ERRNO_EXISTS);
+                    mErr.println("Cannot write XML output file " + output);
+                    return ERRNO_EXISTS;
                 }
                 try {
                     mFlags.getReporters().add(new XmlReporter(client, output));
                 } catch (IOException e) {
                     log(e, null);
-                    System.exit(ERRNO_INVALID_ARGS);
+                    return ERRNO_INVALID_ARGS;
                 }
             } else if (arg.equals(ARG_TEXT)) {
                 if (index == args.length - 1) {
-                    System.err.println("Missing text output file name");
-                    System.exit(ERRNO_INVALID_ARGS);
+                    mErr.println("Missing text output file name");
+                    return ERRNO_INVALID_ARGS;
                 }
 
                 Writer writer = null;
@@ -422,7 +494,7 @@ public class Main {
                 String outputName = args[++index];
                 if (outputName.equals("stdout")) { //$NON-NLS-1$
                     //noinspection IOResourceOpenedButNotSafelyClosed
-                    writer = new PrintWriter(System.out, true);
+                    writer = new PrintWriter(mOut, true);
                     closeWriter = false;
                 } else {
                     File output = getOutArgumentPath(outputName);
@@ -434,28 +506,28 @@ public class Main {
                     if (output.exists()) {
                         boolean delete = output.delete();
                         if (!delete) {
-                            System.err.println("Could not delete old " + output);
-                            System.exit(ERRNO_EXISTS);
+                            mErr.println("Could not delete old " + output);
+                            return ERRNO_EXISTS;
                         }
                     }
                     if (output.getParentFile() != null && !output.getParentFile().canWrite()) {
-                        System.err.println("Cannot write text output file " + output);
-                        System.exit(ERRNO_EXISTS);
+                        mErr.println("Cannot write text output file " + output);
+                        return ERRNO_EXISTS;
                     }
                     try {
                         //noinspection IOResourceOpenedButNotSafelyClosed
                         writer = new BufferedWriter(new FileWriter(output));
                     } catch (IOException e) {
                         log(e, null);
-                        System.exit(ERRNO_INVALID_ARGS);
+                        return ERRNO_INVALID_ARGS;
                     }
                     closeWriter = true;
                 }
                 mFlags.getReporters().add(new TextReporter(client, mFlags, writer, closeWriter));
             } else if (arg.equals(ARG_DISABLE) || arg.equals(ARG_IGNORE)) {
                 if (index == args.length - 1) {
-                    System.err.println("Missing categories or id's to disable");
-                    System.exit(ERRNO_INVALID_ARGS);
+                    mErr.println("Missing categories or id's to disable");
+                    return ERRNO_INVALID_ARGS;
                 }
                 IssueRegistry registry = getGlobalRegistry(client);
                 String[] ids = args[++index].split(",");
@@ -472,17 +544,17 @@ public class Main {
                             }
                         }
                     } else if (!registry.isIssueId(id)) {
-                        System.err.println("Invalid id or category \"" + id + "\".\n");
-                        displayValidIds(registry, System.err);
-                        System.exit(ERRNO_INVALID_ARGS);
+                        mErr.println("Invalid id or category \"" + id + "\".\n");
+                        displayValidIds(registry, mErr);
+                        return ERRNO_INVALID_ARGS;
                     } else {
                         mFlags.getSuppressedIds().add(id);
                     }
                 }
             } else if (arg.equals(ARG_ENABLE)) {
                 if (index == args.length - 1) {
-                    System.err.println("Missing categories or id's to enable");
-                    System.exit(ERRNO_INVALID_ARGS);
+                    mErr.println("Missing categories or id's to enable");
+                    return ERRNO_INVALID_ARGS;
                 }
                 IssueRegistry registry = getGlobalRegistry(client);
                 String[] ids = args[++index].split(",");
@@ -497,17 +569,17 @@ public class Main {
                             }
                         }
                     } else if (!registry.isIssueId(id)) {
-                        System.err.println("Invalid id or category \"" + id + "\".\n");
-                        displayValidIds(registry, System.err);
-                        System.exit(ERRNO_INVALID_ARGS);
+                        mErr.println("Invalid id or category \"" + id + "\".\n");
+                        displayValidIds(registry, mErr);
+                        return ERRNO_INVALID_ARGS;
                     } else {
                         mFlags.getEnabledIds().add(id);
                     }
                 }
             } else if (arg.equals(ARG_CHECK)) {
                 if (index == args.length - 1) {
-                    System.err.println("Missing categories or id's to check");
-                    System.exit(ERRNO_INVALID_ARGS);
+                    mErr.println("Missing categories or id's to check");
+                    return ERRNO_INVALID_ARGS;
                 }
                 Set<String> checkedIds = mFlags.getExactCheckedIds();
                 if (checkedIds == null) {
@@ -529,9 +601,9 @@ public class Main {
                             }
                         }
                     } else if (!registry.isIssueId(id)) {
-                        System.err.println("Invalid id or category \"" + id + "\".\n");
-                        displayValidIds(registry, System.err);
-                        System.exit(ERRNO_INVALID_ARGS);
+                        mErr.println("Invalid id or category \"" + id + "\".\n");
+                        displayValidIds(registry, mErr);
+                        return ERRNO_INVALID_ARGS;
                     } else {
                         checkedIds.add(id);
                     }
@@ -544,15 +616,15 @@ public class Main {
                 mFlags.setWarningsAsErrors(true);
             } else if (arg.equals(ARG_CLASSES)) {
                 if (index == args.length - 1) {
-                    System.err.println("Missing class folder name");
-                    System.exit(ERRNO_INVALID_ARGS);
+                    mErr.println("Missing class folder name");
+                    return ERRNO_INVALID_ARGS;
                 }
                 String paths = args[++index];
                 for (String path : LintUtils.splitPath(paths)) {
                     File input = getInArgumentPath(path);
                     if (!input.exists()) {
-                        System.err.println("Class path entry " + input + " does not exist.");
-                        System.exit(ERRNO_INVALID_ARGS);
+                        mErr.println("Class path entry " + input + " does not exist.");
+                        return ERRNO_INVALID_ARGS;
                     }
                     List<File> classes = mFlags.getClassesOverride();
                     if (classes == null) {
@@ -563,15 +635,15 @@ public class Main {
                 }
             } else if (arg.equals(ARG_SOURCES)) {
                 if (index == args.length - 1) {
-                    System.err.println("Missing source folder name");
-                    System.exit(ERRNO_INVALID_ARGS);
+                    mErr.println("Missing source folder name");
+                    return ERRNO_INVALID_ARGS;
                 }
                 String paths = args[++index];
                 for (String path : LintUtils.splitPath(paths)) {
                     File input = getInArgumentPath(path);
                     if (!input.exists()) {
-                        System.err.println("Source folder " + input + " does not exist.");
-                        System.exit(ERRNO_INVALID_ARGS);
+                        mErr.println("Source folder " + input + " does not exist.");
+                        return ERRNO_INVALID_ARGS;
                     }
                     List<File> sources = mFlags.getSourcesOverride();
                     if (sources == null) {
@@ -582,15 +654,15 @@ public class Main {
                 }
             } else if (arg.equals(ARG_RESOURCES)) {
                 if (index == args.length - 1) {
-                    System.err.println("Missing resource folder name");
-                    System.exit(ERRNO_INVALID_ARGS);
+                    mErr.println("Missing resource folder name");
+                    return ERRNO_INVALID_ARGS;
                 }
                 String paths = args[++index];
                 for (String path : LintUtils.splitPath(paths)) {
                     File input = getInArgumentPath(path);
                     if (!input.exists()) {
-                        System.err.println("Resource folder " + input + " does not exist.");
-                        System.exit(ERRNO_INVALID_ARGS);
+                        mErr.println("Resource folder " + input + " does not exist.");
+                        return ERRNO_INVALID_ARGS;
                     }
                     List<File> resources = mFlags.getResourcesOverride();
                     if (resources == null) {
@@ -601,15 +673,15 @@ public class Main {
                 }
             } else if (arg.equals(ARG_LIBRARIES)) {
                 if (index == args.length - 1) {
-                    System.err.println("Missing library folder name");
-                    System.exit(ERRNO_INVALID_ARGS);
+                    mErr.println("Missing library folder name");
+                    return ERRNO_INVALID_ARGS;
                 }
                 String paths = args[++index];
                 for (String path : LintUtils.splitPath(paths)) {
                     File input = getInArgumentPath(path);
                     if (!input.exists()) {
-                        System.err.println("Library " + input + " does not exist.");
-                        System.exit(ERRNO_INVALID_ARGS);
+                        mErr.println("Library " + input + " does not exist.");
+                        return ERRNO_INVALID_ARGS;
                     }
                     List<File> libraries = mFlags.getLibrariesOverride();
                     if (libraries == null) {
@@ -619,46 +691,46 @@ public class Main {
                     libraries.add(input);
                 }
             } else if (arg.startsWith("--")) {
-                System.err.println("Invalid argument " + arg + "\n");
-                printUsage(System.err);
-                System.exit(ERRNO_INVALID_ARGS);
+                mErr.println("Invalid argument " + arg + "\n");
+                printUsage(mErr);
+                return ERRNO_INVALID_ARGS;
             } else {
                 String filename = arg;
                 File file = getInArgumentPath(filename);
 
                 if (!file.exists()) {
-                    System.err.println(String.format("%1$s does not exist.", filename));
-                    System.exit(ERRNO_EXISTS);
+                    mErr.println(String.format("%1$s does not exist.", filename));
+                    return ERRNO_EXISTS;
                 }
                 files.add(file);
             }
         }
 
         if (files.isEmpty()) {
-            System.err.println("No files to analyze.");
-            System.exit(ERRNO_INVALID_ARGS);
+            mErr.println("No files to analyze.");
+            return ERRNO_INVALID_ARGS;
         } else if (files.size() > 1
                 && (mFlags.getClassesOverride() != null
                     || mFlags.getSourcesOverride() != null
                     || mFlags.getLibrariesOverride() != null
                     || mFlags.getResourcesOverride() != null)) {
-            System.err.println(String.format(
+            mErr.println(String.format(
                   "The %1$s, %2$s, %3$s and %4$s arguments can only be used with a single project",
                   ARG_SOURCES, ARG_CLASSES, ARG_LIBRARIES, ARG_RESOURCES));
-            System.exit(ERRNO_INVALID_ARGS);
+            return ERRNO_INVALID_ARGS;
         }
 
         List<Reporter> reporters = mFlags.getReporters();
         if (reporters.isEmpty()) {
             //noinspection VariableNotUsedInsideIf
             if (urlMap != null) {
-                System.err.println(String.format(
+                mErr.println(String.format(
                         "Warning: The %1$s option only applies to HTML reports (%2$s)",
                             ARG_URL, ARG_HTML));
             }
 
             reporters.add(new TextReporter(client, mFlags,
-                    new PrintWriter(System.out, true), false));
+                    new PrintWriter(mOut, true), false));
         } else {
             //noinspection VariableNotUsedInsideIf
             if (urlMap != null) {
@@ -675,9 +747,9 @@ public class Main {
                         // Allow ='s in the suffix part
                         int index = s.indexOf('=');
                         if (index == -1) {
-                            System.err.println(
+                            mErr.println(
                               "The URL map argument must be of the form 'path_prefix=url_prefix'");
-                            System.exit(ERRNO_INVALID_ARGS);
+                            return ERRNO_INVALID_ARGS;
                         }
                         String key = s.substring(0, index);
                         String value = s.substring(index + 1);
@@ -693,14 +765,19 @@ public class Main {
         try {
             // Not using mGlobalRegistry; LintClient will do its own registry merging
             // also including project rules.
-            int exitCode = client.run(new BuiltinIssueRegistry(), files);
-            System.exit(exitCode);
+            return client.run(new BuiltinIssueRegistry(), files);
         } catch (IOException e) {
             log(e, null);
-            System.exit(ERRNO_INVALID_ARGS);
+            return ERRNO_INVALID_ARGS;
         }
     }
 
+    /** Returns the flags of this command line driver */
+    @NonNull
+    LintCliFlags getFlags() {
+        return mFlags;
+    }
+
     private IssueRegistry getGlobalRegistry(LintCliClient client) {
         if (mGlobalRegistry == null) {
             mGlobalRegistry = client.addCustomLintRules(new BuiltinIssueRegistry());
@@ -715,11 +792,11 @@ public class Main {
      * @param filename The filename given as a command-line argument.
      * @return A File matching filename, either absolute or relative to lint.workdir if defined.
      */
-    private static File getInArgumentPath(String filename) {
+    private File getInArgumentPath(String filename) {
         File file = new File(filename);
 
         if (!file.isAbsolute()) {
-            File workDir = getLintWorkDir();
+            File workDir = mWorkDir != null ? mWorkDir : getLintWorkDir();
             if (workDir != null) {
                 File file2 = new File(workDir, filename);
                 if (file2.exists()) {
@@ -743,11 +820,11 @@ public class Main {
      * @param filename The filename given as a command-line argument.
      * @return A File matching filename, either absolute or relative to lint.workdir if defined.
      */
-    private static File getOutArgumentPath(String filename) {
+    private File getOutArgumentPath(String filename) {
         File file = new File(filename);
 
         if (!file.isAbsolute()) {
-            File workDir = getLintWorkDir();
+            File workDir = mWorkDir != null ? mWorkDir : getLintWorkDir();
             if (workDir != null) {
                 File file2 = new File(workDir, filename);
                 try {
@@ -783,8 +860,8 @@ public class Main {
         return null;
     }
 
-    private static void printHelpTopicSuppress() {
-        System.out.println(wrap(TextFormat.RAW.convertTo(getSuppressHelp(), TextFormat.TEXT)));
+    private void printHelpTopicSuppress() {
+        mOut.println(wrap(TextFormat.RAW.convertTo(getSuppressHelp(), TextFormat.TEXT)));
     }
 
     static String getSuppressHelp() {
@@ -867,12 +944,12 @@ public class Main {
             "http://g.co/androidstudio/suppressing-lint-warnings\n";
     }
 
-    private static void printVersion(LintCliClient client) {
+    private void printVersion(LintCliClient client) {
         String revision = client.getRevision();
         if (revision != null) {
-            System.out.println(String.format("lint: version %1$s", revision));
+            mOut.println(String.format("lint: version %1$s", revision));
         } else {
-            System.out.println("lint: unknown version");
+            mOut.println("lint: unknown version");
         }
     }
 
@@ -894,7 +971,7 @@ public class Main {
         out.print(wrapArg("\"" + issue.getId() + "\": " + issue.getBriefDescription(TEXT)));
     }
 
-    private static void showIssues(IssueRegistry registry) {
+    private void showIssues(IssueRegistry registry) {
         List<Issue> issues = registry.getIssues();
         List<Issue> sorted = new ArrayList<Issue>(issues);
         Collections.sort(sorted, new Comparator<Issue>() {
@@ -913,49 +990,49 @@ public class Main {
             }
         });
 
-        System.out.println("Available issues:\n");
+        mOut.println("Available issues:\n");
         Category previousCategory = null;
         for (Issue issue : sorted) {
             Category category = issue.getCategory();
             if (!category.equals(previousCategory)) {
                 String name = category.getFullName();
-                System.out.println(name);
+                mOut.println(name);
                 for (int i = 0, n = name.length(); i < n; i++) {
-                    System.out.print('=');
+                    mOut.print('=');
                 }
-                System.out.println('\n');
+                mOut.println('\n');
                 previousCategory = category;
             }
 
             describeIssue(issue);
-            System.out.println();
+            mOut.println();
         }
     }
 
-    private static void describeIssue(Issue issue) {
-        System.out.println(issue.getId());
+    private void describeIssue(Issue issue) {
+        mOut.println(issue.getId());
         for (int i = 0; i < issue.getId().length(); i++) {
-            System.out.print('-');
+            mOut.print('-');
         }
-        System.out.println();
-        System.out.println(wrap("Summary: " + issue.getBriefDescription(TEXT)));
-        System.out.println("Priority: " + issue.getPriority() + " / 10");
-        System.out.println("Severity: " + issue.getDefaultSeverity().getDescription());
-        System.out.println("Category: " + issue.getCategory().getFullName());
+        mOut.println();
+        mOut.println(wrap("Summary: " + issue.getBriefDescription(TEXT)));
+        mOut.println("Priority: " + issue.getPriority() + " / 10");
+        mOut.println("Severity: " + issue.getDefaultSeverity().getDescription());
+        mOut.println("Category: " + issue.getCategory().getFullName());
 
         if (!issue.isEnabledByDefault()) {
-            System.out.println("NOTE: This issue is disabled by default!");
-            System.out.println(String.format("You can enable it by adding %1$s %2$s", ARG_ENABLE,
+            mOut.println("NOTE: This issue is disabled by default!");
+            mOut.println(String.format("You can enable it by adding %1$s %2$s", ARG_ENABLE,
                     issue.getId()));
         }
 
-        System.out.println();
-        System.out.println(wrap(issue.getExplanation(TEXT)));
+        mOut.println();
+        mOut.println(wrap(issue.getExplanation(TEXT)));
         List<String> moreInfo = issue.getMoreInfo();
         if (!moreInfo.isEmpty()) {
-            System.out.println("More information: ");
+            mOut.println("More information: ");
             for (String uri : moreInfo) {
-                System.out.println(uri);
+                mOut.println(uri);
             }
         }
     }
@@ -986,6 +1063,16 @@ public class Main {
             ARG_LIST_IDS, "List the available issue id's and exit.",
             ARG_VERSION, "Output version information and exit.",
             ARG_EXIT_CODE, "Set the exit code to " + ERRNO_ERRORS + " if errors are found.",
+            ARG_THREADS + " <count>", "Check files on the given number of threads. " +
+                "Checks which are not thread safe, which includes most of the expensive " +
+                "ones, still run on a single thread, so they bound the time of a run.",
+            ARG_INCREMENTAL, "Only run the cacheable checks on the files which changed " +
+                "since the previous run, and reuse their results for the other files.",
+            ARG_DAEMON + " <port>", "Start a lint daemon listening on the given local port, " +
+                "which keeps the parsers and lint databases loaded between runs. Lint runs " +
+                "in the daemon when the " + LintDaemon.PROP_PORT + " property or " +
+                "environment variable is set to its port. Only the user who started the " +
+                "daemon can run lint in it.",
             ARG_SHOW, "List available issues along with full explanations.",
             ARG_SHOW + " <ids>", "Show full explanations for the given list of issue id's.",
 
@@ -1075,17 +1162,17 @@ public class Main {
             @Nullable Throwable exception,
             @Nullable String format,
             @Nullable Object... args) {
-        System.out.flush();
+        mOut.flush();
         if (!mFlags.isQuiet()) {
             // Place the error message on a line of its own since we're printing '.' etc
             // with newlines during analysis
-            System.err.println();
+            mErr.println();
         }
         if (format != null) {
-            System.err.println(String.format(format, args));
+            mErr.println(String.format(format, args));
         }
         if (exception != null) {
-            exception.printStackTrace();
+            exception.printStackTrace(mErr);
         }
     }
 }
@@ -147,7 +147,7 @@ public class MultiProjectHtmlReporter extends HtmlReporter {
                 && (mDisplayEmpty || errorCount > 0 || warningCount > 0)) {
             File index = new File(mDir, INDEX_NAME);
             String url = SdkUtils.fileToUrlString(index.getAbsoluteFile());
-            System.out.println(String.format("Wrote overview index to %1$s", url));
+            mClient.getOutput().println(String.format("Wrote overview index to %1$s", url));
         }
     }
 
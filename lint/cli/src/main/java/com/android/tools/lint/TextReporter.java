@@ -230,7 +230,7 @@ public class TextReporter extends Reporter {
 
                 if (!mClient.getFlags().isQuiet() && mOutput != null) {
                     String path = mOutput.getAbsolutePath();
-                    System.out.println(String.format("Wrote text report to %1$s", path));
+                    mClient.getOutput().println(String.format("Wrote text report to %1$s", path));
                 }
             }
         }
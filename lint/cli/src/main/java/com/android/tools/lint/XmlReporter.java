@@ -168,7 +168,7 @@ public class XmlReporter extends Reporter {
         if (!mClient.getFlags().isQuiet()
                 && (mDisplayEmpty || errorCount > 0 || warningCount > 0)) {
             String url = SdkUtils.fileToUrlString(mOutput.getAbsoluteFile());
-            System.out.println(String.format("Wrote XML report to %1$s", url));
+            mClient.getOutput().println(String.format("Wrote XML report to %1$s", url));
         }
     }
 
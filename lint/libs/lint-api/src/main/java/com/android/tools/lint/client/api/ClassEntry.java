@@ -33,6 +33,7 @@ import org.objectweb.asm.ClassVisitor;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.lang.ref.SoftReference;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -48,6 +49,12 @@ class ClassEntry implements Comparable<ClassEntry> {
     public final File binDir;
     public final byte[] bytes;
 
+    /**
+     * The classes of the jar files read so far, when the client is
+     * {@link LintClient#isCachingLibraryClasses() caching library classes}
+     */
+    private static final Map<File, SoftReference<CachedJar>> sJarCache = Maps.newHashMap();
+
     @VisibleForTesting
     ClassEntry(
             @NonNull File file,
@@ -188,6 +195,15 @@ class ClassEntry implements Comparable<ClassEntry> {
                 if (!jarFile.exists()) {
                     continue;
                 }
+                boolean cache = client.isCachingLibraryClasses();
+                if (cache) {
+                    List<ClassEntry> cached = getCachedJar(jarFile);
+                    if (cached != null) {
+                        entries.addAll(cached);
+                        continue;
+                    }
+                }
+                int first = entries.size();
                 ZipInputStream zis = null;
                 try {
                     FileInputStream fis = new FileInputStream(jarFile);
@@ -205,6 +221,7 @@ class ClassEntry implements Comparable<ClassEntry> {
                                     }
                                 } catch (Exception e) {
                                     client.log(e, null);
+                                    cache = false;
                                     continue;
                                 }
                             }
@@ -216,6 +233,7 @@ class ClassEntry implements Comparable<ClassEntry> {
                     }
                 } catch (IOException e) {
                     client.log(e, "Could not read jar file contents from %1$s", jarFile);
+                    cache = false;
                 } finally {
                     try {
                         Closeables.close(zis, true);
@@ -223,6 +241,9 @@ class ClassEntry implements Comparable<ClassEntry> {
                         // cannot happen
                     }
                 }
+                if (cache) {
+                    putCachedJar(jarFile, entries.subList(first, entries.size()));
+                }
             } else if (classPathEntry.isDirectory()) {
                 //noinspection UnnecessaryLocalVariable
                 File binDir = classPathEntry;
@@ -243,6 +264,41 @@ class ClassEntry implements Comparable<ClassEntry> {
         }
     }
 
+    @Nullable
+    private static List<ClassEntry> getCachedJar(@NonNull File jarFile) {
+        synchronized (sJarCache) {
+            SoftReference<CachedJar> reference = sJarCache.get(jarFile);
+            CachedJar cached = reference != null ? reference.get() : null;
+            if (cached != null && cached.length == jarFile.length()
+                    && cached.lastModified == jarFile.lastModified()) {
+                return cached.entries;
+            }
+            sJarCache.remove(jarFile);
+            return null;
+        }
+    }
+
+    private static void putCachedJar(@NonNull File jarFile, @NonNull List<ClassEntry> entries) {
+        CachedJar cached = new CachedJar(jarFile.length(), jarFile.lastModified(),
+                new ArrayList<ClassEntry>(entries));
+        synchronized (sJarCache) {
+            sJarCache.put(jarFile, new SoftReference<CachedJar>(cached));
+        }
+    }
+
+    /** The classes of a jar file, and the size and time stamp of the file they were read from */
+    private static class CachedJar {
+        public final long length;
+        public final long lastModified;
+        public final List<ClassEntry> entries;
+
+        CachedJar(long length, long lastModified, @NonNull List<ClassEntry> entries) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.entries = entries;
+        }
+    }
+
     /** Adds in all the .class files found recursively in the given directory */
     private static void addClassFiles(@NonNull File dir, @NonNull List<File> classFiles) {
         // Process the resource folder
@@ -225,6 +225,18 @@ public abstract class LintClient {
         return Files.toByteArray(file);
     }
 
+    /**
+     * Returns whether the classes read from library jar files can be kept in memory,
+     * and reused by later lint runs in this process as long as the jar files do not
+     * change. Long running clients which check the same projects over and over can
+     * return true to avoid reading the same libraries on every run.
+     *
+     * @return true if library classes can be reused across runs
+     */
+    public boolean isCachingLibraryClasses() {
+        return false;
+    }
+
     /**
      * Returns the list of source folders for Java source files
      *
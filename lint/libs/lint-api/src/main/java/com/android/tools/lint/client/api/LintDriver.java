@@ -44,6 +44,7 @@ import com.android.sdklib.BuildToolInfo;
 import com.android.sdklib.IAndroidTarget;
 import com.android.sdklib.repositoryv2.AndroidSdkHandler;
 import com.android.tools.lint.client.api.LintListener.EventType;
+import com.android.tools.lint.client.api.LintResultCache.CachedReport;
 import com.android.tools.lint.detector.api.ClassContext;
 import com.android.tools.lint.detector.api.Context;
 import com.android.tools.lint.detector.api.Detector;
@@ -58,7 +59,9 @@ import com.android.tools.lint.detector.api.Scope;
 import com.android.tools.lint.detector.api.Severity;
 import com.android.tools.lint.detector.api.TextFormat;
 import com.android.tools.lint.detector.api.XmlContext;
+import com.android.utils.SdkUtils;
 import com.google.common.annotations.Beta;
+import com.google.common.base.Charsets;
 import com.google.common.base.Joiner;
 import com.google.common.base.Objects;
 import com.google.common.base.Splitter;
@@ -67,6 +70,9 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Sets;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.intellij.psi.PsiAnnotation;
 import com.intellij.psi.PsiAnnotationMemberValue;
 import com.intellij.psi.PsiAnnotationParameterList;
@@ -105,13 +111,16 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.security.CodeSource;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Deque;
 import java.util.EnumMap;
 import java.util.EnumSet;
@@ -123,6 +132,11 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -177,6 +191,21 @@ public class LintDriver {
     private Map<Object,Object> mProperties;
     /** Whether we need to look for legacy (old Lombok-based Java API) detectors */
     private boolean mRunCompatChecks = true;
+    /** Number of threads checking files; with 1, everything runs on the calling thread */
+    private int mThreadCount = 1;
+    /** The threads checking files in parallel, while analyzing with several threads */
+    private ExecutorService mWorkers;
+    /**
+     * The issues found by the current thread, when they are buffered instead of being
+     * reported right away: on the {@link #mWorkers}, and while filling the result cache
+     */
+    private final ThreadLocal<FileReports> mWorkerReports = new ThreadLocal<FileReports>();
+    /** Whether {@link EventType#SCANNING_FILE} events are fired by another lane */
+    private boolean mQuietScanningEvents;
+    /** Whether the results of the cacheable detectors are cached between runs */
+    private boolean mCacheResults;
+    /** The results cached for the current project, if caching */
+    private LintResultCache mResultCache;
 
     /**
      * Creates a new {@link LintDriver}
@@ -336,6 +365,58 @@ public class LintDriver {
         return mAbbreviating;
     }
 
+    /**
+     * Sets the number of threads used to check files. With more than one thread, the
+     * resource, Java and class files of each project are split among worker threads, each
+     * with its own parsers, while the detectors which are not
+     * {@link Detector#isThreadSafe() thread safe} keep running on the calling thread.
+     * Issues are always reported to the client from the calling thread, in the same
+     * order from one run to the next.
+     * <p>
+     * Most detectors, including the expensive ones such as the API and string format
+     * checks, keep state across files and are not thread safe, so they all run on the
+     * calling thread. The time of a run is then bounded by these detectors, and only
+     * goes down with more threads when they are not enabled.
+     *
+     * @param threadCount the number of threads, 1 to check files sequentially
+     */
+    public void setThreadCount(int threadCount) {
+        mThreadCount = Math.max(1, threadCount);
+    }
+
+    /**
+     * Returns the number of threads used to check files.
+     *
+     * @return the number of threads, 1 when checking files sequentially
+     */
+    public int getThreadCount() {
+        return mThreadCount;
+    }
+
+    /**
+     * Sets whether the issues reported by the {@link Detector#isCacheable() cacheable}
+     * detectors are cached, in the {@link LintClient#getCacheDir(boolean) cache directory}
+     * of the client. When caching, these detectors only check the files whose contents
+     * changed since the previous run, and the issues previously found in the other files
+     * are reported again. The other detectors, and the project level checks such as
+     * {@link Detector#afterCheckProject(Context)}, always run.
+     *
+     * @param cacheResults whether the results are cached
+     */
+    public void setCacheResults(boolean cacheResults) {
+        mCacheResults = cacheResults;
+    }
+
+    /**
+     * Returns whether the results of the cacheable detectors are cached between runs.
+     *
+     * @return true if the results are cached
+     * @see #setCacheResults(boolean)
+     */
+    public boolean isCacheResults() {
+        return mCacheResults;
+    }
+
     /**
      * Returns whether lint has encountered any files with fatal parser errors
      * (e.g. broken source code, or even broken parsers)
@@ -401,10 +482,21 @@ public class LintDriver {
     public void analyze(@NonNull LintRequest request) {
         try {
             mRequest = request;
+            if (mThreadCount > 1) {
+                mWorkers = Executors.newFixedThreadPool(mThreadCount,
+                        new ThreadFactoryBuilder()
+                                .setNameFormat("lint-%d")
+                                .setDaemon(true)
+                                .build());
+            }
             analyze();
         } catch (Throwable e) {
             throw new RuntimeException(e);
         } finally {
+            if (mWorkers != null) {
+                mWorkers.shutdownNow();
+                mWorkers = null;
+            }
             mRequest = null;
         }
     }
@@ -937,6 +1029,9 @@ public class LintDriver {
 
         mCurrentProject = project;
 
+        // The cached results are only valid for the first phase
+        mResultCache = mCacheResults && mPhase == 1 ? openResultCache(project) : null;
+
         for (Detector check : mApplicableDetectors) {
             check.beforeCheckProject(projectContext);
             if (mCanceled) {
@@ -987,6 +1082,15 @@ public class LintDriver {
             }
         }
 
+        if (mResultCache != null && !mCanceled) {
+            try {
+                mResultCache.save();
+            } catch (IOException e) {
+                mClient.log(e, "Could not save the lint results of %1$s", project.getName());
+            }
+        }
+        mResultCache = null;
+
         if (mCanceled) {
             mClient.report(
                 projectContext,
@@ -1000,6 +1104,88 @@ public class LintDriver {
         mCurrentProjects = null;
     }
 
+    /**
+     * Opens the cache of the results of the cacheable detectors for the given project, or
+     * returns null if none of the detectors are cacheable
+     */
+    @Nullable
+    private LintResultCache openResultCache(@NonNull Project project) {
+        List<Detector> cacheable = Lists.newArrayList();
+        for (Detector detector : mApplicableDetectors) {
+            if (detector.isCacheable()) {
+                cacheable.add(detector);
+            }
+        }
+        if (cacheable.isEmpty()) {
+            return null;
+        }
+        File cacheDir = mClient.getCacheDir(true);
+        if (cacheDir == null) {
+            return null;
+        }
+        String name = Hashing.sha1().hashString(project.getDir().getPath(), Charsets.UTF_8)
+                .toString();
+        File file = new File(cacheDir, "lint-results" + separator + name); //$NON-NLS-1$
+        return LintResultCache.load(file, computeCacheFingerprint(project, cacheable));
+    }
+
+    /**
+     * Computes a fingerprint of everything, other than the contents of the checked files,
+     * which the results of the given detectors depend on
+     */
+    @NonNull
+    private String computeCacheFingerprint(@NonNull Project project,
+            @NonNull List<Detector> cacheable) {
+        StringBuilder sb = new StringBuilder(1000);
+
+        // The code of the detectors, which changes with the lint version or custom rule jars
+        Set<Class<? extends Detector>> detectorClasses = Sets.newHashSet();
+        for (Detector detector : cacheable) {
+            detectorClasses.add(detector.getClass());
+        }
+        List<Class<? extends Detector>> sortedClasses = Lists.newArrayList(detectorClasses);
+        Collections.sort(sortedClasses, new Comparator<Class<?>>() {
+            @Override
+            public int compare(Class<?> c1, Class<?> c2) {
+                return c1.getName().compareTo(c2.getName());
+            }
+        });
+        for (Class<? extends Detector> detectorClass : sortedClasses) {
+            sb.append(detectorClass.getName());
+            CodeSource source = detectorClass.getProtectionDomain().getCodeSource();
+            if (source != null && source.getLocation() != null) {
+                try {
+                    File jar = SdkUtils.urlToFile(source.getLocation());
+                    sb.append(':').append(jar.length()).append(':').append(jar.lastModified());
+                } catch (MalformedURLException ignore) {
+                    // Not a file; only rely on the class name
+                }
+            }
+            sb.append('\n');
+        }
+
+        // The scope, and the configuration of the projects
+        sb.append(mScope).append('\n');
+        List<Project> projects = Lists.newArrayList(project);
+        projects.addAll(project.getAllLibraries());
+        for (Project p : projects) {
+            sb.append(p.getDir().getPath()).append(':').append(p.isLibrary()).append(':')
+                    .append(p.getMinSdkVersion()).append(':').append(p.getTargetSdkVersion())
+                    .append(':').append(p.getBuildSdk()).append('\n');
+
+            // Which issues are enabled, and how severe they are
+            Configuration configuration = p.getConfiguration(this);
+            for (Issue issue : mRegistry.getIssues()) {
+                if (detectorClasses.contains(issue.getImplementation().getDetectorClass())) {
+                    sb.append(issue.getId()).append('=')
+                            .append(configuration.getSeverity(issue)).append('\n');
+                }
+            }
+        }
+
+        return Hashing.sha1().hashString(sb, Charsets.UTF_8).toString();
+    }
+
     private void runFileDetectors(@NonNull Project project, @Nullable Project main) {
         // Look up manifest information (but not for library projects)
         if (project.isAndroidProject()) {
@@ -1353,99 +1539,161 @@ public class LintDriver {
     }
 
     /**
-     * Stack of {@link ClassNode} nodes for outer classes of the currently
-     * processed class, including that class itself. Populated by
-     * {@link #runClassDetectors(Scope, List, Project, Project)} and used by
-     * {@link #getOuterClassNode(ClassNode)}
+     * Stack of {@link ClassNode} nodes for outer classes of the class currently
+     * processed by each thread, including that class itself. Populated by
+     * {@link #checkClassEntries} and used by {@link #getOuterClassNode(ClassNode)}
      */
-    private Deque<ClassNode> mOuterClasses;
+    private final ThreadLocal<Deque<ClassNode>> mOuterClasses =
+            new ThreadLocal<Deque<ClassNode>>();
 
-    private void runClassDetectors(Scope scope, List<ClassEntry> entries,
-            Project project, Project main) {
+    private void runClassDetectors(final Scope scope, List<ClassEntry> entries,
+            final Project project, final Project main) {
         if (mScope.contains(scope)) {
             List<Detector> classDetectors = mScopeDetectors.get(scope);
             if (classDetectors != null && !classDetectors.isEmpty() && !entries.isEmpty()) {
-                AsmVisitor visitor = new AsmVisitor(mClient, classDetectors);
-
-                String sourceContents = null;
-                String sourceName = "";
-                mOuterClasses = new ArrayDeque<ClassNode>();
-                ClassEntry prev = null;
-                for (ClassEntry entry : entries) {
-                    if (prev != null && prev.compareTo(entry) == 0) {
-                        // Duplicate entries for some reason: ignore
-                        continue;
+                if (mWorkers != null) {
+                    final List<Detector> parallelDetectors = Lists.newArrayList();
+                    final List<Detector> serialDetectors = Lists.newArrayList();
+                    splitThreadSafe(classDetectors, parallelDetectors, serialDetectors);
+                    if (!parallelDetectors.isEmpty()) {
+                        // Inner classes have to be checked after their outer classes, by the
+                        // same thread: split the entries at top level classes only
+                        final List<ClassEntry> allEntries = entries;
+                        checkInParallel(groupByOuterClass(entries),
+                                new SliceCheck<List<ClassEntry>>() {
+                            @Override
+                            public void check(@NonNull List<List<ClassEntry>> slice) {
+                                List<ClassEntry> sliceEntries = Lists.newArrayList();
+                                for (List<ClassEntry> group : slice) {
+                                    sliceEntries.addAll(group);
+                                }
+                                checkClassEntries(scope, sliceEntries, project, main,
+                                        new AsmVisitor(mClient, parallelDetectors));
+                            }
+                        }, serialDetectors.isEmpty() ? null : new Runnable() {
+                            @Override
+                            public void run() {
+                                checkClassEntries(scope, allEntries, project, main,
+                                        new AsmVisitor(mClient, serialDetectors));
+                            }
+                        });
+                        return;
                     }
-                    prev = entry;
+                }
 
-                    ClassReader reader;
-                    ClassNode classNode;
-                    try {
-                        reader = new ClassReader(entry.bytes);
-                        classNode = new ClassNode();
-                        reader.accept(classNode, 0 /* flags */);
-                    } catch (Throwable t) {
-                        mClient.log(null, "Error processing %1$s: broken class file?",
-                                entry.path());
-                        continue;
-                    }
+                checkClassEntries(scope, entries, project, main,
+                        new AsmVisitor(mClient, classDetectors));
+            }
+        }
+    }
 
-                    ClassNode peek;
-                    while ((peek = mOuterClasses.peek()) != null) {
-                        if (classNode.name.startsWith(peek.name)) {
-                            break;
-                        } else {
-                            mOuterClasses.pop();
-                        }
-                    }
-                    mOuterClasses.push(classNode);
+    /** Splits class entries (sorted) in groups sharing the same top level class */
+    @NonNull
+    private static List<List<ClassEntry>> groupByOuterClass(@NonNull List<ClassEntry> entries) {
+        List<List<ClassEntry>> groups = Lists.newArrayList();
+        String outerPath = null;
+        List<ClassEntry> group = null;
+        for (ClassEntry entry : entries) {
+            String path = entry.file.getPath();
+            int nameStart = path.lastIndexOf(File.separatorChar) + 1;
+            int outerEnd = path.indexOf('$', nameStart);
+            if (outerEnd == -1) {
+                outerEnd = path.length() - DOT_CLASS.length();
+            }
+            if (group == null || !path.regionMatches(0, outerPath, 0, outerPath.length())
+                    || outerEnd != outerPath.length()) {
+                outerPath = path.substring(0, Math.max(nameStart, outerEnd));
+                group = Lists.newArrayList();
+                groups.add(group);
+            }
+            group.add(entry);
+        }
+        return groups;
+    }
+
+    private void checkClassEntries(Scope scope, List<ClassEntry> entries,
+            Project project, Project main, AsmVisitor visitor) {
+        Deque<ClassNode> outerClasses = new ArrayDeque<ClassNode>();
+        mOuterClasses.set(outerClasses);
+        try {
+            String sourceContents = null;
+            String sourceName = "";
+            ClassEntry prev = null;
+            for (ClassEntry entry : entries) {
+                if (prev != null && prev.compareTo(entry) == 0) {
+                    // Duplicate entries for some reason: ignore
+                    continue;
+                }
+                prev = entry;
 
-                    if (isSuppressed(null, classNode)) {
-                        // Class was annotated with suppress all -- no need to look any further
-                        continue;
-                    }
+                ClassReader reader;
+                ClassNode classNode;
+                try {
+                    reader = new ClassReader(entry.bytes);
+                    classNode = new ClassNode();
+                    reader.accept(classNode, 0 /* flags */);
+                } catch (Throwable t) {
+                    mClient.log(null, "Error processing %1$s: broken class file?",
+                            entry.path());
+                    continue;
+                }
 
-                    if (sourceContents != null) {
-                        // Attempt to reuse the source buffer if initialized
-                        // This means making sure that the source files
-                        //    foo/bar/MyClass and foo/bar/MyClass$Bar
-                        //    and foo/bar/MyClass$3 and foo/bar/MyClass$3$1 have the same prefix.
-                        String newName = classNode.name;
-                        int newRootLength = newName.indexOf('$');
-                        if (newRootLength == -1) {
-                            newRootLength = newName.length();
-                        }
-                        int oldRootLength = sourceName.indexOf('$');
-                        if (oldRootLength == -1) {
-                            oldRootLength = sourceName.length();
-                        }
-                        if (newRootLength != oldRootLength ||
-                                !sourceName.regionMatches(0, newName, 0, newRootLength)) {
-                            sourceContents = null;
-                        }
+                ClassNode peek;
+                while ((peek = outerClasses.peek()) != null) {
+                    if (classNode.name.startsWith(peek.name)) {
+                        break;
+                    } else {
+                        outerClasses.pop();
                     }
+                }
+                outerClasses.push(classNode);
 
-                    ClassContext context = new ClassContext(this, project, main,
-                            entry.file, entry.jarFile, entry.binDir, entry.bytes,
-                            classNode, scope == Scope.JAVA_LIBRARIES /*fromLibrary*/,
-                            sourceContents);
+                if (isSuppressed(null, classNode)) {
+                    // Class was annotated with suppress all -- no need to look any further
+                    continue;
+                }
 
-                    try {
-                        visitor.runClassDetectors(context);
-                    } catch (Exception e) {
-                        mClient.log(e, null);
+                if (sourceContents != null) {
+                    // Attempt to reuse the source buffer if initialized
+                    // This means making sure that the source files
+                    //    foo/bar/MyClass and foo/bar/MyClass$Bar
+                    //    and foo/bar/MyClass$3 and foo/bar/MyClass$3$1 have the same prefix.
+                    String newName = classNode.name;
+                    int newRootLength = newName.indexOf('$');
+                    if (newRootLength == -1) {
+                        newRootLength = newName.length();
                     }
-
-                    if (mCanceled) {
-                        return;
+                    int oldRootLength = sourceName.indexOf('$');
+                    if (oldRootLength == -1) {
+                        oldRootLength = sourceName.length();
+                    }
+                    if (newRootLength != oldRootLength ||
+                            !sourceName.regionMatches(0, newName, 0, newRootLength)) {
+                        sourceContents = null;
                     }
+                }
+
+                ClassContext context = new ClassContext(this, project, main,
+                        entry.file, entry.jarFile, entry.binDir, entry.bytes,
+                        classNode, scope == Scope.JAVA_LIBRARIES /*fromLibrary*/,
+                        sourceContents);
+                startFile(context, false);
+
+                try {
+                    visitor.runClassDetectors(context);
+                } catch (Exception e) {
+                    mClient.log(e, null);
+                }
 
-                    sourceContents = context.getSourceContents(false/*read*/);
-                    sourceName = classNode.name;
+                if (mCanceled) {
+                    return;
                 }
 
-                mOuterClasses = null;
+                sourceContents = context.getSourceContents(false/*read*/);
+                sourceName = classNode.name;
             }
+        } finally {
+            mOuterClasses.remove();
         }
     }
 
@@ -1455,7 +1703,11 @@ public class LintDriver {
     public ClassNode getOuterClassNode(@NonNull ClassNode classNode) {
         String outerName = classNode.outerClass;
 
-        Iterator<ClassNode> iterator = mOuterClasses.iterator();
+        Deque<ClassNode> outerClasses = mOuterClasses.get();
+        if (outerClasses == null) {
+            return null;
+        }
+        Iterator<ClassNode> iterator = outerClasses.iterator();
         while (iterator.hasNext()) {
             ClassNode node = iterator.next();
             if (outerName != null) {
@@ -1567,6 +1819,157 @@ public class LintDriver {
 
     private void visitJavaFiles(@NonNull List<Detector> checks, JavaParser javaParser,
             List<JavaContext> contexts) {
+        if (mResultCache != null) {
+            // Only the results of the PSI and UAST scanners are cached; the legacy
+            // Lombok based scanners always run
+            List<Detector> cachedChecks = Lists.newArrayListWithCapacity(checks.size());
+            List<Detector> otherChecks = Lists.newArrayListWithCapacity(checks.size());
+            for (Detector detector : checks) {
+                if (detector.isCacheable()
+                        && (detector instanceof Detector.JavaPsiScanner
+                                || detector instanceof Detector.UastScanner)
+                        && !(detector instanceof Detector.JavaScanner)) {
+                    cachedChecks.add(detector);
+                } else {
+                    otherChecks.add(detector);
+                }
+            }
+            if (!cachedChecks.isEmpty()) {
+                checkCachedJavaFiles(cachedChecks, javaParser, contexts, !otherChecks.isEmpty());
+                if (otherChecks.isEmpty() || mCanceled) {
+                    return;
+                }
+                checks = otherChecks;
+            }
+        }
+
+        if (mWorkers != null && contexts.size() > 1) {
+            // Only the PSI and UAST scanners can run on worker threads; the legacy
+            // Lombok based scanners stay on the calling thread
+            List<Detector> scanners = Lists.newArrayListWithCapacity(checks.size());
+            final List<Detector> serialChecks = Lists.newArrayListWithCapacity(checks.size());
+            for (Detector detector : checks) {
+                if ((detector instanceof Detector.JavaPsiScanner
+                        || detector instanceof Detector.UastScanner)
+                        && !(detector instanceof Detector.JavaScanner)) {
+                    scanners.add(detector);
+                } else {
+                    serialChecks.add(detector);
+                }
+            }
+            final List<Detector> parallelChecks = Lists.newArrayListWithCapacity(checks.size());
+            splitThreadSafe(scanners, parallelChecks, serialChecks);
+            if (!parallelChecks.isEmpty()) {
+                visitJavaFilesInParallel(parallelChecks, serialChecks, javaParser, contexts);
+                return;
+            }
+        }
+
+        visitJavaFilesSequentially(checks, javaParser, contexts);
+    }
+
+    /**
+     * Checks Java files with the thread safe detectors on the worker threads, each with its
+     * own {@link JavaParser}, and with the other detectors on the calling thread. Only the
+     * visiting is split between the workers: each one parses all the files, so types are
+     * resolved against the same sources as on the calling thread.
+     */
+    private void visitJavaFilesInParallel(
+            @NonNull final List<Detector> parallelChecks,
+            @NonNull final List<Detector> serialChecks,
+            @NonNull final JavaParser javaParser,
+            @NonNull final List<JavaContext> contexts) {
+        Runnable serialLane = null;
+        if (!serialChecks.isEmpty()) {
+            serialLane = new Runnable() {
+                @Override
+                public void run() {
+                    visitJavaFilesSequentially(serialChecks, javaParser, contexts);
+                }
+            };
+        }
+        checkInParallel(contexts, new SliceCheck<JavaContext>() {
+            @Override
+            public void check(@NonNull List<JavaContext> slice) {
+                visitJavaFilesOnWorker(parallelChecks, contexts, slice);
+            }
+        }, serialLane);
+    }
+
+    /**
+     * Checks a slice of Java files on a worker thread, with its own {@link JavaParser}. The
+     * parser is given all the files, not just the slice, since a parser only resolves
+     * references to the sources it was prepared with.
+     *
+     * @param checks the detectors to run
+     * @param contexts all the files of the project being checked
+     * @param slice the files to visit, among the given contexts
+     */
+    private void visitJavaFilesOnWorker(@NonNull List<Detector> checks,
+            @NonNull List<JavaContext> contexts, @NonNull List<JavaContext> slice) {
+        Project project = slice.get(0).getProject();
+        JavaParser parser = mClient.getJavaParser(project);
+        if (parser == null) {
+            return;
+        }
+        List<JavaContext> parsed = Lists.newArrayListWithExpectedSize(contexts.size());
+        Map<File, JavaContext> byFile = Maps.newHashMapWithExpectedSize(contexts.size());
+        for (JavaContext context : contexts) {
+            JavaContext workerContext = new JavaContext(this, context.getProject(),
+                    context.getMainProject(), context.file, parser);
+            parsed.add(workerContext);
+            byFile.put(context.file, workerContext);
+        }
+        List<JavaContext> visited = Lists.newArrayListWithExpectedSize(slice.size());
+        for (JavaContext context : slice) {
+            visited.add(byFile.get(context.file));
+        }
+        visitJavaFilesSequentially(checks, parser, parsed, visited);
+    }
+
+    /**
+     * Checks Java files with the cacheable detectors, only visiting the files which changed
+     * since their results were cached
+     */
+    private void checkCachedJavaFiles(
+            @NonNull final List<Detector> checks,
+            @NonNull final JavaParser javaParser,
+            @NonNull final List<JavaContext> contexts,
+            boolean otherLane) {
+        final boolean parallel = isThreadSafe(checks);
+        List<File> files = Lists.newArrayListWithCapacity(contexts.size());
+        for (JavaContext context : contexts) {
+            files.add(context.file);
+        }
+        JavaContext first = contexts.get(0);
+        checkCached(first.getProject(), first.getMainProject(), contexts, files,
+                new SliceCheck<JavaContext>() {
+            @Override
+            public void check(@NonNull List<JavaContext> slice) {
+                if (parallel && mWorkers != null) {
+                    visitJavaFilesOnWorker(checks, contexts, slice);
+                } else {
+                    visitJavaFilesSequentially(checks, javaParser, contexts, slice);
+                }
+            }
+        }, parallel, otherLane);
+    }
+
+    private void visitJavaFilesSequentially(@NonNull List<Detector> checks,
+            JavaParser javaParser, List<JavaContext> contexts) {
+        visitJavaFilesSequentially(checks, javaParser, contexts, contexts);
+    }
+
+    /**
+     * Parses the given contexts, and visits some of them with the given detectors
+     *
+     * @param checks the detectors to run
+     * @param javaParser the parser of the contexts
+     * @param contexts the files to parse, which references are resolved against
+     * @param visited the files to visit, among the parsed ones
+     */
+    private void visitJavaFilesSequentially(@NonNull List<Detector> checks,
+            JavaParser javaParser, List<JavaContext> contexts, List<JavaContext> visited) {
         // Temporary: we still have some builtin checks that aren't migrated to
         // PSI. Until that's complete, remove them from the list here
         //List<Detector> scanners = checks;
@@ -1582,8 +1985,8 @@ public class LintDriver {
 
         JavaPsiVisitor visitor = new JavaPsiVisitor(javaParser, scanners);
         visitor.prepare(contexts);
-        for (JavaContext context : contexts) {
-            fireEvent(EventType.SCANNING_FILE, context);
+        for (JavaContext context : visited) {
+            startFile(context, true);
             visitor.visitFile(context);
             if (mCanceled) {
                 return;
@@ -1593,8 +1996,8 @@ public class LintDriver {
 
         UElementVisitor uElementVisitor = new UElementVisitor(javaParser, uastScanners);
         uElementVisitor.prepare(contexts);
-        for (JavaContext context : contexts) {
-            fireEvent(EventType.SCANNING_FILE, context);
+        for (JavaContext context : visited) {
+            startFile(context, true);
             uElementVisitor.visitFile(context);
             if (mCanceled) {
                 return;
@@ -1627,7 +2030,7 @@ public class LintDriver {
                         + "will no longer include this legacy mode. Make sure the following "
                         + "lint detectors are upgraded to the new API: %1$s",
                         Joiner.on(", ").join(detectorNames));
-                JavaContext first = contexts.get(0);
+                JavaContext first = visited.get(0);
                 Project project = first.getProject();
                 Location location = Location.create(project.getDir());
                 mClient.report(first,
@@ -1639,8 +2042,8 @@ public class LintDriver {
                 JavaVisitor oldVisitor = new JavaVisitor(javaParser, filtered);
 
                 oldVisitor.prepare(contexts);
-                for (JavaContext context : contexts) {
-                    fireEvent(EventType.SCANNING_FILE, context);
+                for (JavaContext context : visited) {
+                    startFile(context, true);
                     oldVisitor.visitFile(context);
                     if (mCanceled) {
                         return;
@@ -1810,28 +2213,191 @@ public class LintDriver {
             return;
         }
 
+        // Process files in alphabetical order, to ensure stable output
+        // (for example for the duplicate resource detector)
+        Arrays.sort(files);
+
+        if (mResultCache != null) {
+            List<ResourceXmlDetector> cachedXmlChecks = Lists.newArrayList();
+            List<ResourceXmlDetector> otherXmlChecks = Lists.newArrayList();
+            splitCacheable(xmlChecks, cachedXmlChecks, otherXmlChecks);
+            List<Detector> cachedBinaryChecks = Lists.newArrayList();
+            List<Detector> otherBinaryChecks = Lists.newArrayList();
+            if (binaryChecks != null) {
+                splitCacheable(binaryChecks, cachedBinaryChecks, otherBinaryChecks);
+            }
+            if (!cachedXmlChecks.isEmpty() || !cachedBinaryChecks.isEmpty()) {
+                boolean otherLane = !otherXmlChecks.isEmpty() || !otherBinaryChecks.isEmpty();
+                checkCachedResourceFiles(project, main, type, Arrays.asList(files),
+                        cachedXmlChecks, cachedBinaryChecks, binaryChecks != null, otherLane);
+                if (!otherLane || mCanceled) {
+                    return;
+                }
+                xmlChecks = otherXmlChecks;
+                if (binaryChecks != null) {
+                    binaryChecks = otherBinaryChecks;
+                }
+            }
+        }
+
+        if (mWorkers != null && files.length > 1
+                && checkResourceFilesInParallel(project, main, type, Arrays.asList(files),
+                        xmlChecks, binaryChecks)) {
+            return;
+        }
+
         ResourceVisitor visitor = getVisitor(type, xmlChecks, binaryChecks);
         if (visitor != null) { // if not, there are no applicable rules in this folder
-            // Process files in alphabetical order, to ensure stable output
-            // (for example for the duplicate resource detector)
-            Arrays.sort(files);
-            for (File file : files) {
-                if (LintUtils.isXmlFile(file)) {
-                    XmlContext context = new XmlContext(this, project, main, file, type,
-                            visitor.getParser());
-                    fireEvent(EventType.SCANNING_FILE, context);
-                    visitor.visitFile(context, file);
-                } else if (binaryChecks != null && (LintUtils.isBitmapFile(file) ||
-                            type == ResourceFolderType.RAW)) {
-                    ResourceContext context = new ResourceContext(this, project, main, file, type);
-                    fireEvent(EventType.SCANNING_FILE, context);
-                    visitor.visitBinaryResource(context);
+            visitResourceFiles(project, main, type, Arrays.asList(files), visitor,
+                    binaryChecks != null);
+        }
+    }
+
+    private void visitResourceFiles(
+            @NonNull Project project,
+            @Nullable Project main,
+            @NonNull ResourceFolderType type,
+            @NonNull List<File> files,
+            @NonNull ResourceVisitor visitor,
+            boolean checkBinaries) {
+        for (File file : files) {
+            if (LintUtils.isXmlFile(file)) {
+                XmlContext context = new XmlContext(this, project, main, file, type,
+                        visitor.getParser());
+                startFile(context, true);
+                visitor.visitFile(context, file);
+            } else if (checkBinaries && (LintUtils.isBitmapFile(file) ||
+                        type == ResourceFolderType.RAW)) {
+                ResourceContext context = new ResourceContext(this, project, main, file, type);
+                startFile(context, true);
+                visitor.visitBinaryResource(context);
+            }
+            if (mCanceled) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Checks the files of a resource folder with the thread safe detectors on the worker
+     * threads, and with the other detectors on the calling thread.
+     *
+     * @return false if none of the detectors are thread safe, and nothing was checked
+     */
+    private boolean checkResourceFilesInParallel(
+            @NonNull final Project project,
+            @Nullable final Project main,
+            @NonNull final ResourceFolderType type,
+            @NonNull final List<File> files,
+            @NonNull List<ResourceXmlDetector> xmlChecks,
+            @Nullable List<Detector> binaryChecks) {
+        List<ResourceXmlDetector> applicableXmlChecks = Lists.newArrayList();
+        for (ResourceXmlDetector check : xmlChecks) {
+            if (check.appliesTo(type)) {
+                applicableXmlChecks.add(check);
+            }
+        }
+        List<Detector> applicableBinaryChecks = Lists.newArrayList();
+        if (binaryChecks != null) {
+            for (Detector check : binaryChecks) {
+                if (check.appliesTo(type)) {
+                    applicableBinaryChecks.add(check);
                 }
-                if (mCanceled) {
-                    return;
+            }
+        }
+        final List<ResourceXmlDetector> parallelXmlChecks = Lists.newArrayList();
+        final List<ResourceXmlDetector> serialXmlChecks = Lists.newArrayList();
+        splitThreadSafe(applicableXmlChecks, parallelXmlChecks, serialXmlChecks);
+        final List<Detector> parallelBinaryChecks = Lists.newArrayList();
+        final List<Detector> serialBinaryChecks = Lists.newArrayList();
+        splitThreadSafe(applicableBinaryChecks, parallelBinaryChecks, serialBinaryChecks);
+        if (parallelXmlChecks.isEmpty() && parallelBinaryChecks.isEmpty()) {
+            return false;
+        }
+
+        final boolean checkBinaries = binaryChecks != null;
+        Runnable serialLane = null;
+        if (!serialXmlChecks.isEmpty() || !serialBinaryChecks.isEmpty()) {
+            serialLane = new Runnable() {
+                @Override
+                public void run() {
+                    XmlParser parser = mClient.getXmlParser();
+                    if (parser != null) {
+                        visitResourceFiles(project, main, type, files,
+                                new ResourceVisitor(parser, serialXmlChecks,
+                                        serialBinaryChecks),
+                                checkBinaries);
+                    }
+                }
+            };
+        }
+        checkInParallel(files, new SliceCheck<File>() {
+            @Override
+            public void check(@NonNull List<File> slice) {
+                // Each worker has its own parser
+                XmlParser parser = mClient.getXmlParser();
+                if (parser != null) {
+                    visitResourceFiles(project, main, type, slice,
+                            new ResourceVisitor(parser, parallelXmlChecks,
+                                    parallelBinaryChecks),
+                            checkBinaries);
                 }
             }
+        }, serialLane);
+        return true;
+    }
+
+    /**
+     * Checks the files of a resource folder with the cacheable detectors, only visiting the
+     * files which changed since their results were cached
+     */
+    private void checkCachedResourceFiles(
+            @NonNull final Project project,
+            @Nullable final Project main,
+            @NonNull final ResourceFolderType type,
+            @NonNull List<File> files,
+            @NonNull List<ResourceXmlDetector> xmlChecks,
+            @NonNull List<Detector> binaryChecks,
+            final boolean checkBinaries,
+            boolean otherLane) {
+        final List<ResourceXmlDetector> applicableXmlChecks = Lists.newArrayList();
+        for (ResourceXmlDetector check : xmlChecks) {
+            if (check.appliesTo(type)) {
+                applicableXmlChecks.add(check);
+            }
+        }
+        final List<Detector> applicableBinaryChecks = Lists.newArrayList();
+        for (Detector check : binaryChecks) {
+            if (check.appliesTo(type)) {
+                applicableBinaryChecks.add(check);
+            }
+        }
+        if (applicableXmlChecks.isEmpty() && applicableBinaryChecks.isEmpty()) {
+            return;
         }
+
+        // Only the files visitResourceFiles looks at
+        List<File> checkedFiles = Lists.newArrayListWithCapacity(files.size());
+        for (File file : files) {
+            if (LintUtils.isXmlFile(file) || checkBinaries && (LintUtils.isBitmapFile(file)
+                    || type == ResourceFolderType.RAW)) {
+                checkedFiles.add(file);
+            }
+        }
+        boolean parallel = isThreadSafe(applicableXmlChecks)
+                && isThreadSafe(applicableBinaryChecks);
+        checkCached(project, main, checkedFiles, checkedFiles, new SliceCheck<File>() {
+            @Override
+            public void check(@NonNull List<File> slice) {
+                XmlParser parser = mClient.getXmlParser();
+                if (parser != null) {
+                    visitResourceFiles(project, main, type, slice,
+                            new ResourceVisitor(parser, applicableXmlChecks,
+                                    applicableBinaryChecks),
+                            checkBinaries);
+                }
+            }
+        }, parallel, otherLane);
     }
 
     /** Checks individual resources */
@@ -1890,6 +2456,393 @@ public class LintDriver {
         }
     }
 
+    /**
+     * Splits detectors in those which are {@link Detector#isThreadSafe() thread safe}
+     * and the others.
+     */
+    private static <T extends Detector> void splitThreadSafe(@NonNull List<T> detectors,
+            @NonNull List<T> threadSafe, @NonNull List<T> others) {
+        for (T detector : detectors) {
+            if (detector.isThreadSafe()) {
+                threadSafe.add(detector);
+            } else {
+                others.add(detector);
+            }
+        }
+    }
+
+    /** Returns true if all the given detectors are {@link Detector#isThreadSafe() thread safe} */
+    private static boolean isThreadSafe(@NonNull List<? extends Detector> detectors) {
+        for (Detector detector : detectors) {
+            if (!detector.isThreadSafe()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Splits detectors in those which are {@link Detector#isCacheable() cacheable}
+     * and the others.
+     */
+    private static <T extends Detector> void splitCacheable(@NonNull List<T> detectors,
+            @NonNull List<T> cacheable, @NonNull List<T> others) {
+        for (T detector : detectors) {
+            if (detector.isCacheable()) {
+                cacheable.add(detector);
+            } else {
+                others.add(detector);
+            }
+        }
+    }
+
+    /** Checks a contiguous slice of the files of a project on a worker thread */
+    private interface SliceCheck<T> {
+        void check(@NonNull List<T> slice);
+    }
+
+    /**
+     * Splits the given files in contiguous slices checked by the worker threads, while
+     * running the serial lane, if any, on the calling thread. The issues found by both
+     * lanes are recorded, and then reported file by file, in the order the files were
+     * given, such that the same issues come in the same order from one run to the next.
+     */
+    private <T> void checkInParallel(@NonNull List<T> files, @NonNull final SliceCheck<T> check,
+            @Nullable Runnable serialLane) {
+        List<Future<FileReports>> futures = submitSlices(files, check);
+
+        FileReports serialReports = null;
+        if (serialLane != null) {
+            serialReports = new FileReports();
+            mWorkerReports.set(serialReports);
+            try {
+                serialLane.run();
+            } finally {
+                mWorkerReports.remove();
+            }
+        }
+
+        List<FileReports> slices = Lists.newArrayListWithCapacity(futures.size());
+        for (Future<FileReports> future : futures) {
+            FileReports reports = awaitSlice(future, futures);
+            if (reports != null) {
+                slices.add(reports);
+            } else if (mCanceled) {
+                return;
+            }
+        }
+        replay(mergeByFile(slices, serialReports));
+    }
+
+    /**
+     * Merges the files checked by the serial lane into those checked by the workers, such
+     * that the issues found in a file by both lanes are reported one after the other. The
+     * slices cover contiguous ranges of the files, so taken one after the other they give
+     * the order of the files; the few files only checked by the serial lane are kept after
+     * the file it checked before them.
+     */
+    @NonNull
+    private static FileReports mergeByFile(@NonNull List<FileReports> slices,
+            @Nullable FileReports serialReports) {
+        FileReports merged = new FileReports();
+        if (serialReports == null) {
+            for (FileReports reports : slices) {
+                merged.mFiles.addAll(reports.mFiles);
+            }
+            return merged;
+        }
+
+        // The files checked by the workers, each followed by the files of the serial lane
+        // which go with it
+        List<ScannedFile> parallel = Lists.newArrayList();
+        Map<File, List<ScannedFile>> followers = Maps.newHashMap();
+        for (FileReports reports : slices) {
+            for (ScannedFile scanned : reports.mFiles) {
+                parallel.add(scanned);
+                if (scanned.context != null && !followers.containsKey(scanned.context.file)) {
+                    followers.put(scanned.context.file, Lists.<ScannedFile>newArrayList());
+                }
+            }
+        }
+
+        List<ScannedFile> leading = Lists.newArrayList();
+        List<ScannedFile> current = leading;
+        for (ScannedFile scanned : serialReports.mFiles) {
+            if (scanned.context != null) {
+                List<ScannedFile> group = followers.get(scanned.context.file);
+                if (group != null) {
+                    current = group;
+                    // The workers already notified the listeners of this file
+                    ScannedFile quiet = new ScannedFile(scanned.context, false);
+                    quiet.reports.addAll(scanned.reports);
+                    scanned = quiet;
+                }
+            }
+            current.add(scanned);
+        }
+
+        merged.mFiles.addAll(leading);
+        for (int i = 0, n = parallel.size(); i < n; i++) {
+            ScannedFile scanned = parallel.get(i);
+            merged.mFiles.add(scanned);
+            Context context = scanned.context;
+            // A file may be visited several times in a row by a worker: the files of the
+            // serial lane go after the last of these visits
+            boolean last = i == n - 1 || context == null
+                    || parallel.get(i + 1).context == null
+                    || !context.file.equals(parallel.get(i + 1).context.file);
+            if (context != null && last) {
+                List<ScannedFile> group = followers.remove(context.file);
+                if (group != null) {
+                    merged.mFiles.addAll(group);
+                }
+            }
+        }
+        return merged;
+    }
+
+    /** Splits the given files in contiguous slices, and submits them to the worker threads */
+    @NonNull
+    private <T> List<Future<FileReports>> submitSlices(@NonNull List<T> files,
+            @NonNull final SliceCheck<T> check) {
+        int sliceSize = (files.size() + mThreadCount - 1) / mThreadCount;
+        List<Future<FileReports>> futures = Lists.newArrayListWithCapacity(mThreadCount);
+        for (final List<T> slice : Lists.partition(files, Math.max(1, sliceSize))) {
+            futures.add(mWorkers.submit(new Callable<FileReports>() {
+                @Override
+                public FileReports call() throws Exception {
+                    FileReports reports = new FileReports();
+                    mWorkerReports.set(reports);
+                    try {
+                        check.check(slice);
+                    } finally {
+                        mWorkerReports.remove();
+                    }
+                    return reports;
+                }
+            }));
+        }
+        return futures;
+    }
+
+    /**
+     * Waits for a slice submitted by {@link #submitSlices}, and returns the issues found
+     * in it, or null if it failed or if the wait was interrupted; in the latter case lint
+     * is canceled, along with all the slices.
+     */
+    @Nullable
+    private FileReports awaitSlice(@NonNull Future<FileReports> future,
+            @NonNull List<Future<FileReports>> futures) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            mCanceled = true;
+            for (Future<FileReports> f : futures) {
+                f.cancel(true);
+            }
+        } catch (ExecutionException e) {
+            mClient.log(e.getCause(), null);
+        }
+        return null;
+    }
+
+    /**
+     * Checks the given files with the cacheable detectors. The issues found in the files
+     * which did not change since they were cached are reported again, while the other
+     * files are checked and their issues cached.
+     *
+     * @param project the project containing the files
+     * @param main the main project, if checking a library project
+     * @param items the items to check
+     * @param files the files of the items, in the same order
+     * @param check checks a list of items
+     * @param parallel whether the items can be checked on the worker threads
+     * @param otherLane whether the files are checked by other detectors afterwards, in
+     *     which case the listeners are notified of the scanned files then
+     */
+    private <T> void checkCached(
+            @NonNull Project project,
+            @Nullable Project main,
+            @NonNull List<T> items,
+            @NonNull List<File> files,
+            @NonNull SliceCheck<T> check,
+            boolean parallel,
+            boolean otherLane) {
+        LintResultCache cache = mResultCache;
+        assert cache != null;
+        List<T> changed = Lists.newArrayList();
+        Map<File, HashCode> changedHashes = Maps.newHashMap();
+        for (int i = 0, n = items.size(); i < n; i++) {
+            File file = files.get(i);
+            HashCode hash;
+            try {
+                hash = LintResultCache.hash(file);
+            } catch (IOException e) {
+                // Checked, but not cached
+                changed.add(items.get(i));
+                continue;
+            }
+            List<CachedReport> reports = cache.get(file, hash);
+            if (reports != null) {
+                replayCached(project, main, file, reports);
+            } else {
+                changed.add(items.get(i));
+                changedHashes.put(file, hash);
+            }
+        }
+        if (changed.isEmpty()) {
+            return;
+        }
+
+        // Record the issues found in the changed files, and then report them
+        List<FileReports> results = Lists.newArrayList();
+        if (parallel && mWorkers != null && changed.size() > 1) {
+            List<Future<FileReports>> futures = submitSlices(changed, check);
+            for (Future<FileReports> future : futures) {
+                FileReports reports = awaitSlice(future, futures);
+                if (reports != null) {
+                    results.add(reports);
+                } else if (mCanceled) {
+                    return;
+                }
+            }
+        } else {
+            FileReports reports = new FileReports();
+            mWorkerReports.set(reports);
+            try {
+                check.check(changed);
+            } finally {
+                mWorkerReports.remove();
+            }
+            results.add(reports);
+        }
+
+        // Only the files which were actually visited are cached, such that a failed
+        // check is not mistaken for a file without issues
+        Map<File, List<CachedReport>> visited = Maps.newHashMap();
+        mQuietScanningEvents = otherLane;
+        try {
+            for (FileReports reports : results) {
+                for (ScannedFile scanned : reports.mFiles) {
+                    if (scanned.context == null
+                            || !changedHashes.containsKey(scanned.context.file)) {
+                        continue;
+                    }
+                    List<CachedReport> cached = visited.get(scanned.context.file);
+                    if (cached == null) {
+                        cached = Lists.newArrayList();
+                        visited.put(scanned.context.file, cached);
+                    }
+                    for (Report report : scanned.reports) {
+                        cached.add(new CachedReport(report.issue.getId(), report.severity,
+                                report.location, report.message, report.format));
+                    }
+                }
+                replay(reports);
+            }
+        } finally {
+            mQuietScanningEvents = false;
+        }
+        if (mCanceled) {
+            return;
+        }
+        for (Map.Entry<File, List<CachedReport>> entry : visited.entrySet()) {
+            cache.put(entry.getKey(), changedHashes.get(entry.getKey()), entry.getValue());
+        }
+    }
+
+    /** Reports the issues cached for a file which did not change */
+    private void replayCached(@NonNull Project project, @Nullable Project main,
+            @NonNull File file, @NonNull List<CachedReport> reports) {
+        if (reports.isEmpty()) {
+            return;
+        }
+        Context context = new Context(this, project, main, file);
+        for (CachedReport report : reports) {
+            Issue issue = mRegistry.getIssue(report.issueId);
+            if (issue != null) {
+                mClient.report(context, issue, report.severity, report.location,
+                        report.message, report.format);
+            }
+        }
+    }
+
+    /**
+     * Notes that the current thread starts checking the given file. Worker threads
+     * record it along with the issues found next; the calling thread notifies the
+     * listeners right away.
+     */
+    private void startFile(@NonNull Context context, boolean scanningEvent) {
+        FileReports reports = mWorkerReports.get();
+        if (reports != null) {
+            reports.startFile(context, scanningEvent);
+        } else if (scanningEvent) {
+            fireEvent(EventType.SCANNING_FILE, context);
+        }
+    }
+
+    /** Notifies the listeners and the client of the files checked by a worker thread */
+    private void replay(@NonNull FileReports reports) {
+        for (ScannedFile file : reports.mFiles) {
+            if (file.scanningEvent) {
+                fireEvent(EventType.SCANNING_FILE, file.context);
+            }
+            for (Report report : file.reports) {
+                mClient.report(report.context, report.issue, report.severity,
+                        report.location, report.message, report.format);
+            }
+        }
+    }
+
+    /** The files checked by a worker thread, with the issues found in each of them */
+    private static class FileReports {
+        private final List<ScannedFile> mFiles = Lists.newArrayList();
+
+        void startFile(@Nullable Context context, boolean scanningEvent) {
+            mFiles.add(new ScannedFile(context, scanningEvent));
+        }
+
+        void add(@NonNull Report report) {
+            if (mFiles.isEmpty()) {
+                startFile(null, false);
+            }
+            mFiles.get(mFiles.size() - 1).reports.add(report);
+        }
+    }
+
+    private static class ScannedFile {
+        @Nullable public final Context context;
+        public final boolean scanningEvent;
+        public final List<Report> reports = Lists.newArrayListWithExpectedSize(0);
+
+        ScannedFile(@Nullable Context context, boolean scanningEvent) {
+            this.context = context;
+            this.scanningEvent = scanningEvent;
+        }
+    }
+
+    /** An issue reported on a worker thread, to be passed on by the calling thread */
+    private static class Report {
+        public final Context context;
+        public final Issue issue;
+        public final Severity severity;
+        public final Location location;
+        public final String message;
+        public final TextFormat format;
+
+        Report(@NonNull Context context, @NonNull Issue issue, @NonNull Severity severity,
+                @NonNull Location location, @NonNull String message,
+                @NonNull TextFormat format) {
+            this.context = context;
+            this.issue = issue;
+            this.severity = severity;
+            this.location = location;
+            this.message = message;
+            this.format = format;
+        }
+    }
+
     /**
      * Adds a listener to be notified of lint progress
      *
@@ -1916,6 +2869,9 @@ public class LintDriver {
 
     /** Notifies listeners, if any, that the given event has occurred */
     private void fireEvent(@NonNull LintListener.EventType type, @Nullable Context context) {
+        if (type == EventType.SCANNING_FILE && mQuietScanningEvents) {
+            return;
+        }
         if (mListeners != null) {
             for (LintListener listener : mListeners) {
                 listener.update(this, type, context);
@@ -1954,6 +2910,13 @@ public class LintDriver {
                 return;
             }
 
+            FileReports reports = mWorkerReports.get();
+            if (reports != null) {
+                // Reported on a worker thread: passed on later by the calling thread
+                reports.add(new Report(context, issue, severity, location, message, format));
+                return;
+            }
+
             assert mCurrentProject != null;
             if (!mCurrentProject.getReportIssues()) {
                 return;
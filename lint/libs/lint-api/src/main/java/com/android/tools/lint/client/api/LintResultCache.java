@@ -0,0 +1,304 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint.client.api;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.tools.lint.detector.api.DefaultPosition;
+import com.android.tools.lint.detector.api.Detector;
+import com.android.tools.lint.detector.api.Location;
+import com.android.tools.lint.detector.api.Position;
+import com.android.tools.lint.detector.api.Severity;
+import com.android.tools.lint.detector.api.TextFormat;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Closeables;
+import com.google.common.io.Files;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistent cache of the issues reported by the {@link Detector#isCacheable() cacheable}
+ * detectors in each file of a project, keyed by the contents of the file.
+ * <p>
+ * The whole cache is tied to a fingerprint of everything else the results depend on (the
+ * detectors, the severity of their issues, the project configuration...); when the fingerprint
+ * changes, the cache starts out empty.
+ * <p>
+ * <b>NOTE: This is not a public or final API; if you rely on this be prepared
+ * to adjust your code for the next tools release.</b>
+ */
+final class LintResultCache {
+    /** Bumped whenever the format of the cache file changes */
+    private static final int VERSION = 1;
+
+    private final File mFile;
+    private final String mFingerprint;
+    private final Map<String, Entry> mEntries;
+    private boolean mModified;
+
+    private LintResultCache(@NonNull File file, @NonNull String fingerprint,
+            @NonNull Map<String, Entry> entries) {
+        mFile = file;
+        mFingerprint = fingerprint;
+        mEntries = entries;
+    }
+
+    /**
+     * Loads the cache stored in the given file. If the file does not exist, cannot be read,
+     * or was written for another fingerprint, returns an empty cache which will be stored in
+     * that file.
+     */
+    @NonNull
+    static LintResultCache load(@NonNull File file, @NonNull String fingerprint) {
+        Map<String, Entry> entries = Maps.newHashMap();
+        if (file.isFile()) {
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+                if (in.readInt() == VERSION && fingerprint.equals(in.readUTF())) {
+                    int count = in.readInt();
+                    for (int i = 0; i < count; i++) {
+                        String path = in.readUTF();
+                        byte[] hash = new byte[in.readUnsignedShort()];
+                        in.readFully(hash);
+                        int reportCount = in.readInt();
+                        List<CachedReport> reports =
+                                Lists.newArrayListWithExpectedSize(reportCount);
+                        for (int j = 0; j < reportCount; j++) {
+                            reports.add(readReport(in));
+                        }
+                        entries.put(path, new Entry(HashCode.fromBytes(hash), reports));
+                    }
+                }
+            } catch (IOException e) {
+                // Corrupt or truncated: start over
+                entries.clear();
+            } catch (IllegalArgumentException e) {
+                // Unknown severity or format
+                entries.clear();
+            } finally {
+                Closeables.closeQuietly(in);
+            }
+        }
+        return new LintResultCache(file, fingerprint, entries);
+    }
+
+    /** Computes the key used to look up the results of the given file */
+    @NonNull
+    static HashCode hash(@NonNull File file) throws IOException {
+        return Files.hash(file, Hashing.sha1());
+    }
+
+    /**
+     * Returns the issues reported in the given file when it was last checked, or null if the
+     * file has not been checked with these contents yet
+     */
+    @Nullable
+    List<CachedReport> get(@NonNull File file, @NonNull HashCode hash) {
+        Entry entry = mEntries.get(file.getPath());
+        if (entry != null && entry.hash.equals(hash)) {
+            return entry.reports;
+        }
+        return null;
+    }
+
+    /** Records the issues reported in the given file with the given contents */
+    void put(@NonNull File file, @NonNull HashCode hash, @NonNull List<CachedReport> reports) {
+        mEntries.put(file.getPath(), new Entry(hash, reports));
+        mModified = true;
+    }
+
+    /**
+     * Writes the cache back to its file, if it was modified, dropping the entries of the files
+     * which no longer exist
+     */
+    void save() throws IOException {
+        for (String path : Lists.newArrayList(mEntries.keySet())) {
+            if (!new File(path).exists()) {
+                mEntries.remove(path);
+                mModified = true;
+            }
+        }
+        if (!mModified) {
+            return;
+        }
+
+        File parent = mFile.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Could not create " + parent);
+        }
+        // Write to a temporary file first such that an interrupted run does not leave
+        // a truncated cache behind
+        File temp = new File(mFile.getPath() + ".tmp"); //$NON-NLS-1$
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            out.writeInt(VERSION);
+            out.writeUTF(mFingerprint);
+            out.writeInt(mEntries.size());
+            for (Map.Entry<String, Entry> entry : mEntries.entrySet()) {
+                out.writeUTF(entry.getKey());
+                byte[] hash = entry.getValue().hash.asBytes();
+                out.writeShort(hash.length);
+                out.write(hash);
+                List<CachedReport> reports = entry.getValue().reports;
+                out.writeInt(reports.size());
+                for (CachedReport report : reports) {
+                    writeReport(out, report);
+                }
+            }
+        } finally {
+            out.close();
+        }
+        if (mFile.exists() && !mFile.delete() || !temp.renameTo(mFile)) {
+            throw new IOException("Could not write " + mFile);
+        }
+        mModified = false;
+    }
+
+    private static void writeReport(@NonNull DataOutputStream out, @NonNull CachedReport report)
+            throws IOException {
+        out.writeUTF(report.issueId);
+        out.writeUTF(report.severity.name());
+        out.writeUTF(report.format.name());
+        writeString(out, report.message);
+        writeLocation(out, report.location);
+    }
+
+    @NonNull
+    private static CachedReport readReport(@NonNull DataInputStream in) throws IOException {
+        String issueId = in.readUTF();
+        Severity severity = Severity.valueOf(in.readUTF());
+        TextFormat format = TextFormat.valueOf(in.readUTF());
+        String message = readString(in);
+        Location location = readLocation(in);
+        return new CachedReport(issueId, severity, location, message, format);
+    }
+
+    private static void writeLocation(@NonNull DataOutputStream out, @NonNull Location location)
+            throws IOException {
+        // The client data is specific to a run, and is not kept
+        out.writeUTF(location.getFile().getPath());
+        writePosition(out, location.getStart());
+        writePosition(out, location.getEnd());
+        String message = location.getMessage();
+        out.writeBoolean(message != null);
+        if (message != null) {
+            writeString(out, message);
+        }
+        Location secondary = location.getSecondary();
+        out.writeBoolean(secondary != null);
+        if (secondary != null) {
+            writeLocation(out, secondary);
+        }
+    }
+
+    @NonNull
+    private static Location readLocation(@NonNull DataInputStream in) throws IOException {
+        File file = new File(in.readUTF());
+        Position start = readPosition(in);
+        Position end = readPosition(in);
+        Location location = start != null
+                ? Location.create(file, start, end) : Location.create(file);
+        if (in.readBoolean()) {
+            location.setMessage(readString(in));
+        }
+        if (in.readBoolean()) {
+            location.setSecondary(readLocation(in));
+        }
+        return location;
+    }
+
+    private static void writePosition(@NonNull DataOutputStream out, @Nullable Position position)
+            throws IOException {
+        out.writeBoolean(position != null);
+        if (position != null) {
+            out.writeInt(position.getLine());
+            out.writeInt(position.getColumn());
+            out.writeInt(position.getOffset());
+        }
+    }
+
+    @Nullable
+    private static Position readPosition(@NonNull DataInputStream in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        int line = in.readInt();
+        int column = in.readInt();
+        int offset = in.readInt();
+        return new DefaultPosition(line, column, offset);
+    }
+
+    /** Like {@link DataOutputStream#writeUTF} but without the 64K limit */
+    private static void writeString(@NonNull DataOutputStream out, @NonNull String s)
+            throws IOException {
+        byte[] bytes = s.getBytes(Charsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    @NonNull
+    private static String readString(@NonNull DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, Charsets.UTF_8);
+    }
+
+    private static class Entry {
+        public final HashCode hash;
+        public final List<CachedReport> reports;
+
+        Entry(@NonNull HashCode hash, @NonNull List<CachedReport> reports) {
+            this.hash = hash;
+            this.reports = Collections.unmodifiableList(reports);
+        }
+    }
+
+    /** An issue reported in a file, as stored in the cache */
+    static class CachedReport {
+        public final String issueId;
+        public final Severity severity;
+        public final Location location;
+        public final String message;
+        public final TextFormat format;
+
+        CachedReport(@NonNull String issueId, @NonNull Severity severity,
+                @NonNull Location location, @NonNull String message,
+                @NonNull TextFormat format) {
+            this.issueId = issueId;
+            this.severity = severity;
+            this.location = location;
+            this.message = message;
+            this.format = format;
+        }
+    }
+}
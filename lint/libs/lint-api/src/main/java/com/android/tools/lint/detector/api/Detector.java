@@ -1161,6 +1161,40 @@ public abstract class Detector {
         return false;
     }
 
+    /**
+     * Returns true if this detector can check several files at the same time, from
+     * different threads. This only matters when the {@link LintDriver} checks files in
+     * parallel (see {@link LintDriver#setThreadCount(int)}); detectors which return false
+     * are then all run on a single thread, visiting the files in order.
+     * <p>
+     * Detectors which keep state about the current file in fields, or which gather
+     * data across files without synchronization, are not thread safe. This is the case
+     * of many detectors, so only detectors which have been checked not to keep any
+     * such state should override this method to return true.
+     *
+     * @return true if this detector can check files concurrently
+     */
+    public boolean isThreadSafe() {
+        return false;
+    }
+
+    /**
+     * Returns true if the issues this detector reports while checking a file only depend
+     * on the contents of that file and on the project configuration. When the
+     * {@link LintDriver} caches results (see {@link LintDriver#setCacheResults(boolean)}),
+     * such detectors are not run again on files which did not change; the issues found
+     * in them last time are reported instead.
+     * <p>
+     * Detectors which look at other files (for example by resolving symbols in Java code),
+     * or which gather data while visiting files and report issues in
+     * {@link #afterCheckProject(Context)}, must return false.
+     *
+     * @return true if the results of this detector can be cached per file
+     */
+    public boolean isCacheable() {
+        return false;
+    }
+
     /**
      * Analysis is about to begin, perform any setup steps.
      *
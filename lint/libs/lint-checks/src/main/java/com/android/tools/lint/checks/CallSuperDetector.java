@@ -76,6 +76,11 @@ public class CallSuperDetector extends Detector implements Detector.UastScanner
     public CallSuperDetector() {
     }
 
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
     // ---- Implements UastScanner ----
 
     @Override
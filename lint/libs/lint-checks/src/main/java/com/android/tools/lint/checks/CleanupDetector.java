@@ -172,6 +172,11 @@ public class CleanupDetector extends Detector implements Detector.UastScanner {
     public CleanupDetector() {
     }
 
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
     // ---- Implements UastScanner ----
 
 
@@ -63,6 +63,11 @@ public class ExtraTextDetector extends ResourceXmlDetector {
     public ExtraTextDetector() {
     }
 
+    @Override
+    public boolean isCacheable() {
+        return true;
+    }
+
     @Override
     public boolean appliesTo(@NonNull ResourceFolderType folderType) {
         return folderType == ResourceFolderType.LAYOUT
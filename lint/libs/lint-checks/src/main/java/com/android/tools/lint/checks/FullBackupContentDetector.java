@@ -81,6 +81,11 @@ public class FullBackupContentDetector extends ResourceXmlDetector {
     public FullBackupContentDetector() {
     }
 
+    @Override
+    public boolean isCacheable() {
+        return true;
+    }
+
     @Override
     public boolean appliesTo(@NonNull ResourceFolderType folderType) {
         return folderType == ResourceFolderType.XML;
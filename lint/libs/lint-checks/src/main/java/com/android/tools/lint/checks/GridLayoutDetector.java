@@ -76,6 +76,11 @@ public class GridLayoutDetector extends LayoutDetector {
     public GridLayoutDetector() {
     }
 
+    @Override
+    public boolean isCacheable() {
+        return true;
+    }
+
     @NonNull
     @Override
     public Speed getSpeed() {
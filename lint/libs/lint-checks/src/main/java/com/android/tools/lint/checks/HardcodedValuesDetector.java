@@ -82,6 +82,11 @@ public class HardcodedValuesDetector extends LayoutDetector {
         return Speed.FAST;
     }
 
+    @Override
+    public boolean isCacheable() {
+        return true;
+    }
+
     @Override
     public Collection<String> getApplicableAttributes() {
         return Arrays.asList(
@@ -60,6 +60,11 @@ public class IncludeDetector extends LayoutDetector {
                     Scope.RESOURCE_FILE_SCOPE)).addMoreInfo(
     "http://stackoverflow.com/questions/2631614/does-android-xml-layouts-include-tag-really-work");
 
+    @Override
+    public boolean isCacheable() {
+        return true;
+    }
+
     @Nullable
     @Override
     public Collection<String> getApplicableElements() {
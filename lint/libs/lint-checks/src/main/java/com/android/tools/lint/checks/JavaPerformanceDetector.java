@@ -152,6 +152,11 @@ public class JavaPerformanceDetector extends Detector implements Detector.UastSc
     public JavaPerformanceDetector() {
     }
 
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
     // ---- Implements UastScanner ----
 
     @Override
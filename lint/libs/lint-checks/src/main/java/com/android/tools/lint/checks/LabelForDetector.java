@@ -79,6 +79,11 @@ public class LabelForDetector extends LayoutDetector {
     public LabelForDetector() {
     }
 
+    @Override
+    public boolean isCacheable() {
+        return true;
+    }
+
     @NonNull
     @Override
     public Speed getSpeed() {
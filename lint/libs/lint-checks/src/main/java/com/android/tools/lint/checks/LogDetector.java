@@ -122,6 +122,11 @@ public class LogDetector extends Detector implements Detector.UastScanner {
         TAG_PAIRS = Collections.unmodifiableMap(pairs);
     }
 
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
     // ---- Implements Detector.UastScanner ----
 
     @Override
@@ -64,6 +64,11 @@ public class MathDetector extends Detector implements Detector.UastScanner {
     public MathDetector() {
     }
 
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
     // ---- Implements JavaScanner ----
 
     @Nullable
@@ -71,6 +71,16 @@ public class MissingIdDetector extends LayoutDetector {
     public MissingIdDetector() {
     }
 
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
+    @Override
+    public boolean isCacheable() {
+        return true;
+    }
+
     @NonNull
     @Override
     public Speed getSpeed() {
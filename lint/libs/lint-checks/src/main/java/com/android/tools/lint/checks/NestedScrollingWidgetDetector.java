@@ -64,6 +64,11 @@ public class NestedScrollingWidgetDetector extends LayoutDetector {
     public NestedScrollingWidgetDetector() {
     }
 
+    @Override
+    public boolean isCacheable() {
+        return true;
+    }
+
     @Override
     public void beforeCheckFile(@NonNull Context context) {
         mVisitingHorizontalScroll = 0;
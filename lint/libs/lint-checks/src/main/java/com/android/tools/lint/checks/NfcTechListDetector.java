@@ -64,6 +64,11 @@ public class NfcTechListDetector extends ResourceXmlDetector {
     public NfcTechListDetector() {
     }
 
+    @Override
+    public boolean isCacheable() {
+        return true;
+    }
+
     @Override
     public boolean appliesTo(@NonNull ResourceFolderType folderType) {
         return folderType == ResourceFolderType.XML;
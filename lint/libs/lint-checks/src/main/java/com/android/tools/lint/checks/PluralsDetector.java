@@ -119,6 +119,11 @@ public class PluralsDetector extends ResourceXmlDetector {
     public PluralsDetector() {
     }
 
+    @Override
+    public boolean isCacheable() {
+        return true;
+    }
+
     @Override
     public boolean appliesTo(@NonNull ResourceFolderType folderType) {
         return folderType == ResourceFolderType.VALUES;
@@ -356,6 +356,11 @@ public class RelativeOverlapDetector extends LayoutDetector {
     public RelativeOverlapDetector() {
     }
 
+    @Override
+    public boolean isCacheable() {
+        return true;
+    }
+
     @Override
     public Collection<String> getApplicableElements() {
         return Arrays.asList(RELATIVE_LAYOUT, PERCENT_RELATIVE_LAYOUT);
@@ -95,6 +95,11 @@ public class RestrictionsDetector extends ResourceXmlDetector {
     public RestrictionsDetector() {
     }
 
+    @Override
+    public boolean isCacheable() {
+        return true;
+    }
+
     @Override
     public boolean appliesTo(@NonNull ResourceFolderType folderType) {
         return folderType == ResourceFolderType.XML;
@@ -66,12 +66,22 @@ public class ScrollViewChildDetector extends LayoutDetector {
     public ScrollViewChildDetector() {
     }
 
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
     @NonNull
     @Override
     public Speed getSpeed() {
         return Speed.FAST;
     }
 
+    @Override
+    public boolean isCacheable() {
+        return true;
+    }
+
     @Override
     public Collection<String> getApplicableElements() {
         return Arrays.asList(
@@ -69,6 +69,11 @@ public class SecureRandomDetector extends Detector implements Detector.UastScann
     public SecureRandomDetector() {
     }
 
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
     // ---- Implements UastScanner ----
 
 
@@ -57,6 +57,11 @@ public class SetJavaScriptEnabledDetector extends Detector implements Detector.U
     public SetJavaScriptEnabledDetector() {
     }
 
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
     // ---- Implements UastScanner ----
 
 
@@ -121,6 +121,11 @@ public class TextViewDetector extends LayoutDetector {
     public TextViewDetector() {
     }
 
+    @Override
+    public boolean isCacheable() {
+        return true;
+    }
+
     @NonNull
     @Override
     public Speed getSpeed() {
@@ -73,6 +73,11 @@ public class TitleDetector extends ResourceXmlDetector {
     public TitleDetector() {
     }
 
+    @Override
+    public boolean isCacheable() {
+        return true;
+    }
+
     @Override
     public boolean appliesTo(@NonNull ResourceFolderType folderType) {
         return folderType == ResourceFolderType.MENU;
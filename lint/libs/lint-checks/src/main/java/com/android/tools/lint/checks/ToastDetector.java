@@ -68,6 +68,11 @@ public class ToastDetector extends Detector implements UastScanner {
     public ToastDetector() {
     }
 
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
     // ---- Implements JavaScanner ----
 
     @Override
@@ -195,6 +195,11 @@ public class TypographyDetector extends ResourceXmlDetector {
     public TypographyDetector() {
     }
 
+    @Override
+    public boolean isCacheable() {
+        return true;
+    }
+
     @Override
     public boolean appliesTo(@NonNull ResourceFolderType folderType) {
         return folderType == ResourceFolderType.VALUES;
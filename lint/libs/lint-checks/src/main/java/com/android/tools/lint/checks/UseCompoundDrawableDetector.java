@@ -71,6 +71,11 @@ public class UseCompoundDrawableDetector extends LayoutDetector {
     public UseCompoundDrawableDetector() {
     }
 
+    @Override
+    public boolean isCacheable() {
+        return true;
+    }
+
     @NonNull
     @Override
     public Speed getSpeed() {
@@ -96,6 +96,11 @@ public class UselessViewDetector extends LayoutDetector {
     public UselessViewDetector() {
     }
 
+    @Override
+    public boolean isCacheable() {
+        return true;
+    }
+
     @NonNull
     @Override
     public Speed getSpeed() {
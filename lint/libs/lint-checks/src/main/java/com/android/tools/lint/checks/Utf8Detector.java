@@ -66,6 +66,16 @@ public class Utf8Detector extends ResourceXmlDetector {
     public Utf8Detector() {
     }
 
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
+    @Override
+    public boolean isCacheable() {
+        return true;
+    }
+
     @NonNull
     @Override
     public Speed getSpeed() {
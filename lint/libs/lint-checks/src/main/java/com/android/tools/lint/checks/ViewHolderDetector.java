@@ -79,6 +79,11 @@ public class ViewHolderDetector extends Detector implements Detector.UastScanner
     public ViewHolderDetector() {
     }
 
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
     // ---- Implements UastScanner ----
 
     @Override
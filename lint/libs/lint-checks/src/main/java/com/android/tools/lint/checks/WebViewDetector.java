@@ -62,6 +62,11 @@ public class WebViewDetector extends LayoutDetector {
     public WebViewDetector() {
     }
 
+    @Override
+    public boolean isCacheable() {
+        return true;
+    }
+
     @NonNull
     @Override
     public Speed getSpeed() {
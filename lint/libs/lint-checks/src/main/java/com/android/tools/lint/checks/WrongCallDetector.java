@@ -68,6 +68,11 @@ public class WrongCallDetector extends Detector implements Detector.UastScanner
     public WrongCallDetector() {
     }
 
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
     // ---- Implements UastScanner ----
 
     @Override
@@ -61,6 +61,11 @@ public class WrongCaseDetector extends LayoutDetector {
     public WrongCaseDetector() {
     }
 
+    @Override
+    public boolean isCacheable() {
+        return true;
+    }
+
     @NonNull
     @Override
     public Speed getSpeed() {
@@ -53,6 +53,11 @@ public class WrongLocationDetector extends LayoutDetector {
     public WrongLocationDetector() {
     }
 
+    @Override
+    public boolean isCacheable() {
+        return true;
+    }
+
     @NonNull
     @Override
     public Speed getSpeed() {
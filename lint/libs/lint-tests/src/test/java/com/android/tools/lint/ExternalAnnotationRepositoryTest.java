@@ -16,6 +16,7 @@
 
 package com.android.tools.lint;
 
+import static com.android.SdkConstants.FN_ANNOTATIONS_ZIP;
 import static com.android.tools.lint.ExternalAnnotationRepository.FN_ANNOTATIONS_XML;
 import static com.google.common.base.Charsets.UTF_8;
 import static java.io.File.separatorChar;
@@ -26,6 +27,7 @@ import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 import com.android.testutils.SdkTestCase;
 import com.android.testutils.TestUtils;
+import com.android.tools.lint.ExternalAnnotationRepository.AnnotationsDatabase;
 import com.android.tools.lint.client.api.JavaParser.DefaultTypeDescriptor;
 import com.android.tools.lint.client.api.JavaParser.ResolvedAnnotation;
 import com.android.tools.lint.client.api.JavaParser.ResolvedClass;
@@ -41,12 +43,15 @@ import com.google.common.collect.Lists;
 import com.google.common.io.Files;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 import lombok.ast.ClassDeclaration;
 import lombok.ast.ForwardingAstVisitor;
@@ -552,6 +557,63 @@ public class ExternalAnnotationRepositoryTest extends SdkTestCase {
         assertNotNull(manager.getAnnotation(method, 0, "android.support.annotation.NonNull"));
     }
 
+    public void testIndexCache() throws Exception {
+        File dir = TestUtils.createTempDirDeletedOnExit();
+        try {
+            File zip = new File(dir, FN_ANNOTATIONS_ZIP);
+            File cacheDir = new File(dir, "cache");
+            assertTrue(cacheDir.mkdirs());
+            writeAnnotationsZip(zip, "android.support.annotation.Annotation1");
+            ResolvedClass cls = createClass("android.graphics.Color");
+            ResolvedClass other = createClass("android.graphics.Paint");
+
+            AnnotationsDatabase database = ExternalAnnotationRepository.getDatabase(cacheDir, zip);
+            assertNotNull(database);
+            assertNotNull(database.getAnnotation(cls, "android.support.annotation.Annotation1"));
+            assertNull(database.getAnnotation(other, "android.support.annotation.Annotation1"));
+            File[] indices = cacheDir.listFiles();
+            assertNotNull(indices);
+            assertEquals(1, indices.length);
+
+            // Reused by later runs
+            database = ExternalAnnotationRepository.getDatabase(cacheDir, zip);
+            assertNotNull(database);
+            assertNotNull(database.getAnnotation(cls, "android.support.annotation.Annotation1"));
+
+            // Rebuilt when the annotations change
+            long lastModified = zip.lastModified();
+            writeAnnotationsZip(zip, "android.support.annotation.Annotation2");
+            assertTrue(zip.setLastModified(lastModified + 2000));
+            database = ExternalAnnotationRepository.getDatabase(cacheDir, zip);
+            assertNotNull(database);
+            assertNull(database.getAnnotation(cls, "android.support.annotation.Annotation1"));
+            assertNotNull(database.getAnnotation(cls, "android.support.annotation.Annotation2"));
+            indices = cacheDir.listFiles();
+            assertNotNull(indices);
+            assertEquals(1, indices.length);
+        } finally {
+            deleteFile(dir);
+        }
+    }
+
+    private static void writeAnnotationsZip(@NonNull File zip, @NonNull String annotation)
+            throws IOException {
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip));
+        try {
+            out.putNextEntry(new ZipEntry("android/graphics/" + FN_ANNOTATIONS_XML));
+            out.write((""
+                    + "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                    + "<root>\n"
+                    + "  <item name=\"android.graphics.Color\">\n"
+                    + "    <annotation name=\"" + annotation + "\" />\n"
+                    + "  </item>\n"
+                    + "</root>\n").getBytes(UTF_8));
+            out.closeEntry();
+        } finally {
+            out.close();
+        }
+    }
+
     private static ResolvedClass createClass(String name) {
         ResolvedClass mock = mock(ResolvedClass.class);
         when(mock.getName()).thenReturn(name);
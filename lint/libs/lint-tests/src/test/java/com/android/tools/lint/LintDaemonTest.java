@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint;
+
+import static com.android.tools.lint.LintCliFlags.ERRNO_INVALID_ARGS;
+import static com.android.tools.lint.LintCliFlags.ERRNO_USAGE;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+
+public class LintDaemonTest extends TestCase {
+    private File mTokenDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTokenDir = Files.createTempDir();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File[] files = mTokenDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mTokenDir.delete();
+        super.tearDown();
+    }
+
+    private LintDaemon startDaemon() throws Exception {
+        final LintDaemon daemon = new LintDaemon(0, mTokenDir);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                daemon.run();
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return daemon;
+    }
+
+    public void testForward() throws Exception {
+        LintDaemon daemon = startDaemon();
+        try {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            ByteArrayOutputStream error = new ByteArrayOutputStream();
+            int exitCode = LintDaemon.forward(daemon.getPort(), mTokenDir,
+                    new String[] { "--nonsense" }, new File("."), new PrintStream(output),
+                    new PrintStream(error));
+
+            assertEquals(ERRNO_INVALID_ARGS, exitCode);
+            assertTrue(error.toString(), error.toString().startsWith(
+                    "Invalid argument --nonsense"));
+            assertEquals("", output.toString());
+        } finally {
+            daemon.close();
+        }
+    }
+
+    public void testTokenFile() throws Exception {
+        LintDaemon daemon = startDaemon();
+        File tokenFile = new File(mTokenDir, "lint-daemon-" + daemon.getPort() + ".token");
+        try {
+            assertTrue(tokenFile.isFile());
+            assertTrue(tokenFile.length() > 0);
+        } finally {
+            daemon.close();
+        }
+        assertFalse(tokenFile.exists());
+    }
+
+    public void testWrongToken() throws Exception {
+        LintDaemon daemon = startDaemon();
+        try {
+            File otherDir = new File(mTokenDir, "other");
+            File tokenFile = new File(otherDir, "lint-daemon-" + daemon.getPort() + ".token");
+            Files.createParentDirs(tokenFile);
+            Files.write("0123456789", tokenFile, Charsets.UTF_8);
+
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            ByteArrayOutputStream error = new ByteArrayOutputStream();
+            int exitCode = LintDaemon.forward(daemon.getPort(), otherDir,
+                    new String[] { "--version" }, new File("."), new PrintStream(output),
+                    new PrintStream(error));
+
+            tokenFile.delete();
+            otherDir.delete();
+            assertEquals(ERRNO_USAGE, exitCode);
+            assertEquals("Invalid lint daemon token\n", error.toString());
+            assertEquals("", output.toString());
+        } finally {
+            daemon.close();
+        }
+    }
+
+    public void testNoDaemon() throws Exception {
+        ServerSocket socket = new ServerSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        assertEquals(-1, LintDaemon.forward(port, mTokenDir, new String[] { "--version" },
+                new File("."), new PrintStream(output), new PrintStream(output)));
+        assertEquals("", output.toString());
+    }
+}
@@ -17,11 +17,36 @@
 package com.android.tools.lint.client.api;
 
 import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
 import com.android.tools.lint.checks.AbstractCheckTest;
 import com.android.tools.lint.checks.AccessibilityDetector;
+import com.android.tools.lint.checks.ChildCountDetector;
+import com.android.tools.lint.checks.DuplicateIdDetector;
+import com.android.tools.lint.checks.HardcodedValuesDetector;
+import com.android.tools.lint.checks.LabelForDetector;
+import com.android.tools.lint.checks.MissingIdDetector;
+import com.android.tools.lint.checks.NestedScrollingWidgetDetector;
+import com.android.tools.lint.checks.ScrollViewChildDetector;
+import com.android.tools.lint.checks.TextViewDetector;
+import com.android.tools.lint.checks.UseCompoundDrawableDetector;
+import com.android.tools.lint.checks.UselessViewDetector;
+import com.android.tools.lint.detector.api.Category;
+import com.android.tools.lint.detector.api.Context;
 import com.android.tools.lint.detector.api.Detector;
+import com.android.tools.lint.detector.api.Implementation;
+import com.android.tools.lint.detector.api.Issue;
+import com.android.tools.lint.detector.api.JavaContext;
+import com.android.tools.lint.detector.api.Location;
 import com.android.tools.lint.detector.api.Project;
+import com.android.tools.lint.detector.api.Scope;
+import com.android.tools.lint.detector.api.Severity;
+import com.android.tools.lint.detector.api.TextFormat;
 import com.google.common.collect.Lists;
+import com.intellij.psi.JavaElementVisitor;
+import com.intellij.psi.PsiClass;
+import com.intellij.psi.PsiMethod;
+import com.intellij.psi.PsiMethodCallExpression;
+import com.intellij.psi.PsiParameter;
 
 import java.io.File;
 import java.util.ArrayList;
@@ -31,6 +56,12 @@ import java.util.List;
 
 @SuppressWarnings("javadoc")
 public class LintDriverTest extends AbstractCheckTest {
+    private int mThreadCount = 1;
+    private List<Issue> mIssues;
+    private final List<String> mReportedFiles = Lists.newArrayList();
+    private File mCacheDir;
+    private final List<String> mScannedLayouts = Lists.newArrayList();
+
     @SuppressWarnings({"ResultOfMethodCallIgnored", "ConstantConditions"})
     public void testClassEntryCompare() throws Exception {
         ClassEntry c0 = new ClassEntry(new File("/a1/Foo.class"), null, null, null);
@@ -66,11 +97,156 @@ public class LintDriverTest extends AbstractCheckTest {
         assertEquals("No warnings.", lintProject("res/layout/layout1.xml"));
     }
 
+    public void testThreadCountDoesNotChangeReports() throws Exception {
+        // Thread safe detectors, checked on the workers, and others checked on the calling
+        // thread; DuplicateIdDetector gathers ids across files
+        mIssues = Arrays.asList(AccessibilityDetector.ISSUE, MissingIdDetector.ISSUE,
+                ChildCountDetector.SCROLLVIEW_ISSUE, ChildCountDetector.ADAPTER_VIEW_ISSUE,
+                DuplicateIdDetector.WITHIN_LAYOUT, DuplicateIdDetector.CROSS_LAYOUT);
+        String[] files = {
+                "res/layout/accessibility.xml",
+                "res/layout/duplicate.xml",
+                "res/layout/has_children.xml",
+                "res/layout/fragment.xml",
+                "res/layout/layout1.xml",
+                "res/layout/layout2.xml",
+                "res/layout/layout3.xml",
+                "res/layout/layout4.xml"
+        };
+
+        String expected = lintProject(files);
+        assertTrue(expected, expected.contains("[ContentDescription]"));
+        assertTrue(expected, expected.contains("[DuplicateIds]"));
+        assertTrue(expected, expected.contains("[DuplicateIncludedIds]"));
+        List<String> expectedFiles = Lists.newArrayList(mReportedFiles);
+
+        for (int threadCount = 2; threadCount <= 4; threadCount++) {
+            mThreadCount = threadCount;
+            mReportedFiles.clear();
+            assertEquals(expected, lintProject(files));
+            // The client also gets the issues of each file together, in the same order
+            assertEquals(expectedFiles, mReportedFiles);
+        }
+    }
+
+    public void testThreadCountDoesNotChangeJavaResolution() throws Exception {
+        // Each caller resolves a method declared in another file, which may well be visited
+        // by another worker
+        mIssues = Collections.singletonList(ResolvingDetector.ISSUE);
+        List<TestFile> files = Lists.newArrayList();
+        files.add(java("src/test/pkg/Api.java", ""
+                + "package test.pkg;\n"
+                + "public class Api {\n"
+                + "    public static Api describe(Caller0 caller) { return null; }\n"
+                + "}\n"));
+        for (int i = 0; i < 8; i++) {
+            files.add(java("src/test/pkg/Caller" + i + ".java", ""
+                    + "package test.pkg;\n"
+                    + "public class Caller" + i + " {\n"
+                    + "    public Object call(Caller0 other) {\n"
+                    + "        return Api.describe(other);\n"
+                    + "    }\n"
+                    + "    public static Caller" + i + " describe(Api api) { return null; }\n"
+                    + "    public Object back(Api api) {\n"
+                    + "        return Caller" + ((i + 1) % 8) + ".describe(api);\n"
+                    + "    }\n"
+                    + "}\n"));
+        }
+        TestFile[] testFiles = files.toArray(new TestFile[files.size()]);
+
+        String expected = lintProject(testFiles);
+        assertTrue(expected, expected.contains("test.pkg.Api.describe(test.pkg.Caller0)"));
+        assertTrue(expected, expected.contains("test.pkg.Caller0.describe(test.pkg.Api)"));
+        assertTrue(expected, expected.contains("16 warnings"));
+
+        for (int threadCount = 2; threadCount <= 4; threadCount++) {
+            mThreadCount = threadCount;
+            assertEquals(expected, lintProject(testFiles));
+        }
+    }
+
+    public void testUnchangedFilesAreReplayedFromCache() throws Exception {
+        mIssues = Arrays.asList(AccessibilityDetector.ISSUE, MissingIdDetector.ISSUE,
+                ChildCountDetector.SCROLLVIEW_ISSUE, ChildCountDetector.ADAPTER_VIEW_ISSUE,
+                HardcodedValuesDetector.ISSUE, LabelForDetector.ISSUE,
+                NestedScrollingWidgetDetector.ISSUE, ScrollViewChildDetector.ISSUE,
+                TextViewDetector.ISSUE, UseCompoundDrawableDetector.ISSUE,
+                UselessViewDetector.USELESS_PARENT, UselessViewDetector.USELESS_LEAF);
+        for (Issue issue : mIssues) {
+            assertTrue(issue.getId(), issue.getImplementation().getDetectorClass()
+                    .newInstance().isCacheable());
+        }
+        mCacheDir = new File(getTempDir(), getName() + "_cache");
+        addCleanupDir(mCacheDir);
+        TestFile[] files = {
+                copy("res/layout/accessibility.xml"),
+                copy("res/layout/compound.xml"),
+                copy("res/layout/edit_textview.xml"),
+                copy("res/layout/has_children.xml"),
+                copy("res/layout/labelfor.xml"),
+                copy("res/layout/layout1.xml"),
+                copy("res/layout/layout2.xml"),
+                copy("res/layout/scrolling.xml")
+        };
+
+        String expected = lintProject(files);
+        assertFalse(expected, expected.equals("No warnings."));
+        assertEquals(files.length, mScannedLayouts.size());
+
+        // Nothing changed: every file is replayed from the cache, without being parsed
+        mScannedLayouts.clear();
+        assertEquals(expected, lintProject(files));
+        assertEquals(Collections.<String>emptyList(), mScannedLayouts);
+
+        // Only the changed file is checked again
+        mScannedLayouts.clear();
+        String changed = lintProject(copy("res/layout/layout3.xml", "res/layout/layout2.xml"));
+        assertEquals(Collections.singletonList("layout2.xml"), mScannedLayouts);
+        // which gives the same results as checking all the files again
+        mCacheDir = null;
+        assertEquals(lintProject(new TestFile[0]), changed);
+    }
+
+    @Override
+    protected List<Issue> getIssues() {
+        if (mIssues != null) {
+            return mIssues;
+        }
+        return super.getIssues();
+    }
+
+    @Override
+    protected void configureDriver(LintDriver driver) {
+        driver.setThreadCount(mThreadCount);
+        driver.setCacheResults(mCacheDir != null);
+        driver.addLintListener(new LintListener() {
+            @Override
+            public void update(@NonNull LintDriver driver, @NonNull EventType type,
+                    @Nullable Context context) {
+                if (type == EventType.SCANNING_FILE && context != null
+                        && context.file.getParentFile().getName().equals("layout")) {
+                    mScannedLayouts.add(context.file.getName());
+                }
+            }
+        });
+    }
+
     @Override
     protected TestLintClient createClient() {
         return new TestLintClient() {
             private List<File> mResources;
 
+            @Override
+            public File getCacheDir(boolean create) {
+                if (mCacheDir != null) {
+                    if (create && !mCacheDir.exists() && !mCacheDir.mkdirs()) {
+                        return null;
+                    }
+                    return mCacheDir;
+                }
+                return super.getCacheDir(create);
+            }
+
             @NonNull
             @Override
             public List<File> getResourceFolders(@NonNull Project project) {
@@ -80,6 +256,18 @@ public class LintDriverTest extends AbstractCheckTest {
                 }
                 return mResources;
             }
+
+            @Override
+            public void report(@NonNull Context context, @NonNull Issue issue,
+                    @NonNull Severity severity, @NonNull Location location,
+                    @NonNull String message, @NonNull TextFormat format) {
+                String name = location.getFile().getName();
+                if (mReportedFiles.isEmpty()
+                        || !name.equals(mReportedFiles.get(mReportedFiles.size() - 1))) {
+                    mReportedFiles.add(name);
+                }
+                super.report(context, issue, severity, location, message, format);
+            }
         };
     }
 
@@ -87,4 +275,37 @@ public class LintDriverTest extends AbstractCheckTest {
     protected Detector getDetector() {
         return new AccessibilityDetector();
     }
+
+    /** Reports the declaration of every call to a method named "describe" */
+    public static class ResolvingDetector extends Detector implements Detector.JavaPsiScanner {
+        static final Issue ISSUE = Issue.create("ResolvedDescribe", "Resolved describe call",
+                "Reports the declaration of every describe call",
+                Category.CORRECTNESS, 5, Severity.WARNING,
+                new Implementation(ResolvingDetector.class, Scope.JAVA_FILE_SCOPE));
+
+        public ResolvingDetector() {
+        }
+
+        @Override
+        public boolean isThreadSafe() {
+            return true;
+        }
+
+        @Override
+        public List<String> getApplicableMethodNames() {
+            return Collections.singletonList("describe");
+        }
+
+        @Override
+        public void visitMethod(@NonNull JavaContext context, @Nullable JavaElementVisitor visitor,
+                @NonNull PsiMethodCallExpression call, @NonNull PsiMethod method) {
+            PsiClass containingClass = method.getContainingClass();
+            PsiParameter[] parameters = method.getParameterList().getParameters();
+            String declaration = (containingClass != null
+                    ? containingClass.getQualifiedName() : "?") + "." + method.getName()
+                    + "(" + (parameters.length > 0
+                    ? parameters[0].getType().getCanonicalText() : "") + ")";
+            context.report(ISSUE, call, context.getLocation(call), "Calls " + declaration);
+        }
+    }
 }
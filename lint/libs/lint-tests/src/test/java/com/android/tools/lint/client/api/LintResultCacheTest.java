@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.lint.client.api;
+
+import com.android.tools.lint.client.api.LintResultCache.CachedReport;
+import com.android.tools.lint.detector.api.DefaultPosition;
+import com.android.tools.lint.detector.api.Location;
+import com.android.tools.lint.detector.api.Severity;
+import com.android.tools.lint.detector.api.TextFormat;
+import com.google.common.base.Charsets;
+import com.google.common.hash.HashCode;
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+
+public class LintResultCacheTest extends TestCase {
+    private File mDir;
+    private File mCacheFile;
+    private File mSource;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDir = Files.createTempDir();
+        mCacheFile = new File(mDir, "cache" + File.separator + "results");
+        mSource = new File(mDir, "layout.xml");
+        Files.write("<LinearLayout/>", mSource, Charsets.UTF_8);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                File[] children = file.listFiles();
+                if (children != null) {
+                    for (File child : children) {
+                        child.delete();
+                    }
+                }
+                file.delete();
+            }
+        }
+        mDir.delete();
+        super.tearDown();
+    }
+
+    public void testRoundTrip() throws Exception {
+        HashCode hash = LintResultCache.hash(mSource);
+        Location location = Location.create(mSource, new DefaultPosition(0, 1, 1),
+                new DefaultPosition(0, 13, 13));
+        Location secondary = Location.create(mSource);
+        secondary.setMessage("Also here");
+        location.setSecondary(secondary);
+
+        LintResultCache cache = LintResultCache.load(mCacheFile, "fingerprint");
+        assertNull(cache.get(mSource, hash));
+        cache.put(mSource, hash, Collections.singletonList(new CachedReport("HardcodedText",
+                Severity.WARNING, location, "Hardcoded string", TextFormat.RAW)));
+        cache.save();
+
+        List<CachedReport> reports =
+                LintResultCache.load(mCacheFile, "fingerprint").get(mSource, hash);
+        assertNotNull(reports);
+        assertEquals(1, reports.size());
+        CachedReport report = reports.get(0);
+        assertEquals("HardcodedText", report.issueId);
+        assertEquals(Severity.WARNING, report.severity);
+        assertEquals("Hardcoded string", report.message);
+        assertEquals(TextFormat.RAW, report.format);
+        assertEquals(mSource, report.location.getFile());
+        assertEquals(1, report.location.getStart().getColumn());
+        assertEquals(13, report.location.getEnd().getOffset());
+        assertNotNull(report.location.getSecondary());
+        assertNull(report.location.getSecondary().getStart());
+        assertEquals("Also here", report.location.getSecondary().getMessage());
+    }
+
+    public void testChangedFile() throws Exception {
+        LintResultCache cache = LintResultCache.load(mCacheFile, "fingerprint");
+        cache.put(mSource, LintResultCache.hash(mSource),
+                Collections.<CachedReport>emptyList());
+        cache.save();
+
+        Files.write("<FrameLayout/>", mSource, Charsets.UTF_8);
+        cache = LintResultCache.load(mCacheFile, "fingerprint");
+        assertNull(cache.get(mSource, LintResultCache.hash(mSource)));
+    }
+
+    public void testChangedFingerprint() throws Exception {
+        HashCode hash = LintResultCache.hash(mSource);
+        LintResultCache cache = LintResultCache.load(mCacheFile, "fingerprint");
+        cache.put(mSource, hash, Collections.<CachedReport>emptyList());
+        cache.save();
+
+        assertNotNull(LintResultCache.load(mCacheFile, "fingerprint").get(mSource, hash));
+        assertNull(LintResultCache.load(mCacheFile, "other").get(mSource, hash));
+    }
+
+    public void testDeletedFilesAreDropped() throws Exception {
+        HashCode hash = LintResultCache.hash(mSource);
+        LintResultCache cache = LintResultCache.load(mCacheFile, "fingerprint");
+        cache.put(mSource, hash, Collections.<CachedReport>emptyList());
+        assertTrue(mSource.delete());
+        cache.save();
+
+        assertNull(LintResultCache.load(mCacheFile, "fingerprint").get(mSource, hash));
+    }
+
+    public void testCorruptCache() throws Exception {
+        Files.createParentDirs(mCacheFile);
+        Files.write(new byte[] { 0, 0, 0, 1, 0 }, mCacheFile);
+        LintResultCache cache = LintResultCache.load(mCacheFile, "fingerprint");
+        assertNull(cache.get(mSource, LintResultCache.hash(mSource)));
+    }
+}
@@ -47,12 +47,16 @@ public class MemoryMappedFileBuffer implements DataBuffer {
 
     private long mCurrentPosition;
 
+    //  Views created by duplicate() share the mapping, and must not unmap it.
+    private final boolean mIsView;
+
     @VisibleForTesting
     public MemoryMappedFileBuffer(@NonNull File f, int bufferSize,
             int padding) throws IOException {
         mBufferSize = bufferSize;
         mPadding = padding;
         mLength = f.length();
+        mIsView = false;
         int shards = (int) (mLength / mBufferSize) + 1;
         mByteBuffers = new ByteBuffer[shards];
 
@@ -84,16 +88,50 @@ public class MemoryMappedFileBuffer implements DataBuffer {
         this(f, DEFAULT_SIZE, DEFAULT_PADDING);
     }
 
+    private MemoryMappedFileBuffer(@NonNull MemoryMappedFileBuffer source) {
+        mBufferSize = source.mBufferSize;
+        mPadding = source.mPadding;
+        mLength = source.mLength;
+        mIsView = true;
+        mByteBuffers = new ByteBuffer[source.mByteBuffers.length];
+        for (int i = 0; i < mByteBuffers.length; i++) {
+            mByteBuffers[i] = source.mByteBuffers[i].duplicate();
+            mByteBuffers[i].order(HPROF_BYTE_ORDER);
+        }
+        mCurrentPosition = 0;
+    }
+
+    /**
+     * Creates a view of the same mapping with its own position, so that different threads can
+     * read the file concurrently. Disposing the view is a no-op; the mapping stays valid until
+     * this buffer is disposed.
+     */
+    @NonNull
+    public MemoryMappedFileBuffer duplicate() {
+        return new MemoryMappedFileBuffer(this);
+    }
+
     /**
      * Attempts to unmap the buffer. It is the caller's responsibility to ensure there are no other
      * accesses to this buffer, otherwise this can result in a crash and kill the JVM.
      */
     @Override
     public void dispose() {
+        if (mIsView) {
+            return;
+        }
+        for (int i = 0; i < mByteBuffers.length; i++) {
+            unmap(mByteBuffers[i]);
+        }
+    }
+
+    /**
+     * Attempts to unmap a memory-mapped buffer, which otherwise only happens once it is garbage
+     * collected. The same caveats as for {@link #dispose()} apply.
+     */
+    public static void unmap(@NonNull ByteBuffer buffer) {
         try {
-            for (int i = 0; i < mByteBuffers.length; i++) {
-                ((DirectBuffer) mByteBuffers[i]).cleaner().clean();
-            }
+            ((DirectBuffer) buffer).cleaner().clean();
         } catch (Exception ex) {
             // ignore, this is a best effort attempt.
         }
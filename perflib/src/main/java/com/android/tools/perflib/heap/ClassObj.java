@@ -19,6 +19,7 @@ package com.android.tools.perflib.heap;
 import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 import com.android.annotations.VisibleForTesting;
+import gnu.trove.TIntArrayList;
 import gnu.trove.TIntObjectHashMap;
 
 import java.util.*;
@@ -28,6 +29,13 @@ public class ClassObj extends Instance implements Comparable<ClassObj> {
         public int mShallowSize = 0;
 
         public List<Instance> mInstances = new ArrayList<Instance>();
+
+        //  Rows of a compact snapshot's InstanceTable that have not been materialized yet.
+        TIntArrayList mPendingRows;
+
+        int getInstanceCount() {
+            return mInstances.size() + (mPendingRows == null ? 0 : mPendingRows.size());
+        }
     }
 
     @NonNull
@@ -85,13 +93,44 @@ public class ClassObj extends Instance implements Comparable<ClassObj> {
             instance.setSize(mInstanceSize);
         }
 
+        HeapData heapData = getOrCreateHeapData(heapId);
+        heapData.mInstances.add(instance);
+        heapData.mShallowSize += instance.getSize();
+    }
+
+    /**
+     * Registers an instance of a compact snapshot by its {@link InstanceTable} row, without
+     * creating the {@link Instance} until the instances of this class are queried.
+     */
+    final void addInstanceRow(int heapId, int row, int size) {
+        HeapData heapData = getOrCreateHeapData(heapId);
+        if (heapData.mPendingRows == null) {
+            heapData.mPendingRows = new TIntArrayList();
+        }
+        heapData.mPendingRows.add(row);
+        heapData.mShallowSize += size;
+    }
+
+    @NonNull
+    private HeapData getOrCreateHeapData(int heapId) {
         HeapData heapData = mHeapData.get(heapId);
         if (heapData == null) {
           heapData = new HeapData();
           mHeapData.put(heapId, heapData);
         }
-        heapData.mInstances.add(instance);
-        heapData.mShallowSize += instance.getSize();
+        return heapData;
+    }
+
+    private void materializePendingRows(@NonNull HeapData heapData) {
+        if (heapData.mPendingRows == null) {
+            return;
+        }
+        InstanceTable table = mHeap.mSnapshot.getInstanceTable();
+        assert table != null;
+        for (int i = 0; i < heapData.mPendingRows.size(); i++) {
+            heapData.mInstances.add(table.getInstance(heapData.mPendingRows.get(i)));
+        }
+        heapData.mPendingRows = null;
     }
 
     public final void setSuperClassId(long superClass) {
@@ -132,6 +171,10 @@ public class ClassObj extends Instance implements Comparable<ClassObj> {
         return mInstanceSize;
     }
 
+    long getStaticFieldsOffset() {
+        return mStaticFieldsOffset;
+    }
+
     public int getShallowSize(int heapId) {
         HeapData heapData = mHeapData.get(heapId);
         return heapData == null ? 0 : mHeapData.get(heapId).mShallowSize;
@@ -202,7 +245,7 @@ public class ClassObj extends Instance implements Comparable<ClassObj> {
     @Override
     public final void accept(@NonNull Visitor visitor) {
         visitor.visitClassObj(this);
-        for (Instance instance : mHardForwardReferences) {
+        for (Instance instance : getHardForwardReferences()) {
             visitor.visitLater(this, instance);
         }
     }
@@ -260,18 +303,22 @@ public class ClassObj extends Instance implements Comparable<ClassObj> {
     @NonNull
     public List<Instance> getHeapInstances(int heapId) {
         HeapData result = mHeapData.get(heapId);
-        return result == null ? new ArrayList<Instance>(0) : result.mInstances;
+        if (result == null) {
+            return new ArrayList<Instance>(0);
+        }
+        materializePendingRows(result);
+        return result.mInstances;
     }
 
     public int getHeapInstancesCount(int heapId) {
       HeapData result = mHeapData.get(heapId);
-      return result == null ? 0 : result.mInstances.size();
+      return result == null ? 0 : result.getInstanceCount();
     }
 
     public int getInstanceCount() {
         int count = 0;
         for (Object heapStat : mHeapData.getValues()) {
-            count += ((HeapData)heapStat).mInstances.size();
+            count += ((HeapData)heapStat).getInstanceCount();
         }
         return count;
     }
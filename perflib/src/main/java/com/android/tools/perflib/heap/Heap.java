@@ -85,7 +85,15 @@ public class Heap {
     }
 
     public final Instance getInstance(long id) {
-        return mInstances.get(id);
+        Instance instance = mInstances.get(id);
+        if (instance == null && mSnapshot != null && mSnapshot.getInstanceTable() != null) {
+            InstanceTable table = mSnapshot.getInstanceTable();
+            int row = table.indexOf(id);
+            if (row >= 0 && !table.isClass(row) && table.getHeapIndex(row) == getIndex()) {
+                instance = table.getInstance(row);
+            }
+        }
+        return instance;
     }
 
     public final void addClass(long id, @NonNull ClassObj theClass) {
@@ -154,11 +162,34 @@ public class Heap {
         return mClassesByName.values();
     }
 
+    /**
+     * Runs the procedure on every instance of this heap. On a compact snapshot, this creates an
+     * {@link Instance} for every object of the heap.
+     */
     public void forEachInstance(@NonNull TObjectProcedure<Instance> procedure) {
-        mInstances.forEachValue(procedure);
+        if (!mInstances.forEachValue(procedure)) {
+            return;
+        }
+        InstanceTable table = mSnapshot == null ? null : mSnapshot.getInstanceTable();
+        if (table != null) {
+            for (int row : table.getHeapRows(getIndex())) {
+                if (!procedure.execute(table.getInstance(row))) {
+                    return;
+                }
+            }
+        }
     }
 
     public int getInstancesCount() {
-        return mInstances.size();
+        int count = mInstances.size();
+        InstanceTable table = mSnapshot == null ? null : mSnapshot.getInstanceTable();
+        if (table != null) {
+            count += table.getHeapRows(getIndex()).length;
+        }
+        return count;
+    }
+
+    private int getIndex() {
+        return mSnapshot.getHeapIndex(this);
     }
 }
@@ -0,0 +1,581 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.tools.perflib.captures.MemoryMappedFileBuffer;
+import com.android.tools.perflib.heap.analysis.CompactDominators;
+import com.android.tools.perflib.heap.analysis.ComputationProgress;
+import com.android.tools.perflib.heap.analysis.DominatorsBase;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import gnu.trove.TLongIntHashMap;
+
+/**
+ * A sidecar file next to an hprof file, caching the results of the expensive analysis of a
+ * {@link Snapshot}: topological order, distances to GC roots, immediate dominators and retained
+ * sizes, plus the {@link ReferenceGraph} of compact snapshots.
+ *
+ * The index is keyed by the size and modification time of the hprof file, and by a hash of its
+ * header and of blocks sampled across it, so a stale index (the dump was overwritten) is ignored
+ * without reading the whole dump. Indexes are written atomically, and any I/O error while reading
+ * or writing one, as well as any stored value out of range, simply falls back to computing
+ * everything from scratch.
+ *
+ * Layout (big endian):
+ * <pre>
+ *   int    magic, int version
+ *   int    key length, byte[] key
+ *   int    heap count
+ *   int    reachable instance count N
+ *   long[] ids, in topological order
+ *   int[]  immediate dominators, as indices into the ids (-1 for the sentinel root, -2 if none)
+ *   int[]  distances to GC roots
+ *   int[]  next instances towards GC roots, as indices into the ids (-2 if none)
+ *   long[] retained sizes, N * heap count
+ *   int    reference graph node count (-1 if there is no graph)
+ *   int    edge count, int root count
+ *   int[]  forward offsets, forward targets, soft referents, roots
+ * </pre>
+ */
+public final class HprofIndex {
+    private static final String INDEX_SUFFIX = ".index";
+
+    private static final int MAGIC = 0x50464958; // "PFIX"
+
+    /**
+     * Bump this whenever the layout or the semantics of any stored value change.
+     */
+    private static final int VERSION = 3;
+
+    //  Number and length of the blocks of the hprof file hashed into the key. The first block
+    //  covers the header, the last one the end of the file.
+    private static final int SAMPLED_BLOCKS = 16;
+
+    private static final int BLOCK_LENGTH = 1 << 16;
+
+    private static final int SENTINEL_INDEX = -1;
+
+    private static final int NO_INDEX = -2;
+
+    @NonNull
+    private final byte[] mKey;
+
+    //  The mapped index, positioned after the key, or null if there is no up-to-date index.
+    @Nullable
+    private MappedByteBuffer mData;
+
+    private HprofIndex(@NonNull byte[] key, @Nullable MappedByteBuffer data) {
+        mKey = key;
+        mData = data;
+    }
+
+    @NonNull
+    public static File getIndexFile(@NonNull File hprofFile) {
+        return new File(hprofFile.getPath() + INDEX_SUFFIX);
+    }
+
+    /**
+     * Computes the key of the given hprof file and maps its index if there is an up-to-date one.
+     */
+    @NonNull
+    static HprofIndex open(@NonNull File hprofFile) throws IOException {
+        byte[] key = computeKey(hprofFile);
+        File indexFile = getIndexFile(hprofFile);
+        if (!indexFile.isFile()) {
+            return new HprofIndex(key, null);
+        }
+
+        RandomAccessFile file = new RandomAccessFile(indexFile, "r");
+        MappedByteBuffer data = null;
+        try {
+            data = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            if (data.remaining() >= 12 && data.getInt() == MAGIC && data.getInt() == VERSION) {
+                int keyLength = data.getInt();
+                if (keyLength == key.length && keyLength <= data.remaining()) {
+                    byte[] storedKey = new byte[keyLength];
+                    data.get(storedKey);
+                    if (Arrays.equals(key, storedKey)) {
+                        return new HprofIndex(key, data);
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            // A truncated or otherwise corrupt index.
+        } finally {
+            file.close();
+        }
+        if (data != null) {
+            MemoryMappedFileBuffer.unmap(data);
+        }
+        return new HprofIndex(key, null);
+    }
+
+    /**
+     * Hashes the size, the modification time, the header and a few blocks spread over the hprof
+     * file, which identifies a dump without reading all of it.
+     */
+    @NonNull
+    static byte[] computeKey(@NonNull File hprofFile) throws IOException {
+        Hasher hasher = Hashing.murmur3_128().newHasher();
+        long length = hprofFile.length();
+        hasher.putLong(length);
+        hasher.putLong(hprofFile.lastModified());
+
+        RandomAccessFile file = new RandomAccessFile(hprofFile, "r");
+        try {
+            byte[] block = new byte[(int) Math.min(BLOCK_LENGTH, length)];
+            long lastOffset = length - block.length;
+            for (int i = 0; i < SAMPLED_BLOCKS; i++) {
+                file.seek(lastOffset * i / (SAMPLED_BLOCKS - 1));
+                file.readFully(block);
+                hasher.putBytes(block);
+            }
+        } finally {
+            file.close();
+        }
+        return hasher.hash().asBytes();
+    }
+
+    /**
+     * Unmaps the index file. The index is no longer valid afterwards.
+     */
+    void dispose() {
+        if (mData != null) {
+            MemoryMappedFileBuffer.unmap(mData);
+            mData = null;
+        }
+    }
+
+    /**
+     * Returns true if an up-to-date index was found for the hprof file.
+     */
+    public boolean isValid() {
+        return mData != null;
+    }
+
+    /**
+     * Restores the analysis results into the snapshot. Nothing is modified if the index does not
+     * match the snapshot.
+     *
+     * @return the dominators to hand to {@link Snapshot#doComputeDominators(DominatorsBase)}, or
+     * null if the index does not match the snapshot
+     */
+    @Nullable
+    DominatorsBase restoreAnalysis(@NonNull Snapshot snapshot) {
+        if (mData == null) {
+            return null;
+        }
+        ByteBuffer data = mData.duplicate();
+        if (data.remaining() < 8) {
+            return null;
+        }
+        int heapCount = data.getInt();
+        if (heapCount != snapshot.getHeaps().size()) {
+            return null;
+        }
+        int count = data.getInt();
+        if (!fits(data, count, getBytesPerInstance(heapCount))) {
+            return null;
+        }
+
+        long[] ids = new long[count];
+        data.asLongBuffer().get(ids);
+        data.position(data.position() + count * 8);
+        Instance[] instances = new Instance[count];
+        for (int i = 0; i < count; i++) {
+            instances[i] = snapshot.findInstance(ids[i]);
+            if (instances[i] == null) {
+                return null;
+            }
+        }
+
+        int[] dominators = readInts(data, count);
+        int[] distances = readInts(data, count);
+        int[] nextInstances = readInts(data, count);
+        long[] retainedSizes = new long[count * heapCount];
+        data.asLongBuffer().get(retainedSizes);
+        if (!isInRange(dominators, NO_INDEX, count - 1)
+                || !isInRange(distances, 0, Integer.MAX_VALUE)
+                || !isInRange(nextInstances, NO_INDEX, count - 1)) {
+            return null;
+        }
+
+        Snapshot.SENTINEL_ROOT.setTopologicalOrder(0);
+        List<Instance> topSort = new ArrayList<Instance>(count);
+        for (int i = 0; i < count; i++) {
+            Instance instance = instances[i];
+            instance.setTopologicalOrder(i + 1);
+            instance.mDistanceToGcRoot = distances[i];
+            instance.setNextInstanceToGcRoot(
+                    nextInstances[i] < 0 ? null : instances[nextInstances[i]]);
+            topSort.add(instance);
+        }
+        snapshot.setTopologicalOrdering(topSort);
+
+        return new IndexedDominators(snapshot, instances, dominators, retainedSizes, heapCount);
+    }
+
+    /**
+     * Restores the analysis results of a compact snapshot, without creating any {@link Instance}.
+     *
+     * @return the restored dominators, or null if the index does not match the snapshot
+     */
+    @Nullable
+    CompactDominators restoreCompactAnalysis(@NonNull Snapshot snapshot) {
+        InstanceTable table = snapshot.getInstanceTable();
+        if (mData == null || table == null) {
+            return null;
+        }
+        ByteBuffer data = mData.duplicate();
+        if (data.remaining() < 8) {
+            return null;
+        }
+        int heapCount = data.getInt();
+        if (heapCount != snapshot.getHeaps().size()) {
+            return null;
+        }
+        int count = data.getInt();
+        if (count > table.size() || !fits(data, count, getBytesPerInstance(heapCount))) {
+            return null;
+        }
+
+        // Rows are indexed by topological order, which starts at 1 after the sentinel.
+        int[] rows = new int[count + 1];
+        for (int i = 0; i < count; i++) {
+            rows[i + 1] = table.indexOf(data.getLong());
+            if (rows[i + 1] < 0) {
+                return null;
+            }
+        }
+
+        int[] dominators = new int[count + 1];
+        for (int i = 0; i < count; i++) {
+            int dominator = data.getInt();
+            if (dominator < NO_INDEX || dominator >= count) {
+                return null;
+            }
+            dominators[i + 1] = dominator == NO_INDEX ? CompactDominators.NONE : dominator + 1;
+        }
+        int[] distances = new int[table.size()];
+        Arrays.fill(distances, Integer.MAX_VALUE);
+        for (int i = 0; i < count; i++) {
+            distances[rows[i + 1]] = data.getInt();
+            if (distances[rows[i + 1]] < 0) {
+                return null;
+            }
+        }
+        int[] nextRows = new int[table.size()];
+        Arrays.fill(nextRows, CompactDominators.NONE);
+        for (int i = 0; i < count; i++) {
+            int next = data.getInt();
+            if (next < NO_INDEX || next >= count) {
+                return null;
+            }
+            nextRows[rows[i + 1]] = next < 0 ? CompactDominators.NONE : rows[next + 1];
+        }
+        long[][] retainedSizes = new long[heapCount][count + 1];
+        for (int i = 0; i < count; i++) {
+            for (int heap = 0; heap < heapCount; heap++) {
+                retainedSizes[heap][i + 1] = data.getLong();
+            }
+        }
+        return CompactDominators.restore(snapshot, rows, dominators, distances, nextRows,
+                retainedSizes);
+    }
+
+    /**
+     * Returns the stored reference graph of a compact snapshot, or null if there is none.
+     */
+    @Nullable
+    ReferenceGraph restoreReferenceGraph(@NonNull InstanceTable table) {
+        if (mData == null) {
+            return null;
+        }
+        ByteBuffer data = mData.duplicate();
+        if (data.remaining() < 8) {
+            return null;
+        }
+        int heapCount = data.getInt();
+        int count = data.getInt();
+        if (heapCount < 0 || heapCount > Byte.MAX_VALUE
+                || !fits(data, count, getBytesPerInstance(heapCount))) {
+            return null;
+        }
+        data.position(data.position() + count * (int) getBytesPerInstance(heapCount));
+
+        if (data.remaining() < 12) {
+            return null;
+        }
+        int nodeCount = data.getInt();
+        if (nodeCount != table.size()) {
+            return null;
+        }
+        int edgeCount = data.getInt();
+        int rootCount = data.getInt();
+        if (edgeCount < 0 || rootCount < 0
+                || !fits(data, 2L * nodeCount + 1 + edgeCount + rootCount, 4)) {
+            return null;
+        }
+        int[] forwardOffsets = readInts(data, nodeCount + 1);
+        int[] forwardTargets = readInts(data, edgeCount);
+        int[] softReferents = readInts(data, nodeCount);
+        int[] roots = readInts(data, rootCount);
+        if (forwardOffsets[0] != 0 || forwardOffsets[nodeCount] != edgeCount
+                || !isInRange(forwardTargets, 0, nodeCount - 1)
+                || !isInRange(softReferents, -1, nodeCount - 1)
+                || !isInRange(roots, 0, nodeCount - 1)) {
+            return null;
+        }
+        for (int node = 0; node < nodeCount; node++) {
+            if (forwardOffsets[node] > forwardOffsets[node + 1]) {
+                return null;
+            }
+        }
+        return new ReferenceGraph(table, forwardOffsets, forwardTargets, softReferents, roots);
+    }
+
+    private static long getBytesPerInstance(int heapCount) {
+        // An id, a dominator, a distance, a next instance, and a retained size for every heap.
+        return 8 + 4 + 4 + 4 + 8L * heapCount;
+    }
+
+    /**
+     * Returns true if {@code count} elements of the given size fit in the rest of the data.
+     */
+    private static boolean fits(@NonNull ByteBuffer data, long count, long bytesPerElement) {
+        return count >= 0 && count * bytesPerElement <= data.remaining();
+    }
+
+    private static boolean isInRange(@NonNull int[] values, int min, int max) {
+        for (int value : values) {
+            if (value < min || value > max) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @NonNull
+    private static int[] readInts(@NonNull ByteBuffer data, int count) {
+        int[] result = new int[count];
+        data.asIntBuffer().get(result);
+        data.position(data.position() + count * 4);
+        return result;
+    }
+
+    /**
+     * Writes the analysis results of the snapshot, whose dominators must have been computed.
+     */
+    void write(@NonNull Snapshot snapshot, @NonNull File hprofFile) throws IOException {
+        File indexFile = getIndexFile(hprofFile);
+        File tempFile = new File(indexFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tempFile), 1 << 16));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(mKey.length);
+            out.write(mKey);
+            out.writeInt(snapshot.getHeaps().size());
+            CompactDominators dominators = snapshot.getCompactDominators();
+            if (dominators != null) {
+                writeCompactAnalysis(out, snapshot, dominators);
+            } else {
+                writeAnalysis(out, snapshot);
+            }
+
+            ReferenceGraph graph = snapshot.getCachedReferenceGraph();
+            if (graph == null) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(graph.getNodeCount());
+                out.writeInt(graph.getEdgeCount());
+                out.writeInt(graph.getRoots().length);
+                for (int node = 0; node <= graph.getNodeCount(); node++) {
+                    out.writeInt(node < graph.getNodeCount()
+                            ? graph.getForwardStart(node) : graph.getEdgeCount());
+                }
+                for (int edge = 0; edge < graph.getEdgeCount(); edge++) {
+                    out.writeInt(graph.getForwardTarget(edge));
+                }
+                for (int node = 0; node < graph.getNodeCount(); node++) {
+                    out.writeInt(graph.getSoftReferent(node));
+                }
+                for (int root : graph.getRoots()) {
+                    out.writeInt(root);
+                }
+            }
+        } finally {
+            out.close();
+        }
+
+        // Files that are still mapped can't be replaced on Windows.
+        dispose();
+        if (indexFile.exists() && !indexFile.delete()) {
+            throw new IOException("Cannot replace " + indexFile);
+        }
+        if (!tempFile.renameTo(indexFile)) {
+            throw new IOException("Cannot rename " + tempFile + " to " + indexFile);
+        }
+    }
+
+    private static void writeAnalysis(@NonNull DataOutputStream out, @NonNull Snapshot snapshot)
+            throws IOException {
+        List<Instance> topSort = snapshot.getTopologicalOrdering();
+        int heapCount = snapshot.getHeaps().size();
+        TLongIntHashMap indices = new TLongIntHashMap(topSort.size());
+        for (int i = 0; i < topSort.size(); i++) {
+            indices.put(topSort.get(i).getId(), i);
+        }
+
+        out.writeInt(topSort.size());
+        for (Instance instance : topSort) {
+            out.writeLong(instance.getId());
+        }
+        for (Instance instance : topSort) {
+            Instance dominator = instance.getImmediateDominator();
+            out.writeInt(dominator == Snapshot.SENTINEL_ROOT ? SENTINEL_INDEX
+                    : indexOf(indices, dominator));
+        }
+        for (Instance instance : topSort) {
+            out.writeInt(instance.getDistanceToGcRoot());
+        }
+        for (Instance instance : topSort) {
+            out.writeInt(indexOf(indices, instance.getNextInstanceToGcRoot()));
+        }
+        for (Instance instance : topSort) {
+            for (int heap = 0; heap < heapCount; heap++) {
+                out.writeLong(instance.getRetainedSize(heap));
+            }
+        }
+    }
+
+    private static void writeCompactAnalysis(@NonNull DataOutputStream out,
+            @NonNull Snapshot snapshot, @NonNull CompactDominators dominators) throws IOException {
+        InstanceTable table = snapshot.getInstanceTable();
+        assert table != null;
+        int count = dominators.getReachableCount();
+
+        // Indices into the ids are topological orders minus one.
+        out.writeInt(count);
+        for (int order = 1; order <= count; order++) {
+            out.writeLong(table.getId(dominators.getRow(order)));
+        }
+        for (int order = 1; order <= count; order++) {
+            int dominator = dominators.getImmediateDominator(dominators.getRow(order));
+            if (dominator == CompactDominators.SENTINEL_ROOT) {
+                out.writeInt(SENTINEL_INDEX);
+            } else if (dominator == CompactDominators.NONE) {
+                out.writeInt(NO_INDEX);
+            } else {
+                out.writeInt(dominators.getTopologicalOrder(dominator) - 1);
+            }
+        }
+        for (int order = 1; order <= count; order++) {
+            out.writeInt(dominators.getDistanceToGcRoot(dominators.getRow(order)));
+        }
+        for (int order = 1; order <= count; order++) {
+            int next = dominators.getNextRowToGcRoot(dominators.getRow(order));
+            out.writeInt(next == CompactDominators.NONE
+                    ? NO_INDEX : dominators.getTopologicalOrder(next) - 1);
+        }
+        for (int order = 1; order <= count; order++) {
+            int row = dominators.getRow(order);
+            for (int heap = 0; heap < dominators.getHeapCount(); heap++) {
+                out.writeLong(dominators.getRetainedSize(row, heap));
+            }
+        }
+    }
+
+    private static int indexOf(@NonNull TLongIntHashMap indices, @Nullable Instance instance) {
+        if (instance == null || !indices.containsKey(instance.getId())) {
+            return NO_INDEX;
+        }
+        return indices.get(instance.getId());
+    }
+
+    /**
+     * Dominators and retained sizes read back from an index.
+     */
+    private static final class IndexedDominators extends DominatorsBase {
+        @NonNull
+        private final Instance[] mInstances;
+
+        @NonNull
+        private final int[] mDominators;
+
+        @NonNull
+        private final long[] mRetainedSizes;
+
+        private final int mHeapCount;
+
+        IndexedDominators(@NonNull Snapshot snapshot, @NonNull Instance[] instances,
+                @NonNull int[] dominators, @NonNull long[] retainedSizes, int heapCount) {
+            super(snapshot);
+            mInstances = instances;
+            mDominators = dominators;
+            mRetainedSizes = retainedSizes;
+            mHeapCount = heapCount;
+            mCurrentProgress = new ComputationProgress("Loading dominators from index", 0.0);
+        }
+
+        @NonNull
+        @Override
+        public ComputationProgress getComputationProgress() {
+            return mCurrentProgress;
+        }
+
+        @Override
+        public void computeDominators() {
+            for (int i = 0; i < mInstances.length; i++) {
+                int dominator = mDominators[i];
+                if (dominator != NO_INDEX) {
+                    mInstances[i].setImmediateDominator(dominator == SENTINEL_INDEX
+                            ? Snapshot.SENTINEL_ROOT : mInstances[dominator]);
+                }
+            }
+            mCurrentProgress.setProgress(1.0);
+        }
+
+        @Override
+        public void computeRetainedSizes() {
+            for (int i = 0; i < mInstances.length; i++) {
+                Instance instance = mInstances[i];
+                for (int heap = 0; heap < mHeapCount; heap++) {
+                    long size = mRetainedSizes[i * mHeapCount + heap];
+                    instance.addRetainedSize(heap, size - instance.getRetainedSize(heap));
+                }
+            }
+        }
+    }
+}
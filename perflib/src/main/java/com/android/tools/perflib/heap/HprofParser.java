@@ -17,13 +17,29 @@
 package com.android.tools.perflib.heap;
 
 import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.annotations.VisibleForTesting;
 import com.android.tools.perflib.captures.DataBuffer;
+import com.android.tools.perflib.captures.MemoryMappedFileBuffer;
 import com.google.common.primitives.UnsignedBytes;
 import com.google.common.primitives.UnsignedInts;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import java.io.EOFException;
 import java.io.IOException;
-
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import gnu.trove.TIntArrayList;
+import gnu.trove.TLongArrayList;
 import gnu.trove.TLongObjectHashMap;
 
 class HprofParser {
@@ -119,6 +135,24 @@ class HprofParser {
 
     private static final int ROOT_PRIMITIVE_ARRAY_NODATA = 0xc3;
 
+    /**
+     * Number of heap dump segments a parallel parse keeps in flight per worker thread. This bounds
+     * the memory used by decoded segments waiting to be merged into the snapshot.
+     */
+    private static final int SEGMENTS_IN_FLIGHT_PER_THREAD = 4;
+
+    /**
+     * Heap dump records longer than this are split at sub-record boundaries into several segments,
+     * so that dumps written as a single HEAP_DUMP record are decoded in parallel as well.
+     */
+    private static final long MAX_SEGMENT_LENGTH = 16 << 20;
+
+    /**
+     * System property with the number of threads used to parse memory-mapped files. Setting it to
+     * 1 turns parallel parsing off. Defaults to the number of processors.
+     */
+    static final String PARSER_THREADS_PROPERTY = "perflib.hprof.parserThreads";
+
     @NonNull
     private final DataBuffer mInput;
 
@@ -126,6 +160,10 @@ class HprofParser {
 
     Snapshot mSnapshot;
 
+    //  Receives the contents of heap dumps, either the snapshot itself or a recording of a segment.
+    @NonNull
+    private final HeapDumpSink mSink;
+
     /*
      * These are only needed while parsing so are not kept as part of the
      * heap data.
@@ -136,16 +174,104 @@ class HprofParser {
     @NonNull
     TLongObjectHashMap<String> mClassNames = new TLongObjectHashMap<String>();
 
+    //  Offsets and lengths of the heap dump (segment) records, only used by parallel parsing.
+    @NonNull
+    private final TLongArrayList mHeapDumpOffsets = new TLongArrayList();
+
+    @NonNull
+    private final TLongArrayList mHeapDumpLengths = new TLongArrayList();
+
+    //  Indices of the segments that end a heap dump record, as opposed to part of a split one.
+    @NonNull
+    private final BitSet mHeapDumpEnds = new BitSet();
+
     static void parseBuffer(@NonNull Snapshot snapshot, @NonNull DataBuffer buffer) {
-        new HprofParser(snapshot, buffer).parse();
+        parseBuffer(snapshot, buffer, new SnapshotSink(snapshot));
+    }
+
+    /**
+     * Loads the classes, heaps and stack traces of the buffer into the snapshot, but none of the
+     * instances or roots.
+     */
+    static void parseClasses(@NonNull Snapshot snapshot, @NonNull DataBuffer buffer) {
+        parseBuffer(snapshot, buffer, new ClassSink(snapshot));
+    }
+
+    /**
+     * Parses the buffer again, handing every instance to the visitor as it is decoded. The
+     * classes must have been loaded by {@link #parseClasses(Snapshot, DataBuffer)}.
+     */
+    static void visitInstances(@NonNull Snapshot snapshot, @NonNull DataBuffer buffer,
+            @NonNull HprofVisitor visitor) {
+        buffer.setPosition(0);
+        parseBuffer(snapshot, buffer, new VisitingSink(snapshot, buffer, visitor));
     }
 
-    private HprofParser(@NonNull Snapshot snapshot, @NonNull DataBuffer buffer) {
+    private static void parseBuffer(@NonNull Snapshot snapshot, @NonNull DataBuffer buffer,
+            @NonNull HeapDumpSink sink) {
+        int threads = Integer.getInteger(PARSER_THREADS_PROPERTY,
+                Runtime.getRuntime().availableProcessors());
+        if (buffer instanceof MemoryMappedFileBuffer && threads > 1) {
+            parseBuffer(snapshot, (MemoryMappedFileBuffer) buffer, sink, threads,
+                    MAX_SEGMENT_LENGTH);
+        } else {
+            new HprofParser(snapshot, buffer, sink).parse(null);
+        }
+    }
+
+    /**
+     * Parses the buffer in two passes. The first pass loads strings, classes names and stack
+     * traces, and indexes the heap dump segments. The second pass decodes the segments
+     * concurrently on {@code threads} threads, and merges them into the snapshot in file order,
+     * so the result is the same as with a sequential parse.
+     *
+     * @param maxSegmentLength the length above which heap dump records are split
+     */
+    @VisibleForTesting
+    static void parseBuffer(@NonNull Snapshot snapshot, @NonNull MemoryMappedFileBuffer buffer,
+            int threads, long maxSegmentLength) {
+        parseBuffer(snapshot, buffer, new SnapshotSink(snapshot), threads, maxSegmentLength);
+    }
+
+    private static void parseBuffer(@NonNull Snapshot snapshot,
+            @NonNull MemoryMappedFileBuffer buffer, @NonNull HeapDumpSink sink, int threads,
+            long maxSegmentLength) {
+        ExecutorService executor = Executors.newFixedThreadPool(threads,
+                new ThreadFactoryBuilder()
+                        .setNameFormat("hprof-parser-%d")
+                        .setDaemon(true)
+                        .build());
+        try {
+            new HprofParser(snapshot, buffer, sink)
+                    .parse(new SegmentDecoder(buffer, executor, threads, maxSegmentLength));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private HprofParser(@NonNull Snapshot snapshot, @NonNull DataBuffer buffer,
+            @NonNull HeapDumpSink sink) {
         mInput = buffer;
         mSnapshot = snapshot;
+        mSink = sink;
+    }
+
+    /**
+     * Creates a parser decoding heap dump segments of another parser on a separate buffer view.
+     */
+    private HprofParser(@NonNull HprofParser parent, @NonNull DataBuffer buffer,
+            @NonNull HeapDumpSink sink) {
+        this(parent.mSnapshot, buffer, sink);
+        mIdSize = parent.mIdSize;
+        mStrings = parent.mStrings;
+        mClassNames = parent.mClassNames;
     }
 
-    private void parse() {
+    /**
+     * @param segmentDecoder if not null, heap dumps are only indexed during the first pass, and
+     *                       decoded concurrently by the decoder afterwards.
+     */
+    private void parse(@Nullable SegmentDecoder segmentDecoder) {
         try {
             try {
                 readNullTerminatedString();  // Version, ignored for now.
@@ -179,13 +305,13 @@ class HprofParser {
                             break;
 
                         case HEAP_DUMP:
-                            loadHeapDump(length);
-                            mSnapshot.setToDefaultHeap();
-                            break;
-
                         case HEAP_DUMP_SEGMENT:
-                            loadHeapDump(length);
-                            mSnapshot.setToDefaultHeap();
+                            if (segmentDecoder != null) {
+                                indexHeapDump(length, segmentDecoder.mMaxSegmentLength);
+                            } else {
+                                loadHeapDump(length);
+                                mSnapshot.setToDefaultHeap();
+                            }
                             break;
 
                         default:
@@ -196,8 +322,10 @@ class HprofParser {
             } catch (EOFException eof) {
                 //  this is fine
             }
-            mSnapshot.resolveClasses();
-            mSnapshot.identifySoftReferences();
+            if (segmentDecoder != null) {
+                segmentDecoder.decode(this);
+            }
+            mSink.finish();
             // TODO: enable this after the dominators computation is also optimized.
             // mSnapshot.computeRetainedSizes();
         } catch (Exception e) {
@@ -299,128 +427,159 @@ class HprofParser {
         mSnapshot.addStackTrace(trace);
     }
 
+    /**
+     * Records the offsets of the segments of a heap dump record for parallel decoding, splitting
+     * long records at sub-record boundaries. Finding those boundaries requires walking the
+     * sub-records, which is cheap compared to decoding them into the snapshot.
+     */
+    private void indexHeapDump(long length, long maxSegmentLength) throws IOException {
+        long segmentStart = mInput.position();
+        long end = segmentStart + length;
+        if (length > maxSegmentLength) {
+            HprofParser scanner = new HprofParser(this, mInput, new SkippingSink());
+            while (mInput.position() < end) {
+                scanner.loadHeapDumpRecord();
+                if (mInput.position() < end
+                        && mInput.position() - segmentStart >= maxSegmentLength) {
+                    mHeapDumpOffsets.add(segmentStart);
+                    mHeapDumpLengths.add(mInput.position() - segmentStart);
+                    segmentStart = mInput.position();
+                }
+            }
+        }
+        mHeapDumpEnds.set(mHeapDumpOffsets.size());
+        mHeapDumpOffsets.add(segmentStart);
+        mHeapDumpLengths.add(end - segmentStart);
+        mInput.setPosition(end);
+    }
+
     private void loadHeapDump(long length) throws IOException {
         while (length > 0) {
-            int tag = readUnsignedByte();
-            length--;
+            length -= loadHeapDumpRecord();
+        }
+    }
 
-            switch (tag) {
-                case ROOT_UNKNOWN:
-                    length -= loadBasicObj(RootType.UNKNOWN);
-                    break;
-
-                case ROOT_JNI_GLOBAL:
-                    length -= loadBasicObj(RootType.NATIVE_STATIC);
-                    readId();   //  ignored
-                    length -= mIdSize;
-                    break;
-
-                case ROOT_JNI_LOCAL:
-                    length -= loadJniLocal();
-                    break;
-
-                case ROOT_JAVA_FRAME:
-                    length -= loadJavaFrame();
-                    break;
-
-                case ROOT_NATIVE_STACK:
-                    length -= loadNativeStack();
-                    break;
-
-                case ROOT_STICKY_CLASS:
-                    length -= loadBasicObj(RootType.SYSTEM_CLASS);
-                    break;
-
-                case ROOT_THREAD_BLOCK:
-                    length -= loadThreadBlock();
-                    break;
-
-                case ROOT_MONITOR_USED:
-                    length -= loadBasicObj(RootType.BUSY_MONITOR);
-                    break;
-
-                case ROOT_THREAD_OBJECT:
-                    length -= loadThreadObject();
-                    break;
-
-                case ROOT_CLASS_DUMP:
-                    length -= loadClassDump();
-                    break;
-
-                case ROOT_INSTANCE_DUMP:
-                    length -= loadInstanceDump();
-                    break;
-
-                case ROOT_OBJECT_ARRAY_DUMP:
-                    length -= loadObjectArrayDump();
-                    break;
-
-                case ROOT_PRIMITIVE_ARRAY_DUMP:
-                    length -= loadPrimitiveArrayDump();
-                    break;
-
-                case ROOT_PRIMITIVE_ARRAY_NODATA:
-                    System.err.println("+--- PRIMITIVE ARRAY NODATA DUMP");
-                    length -= loadPrimitiveArrayDump();
-
-                    throw new IllegalArgumentException(
-                            "Don't know how to load a nodata array");
-
-                case ROOT_HEAP_DUMP_INFO:
-                    int heapId = mInput.readInt();
-                    long heapNameId = readId();
-                    String heapName = mStrings.get(heapNameId);
-
-                    mSnapshot.setHeapTo(heapId, heapName);
-                    length -= 4 + mIdSize;
-                    break;
-
-                case ROOT_INTERNED_STRING:
-                    length -= loadBasicObj(RootType.INTERNED_STRING);
-                    break;
-
-                case ROOT_FINALIZING:
-                    length -= loadBasicObj(RootType.FINALIZING);
-                    break;
-
-                case ROOT_DEBUGGER:
-                    length -= loadBasicObj(RootType.DEBUGGER);
-                    break;
-
-                case ROOT_REFERENCE_CLEANUP:
-                    length -= loadBasicObj(RootType.REFERENCE_CLEANUP);
-                    break;
-
-                case ROOT_VM_INTERNAL:
-                    length -= loadBasicObj(RootType.VM_INTERNAL);
-                    break;
-
-                case ROOT_JNI_MONITOR:
-                    length -= loadJniMonitor();
-                    break;
-
-                case ROOT_UNREACHABLE:
-                    length -= loadBasicObj(RootType.UNREACHABLE);
-                    break;
-
-                default:
-                    throw new IllegalArgumentException(
-                            "loadHeapDump loop with unknown tag " + tag
-                                    + " with " + mInput.remaining()
-                                    + " bytes possibly remaining");
-            }
+    /**
+     * Loads one record of a heap dump, and returns the number of bytes it spans.
+     */
+    private int loadHeapDumpRecord() throws IOException {
+        int tag = readUnsignedByte();
+        int length = 1;
+
+        switch (tag) {
+            case ROOT_UNKNOWN:
+                length += loadBasicObj(RootType.UNKNOWN);
+                break;
+
+            case ROOT_JNI_GLOBAL:
+                length += loadBasicObj(RootType.NATIVE_STATIC);
+                readId();   //  ignored
+                length += mIdSize;
+                break;
+
+            case ROOT_JNI_LOCAL:
+                length += loadJniLocal();
+                break;
+
+            case ROOT_JAVA_FRAME:
+                length += loadJavaFrame();
+                break;
+
+            case ROOT_NATIVE_STACK:
+                length += loadNativeStack();
+                break;
+
+            case ROOT_STICKY_CLASS:
+                length += loadBasicObj(RootType.SYSTEM_CLASS);
+                break;
+
+            case ROOT_THREAD_BLOCK:
+                length += loadThreadBlock();
+                break;
+
+            case ROOT_MONITOR_USED:
+                length += loadBasicObj(RootType.BUSY_MONITOR);
+                break;
+
+            case ROOT_THREAD_OBJECT:
+                length += loadThreadObject();
+                break;
+
+            case ROOT_CLASS_DUMP:
+                length += loadClassDump();
+                break;
+
+            case ROOT_INSTANCE_DUMP:
+                length += loadInstanceDump();
+                break;
+
+            case ROOT_OBJECT_ARRAY_DUMP:
+                length += loadObjectArrayDump();
+                break;
+
+            case ROOT_PRIMITIVE_ARRAY_DUMP:
+                length += loadPrimitiveArrayDump();
+                break;
+
+            case ROOT_PRIMITIVE_ARRAY_NODATA:
+                System.err.println("+--- PRIMITIVE ARRAY NODATA DUMP");
+                length += loadPrimitiveArrayDump();
+
+                throw new IllegalArgumentException(
+                        "Don't know how to load a nodata array");
+
+            case ROOT_HEAP_DUMP_INFO:
+                int heapId = mInput.readInt();
+                long heapNameId = readId();
+                String heapName = mStrings.get(heapNameId);
+
+                mSink.setHeapTo(heapId, heapName);
+                length += 4 + mIdSize;
+                break;
+
+            case ROOT_INTERNED_STRING:
+                length += loadBasicObj(RootType.INTERNED_STRING);
+                break;
+
+            case ROOT_FINALIZING:
+                length += loadBasicObj(RootType.FINALIZING);
+                break;
+
+            case ROOT_DEBUGGER:
+                length += loadBasicObj(RootType.DEBUGGER);
+                break;
+
+            case ROOT_REFERENCE_CLEANUP:
+                length += loadBasicObj(RootType.REFERENCE_CLEANUP);
+                break;
+
+            case ROOT_VM_INTERNAL:
+                length += loadBasicObj(RootType.VM_INTERNAL);
+                break;
+
+            case ROOT_JNI_MONITOR:
+                length += loadJniMonitor();
+                break;
+
+            case ROOT_UNREACHABLE:
+                length += loadBasicObj(RootType.UNREACHABLE);
+                break;
+
+            default:
+                throw new IllegalArgumentException(
+                        "loadHeapDump loop with unknown tag " + tag
+                                + " with " + mInput.remaining()
+                                + " bytes possibly remaining");
         }
+        return length;
     }
 
     private int loadJniLocal() throws IOException {
         long id = readId();
         int threadSerialNumber = mInput.readInt();
         int stackFrameNumber = mInput.readInt();
-        ThreadObj thread = mSnapshot.getThread(threadSerialNumber);
-        StackTrace trace = mSnapshot.getStackTraceAtDepth(thread.mStackTrace, stackFrameNumber);
-        RootObj root = new RootObj(RootType.NATIVE_LOCAL, id, threadSerialNumber, trace);
 
-        mSnapshot.addRoot(root);
+        mSink.addThreadRoot(RootType.NATIVE_LOCAL, id, threadSerialNumber, stackFrameNumber);
 
         return mIdSize + 4 + 4;
     }
@@ -429,11 +588,8 @@ class HprofParser {
         long id = readId();
         int threadSerialNumber = mInput.readInt();
         int stackFrameNumber = mInput.readInt();
-        ThreadObj thread = mSnapshot.getThread(threadSerialNumber);
-        StackTrace trace = mSnapshot.getStackTraceAtDepth(thread.mStackTrace, stackFrameNumber);
-        RootObj root = new RootObj(RootType.JAVA_LOCAL, id, threadSerialNumber, trace);
 
-        mSnapshot.addRoot(root);
+        mSink.addThreadRoot(RootType.JAVA_LOCAL, id, threadSerialNumber, stackFrameNumber);
 
         return mIdSize + 4 + 4;
     }
@@ -441,20 +597,16 @@ class HprofParser {
     private int loadNativeStack() throws IOException {
         long id = readId();
         int threadSerialNumber = mInput.readInt();
-        ThreadObj thread = mSnapshot.getThread(threadSerialNumber);
-        StackTrace trace = mSnapshot.getStackTrace(thread.mStackTrace);
-        RootObj root = new RootObj(RootType.NATIVE_STACK, id, threadSerialNumber, trace);
 
-        mSnapshot.addRoot(root);
+        mSink.addThreadRoot(RootType.NATIVE_STACK, id, threadSerialNumber, -1);
 
         return mIdSize + 4;
     }
 
     private int loadBasicObj(RootType type) throws IOException {
         long id = readId();
-        RootObj root = new RootObj(type, id);
 
-        mSnapshot.addRoot(root);
+        mSink.addRoot(type, id);
 
         return mIdSize;
     }
@@ -462,11 +614,8 @@ class HprofParser {
     private int loadThreadBlock() throws IOException {
         long id = readId();
         int threadSerialNumber = mInput.readInt();
-        ThreadObj thread = mSnapshot.getThread(threadSerialNumber);
-        StackTrace stack = mSnapshot.getStackTrace(thread.mStackTrace);
-        RootObj root = new RootObj(RootType.THREAD_BLOCK, id, threadSerialNumber, stack);
 
-        mSnapshot.addRoot(root);
+        mSink.addThreadRoot(RootType.THREAD_BLOCK, id, threadSerialNumber, -1);
 
         return mIdSize + 4;
     }
@@ -475,9 +624,8 @@ class HprofParser {
         long id = readId();
         int threadSerialNumber = mInput.readInt();
         int stackSerialNumber = mInput.readInt();
-        ThreadObj thread = new ThreadObj(id, stackSerialNumber);
 
-        mSnapshot.addThread(thread, threadSerialNumber);
+        mSink.addThread(id, threadSerialNumber, stackSerialNumber);
 
         return mIdSize + 4 + 4;
     }
@@ -545,7 +693,7 @@ class HprofParser {
         theClass.setFields(fields);
         theClass.setInstanceSize(instanceSize);
 
-        mSnapshot.addClass(id, theClass);
+        mSink.addClass(id, theClass);
 
         return bytesRead;
     }
@@ -553,14 +701,10 @@ class HprofParser {
     private int loadInstanceDump() throws IOException {
         long id = readId();
         int stackId = mInput.readInt();
-        StackTrace stack = mSnapshot.getStackTrace(stackId);
         long classId = readId();
         int remaining = mInput.readInt();
 
-        long position = mInput.position();
-        ClassInstance instance = new ClassInstance(id, stack, position);
-        instance.setClassId(classId);
-        mSnapshot.addInstance(id, instance);
+        mSink.addInstance(id, classId, stackId, null, 0, mInput.position());
 
         skipFully(remaining);
         return mIdSize + 4 + mIdSize + 4 + remaining;
@@ -569,13 +713,9 @@ class HprofParser {
     private int loadObjectArrayDump() throws IOException {
         final long id = readId();
         int stackId = mInput.readInt();
-        StackTrace stack = mSnapshot.getStackTrace(stackId);
         int numElements = mInput.readInt();
         long classId = readId();
-        ArrayInstance array =
-                new ArrayInstance(id, stack, Type.OBJECT, numElements, mInput.position());
-        array.setClassId(classId);
-        mSnapshot.addInstance(id, array);
+        mSink.addInstance(id, classId, stackId, Type.OBJECT, numElements, mInput.position());
 
         int remaining = numElements * mIdSize;
         skipFully(remaining);
@@ -585,12 +725,10 @@ class HprofParser {
     private int loadPrimitiveArrayDump() throws IOException {
         long id = readId();
         int stackId = mInput.readInt();
-        StackTrace stack = mSnapshot.getStackTrace(stackId);
         int numElements = mInput.readInt();
         Type type = Type.getType(readUnsignedByte());
         int size = mSnapshot.getTypeSize(type);
-        ArrayInstance array = new ArrayInstance(id, stack, type, numElements, mInput.position());
-        mSnapshot.addInstance(id, array);
+        mSink.addInstance(id, 0, stackId, type, numElements, mInput.position());
 
         int remaining = numElements * size;
         skipFully(remaining);
@@ -601,11 +739,8 @@ class HprofParser {
         long id = readId();
         int threadSerialNumber = mInput.readInt();
         int stackDepth = mInput.readInt();
-        ThreadObj thread = mSnapshot.getThread(threadSerialNumber);
-        StackTrace trace = mSnapshot.getStackTraceAtDepth(thread.mStackTrace, stackDepth);
-        RootObj root = new RootObj(RootType.NATIVE_MONITOR, id, threadSerialNumber, trace);
 
-        mSnapshot.addRoot(root);
+        mSink.addThreadRoot(RootType.NATIVE_MONITOR, id, threadSerialNumber, stackDepth);
 
         return mIdSize + 4 + 4;
     }
@@ -622,4 +757,446 @@ class HprofParser {
     private void skipFully(long numBytes) throws IOException {
         mInput.setPosition(mInput.position() + numBytes);
     }
+
+    /**
+     * Destination of the records found in heap dumps.
+     */
+    private interface HeapDumpSink {
+        void setHeapTo(int heapId, @NonNull String heapName);
+
+        void addRoot(@NonNull RootType type, long id);
+
+        /**
+         * Adds a root owned by a thread.
+         *
+         * @param stackDepth the depth of the root in the thread's stack trace, or -1 to use the
+         *                   whole stack trace
+         */
+        void addThreadRoot(@NonNull RootType type, long id, int threadSerialNumber,
+                int stackDepth);
+
+        void addThread(long id, int threadSerialNumber, int stackSerialNumber);
+
+        void addClass(long id, @NonNull ClassObj theClass);
+
+        /**
+         * @param arrayType the element type for arrays, or null for class instances
+         */
+        void addInstance(long id, long classId, int stackSerialNumber, @Nullable Type arrayType,
+                int length, long valuesOffset);
+
+        /**
+         * Called once the whole file has been parsed.
+         */
+        void finish();
+    }
+
+    /**
+     * Adds heap dump records straight to the snapshot.
+     */
+    private static final class SnapshotSink implements HeapDumpSink {
+        @NonNull
+        private final Snapshot mSnapshot;
+
+        SnapshotSink(@NonNull Snapshot snapshot) {
+            mSnapshot = snapshot;
+        }
+
+        @Override
+        public void setHeapTo(int heapId, @NonNull String heapName) {
+            mSnapshot.setHeapTo(heapId, heapName);
+        }
+
+        @Override
+        public void addRoot(@NonNull RootType type, long id) {
+            mSnapshot.addRoot(new RootObj(type, id));
+        }
+
+        @Override
+        public void addThreadRoot(@NonNull RootType type, long id, int threadSerialNumber,
+                int stackDepth) {
+            ThreadObj thread = mSnapshot.getThread(threadSerialNumber);
+            StackTrace trace = stackDepth < 0
+                    ? mSnapshot.getStackTrace(thread.mStackTrace)
+                    : mSnapshot.getStackTraceAtDepth(thread.mStackTrace, stackDepth);
+            mSnapshot.addRoot(new RootObj(type, id, threadSerialNumber, trace));
+        }
+
+        @Override
+        public void addThread(long id, int threadSerialNumber, int stackSerialNumber) {
+            mSnapshot.addThread(new ThreadObj(id, stackSerialNumber), threadSerialNumber);
+        }
+
+        @Override
+        public void addClass(long id, @NonNull ClassObj theClass) {
+            mSnapshot.addClass(id, theClass);
+        }
+
+        @Override
+        public void addInstance(long id, long classId, int stackSerialNumber,
+                @Nullable Type arrayType, int length, long valuesOffset) {
+            if (mSnapshot.isCompact()) {
+                mSnapshot.addInstanceRow(id, classId, stackSerialNumber, arrayType, length,
+                        valuesOffset);
+                return;
+            }
+
+            StackTrace stack = mSnapshot.getStackTrace(stackSerialNumber);
+            Instance instance;
+            if (arrayType == null) {
+                instance = new ClassInstance(id, stack, valuesOffset);
+                instance.setClassId(classId);
+            } else {
+                instance = new ArrayInstance(id, stack, arrayType, length, valuesOffset);
+                if (arrayType == Type.OBJECT) {
+                    instance.setClassId(classId);
+                }
+            }
+            mSnapshot.addInstance(id, instance);
+        }
+
+        @Override
+        public void finish() {
+            mSnapshot.resolveClasses();
+            mSnapshot.identifySoftReferences();
+        }
+    }
+
+    /**
+     * Only adds the classes of heap dumps to the snapshot, so that memory use is bounded by the
+     * number of classes rather than by the number of instances.
+     */
+    private static final class ClassSink implements HeapDumpSink {
+        @NonNull
+        private final Snapshot mSnapshot;
+
+        ClassSink(@NonNull Snapshot snapshot) {
+            mSnapshot = snapshot;
+        }
+
+        @Override
+        public void setHeapTo(int heapId, @NonNull String heapName) {
+            mSnapshot.setHeapTo(heapId, heapName);
+        }
+
+        @Override
+        public void addRoot(@NonNull RootType type, long id) {
+        }
+
+        @Override
+        public void addThreadRoot(@NonNull RootType type, long id, int threadSerialNumber,
+                int stackDepth) {
+        }
+
+        @Override
+        public void addThread(long id, int threadSerialNumber, int stackSerialNumber) {
+        }
+
+        @Override
+        public void addClass(long id, @NonNull ClassObj theClass) {
+            mSnapshot.addClass(id, theClass);
+        }
+
+        @Override
+        public void addInstance(long id, long classId, int stackSerialNumber,
+                @Nullable Type arrayType, int length, long valuesOffset) {
+        }
+
+        @Override
+        public void finish() {
+            mSnapshot.resolveClasses();
+            mSnapshot.identifySoftReferences();
+        }
+    }
+
+    /**
+     * Hands instances to an {@link HprofVisitor} without keeping them. Classes are ignored, as
+     * they were already loaded by a {@link ClassSink}.
+     */
+    private static final class VisitingSink implements HeapDumpSink {
+        @NonNull
+        private final Snapshot mSnapshot;
+
+        @NonNull
+        private final DataBuffer mBuffer;
+
+        @NonNull
+        private final HprofVisitor mVisitor;
+
+        @NonNull
+        private final InstanceRecord mRecord;
+
+        VisitingSink(@NonNull Snapshot snapshot, @NonNull DataBuffer buffer,
+                @NonNull HprofVisitor visitor) {
+            mSnapshot = snapshot;
+            mBuffer = buffer;
+            mVisitor = visitor;
+            mRecord = new InstanceRecord(snapshot);
+        }
+
+        @Override
+        public void setHeapTo(int heapId, @NonNull String heapName) {
+            mSnapshot.setHeapTo(heapId, heapName);
+        }
+
+        @Override
+        public void addRoot(@NonNull RootType type, long id) {
+        }
+
+        @Override
+        public void addThreadRoot(@NonNull RootType type, long id, int threadSerialNumber,
+                int stackDepth) {
+        }
+
+        @Override
+        public void addThread(long id, int threadSerialNumber, int stackSerialNumber) {
+        }
+
+        @Override
+        public void addClass(long id, @NonNull ClassObj theClass) {
+        }
+
+        @Override
+        public void addInstance(long id, long classId, int stackSerialNumber,
+                @Nullable Type arrayType, int length, long valuesOffset) {
+            mRecord.set(mSnapshot.mCurrentHeap, id, classId, stackSerialNumber, arrayType, length,
+                    valuesOffset);
+            // Visitors may read values from the buffer the parser is reading from.
+            long position = mBuffer.position();
+            mVisitor.visitInstance(mRecord);
+            mBuffer.setPosition(position);
+        }
+
+        @Override
+        public void finish() {
+            mVisitor.visitEnd();
+        }
+    }
+
+    /**
+     * Ignores everything, for walking over heap dump records.
+     */
+    private static final class SkippingSink implements HeapDumpSink {
+        @Override
+        public void setHeapTo(int heapId, @NonNull String heapName) {
+        }
+
+        @Override
+        public void addRoot(@NonNull RootType type, long id) {
+        }
+
+        @Override
+        public void addThreadRoot(@NonNull RootType type, long id, int threadSerialNumber,
+                int stackDepth) {
+        }
+
+        @Override
+        public void addThread(long id, int threadSerialNumber, int stackSerialNumber) {
+        }
+
+        @Override
+        public void addClass(long id, @NonNull ClassObj theClass) {
+        }
+
+        @Override
+        public void addInstance(long id, long classId, int stackSerialNumber,
+                @Nullable Type arrayType, int length, long valuesOffset) {
+        }
+
+        @Override
+        public void finish() {
+        }
+    }
+
+    /**
+     * Records the contents of one heap dump segment in primitive lists, so that it can be decoded
+     * on a worker thread and replayed into the snapshot later, in file order.
+     */
+    private static final class RecordingSink implements HeapDumpSink {
+        private static final int OP_SET_HEAP = 0;
+
+        private static final int OP_ROOT = 1;
+
+        private static final int OP_THREAD_ROOT = 2;
+
+        private static final int OP_THREAD = 3;
+
+        private static final int OP_CLASS = 4;
+
+        private static final int OP_INSTANCE = 5;
+
+        private static final RootType[] ROOT_TYPES = RootType.values();
+
+        private final TIntArrayList mOps = new TIntArrayList();
+
+        private final TIntArrayList mInts = new TIntArrayList();
+
+        private final TLongArrayList mLongs = new TLongArrayList();
+
+        private final List<Object> mObjects = new ArrayList<Object>();
+
+        @Override
+        public void setHeapTo(int heapId, @NonNull String heapName) {
+            mOps.add(OP_SET_HEAP);
+            mInts.add(heapId);
+            mObjects.add(heapName);
+        }
+
+        @Override
+        public void addRoot(@NonNull RootType type, long id) {
+            mOps.add(OP_ROOT);
+            mInts.add(type.ordinal());
+            mLongs.add(id);
+        }
+
+        @Override
+        public void addThreadRoot(@NonNull RootType type, long id, int threadSerialNumber,
+                int stackDepth) {
+            mOps.add(OP_THREAD_ROOT);
+            mInts.add(type.ordinal());
+            mInts.add(threadSerialNumber);
+            mInts.add(stackDepth);
+            mLongs.add(id);
+        }
+
+        @Override
+        public void addThread(long id, int threadSerialNumber, int stackSerialNumber) {
+            mOps.add(OP_THREAD);
+            mInts.add(threadSerialNumber);
+            mInts.add(stackSerialNumber);
+            mLongs.add(id);
+        }
+
+        @Override
+        public void addClass(long id, @NonNull ClassObj theClass) {
+            mOps.add(OP_CLASS);
+            mLongs.add(id);
+            mObjects.add(theClass);
+        }
+
+        @Override
+        public void addInstance(long id, long classId, int stackSerialNumber,
+                @Nullable Type arrayType, int length, long valuesOffset) {
+            mOps.add(OP_INSTANCE);
+            mInts.add(stackSerialNumber);
+            mInts.add(arrayType == null ? -1 : arrayType.getTypeId());
+            mInts.add(length);
+            mLongs.add(id);
+            mLongs.add(classId);
+            mLongs.add(valuesOffset);
+        }
+
+        @Override
+        public void finish() {
+            // Recordings only cover single heap dump segments, see replay().
+        }
+
+        void replay(@NonNull HeapDumpSink sink) {
+            int ints = 0;
+            int longs = 0;
+            int objects = 0;
+            for (int i = 0; i < mOps.size(); i++) {
+                switch (mOps.get(i)) {
+                    case OP_SET_HEAP:
+                        sink.setHeapTo(mInts.get(ints++), (String) mObjects.get(objects++));
+                        break;
+                    case OP_ROOT:
+                        sink.addRoot(ROOT_TYPES[mInts.get(ints++)], mLongs.get(longs++));
+                        break;
+                    case OP_THREAD_ROOT:
+                        sink.addThreadRoot(ROOT_TYPES[mInts.get(ints)], mLongs.get(longs++),
+                                mInts.get(ints + 1), mInts.get(ints + 2));
+                        ints += 3;
+                        break;
+                    case OP_THREAD:
+                        sink.addThread(mLongs.get(longs++), mInts.get(ints), mInts.get(ints + 1));
+                        ints += 2;
+                        break;
+                    case OP_CLASS:
+                        sink.addClass(mLongs.get(longs++), (ClassObj) mObjects.get(objects++));
+                        break;
+                    case OP_INSTANCE:
+                        int typeId = mInts.get(ints + 1);
+                        sink.addInstance(mLongs.get(longs), mLongs.get(longs + 1),
+                                mInts.get(ints), typeId < 0 ? null : Type.getType(typeId),
+                                mInts.get(ints + 2), mLongs.get(longs + 2));
+                        ints += 3;
+                        longs += 3;
+                        break;
+                    default:
+                        throw new IllegalStateException("Unknown operation " + mOps.get(i));
+                }
+            }
+        }
+    }
+
+    /**
+     * Decodes the heap dump segments indexed by the first pass on a thread pool.
+     */
+    private static final class SegmentDecoder {
+        @NonNull
+        private final MemoryMappedFileBuffer mBuffer;
+
+        @NonNull
+        private final ExecutorService mExecutor;
+
+        private final int mMaxInFlight;
+
+        private final long mMaxSegmentLength;
+
+        SegmentDecoder(@NonNull MemoryMappedFileBuffer buffer, @NonNull ExecutorService executor,
+                int threads, long maxSegmentLength) {
+            mBuffer = buffer;
+            mExecutor = executor;
+            mMaxInFlight = threads * SEGMENTS_IN_FLIGHT_PER_THREAD;
+            mMaxSegmentLength = maxSegmentLength;
+        }
+
+        void decode(@NonNull HprofParser parser) throws IOException {
+            Deque<Future<RecordingSink>> inFlight = new ArrayDeque<Future<RecordingSink>>();
+            int count = parser.mHeapDumpOffsets.size();
+            int next = 0;
+            int merged = 0;
+            try {
+                while (next < count || !inFlight.isEmpty()) {
+                    while (next < count && inFlight.size() < mMaxInFlight) {
+                        inFlight.add(mExecutor.submit(createTask(parser,
+                                parser.mHeapDumpOffsets.get(next),
+                                parser.mHeapDumpLengths.get(next))));
+                        next++;
+                    }
+                    // Merge in file order, as HEAP_DUMP_INFO records and threads carry over. The
+                    // heap only resets at the end of whole records, not of split segments.
+                    inFlight.removeFirst().get().replay(parser.mSink);
+                    if (parser.mHeapDumpEnds.get(merged++)) {
+                        parser.mSnapshot.setToDefaultHeap();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause());
+            } finally {
+                for (Future<RecordingSink> future : inFlight) {
+                    future.cancel(true);
+                }
+            }
+        }
+
+        @NonNull
+        private Callable<RecordingSink> createTask(@NonNull final HprofParser parser,
+                final long offset, final long length) {
+            return new Callable<RecordingSink>() {
+                @Override
+                public RecordingSink call() throws Exception {
+                    RecordingSink recording = new RecordingSink();
+                    DataBuffer view = mBuffer.duplicate();
+                    view.setPosition(offset);
+                    new HprofParser(parser, view, recording).loadHeapDump(length);
+                    return recording;
+                }
+            };
+        }
+    }
 }
@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap;
+
+import com.android.annotations.NonNull;
+
+/**
+ * Consumes the instances of an hprof file as they are decoded, see
+ * {@link Snapshot#visitInstances(HprofVisitor)}.
+ */
+public interface HprofVisitor {
+
+    /**
+     * Visits one instance. The record is reused for the next instance, so it must not be kept.
+     */
+    void visitInstance(@NonNull InstanceRecord record);
+
+    /**
+     * Called once all instances have been visited.
+     */
+    void visitEnd();
+}
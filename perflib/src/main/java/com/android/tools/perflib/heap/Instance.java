@@ -19,6 +19,7 @@ package com.android.tools.perflib.heap;
 import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 import com.android.tools.perflib.captures.DataBuffer;
+import com.android.tools.perflib.heap.analysis.CompactDominators;
 import com.google.common.collect.ImmutableList;
 import com.google.common.primitives.UnsignedBytes;
 
@@ -72,6 +73,12 @@ public abstract class Instance {
     //  Don't create an actual list until we need to.
     protected ArrayList<Instance> mSoftReverseReferences = null;
 
+    //  Row of this object in the InstanceTable of a compact snapshot, or -1. The references and
+    //  the analysis results of such objects are read from the snapshot when first asked for.
+    int mRow = -1;
+
+    private boolean mReferencesLoaded;
+
     Instance(long id, @NonNull StackTrace stackTrace) {
         mId = id;
         mStack = stackTrace;
@@ -135,7 +142,8 @@ public abstract class Instance {
     }
 
     public int getTopologicalOrder() {
-        return mTopologicalOrder;
+        CompactDominators dominators = getCompactDominators();
+        return dominators != null ? dominators.getTopologicalOrder(mRow) : mTopologicalOrder;
     }
 
     public void setTopologicalOrder(int topologicalOrder) {
@@ -144,6 +152,10 @@ public abstract class Instance {
 
     @Nullable
     public Instance getImmediateDominator() {
+        CompactDominators dominators = getCompactDominators();
+        if (dominators != null) {
+            return mHeap.mSnapshot.getInstanceForRow(dominators.getImmediateDominator(mRow));
+        }
         return mImmediateDominator;
     }
 
@@ -152,10 +164,15 @@ public abstract class Instance {
     }
 
     public int getDistanceToGcRoot() {
-        return mDistanceToGcRoot;
+        CompactDominators dominators = getCompactDominators();
+        return dominators != null ? dominators.getDistanceToGcRoot(mRow) : mDistanceToGcRoot;
     }
 
     public Instance getNextInstanceToGcRoot() {
+        CompactDominators dominators = getCompactDominators();
+        if (dominators != null) {
+            return mHeap.mSnapshot.getInstanceForRow(dominators.getNextRowToGcRoot(mRow));
+        }
         return mNextInstanceToGcRoot;
     }
 
@@ -173,7 +190,7 @@ public abstract class Instance {
      * The results are only valid after ShortestDistanceVisitor has been run.
      */
     public boolean isReachable() {
-        return mDistanceToGcRoot != Integer.MAX_VALUE;
+        return getDistanceToGcRoot() != Integer.MAX_VALUE;
     }
 
     public void resetRetainedSize() {
@@ -191,10 +208,18 @@ public abstract class Instance {
     }
 
     public long getRetainedSize(int heapIndex) {
+        CompactDominators dominators = getCompactDominators();
+        if (dominators != null) {
+            return dominators.getRetainedSize(mRow, heapIndex);
+        }
         return mRetainedSizes[heapIndex];
     }
 
     public long getTotalRetainedSize() {
+        CompactDominators dominators = getCompactDominators();
+        if (dominators != null) {
+            return dominators.getTotalRetainedSize(mRow);
+        }
         if (mRetainedSizes == null) {
             return 0;
         }
@@ -228,28 +253,62 @@ public abstract class Instance {
 
     @NonNull
     public ArrayList<Instance> getHardForwardReferences() {
+        loadReferences();
         return mHardForwardReferences;
     }
 
     @NonNull
     public Instance getSoftForwardReference() {
+        loadReferences();
         return mSoftForwardReference;
     }
 
     @NonNull
     public ArrayList<Instance> getHardReverseReferences() {
+        loadReferences();
         return mHardReverseReferences;
     }
 
     @Nullable
     public ArrayList<Instance> getSoftReverseReferences() {
+        loadReferences();
         return mSoftReverseReferences;
     }
 
+    /**
+     * Reads the references of an object of a compact snapshot from its {@link ReferenceGraph}.
+     * References are already deduplicated there, and don't include the object itself. Objects of
+     * regular snapshots make sure references have been resolved, see
+     * {@link Snapshot#resolvePendingReferences()}.
+     */
+    private void loadReferences() {
+        if (mRow < 0) {
+            if (mHeap != null && mHeap.mSnapshot != null) {
+                mHeap.mSnapshot.resolvePendingReferences();
+            }
+            return;
+        }
+        synchronized (this) {
+            if (!mReferencesLoaded) {
+                mReferencesLoaded = true;
+                mHeap.mSnapshot.loadReferences(this, mRow);
+            }
+        }
+    }
+
+    @Nullable
+    private CompactDominators getCompactDominators() {
+        return mRow < 0 ? null : mHeap.mSnapshot.getCompactDominators();
+    }
+
     /**
      * Removes all duplicate references AND references to itself.
      */
     public void dedupeReferences() {
+        if (mRow >= 0) {
+            // Compact snapshots load deduplicated references.
+            return;
+        }
         Set<Instance> dedupeSet = new HashSet<Instance>(mHardReverseReferences.size());
         dedupeSet.addAll(mHardReverseReferences);
         dedupeSet.remove(this);
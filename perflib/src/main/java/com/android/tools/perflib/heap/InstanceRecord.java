@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+
+/**
+ * An instance of an hprof file, as handed to an {@link HprofVisitor} while parsing.
+ *
+ * Records are flyweights: the parser reuses the same record for every instance, and nothing is
+ * kept once the visitor returns. {@link #createInstance()} decodes the record into a detached
+ * {@link Instance} when the values of its fields or elements are needed.
+ */
+public final class InstanceRecord {
+    @NonNull
+    private final Snapshot mSnapshot;
+
+    //  Classes of primitive arrays, indexed by type id.
+    @NonNull
+    private final ClassObj[] mPrimitiveArrayClasses = new ClassObj[Type.LONG.getTypeId() + 1];
+
+    private Heap mHeap;
+
+    private long mId;
+
+    private long mClassId;
+
+    private int mStackSerial;
+
+    @Nullable
+    private Type mArrayType;
+
+    private int mLength;
+
+    private long mValuesOffset;
+
+    InstanceRecord(@NonNull Snapshot snapshot) {
+        mSnapshot = snapshot;
+        for (Type type : Type.values()) {
+            if (type != Type.OBJECT) {
+                mPrimitiveArrayClasses[type.getTypeId()] = snapshot.findClass(
+                        Type.getClassNameOfPrimitiveArray(type));
+            }
+        }
+    }
+
+    void set(@NonNull Heap heap, long id, long classId, int stackSerial,
+            @Nullable Type arrayType, int length, long valuesOffset) {
+        mHeap = heap;
+        mId = id;
+        mClassId = classId;
+        mStackSerial = stackSerial;
+        mArrayType = arrayType;
+        mLength = length;
+        mValuesOffset = valuesOffset;
+    }
+
+    @NonNull
+    public Heap getHeap() {
+        return mHeap;
+    }
+
+    public long getId() {
+        return mId;
+    }
+
+    @Nullable
+    public ClassObj getClassObj() {
+        if (mArrayType != null && mArrayType != Type.OBJECT) {
+            return mPrimitiveArrayClasses[mArrayType.getTypeId()];
+        }
+        return mSnapshot.findClass(mClassId);
+    }
+
+    /**
+     * Returns the element type for arrays, or null for class instances.
+     */
+    @Nullable
+    public Type getArrayType() {
+        return mArrayType;
+    }
+
+    /**
+     * Returns the number of elements of arrays, or 0 for class instances.
+     */
+    public int getLength() {
+        return mLength;
+    }
+
+    public int getSize() {
+        if (mArrayType == null) {
+            ClassObj classObj = getClassObj();
+            return classObj == null ? 0 : classObj.getInstanceSize();
+        }
+        return mLength * mSnapshot.getTypeSize(mArrayType);
+    }
+
+    /**
+     * Decodes this record into an {@link Instance} that is not part of the snapshot. References
+     * to other instances can't be resolved and read as null, but primitive values, array
+     * elements and the like can be read for as long as the snapshot's buffer is not disposed.
+     */
+    @NonNull
+    public Instance createInstance() {
+        StackTrace stack = mSnapshot.getStackTrace(mStackSerial);
+        Instance instance;
+        if (mArrayType == null) {
+            instance = new ClassInstance(mId, stack, mValuesOffset);
+        } else {
+            instance = new ArrayInstance(mId, stack, mArrayType, mLength, mValuesOffset);
+        }
+        if (mArrayType == null || mArrayType == Type.OBJECT) {
+            instance.setClassId(mClassId);
+        }
+        instance.setHeap(mHeap);
+        instance.setSize(getSize());
+        return instance;
+    }
+}
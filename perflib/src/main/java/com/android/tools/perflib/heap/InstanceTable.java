@@ -0,0 +1,321 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+
+import java.util.Arrays;
+
+import gnu.trove.TIntObjectHashMap;
+import gnu.trove.TLongIntHashMap;
+
+/**
+ * Columnar storage for the objects of a compact {@link Snapshot}.
+ *
+ * Instead of keeping one {@link Instance} per object in the hprof file, every object is described
+ * by a row index into a set of primitive arrays (id, class id, heap, stack, size, etc). The
+ * {@link Instance} objects needed by the query APIs are only created on demand through
+ * {@link #getInstance(int)} and are cached for the lifetime of the snapshot, so identity
+ * comparisons keep working.
+ *
+ * Classes are stored as rows too (see {@link #KIND_CLASS}), which gives every object of the heap
+ * graph a dense index in [0, size()). That index is used by {@link ReferenceGraph}.
+ */
+public final class InstanceTable {
+    public static final byte KIND_CLASS = 0;
+
+    public static final byte KIND_CLASS_INSTANCE = 1;
+
+    public static final byte KIND_OBJECT_ARRAY = 2;
+
+    // Primitive arrays are stored as KIND_PRIMITIVE_ARRAY + the hprof type id of the elements.
+    public static final byte KIND_PRIMITIVE_ARRAY = 16;
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    @NonNull
+    private final Snapshot mSnapshot;
+
+    private int mSize;
+
+    @NonNull
+    private long[] mIds = new long[INITIAL_CAPACITY];
+
+    @NonNull
+    private long[] mClassIds = new long[INITIAL_CAPACITY];
+
+    @NonNull
+    private long[] mValuesOffsets = new long[INITIAL_CAPACITY];
+
+    //  Number of elements for arrays, unused for other kinds.
+    @NonNull
+    private int[] mLengths = new int[INITIAL_CAPACITY];
+
+    @NonNull
+    private int[] mStackSerials = new int[INITIAL_CAPACITY];
+
+    //  Shallow sizes, only valid after resolveSizes().
+    @NonNull
+    private int[] mSizes = new int[INITIAL_CAPACITY];
+
+    @NonNull
+    private byte[] mKinds = new byte[INITIAL_CAPACITY];
+
+    //  Index of the heap in Snapshot.mHeaps.
+    @NonNull
+    private byte[] mHeapIndices = new byte[INITIAL_CAPACITY];
+
+    @NonNull
+    private final TLongIntHashMap mIndexById = new TLongIntHashMap();
+
+    //  Rows of the instances (but not classes) of each heap, built on first use.
+    @Nullable
+    private int[][] mHeapRows;
+
+    //  Instances that have been handed out through getInstance(int).
+    @NonNull
+    private final TIntObjectHashMap<Instance> mMaterialized = new TIntObjectHashMap<Instance>();
+
+    InstanceTable(@NonNull Snapshot snapshot) {
+        mSnapshot = snapshot;
+    }
+
+    /**
+     * Adds a new row, and returns its index.
+     *
+     * As with {@link Heap#addInstance(long, Instance)}, an object with the same id as an earlier
+     * one of the same heap replaces it, reusing its row.
+     */
+    int add(long id, byte kind, long classId, int heapIndex, int stackSerial, int length,
+            long valuesOffset) {
+        int index = indexOf(id);
+        if (index < 0 || mHeapIndices[index] != heapIndex
+                || (mKinds[index] == KIND_CLASS) != (kind == KIND_CLASS)) {
+            if (mSize == mIds.length) {
+                grow();
+            }
+            index = mSize++;
+        }
+        mIds[index] = id;
+        mKinds[index] = kind;
+        mClassIds[index] = classId;
+        mHeapIndices[index] = (byte) heapIndex;
+        mStackSerials[index] = stackSerial;
+        mLengths[index] = length;
+        mValuesOffsets[index] = valuesOffset;
+
+        mIndexById.put(id, index);
+        mHeapRows = null;
+        return index;
+    }
+
+    private void grow() {
+        int capacity = mIds.length + (mIds.length >> 1);
+        mIds = Arrays.copyOf(mIds, capacity);
+        mClassIds = Arrays.copyOf(mClassIds, capacity);
+        mValuesOffsets = Arrays.copyOf(mValuesOffsets, capacity);
+        mLengths = Arrays.copyOf(mLengths, capacity);
+        mStackSerials = Arrays.copyOf(mStackSerials, capacity);
+        mSizes = Arrays.copyOf(mSizes, capacity);
+        mKinds = Arrays.copyOf(mKinds, capacity);
+        mHeapIndices = Arrays.copyOf(mHeapIndices, capacity);
+    }
+
+    /**
+     * Releases the slack left by the growth strategy, once parsing is done.
+     */
+    void trimToSize() {
+        mIds = Arrays.copyOf(mIds, mSize);
+        mClassIds = Arrays.copyOf(mClassIds, mSize);
+        mValuesOffsets = Arrays.copyOf(mValuesOffsets, mSize);
+        mLengths = Arrays.copyOf(mLengths, mSize);
+        mStackSerials = Arrays.copyOf(mStackSerials, mSize);
+        mSizes = Arrays.copyOf(mSizes, mSize);
+        mKinds = Arrays.copyOf(mKinds, mSize);
+        mHeapIndices = Arrays.copyOf(mHeapIndices, mSize);
+    }
+
+    /**
+     * Computes the shallow size of every row. Must be called after all classes have been loaded.
+     */
+    void resolveSizes() {
+        int idSize = mSnapshot.getTypeSize(Type.OBJECT);
+        for (int i = 0; i < mSize; i++) {
+            switch (mKinds[i]) {
+                case KIND_CLASS:
+                    ClassObj classObj = mSnapshot.findClass(mIds[i]);
+                    mSizes[i] = classObj == null ? 0 : classObj.getSize();
+                    break;
+                case KIND_CLASS_INSTANCE:
+                    ClassObj instanceClass = mSnapshot.findClass(mClassIds[i]);
+                    mSizes[i] = instanceClass == null ? 0 : instanceClass.getInstanceSize();
+                    break;
+                case KIND_OBJECT_ARRAY:
+                    mSizes[i] = mLengths[i] * idSize;
+                    break;
+                default:
+                    mSizes[i] = mLengths[i] * mSnapshot.getTypeSize(getArrayType(i));
+                    break;
+            }
+        }
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Returns the row index of the object with the given id, or -1 if there is no such object.
+     */
+    public int indexOf(long id) {
+        return mIndexById.containsKey(id) ? mIndexById.get(id) : -1;
+    }
+
+    /**
+     * Returns the rows of the instances of the heap at the given index of the snapshot, in
+     * increasing order. Classes are not included.
+     */
+    @NonNull
+    synchronized int[] getHeapRows(int heapIndex) {
+        if (mHeapRows == null) {
+            int heapCount = mSnapshot.mHeaps.size();
+            int[] counts = new int[heapCount];
+            for (int i = 0; i < mSize; i++) {
+                if (mKinds[i] != KIND_CLASS) {
+                    counts[mHeapIndices[i]]++;
+                }
+            }
+            int[][] heapRows = new int[heapCount][];
+            for (int heap = 0; heap < heapCount; heap++) {
+                heapRows[heap] = new int[counts[heap]];
+                counts[heap] = 0;
+            }
+            for (int i = 0; i < mSize; i++) {
+                if (mKinds[i] != KIND_CLASS) {
+                    heapRows[mHeapIndices[i]][counts[mHeapIndices[i]]++] = i;
+                }
+            }
+            mHeapRows = heapRows;
+        }
+        return heapIndex < mHeapRows.length ? mHeapRows[heapIndex] : new int[0];
+    }
+
+    public long getId(int index) {
+        return mIds[index];
+    }
+
+    public byte getKind(int index) {
+        return mKinds[index];
+    }
+
+    public boolean isClass(int index) {
+        return mKinds[index] == KIND_CLASS;
+    }
+
+    /**
+     * Returns the id of the class of the object at the given row. For primitive arrays this is 0,
+     * as the hprof format does not record it.
+     */
+    public long getClassId(int index) {
+        return mClassIds[index];
+    }
+
+    public int getSize(int index) {
+        return mSizes[index];
+    }
+
+    public int getLength(int index) {
+        return mLengths[index];
+    }
+
+    public int getHeapIndex(int index) {
+        return mHeapIndices[index];
+    }
+
+    public int getStackSerial(int index) {
+        return mStackSerials[index];
+    }
+
+    long getValuesOffset(int index) {
+        return mValuesOffsets[index];
+    }
+
+    @Nullable
+    public Type getArrayType(int index) {
+        byte kind = mKinds[index];
+        if (kind == KIND_OBJECT_ARRAY) {
+            return Type.OBJECT;
+        } else if (kind >= KIND_PRIMITIVE_ARRAY) {
+            return Type.getType(kind - KIND_PRIMITIVE_ARRAY);
+        }
+        return null;
+    }
+
+    /**
+     * Returns the {@link Instance} for the given row, creating it if needed.
+     */
+    @Nullable
+    public synchronized Instance getInstance(int index) {
+        if (mKinds[index] == KIND_CLASS) {
+            return mSnapshot.findClass(mIds[index]);
+        }
+
+        Instance instance = mMaterialized.get(index);
+        if (instance == null) {
+            instance = materialize(index);
+            mMaterialized.put(index, instance);
+        }
+        return instance;
+    }
+
+    /**
+     * Returns the {@link Instance} with the given id, or null if there is no such object.
+     */
+    @Nullable
+    public Instance findInstance(long id) {
+        int index = indexOf(id);
+        return index < 0 ? null : getInstance(index);
+    }
+
+    /**
+     * Returns the number of instances that have been created so far through
+     * {@link #getInstance(int)}.
+     */
+    public int getMaterializedCount() {
+        return mMaterialized.size();
+    }
+
+    @NonNull
+    private Instance materialize(int index) {
+        StackTrace stack = mSnapshot.getStackTrace(mStackSerials[index]);
+        Instance instance;
+        if (mKinds[index] == KIND_CLASS_INSTANCE) {
+            instance = new ClassInstance(mIds[index], stack, mValuesOffsets[index]);
+        } else {
+            Type type = getArrayType(index);
+            assert type != null;
+            instance = new ArrayInstance(mIds[index], stack, type, mLengths[index],
+                    mValuesOffsets[index]);
+        }
+        instance.setClassId(mClassIds[index]);
+        instance.setHeap(mSnapshot.mHeaps.get(mHeapIndices[index]));
+        instance.setSize(mSizes[index]);
+        instance.mRow = index;
+        return instance;
+    }
+}
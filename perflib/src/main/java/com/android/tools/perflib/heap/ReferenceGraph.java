@@ -0,0 +1,321 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.tools.perflib.captures.DataBuffer;
+
+import java.util.Arrays;
+
+import gnu.trove.TIntArrayList;
+import gnu.trove.TIntHashSet;
+
+/**
+ * The hard references between the objects of an {@link InstanceTable}, stored in compressed sparse
+ * row form: the forward references of node {@code n} are
+ * {@code getForwardTarget(getForwardStart(n)) .. getForwardTarget(getForwardEnd(n) - 1)}, and
+ * likewise for the reverse references.
+ *
+ * References are decoded straight from the hprof buffer, so building the graph never creates
+ * {@link Instance} objects. As with {@link Instance#resolveReferences()}, the referent of a soft
+ * reference is not a hard reference; it is recorded separately in {@link #getSoftReferent(int)}.
+ * Duplicate edges and self references are removed.
+ */
+public final class ReferenceGraph {
+    @NonNull
+    private final InstanceTable mTable;
+
+    @NonNull
+    private final int[] mForwardOffsets;
+
+    @NonNull
+    private final int[] mForwardTargets;
+
+    @NonNull
+    private final int[] mReverseOffsets;
+
+    @NonNull
+    private final int[] mReverseSources;
+
+    //  Target of the "referent" field of soft reference instances, or -1.
+    @NonNull
+    private final int[] mSoftReferents;
+
+    //  Nodes directly referenced by a GC root, without duplicates.
+    @NonNull
+    private final int[] mRoots;
+
+    //  Soft references to every node, built when first needed since only few nodes have any.
+    @Nullable
+    private int[] mSoftReverseOffsets;
+
+    @Nullable
+    private int[] mSoftReverseSources;
+
+    ReferenceGraph(@NonNull InstanceTable table, @NonNull int[] forwardOffsets,
+            @NonNull int[] forwardTargets, @NonNull int[] softReferents, @NonNull int[] roots) {
+        mTable = table;
+        mForwardOffsets = forwardOffsets;
+        mForwardTargets = forwardTargets;
+        mSoftReferents = softReferents;
+        mRoots = roots;
+
+        int nodeCount = table.size();
+        mReverseOffsets = new int[nodeCount + 1];
+        for (int target : forwardTargets) {
+            mReverseOffsets[target + 1]++;
+        }
+        for (int i = 0; i < nodeCount; i++) {
+            mReverseOffsets[i + 1] += mReverseOffsets[i];
+        }
+        mReverseSources = new int[forwardTargets.length];
+        int[] fill = Arrays.copyOf(mReverseOffsets, nodeCount);
+        for (int source = 0; source < nodeCount; source++) {
+            for (int edge = forwardOffsets[source]; edge < forwardOffsets[source + 1]; edge++) {
+                mReverseSources[fill[forwardTargets[edge]]++] = source;
+            }
+        }
+    }
+
+    /**
+     * Decodes the references of every object of the snapshot's instance table.
+     */
+    @NonNull
+    static ReferenceGraph build(@NonNull Snapshot snapshot, @NonNull InstanceTable table) {
+        int nodeCount = table.size();
+        int[] forwardOffsets = new int[nodeCount + 1];
+        int[] softReferents = new int[nodeCount];
+        Arrays.fill(softReferents, -1);
+        TIntArrayList targets = new TIntArrayList(nodeCount);
+        TIntHashSet dedupe = new TIntHashSet();
+        EdgeReader reader = new EdgeReader(snapshot, table);
+
+        for (int node = 0; node < nodeCount; node++) {
+            forwardOffsets[node] = targets.size();
+            dedupe.clear();
+            reader.readReferences(node, targets, dedupe, softReferents);
+        }
+        forwardOffsets[nodeCount] = targets.size();
+
+        TIntHashSet rootSet = new TIntHashSet();
+        TIntArrayList roots = new TIntArrayList();
+        for (RootObj root : snapshot.getGCRoots()) {
+            int node = table.indexOf(root.getId());
+            if (node >= 0 && rootSet.add(node)) {
+                roots.add(node);
+            }
+        }
+
+        return new ReferenceGraph(table, forwardOffsets, targets.toNativeArray(), softReferents,
+                roots.toNativeArray());
+    }
+
+    @NonNull
+    public InstanceTable getInstanceTable() {
+        return mTable;
+    }
+
+    public int getNodeCount() {
+        return mTable.size();
+    }
+
+    public int getEdgeCount() {
+        return mForwardTargets.length;
+    }
+
+    public int getForwardStart(int node) {
+        return mForwardOffsets[node];
+    }
+
+    public int getForwardEnd(int node) {
+        return mForwardOffsets[node + 1];
+    }
+
+    public int getForwardTarget(int edge) {
+        return mForwardTargets[edge];
+    }
+
+    public int getReverseStart(int node) {
+        return mReverseOffsets[node];
+    }
+
+    public int getReverseEnd(int node) {
+        return mReverseOffsets[node + 1];
+    }
+
+    public int getReverseSource(int edge) {
+        return mReverseSources[edge];
+    }
+
+    /**
+     * Returns the node referenced by the "referent" field of the given soft reference, or -1.
+     */
+    public int getSoftReferent(int node) {
+        return mSoftReferents[node];
+    }
+
+    @NonNull
+    public int[] getRoots() {
+        return mRoots;
+    }
+
+    /**
+     * Returns the nodes holding a soft reference to the given node.
+     */
+    @NonNull
+    public synchronized int[] getSoftReverseSources(int node) {
+        if (mSoftReverseOffsets == null) {
+            int nodeCount = mTable.size();
+            int[] offsets = new int[nodeCount + 1];
+            int count = 0;
+            for (int referent : mSoftReferents) {
+                if (referent >= 0) {
+                    offsets[referent + 1]++;
+                    count++;
+                }
+            }
+            for (int i = 0; i < nodeCount; i++) {
+                offsets[i + 1] += offsets[i];
+            }
+            int[] sources = new int[count];
+            int[] fill = Arrays.copyOf(offsets, nodeCount);
+            for (int source = 0; source < nodeCount; source++) {
+                int referent = mSoftReferents[source];
+                if (referent >= 0) {
+                    sources[fill[referent]++] = source;
+                }
+            }
+            mSoftReverseOffsets = offsets;
+            mSoftReverseSources = sources;
+        }
+        return Arrays.copyOfRange(mSoftReverseSources, mSoftReverseOffsets[node],
+                mSoftReverseOffsets[node + 1]);
+    }
+
+    /**
+     * Reads object ids out of the hprof buffer for one node at a time, through a view of the
+     * buffer so that instances can be materialized from the snapshot meanwhile.
+     */
+    private static final class EdgeReader {
+        @NonNull
+        private final Snapshot mSnapshot;
+
+        @NonNull
+        private final InstanceTable mTable;
+
+        @NonNull
+        private final DataBuffer mBuffer;
+
+        private final int mIdSize;
+
+        EdgeReader(@NonNull Snapshot snapshot, @NonNull InstanceTable table) {
+            mSnapshot = snapshot;
+            mTable = table;
+            mBuffer = snapshot.createBufferView();
+            mIdSize = snapshot.getTypeSize(Type.OBJECT);
+        }
+
+        void readReferences(int node, @NonNull TIntArrayList targets, @NonNull TIntHashSet dedupe,
+                @NonNull int[] softReferents) {
+            switch (mTable.getKind(node)) {
+                case InstanceTable.KIND_CLASS:
+                    readStaticFields(node, targets, dedupe);
+                    break;
+                case InstanceTable.KIND_CLASS_INSTANCE:
+                    readInstanceFields(node, targets, dedupe, softReferents);
+                    break;
+                case InstanceTable.KIND_OBJECT_ARRAY:
+                    mBuffer.setPosition(mTable.getValuesOffset(node));
+                    for (int i = mTable.getLength(node); i > 0; i--) {
+                        addTarget(node, readId(), targets, dedupe);
+                    }
+                    break;
+                default:
+                    // Primitive arrays don't reference anything.
+                    break;
+            }
+        }
+
+        private void readStaticFields(int node, @NonNull TIntArrayList targets,
+                @NonNull TIntHashSet dedupe) {
+            ClassObj classObj = mSnapshot.findClass(mTable.getId(node));
+            if (classObj == null) {
+                return;
+            }
+            mBuffer.setPosition(classObj.getStaticFieldsOffset());
+            int numEntries = mBuffer.readShort() & 0xffff;
+            for (int i = 0; i < numEntries; i++) {
+                readId(); // Field name.
+                Type type = Type.getType(mBuffer.readByte() & 0xff);
+                if (type == Type.OBJECT) {
+                    addTarget(node, readId(), targets, dedupe);
+                } else {
+                    skip(mSnapshot.getTypeSize(type));
+                }
+            }
+        }
+
+        private void readInstanceFields(int node, @NonNull TIntArrayList targets,
+                @NonNull TIntHashSet dedupe, @NonNull int[] softReferents) {
+            ClassObj classObj = mSnapshot.findClass(mTable.getClassId(node));
+            boolean isSoftReference = classObj != null && classObj.getIsSoftReference();
+            mBuffer.setPosition(mTable.getValuesOffset(node));
+            for (ClassObj clazz = classObj; clazz != null; clazz = clazz.getSuperClassObj()) {
+                for (Field field : clazz.getFields()) {
+                    if (field.getType() != Type.OBJECT) {
+                        skip(mSnapshot.getTypeSize(field.getType()));
+                        continue;
+                    }
+                    long id = readId();
+                    if (isSoftReference && "referent".equals(field.getName())) {
+                        softReferents[node] = mTable.indexOf(id);
+                    } else {
+                        addTarget(node, id, targets, dedupe);
+                    }
+                }
+            }
+        }
+
+        private void addTarget(int node, long id, @NonNull TIntArrayList targets,
+                @NonNull TIntHashSet dedupe) {
+            int target = mTable.indexOf(id);
+            if (target >= 0 && target != node && dedupe.add(target)) {
+                targets.add(target);
+            }
+        }
+
+        private long readId() {
+            // As long as we don't interpret IDs, reading signed values here is fine.
+            switch (mIdSize) {
+                case 1:
+                    return mBuffer.readByte();
+                case 2:
+                    return mBuffer.readShort();
+                case 4:
+                    return mBuffer.readInt();
+                case 8:
+                    return mBuffer.readLong();
+            }
+            return 0;
+        }
+
+        private void skip(int numBytes) {
+            mBuffer.setPosition(mBuffer.position() + numBytes);
+        }
+    }
+}
@@ -21,18 +21,25 @@ import com.android.annotations.Nullable;
 import com.android.annotations.VisibleForTesting;
 import com.android.tools.perflib.analyzer.Capture;
 import com.android.tools.perflib.captures.DataBuffer;
+import com.android.tools.perflib.captures.MemoryMappedFileBuffer;
+import com.android.tools.perflib.heap.analysis.CompactDominators;
 import com.android.tools.perflib.heap.analysis.ComputationProgress;
 import com.android.tools.perflib.heap.analysis.DominatorsBase;
-import com.android.tools.perflib.heap.analysis.LinkEvalDominators;
+import com.android.tools.perflib.heap.analysis.ParallelDominators;
 import com.android.tools.perflib.heap.analysis.ShortestDistanceVisitor;
 import com.android.tools.perflib.heap.analysis.TopologicalSort;
+import com.android.tools.perflib.heap.io.InMemoryBuffer;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 
 import gnu.trove.THashSet;
+import gnu.trove.TIntArrayList;
 import gnu.trove.TIntObjectHashMap;
 import gnu.trove.TLongObjectHashMap;
 import gnu.trove.TObjectProcedure;
@@ -119,10 +126,52 @@ public class Snapshot extends Capture {
 
     private long mIdSizeMask = 0x00000000ffffffffL;
 
+    //  Columnar storage of all objects, only used by compact snapshots.
+    @Nullable
+    private final InstanceTable mInstanceTable;
+
+    @Nullable
+    private volatile ReferenceGraph mReferenceGraph;
+
+    private final Object mReferenceGraphLock = new Object();
+
+    //  Analysis results of compact snapshots, set once complete, and the computation in progress.
+    @Nullable
+    private volatile CompactDominators mCompactDominators;
+
+    @Nullable
+    private volatile CompactDominators mComputingDominators;
+
+    //  The hprof file and its analysis index, for snapshots created from a file.
+    @Nullable
+    private File mHprofFile;
+
+    @Nullable
+    private HprofIndex mIndex;
+
+    //  Set when dominators were restored from the index without resolving references, which then
+    //  happens when references are first asked for.
+    private volatile boolean mReferencesPending;
+
+    private boolean mResolvingReferences;
+
     @NonNull
     public static Snapshot createSnapshot(@NonNull DataBuffer buffer) {
+        return createSnapshot(buffer, false);
+    }
+
+    /**
+     * Parses the given hprof buffer.
+     *
+     * @param compact if true, objects are kept in an {@link InstanceTable} instead of one
+     *                {@link Instance} per object, and instances are only created when they are
+     *                queried. This trades some query speed for a much lower memory footprint on
+     *                large heap dumps.
+     */
+    @NonNull
+    public static Snapshot createSnapshot(@NonNull DataBuffer buffer, boolean compact) {
         try {
-            Snapshot snapshot = new Snapshot(buffer);
+            Snapshot snapshot = new Snapshot(buffer, compact);
             HprofParser.parseBuffer(snapshot, buffer);
             return snapshot;
         } catch (RuntimeException e) {
@@ -131,14 +180,70 @@ public class Snapshot extends Capture {
         }
     }
 
+    /**
+     * Parses the given hprof file. Results of {@link #computeDominators()} are cached in a sidecar
+     * file next to it (see {@link HprofIndex}), so that analyzing the same dump again skips the
+     * expensive steps.
+     */
+    @NonNull
+    public static Snapshot createSnapshot(@NonNull File hprofFile, boolean compact)
+            throws IOException {
+        HprofIndex index = HprofIndex.open(hprofFile);
+        boolean parsed = false;
+        try {
+            Snapshot snapshot = createSnapshot(new MemoryMappedFileBuffer(hprofFile), compact);
+            snapshot.mHprofFile = hprofFile;
+            snapshot.mIndex = index;
+            parsed = true;
+            return snapshot;
+        } finally {
+            if (!parsed) {
+                index.dispose();
+            }
+        }
+    }
+
+    /**
+     * Parses only the classes of the given buffer, so that the memory used is bounded by the
+     * number of classes rather than by the number of instances. The returned snapshot has no
+     * instances and no roots; instances can be streamed with {@link #visitInstances(HprofVisitor)}.
+     */
+    @NonNull
+    public static Snapshot createClassSnapshot(@NonNull DataBuffer buffer) {
+        try {
+            Snapshot snapshot = new Snapshot(buffer, false);
+            HprofParser.parseClasses(snapshot, buffer);
+            return snapshot;
+        } catch (RuntimeException e) {
+            buffer.dispose();
+            throw e;
+        }
+    }
+
     @VisibleForTesting
     public Snapshot(@NonNull DataBuffer buffer) {
+        this(buffer, false);
+    }
+
+    private Snapshot(@NonNull DataBuffer buffer, boolean compact) {
         mBuffer = buffer;
+        mInstanceTable = compact ? new InstanceTable(this) : null;
         setToDefaultHeap();
     }
 
     public void dispose() {
         mBuffer.dispose();
+        if (mIndex != null) {
+            mIndex.dispose();
+        }
+    }
+
+    /**
+     * Parses the buffer again, handing every instance to the visitor as it is decoded. Instances
+     * are not added to the snapshot.
+     */
+    public void visitInstances(@NonNull HprofVisitor visitor) {
+        HprofParser.visitInstances(this, mBuffer, visitor);
     }
 
     @NonNull
@@ -146,6 +251,22 @@ public class Snapshot extends Capture {
         return mBuffer;
     }
 
+    /**
+     * Returns a view of the buffer with its own position, so that it can be read while other
+     * threads read the snapshot, e.g. to materialize instances. Buffers of other types than the
+     * ones of perflib cannot be duplicated, they are returned as is.
+     */
+    @NonNull
+    DataBuffer createBufferView() {
+        if (mBuffer instanceof MemoryMappedFileBuffer) {
+            return ((MemoryMappedFileBuffer) mBuffer).duplicate();
+        }
+        if (mBuffer instanceof InMemoryBuffer) {
+            return ((InMemoryBuffer) mBuffer).duplicate();
+        }
+        return mBuffer;
+    }
+
     @NonNull
     public Heap setToDefaultHeap() {
         return setHeapTo(DEFAULT_HEAP_ID, "default");
@@ -272,9 +393,151 @@ public class Snapshot extends Capture {
         instance.setHeap(mCurrentHeap);
     }
 
+    /**
+     * Records an object of a compact snapshot, without creating an {@link Instance} for it.
+     *
+     * @param arrayType the element type for arrays, or null for class instances
+     */
+    final void addInstanceRow(long id, long classId, int stackSerial, @Nullable Type arrayType,
+            int length, long valuesOffset) {
+        assert mInstanceTable != null;
+        byte kind;
+        if (arrayType == null) {
+            kind = InstanceTable.KIND_CLASS_INSTANCE;
+        } else if (arrayType == Type.OBJECT) {
+            kind = InstanceTable.KIND_OBJECT_ARRAY;
+        } else {
+            kind = (byte) (InstanceTable.KIND_PRIMITIVE_ARRAY + arrayType.getTypeId());
+        }
+        mInstanceTable.add(id, kind, classId, getHeapIndex(mCurrentHeap), stackSerial, length,
+                valuesOffset);
+    }
+
     public final void addClass(long id, @NonNull ClassObj theClass) {
         mCurrentHeap.addClass(id, theClass);
         theClass.setHeap(mCurrentHeap);
+        if (mInstanceTable != null) {
+            theClass.mRow = mInstanceTable.add(id, InstanceTable.KIND_CLASS, 0,
+                    getHeapIndex(mCurrentHeap), 0, 0, 0);
+        }
+    }
+
+    public boolean isCompact() {
+        return mInstanceTable != null;
+    }
+
+    /**
+     * Returns the columnar object storage of a compact snapshot, or null for regular snapshots.
+     */
+    @Nullable
+    public InstanceTable getInstanceTable() {
+        return mInstanceTable;
+    }
+
+    /**
+     * Returns the hard references between all objects of a compact snapshot, computing them on
+     * first use. Threads asking for the graph while it is computed wait for it.
+     */
+    @NonNull
+    public ReferenceGraph getReferenceGraph() {
+        if (mInstanceTable == null) {
+            throw new IllegalStateException("Reference graphs require a compact snapshot");
+        }
+        ReferenceGraph graph = mReferenceGraph;
+        if (graph != null) {
+            return graph;
+        }
+        synchronized (mReferenceGraphLock) {
+            graph = mReferenceGraph;
+            if (graph == null && mIndex != null) {
+                graph = mIndex.restoreReferenceGraph(mInstanceTable);
+            }
+            if (graph == null) {
+                graph = ReferenceGraph.build(this, mInstanceTable);
+            }
+            mReferenceGraph = graph;
+            return graph;
+        }
+    }
+
+    @Nullable
+    ReferenceGraph getCachedReferenceGraph() {
+        return mReferenceGraph;
+    }
+
+    /**
+     * Returns the analysis results of a compact snapshot once {@link #computeDominators()} is
+     * done, or null.
+     */
+    @Nullable
+    public CompactDominators getCompactDominators() {
+        return mCompactDominators;
+    }
+
+    /**
+     * Returns the object at the given row of the instance table, or the sentinel root and null
+     * for {@link CompactDominators#SENTINEL_ROOT} and {@link CompactDominators#NONE}.
+     */
+    @Nullable
+    Instance getInstanceForRow(int row) {
+        if (row == CompactDominators.SENTINEL_ROOT) {
+            return SENTINEL_ROOT;
+        }
+        assert mInstanceTable != null;
+        return row == CompactDominators.NONE ? null : mInstanceTable.getInstance(row);
+    }
+
+    /**
+     * Resolves the references of all instances if that was skipped when restoring the analysis
+     * from the index.
+     */
+    void resolvePendingReferences() {
+        if (!mReferencesPending) {
+            return;
+        }
+        synchronized (this) {
+            // Resolving references reads them back from instances on the same thread.
+            if (!mReferencesPending || mResolvingReferences) {
+                return;
+            }
+            mResolvingReferences = true;
+            try {
+                resolveReferences();
+                compactMemory();
+                for (Instance instance : mTopSort) {
+                    instance.dedupeReferences();
+                }
+            } finally {
+                mResolvingReferences = false;
+                mReferencesPending = false;
+            }
+        }
+    }
+
+    /**
+     * Fills in the references of an object of a compact snapshot from the reference graph.
+     */
+    void loadReferences(@NonNull Instance instance, int row) {
+        ReferenceGraph graph = getReferenceGraph();
+        for (int edge = graph.getForwardStart(row); edge < graph.getForwardEnd(row); edge++) {
+            instance.mHardForwardReferences.add(getInstanceForRow(graph.getForwardTarget(edge)));
+        }
+        instance.mHardForwardReferences.trimToSize();
+        for (int edge = graph.getReverseStart(row); edge < graph.getReverseEnd(row); edge++) {
+            instance.mHardReverseReferences.add(getInstanceForRow(graph.getReverseSource(edge)));
+        }
+        instance.mHardReverseReferences.trimToSize();
+        int referent = graph.getSoftReferent(row);
+        if (referent >= 0) {
+            instance.mSoftForwardReference = getInstanceForRow(referent);
+        }
+        int[] softSources = graph.getSoftReverseSources(row);
+        if (softSources.length > 0) {
+            instance.mSoftReverseReferences = new ArrayList<Instance>(softSources.length);
+            for (int source : softSources) {
+                instance.mSoftReverseReferences.add(getInstanceForRow(source));
+            }
+        }
     }
 
     @Nullable
@@ -364,6 +627,11 @@ public class Snapshot extends Capture {
                 classObj.setSize(classSize);
             }
 
+            if (mInstanceTable != null) {
+                // Instances of compact snapshots are registered in resolveInstanceRows().
+                continue;
+            }
+
             final int heapId = heap.getId();
             heap.forEachInstance(new TObjectProcedure<Instance>() {
                 @Override
@@ -376,6 +644,39 @@ public class Snapshot extends Capture {
                 }
             });
         }
+
+        if (mInstanceTable != null) {
+            resolveInstanceRows();
+        }
+    }
+
+    private void resolveInstanceRows() {
+        InstanceTable table = mInstanceTable;
+        assert table != null;
+        table.trimToSize();
+        table.resolveSizes();
+
+        ClassObj[] primitiveArrayClasses = new ClassObj[Type.LONG.getTypeId() + 1];
+        for (Type type : Type.values()) {
+            if (type != Type.OBJECT) {
+                primitiveArrayClasses[type.getTypeId()] = findClass(
+                        Type.getClassNameOfPrimitiveArray(type));
+            }
+        }
+
+        for (int row = 0; row < table.size(); row++) {
+            if (table.isClass(row)) {
+                continue;
+            }
+            Type arrayType = table.getArrayType(row);
+            ClassObj classObj = arrayType == null || arrayType == Type.OBJECT
+                    ? findClass(table.getClassId(row))
+                    : primitiveArrayClasses[arrayType.getTypeId()];
+            if (classObj != null) {
+                classObj.addInstanceRow(mHeaps.get(table.getHeapIndex(row)).getId(), row,
+                        table.getSize(row));
+            }
+        }
     }
 
     public void identifySoftReferences() {
@@ -388,6 +689,10 @@ public class Snapshot extends Capture {
     }
 
     public void resolveReferences() {
+        if (mInstanceTable != null) {
+            // Objects of compact snapshots load their references when first asked for them.
+            return;
+        }
         for (Heap heap : getHeaps()) {
             for (ClassObj clazz : heap.getClasses()) {
                 clazz.resolveReferences();
@@ -403,6 +708,9 @@ public class Snapshot extends Capture {
     }
 
     public void compactMemory() {
+        if (mInstanceTable != null) {
+            return;
+        }
         for (Heap heap : getHeaps()) {
             heap.forEachInstance(new TObjectProcedure<Instance>() {
                 @Override
@@ -425,8 +733,72 @@ public class Snapshot extends Capture {
     }
 
     public void computeDominators() {
+        if (mInstanceTable != null) {
+            computeCompactDominators();
+            return;
+        }
+        if (mDominators == null && mIndex != null && mIndex.isValid()) {
+            DominatorsBase indexedDominators = mIndex.restoreAnalysis(this);
+            if (indexedDominators != null) {
+                // Resolving the references of every instance is not needed to restore the
+                // analysis, so it is left for when references are first queried.
+                mReferencesPending = true;
+                doComputeDominators(indexedDominators);
+                return;
+            }
+        }
+
         prepareDominatorComputation();
-        doComputeDominators(new LinkEvalDominators(this));
+        doComputeDominators(new ParallelDominators(this));
+        writeIndex();
+    }
+
+    /**
+     * Computes the dominators of a compact snapshot on the rows of its {@link InstanceTable},
+     * without creating any {@link Instance}.
+     */
+    private void computeCompactDominators() {
+        if (mCompactDominators != null) {
+            return;
+        }
+
+        mDominatorComputationStage = DominatorComputationStage.RESOLVING_REFERENCES;
+        if (mIndex != null && mIndex.isValid()) {
+            CompactDominators indexedDominators = mIndex.restoreCompactAnalysis(this);
+            if (indexedDominators != null) {
+                mComputingDominators = indexedDominators;
+                mCompactDominators = indexedDominators;
+                mDominatorComputationStage = DominatorComputationStage.COMPUTING_RETAINED_SIZES;
+                return;
+            }
+        }
+        ReferenceGraph graph = getReferenceGraph();
+        CompactDominators dominators = new CompactDominators(this);
+        mComputingDominators = dominators;
+
+        mDominatorComputationStage = DominatorComputationStage.COMPUTING_SHORTEST_DISTANCE;
+        dominators.computeDistances(this, graph);
+
+        mDominatorComputationStage = DominatorComputationStage.COMPUTING_TOPOLOGICAL_SORT;
+        dominators.computeTopologicalOrder(graph);
+
+        mDominatorComputationStage = DominatorComputationStage.COMPUTING_DOMINATORS;
+        dominators.computeDominators(graph, Runtime.getRuntime().availableProcessors());
+
+        mDominatorComputationStage = DominatorComputationStage.COMPUTING_RETAINED_SIZES;
+        dominators.computeRetainedSizes();
+        mCompactDominators = dominators;
+        writeIndex();
+    }
+
+    private void writeIndex() {
+        if (mIndex != null && mHprofFile != null) {
+            try {
+                mIndex.write(this, mHprofFile);
+            } catch (IOException e) {
+                // The index is only a cache, the next analysis will recompute everything.
+            }
+        }
     }
 
     @VisibleForTesting
@@ -467,6 +839,10 @@ public class Snapshot extends Capture {
     @NonNull
     public ComputationProgress getComputationProgress() {
         if (mDominatorComputationStage == DominatorComputationStage.COMPUTING_DOMINATORS) {
+            CompactDominators compactDominators = mComputingDominators;
+            if (compactDominators != null) {
+                return compactDominators.getComputationProgress();
+            }
             return mDominators.getComputationProgress();
         } else {
             return mDominatorComputationStage.getInitialProgress();
@@ -477,8 +853,23 @@ public class Snapshot extends Capture {
         return mDominatorComputationStage;
     }
 
+    /**
+     * Returns the objects with an immediate dominator. For compact snapshots, the list creates
+     * instances as they are accessed.
+     */
     @NonNull
     public List<Instance> getReachableInstances() {
+        CompactDominators dominators = mCompactDominators;
+        if (dominators != null) {
+            TIntArrayList rows = new TIntArrayList(dominators.getReachableCount());
+            for (int order = 1; order <= dominators.getReachableCount(); order++) {
+                int row = dominators.getRow(order);
+                if (dominators.getImmediateDominator(row) != CompactDominators.NONE) {
+                    rows.add(row);
+                }
+            }
+            return getRowList(rows.toNativeArray());
+        }
         List<Instance> result = new ArrayList<Instance>(mTopSort.size());
         for (Instance node : mTopSort) {
             if (node.getImmediateDominator() != null) {
@@ -489,9 +880,42 @@ public class Snapshot extends Capture {
     }
 
     public List<Instance> getTopologicalOrdering() {
+        CompactDominators dominators = mCompactDominators;
+        if (dominators != null) {
+            int[] rows = new int[dominators.getReachableCount()];
+            for (int i = 0; i < rows.length; i++) {
+                rows[i] = dominators.getRow(i + 1);
+            }
+            return getRowList(rows);
+        }
         return mTopSort;
     }
 
+    /**
+     * Returns a list of the objects at the given rows of the instance table, which only creates
+     * instances as they are accessed.
+     */
+    @NonNull
+    private List<Instance> getRowList(@NonNull final int[] rows) {
+        final InstanceTable table = mInstanceTable;
+        assert table != null;
+        return new AbstractList<Instance>() {
+            @Override
+            public Instance get(int index) {
+                return table.getInstance(rows[index]);
+            }
+
+            @Override
+            public int size() {
+                return rows.length;
+            }
+        };
+    }
+
+    void setTopologicalOrdering(@NonNull List<Instance> topSort) {
+        mTopSort = topSort;
+    }
+
     public final void dumpInstanceCounts() {
         for (Heap heap : mHeaps) {
             System.out.println("+------------------ instance counts for heap: " + heap.getName());
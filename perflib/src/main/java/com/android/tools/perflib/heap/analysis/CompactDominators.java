@@ -0,0 +1,355 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.perflib.heap.analysis;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.tools.perflib.heap.ClassObj;
+import com.android.tools.perflib.heap.InstanceTable;
+import com.android.tools.perflib.heap.ReferenceGraph;
+import com.android.tools.perflib.heap.Snapshot;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+import gnu.trove.TIntStack;
+
+/**
+ * Distances to GC roots, dominators and retained sizes of the objects of a compact
+ * {@link Snapshot}, computed on its {@link ReferenceGraph} and identified by {@link InstanceTable}
+ * rows, so that no {@link com.android.tools.perflib.heap.Instance} is created.
+ *
+ * The results are the same as those of {@link ShortestDistanceVisitor}, {@link TopologicalSort}
+ * and {@link ParallelDominators} on a regular snapshot. Among several shortest paths to a GC root,
+ * the one recorded by {@link #getNextRowToGcRoot(int)} may differ.
+ */
+public final class CompactDominators {
+    /**
+     * Returned by {@link #getImmediateDominator(int)} for objects dominated by
+     * {@link Snapshot#SENTINEL_ROOT}.
+     */
+    public static final int SENTINEL_ROOT = -2;
+
+    public static final int NONE = -1;
+
+    @NonNull
+    private final InstanceTable mTable;
+
+    private final int mHeapCount;
+
+    //  Topological order of every row, or 0 for rows not reachable from GC roots.
+    @NonNull
+    private int[] mOrders;
+
+    //  Row of every reachable object, indexed by topological order. mRows[0] is the sentinel.
+    @NonNull
+    private int[] mRows;
+
+    //  Distance to GC roots and next row towards GC roots (or NONE), indexed by row.
+    @NonNull
+    private int[] mDistances;
+
+    @NonNull
+    private int[] mNextRows;
+
+    //  Immediate dominators, indexed by topological order.
+    @Nullable
+    private int[] mDominators;
+
+    //  Retained sizes indexed by heap, then by topological order. Null for empty heaps.
+    @Nullable
+    private long[][] mRetainedSizes;
+
+    @Nullable
+    private IterativeDominators mIterativeDominators;
+
+    @NonNull
+    private final ComputationProgress mProgress =
+            new ComputationProgress("Starting dominator computation", 0.0);
+
+    public CompactDominators(@NonNull Snapshot snapshot) {
+        InstanceTable table = snapshot.getInstanceTable();
+        if (table == null) {
+            throw new IllegalArgumentException("Compact dominators require a compact snapshot");
+        }
+        mTable = table;
+        mHeapCount = snapshot.getHeaps().size();
+        mOrders = new int[table.size()];
+        mRows = new int[1];
+        mDistances = new int[table.size()];
+        Arrays.fill(mDistances, Integer.MAX_VALUE);
+        mNextRows = new int[table.size()];
+        Arrays.fill(mNextRows, NONE);
+    }
+
+    /**
+     * Creates dominators from results computed earlier, for example read back from an index.
+     *
+     * @param rows the row of every reachable object in topological order, starting at index 1
+     * @param dominators the immediate dominator of every reachable object, as a topological order
+     * @param distances the distance to GC roots of every row
+     * @param nextRows the next row towards GC roots of every row, or {@link #NONE}
+     * @param retainedSizes the retained sizes of every reachable object for each heap, indexed by
+     *                      topological order, or null for heaps without any reachable object
+     */
+    @NonNull
+    public static CompactDominators restore(@NonNull Snapshot snapshot, @NonNull int[] rows,
+            @NonNull int[] dominators, @NonNull int[] distances, @NonNull int[] nextRows,
+            @NonNull long[][] retainedSizes) {
+        CompactDominators result = new CompactDominators(snapshot);
+        result.mRows = rows;
+        for (int order = 1; order < rows.length; order++) {
+            result.mOrders[rows[order]] = order;
+        }
+        result.mDominators = dominators;
+        result.mDistances = distances;
+        result.mNextRows = nextRows;
+        result.mRetainedSizes = retainedSizes;
+        result.mProgress.setProgress(1.0);
+        return result;
+    }
+
+    /**
+     * Computes the distance of every object to the GC roots, with a breadth-first search.
+     */
+    public void computeDistances(@NonNull Snapshot snapshot, @NonNull ReferenceGraph graph) {
+        int[] queue = new int[mTable.size()];
+        int head = 0;
+        int tail = 0;
+        for (int root : graph.getRoots()) {
+            if (mDistances[root] != 0) {
+                mDistances[root] = 0;
+                queue[tail++] = root;
+            }
+        }
+
+        while (head < tail) {
+            int node = queue[head++];
+            int distance = mDistances[node] + 1;
+            for (int edge = graph.getForwardStart(node); edge < graph.getForwardEnd(node);
+                    edge++) {
+                int child = graph.getForwardTarget(edge);
+                if (distance < mDistances[child]
+                        && !isOnlySoftlyReachable(snapshot, graph, node, child)) {
+                    mDistances[child] = distance;
+                    mNextRows[child] = node;
+                    queue[tail++] = child;
+                }
+            }
+        }
+    }
+
+    /**
+     * As in {@link ShortestDistanceVisitor}, an object is not reached through a soft reference,
+     * unless it is a soft reference itself, even if the reference also holds it in another field.
+     */
+    private boolean isOnlySoftlyReachable(@NonNull Snapshot snapshot,
+            @NonNull ReferenceGraph graph, int parent, int child) {
+        if (graph.getSoftReferent(parent) != child) {
+            return false;
+        }
+        if (mTable.getKind(child) != InstanceTable.KIND_CLASS_INSTANCE) {
+            return true;
+        }
+        ClassObj classObj = snapshot.findClass(mTable.getClassId(child));
+        return classObj == null || !classObj.getIsSoftReference();
+    }
+
+    /**
+     * Orders the objects reachable from the GC roots in reverse post-order of a depth first
+     * search, as {@link TopologicalSort} does.
+     */
+    public void computeTopologicalOrder(@NonNull ReferenceGraph graph) {
+        int nodeCount = mTable.size();
+        BitSet seen = new BitSet(nodeCount);
+        BitSet visited = new BitSet(nodeCount);
+        int[] postorder = new int[nodeCount];
+        int count = 0;
+
+        TIntStack stack = new TIntStack();
+        for (int root : graph.getRoots()) {
+            stack.push(root);
+        }
+        while (stack.size() > 0) {
+            int node = stack.peek();
+            if (!seen.get(node)) {
+                seen.set(node);
+                for (int edge = graph.getForwardStart(node); edge < graph.getForwardEnd(node);
+                        edge++) {
+                    int child = graph.getForwardTarget(edge);
+                    if (!seen.get(child)) {
+                        stack.push(child);
+                    }
+                }
+            } else {
+                stack.pop();
+                if (!visited.get(node)) {
+                    visited.set(node);
+                    postorder[count++] = node;
+                }
+            }
+        }
+
+        mRows = new int[count + 1];
+        for (int i = 0; i < count; i++) {
+            int row = postorder[count - 1 - i];
+            mRows[i + 1] = row;
+            mOrders[row] = i + 1;
+        }
+    }
+
+    /**
+     * Computes the immediate dominators of all reachable objects, once distances and the
+     * topological order are known.
+     */
+    public void computeDominators(@NonNull ReferenceGraph graph, int threads) {
+        int nodeCount = mRows.length;
+        boolean[] rootNodes = new boolean[nodeCount];
+        for (int root : graph.getRoots()) {
+            if (mOrders[root] > 0) {
+                rootNodes[mOrders[root]] = true;
+            }
+        }
+
+        int[] predecessorOffsets = new int[nodeCount + 1];
+        for (int i = 1; i < nodeCount; i++) {
+            int row = mRows[i];
+            int count = 0;
+            for (int edge = graph.getReverseStart(row); edge < graph.getReverseEnd(row); edge++) {
+                if (isPredecessor(graph.getReverseSource(edge))) {
+                    count++;
+                }
+            }
+            predecessorOffsets[i + 1] = predecessorOffsets[i] + count;
+        }
+        int[] predecessors = new int[predecessorOffsets[nodeCount]];
+        for (int i = 1; i < nodeCount; i++) {
+            int row = mRows[i];
+            int offset = predecessorOffsets[i];
+            for (int edge = graph.getReverseStart(row); edge < graph.getReverseEnd(row); edge++) {
+                int source = graph.getReverseSource(edge);
+                if (isPredecessor(source)) {
+                    predecessors[offset++] = mOrders[source];
+                }
+            }
+        }
+
+        mIterativeDominators = new IterativeDominators(nodeCount, predecessorOffsets,
+                predecessors, rootNodes, threads);
+        mIterativeDominators.computeDominators();
+        mDominators = mIterativeDominators.getDominators();
+    }
+
+    private boolean isPredecessor(int row) {
+        return mOrders[row] > 0 && mDistances[row] != Integer.MAX_VALUE;
+    }
+
+    /**
+     * Computes the retained sizes of all reachable objects, once dominators are known.
+     */
+    public void computeRetainedSizes() {
+        if (mIterativeDominators == null) {
+            throw new IllegalStateException("Dominators have not been computed");
+        }
+        int nodeCount = mRows.length;
+        int[] heaps = new int[nodeCount];
+        long[] sizes = new long[nodeCount];
+        for (int i = 1; i < nodeCount; i++) {
+            heaps[i] = mTable.getHeapIndex(mRows[i]);
+            sizes[i] = mTable.getSize(mRows[i]);
+        }
+        mRetainedSizes = mIterativeDominators.computeRetainedSizes(mHeapCount, heaps, sizes);
+        mIterativeDominators = null;
+    }
+
+    @NonNull
+    public ComputationProgress getComputationProgress() {
+        IterativeDominators dominators = mIterativeDominators;
+        if (dominators != null) {
+            dominators.updateProgress(mProgress);
+        }
+        return mProgress;
+    }
+
+    public int getHeapCount() {
+        return mHeapCount;
+    }
+
+    /**
+     * Returns the number of objects reachable from the GC roots.
+     */
+    public int getReachableCount() {
+        return mRows.length - 1;
+    }
+
+    /**
+     * Returns the row of the reachable object with the given topological order, starting at 1.
+     */
+    public int getRow(int topologicalOrder) {
+        return mRows[topologicalOrder];
+    }
+
+    /**
+     * Returns the topological order of the given row, or 0 if it is not reachable.
+     */
+    public int getTopologicalOrder(int row) {
+        return mOrders[row];
+    }
+
+    /**
+     * Returns the row of the immediate dominator of the given row, {@link #SENTINEL_ROOT}, or
+     * {@link #NONE} if the row is not reachable.
+     */
+    public int getImmediateDominator(int row) {
+        int order = mOrders[row];
+        if (order == 0 || mDominators == null
+                || mDominators[order] == IterativeDominators.UNDEFINED) {
+            return NONE;
+        }
+        int dominator = mDominators[order];
+        return dominator == 0 ? SENTINEL_ROOT : mRows[dominator];
+    }
+
+    public int getDistanceToGcRoot(int row) {
+        return mDistances[row];
+    }
+
+    /**
+     * Returns the next row on a shortest path from the given row to the GC roots, or
+     * {@link #NONE}.
+     */
+    public int getNextRowToGcRoot(int row) {
+        return mNextRows[row];
+    }
+
+    public long getRetainedSize(int row, int heapIndex) {
+        int order = mOrders[row];
+        if (order == 0 || mRetainedSizes == null) {
+            // Objects outside of the dominator tree only retain themselves.
+            return mTable.getHeapIndex(row) == heapIndex ? mTable.getSize(row) : 0;
+        }
+        long[] retained = mRetainedSizes[heapIndex];
+        return retained == null ? 0 : retained[order];
+    }
+
+    public long getTotalRetainedSize(int row) {
+        long total = 0;
+        for (int heap = 0; heap < mHeapCount; heap++) {
+            total += getRetainedSize(row, heap);
+        }
+        return total;
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.perflib.heap.analysis;
+
+import com.android.annotations.NonNull;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Computes dominators with the iterative algorithm of Cooper, Harvey and Kennedy (see
+ * http://www.cs.rice.edu/~keith/EMBED/dom.pdf), on several threads, over a graph given as int
+ * arrays.
+ *
+ * Nodes are numbered in topological order: 0 is the sentinel root and every other node comes
+ * after at least one of its predecessors. Predecessors are given in compressed sparse row form.
+ *
+ * Each pass splits the nodes into contiguous ranges that are processed concurrently. Threads may
+ * observe each other's updates in the middle of a pass, which is fine: every value written is a
+ * valid approximation, and passes are repeated until one completes without any change. Since each
+ * pass ends with a barrier, that last pass only saw the final values, so the result is exactly the
+ * one of the sequential algorithm.
+ *
+ * Retained sizes are summed bottom-up over the dominator tree, one heap per task.
+ */
+final class IterativeDominators {
+    static final int UNDEFINED = -1;
+
+    private final int mThreads;
+
+    //  Number of nodes, including the sentinel root.
+    private final int mNodeCount;
+
+    @NonNull
+    private final int[] mPredecessorOffsets;
+
+    @NonNull
+    private final int[] mPredecessors;
+
+    @NonNull
+    private final int[] mDominators;
+
+    //  Nodes directly referenced by a GC root, which are immediately dominated by the sentinel.
+    @NonNull
+    private final boolean[] mRootNodes;
+
+    private volatile int mPass = 0;
+
+    @NonNull
+    private final AtomicInteger mPassProgress = new AtomicInteger();
+
+    IterativeDominators(int nodeCount, @NonNull int[] predecessorOffsets,
+            @NonNull int[] predecessors, @NonNull boolean[] rootNodes, int threads) {
+        mThreads = Math.max(1, threads);
+        mNodeCount = nodeCount;
+        mPredecessorOffsets = predecessorOffsets;
+        mPredecessors = predecessors;
+        mRootNodes = rootNodes;
+
+        mDominators = new int[mNodeCount];
+        Arrays.fill(mDominators, UNDEFINED);
+        mDominators[0] = 0;
+        for (int i = 1; i < mNodeCount; i++) {
+            if (mRootNodes[i]) {
+                mDominators[i] = 0;
+            }
+        }
+    }
+
+    int getNodeCount() {
+        return mNodeCount;
+    }
+
+    /**
+     * Returns the immediate dominators of all nodes, once {@link #computeDominators()} is done.
+     */
+    @NonNull
+    int[] getDominators() {
+        return mDominators;
+    }
+
+    void updateProgress(@NonNull ComputationProgress progress) {
+        int pass = mPass;
+        int done = Math.min(mPassProgress.get(), mNodeCount);
+        progress.setMessage(String.format("Calculating dominators, pass %d (%d/%d)",
+                pass + 1, done, mNodeCount));
+        // The number of passes is not known up front, but the first one is by far the longest.
+        double fraction = (double) done / (double) mNodeCount;
+        progress.setProgress(pass == 0 ? 0.9 * fraction : 0.9 + 0.09 * fraction);
+    }
+
+    void computeDominators() {
+        ExecutorService executor = createExecutor();
+        try {
+            final AtomicBoolean changed = new AtomicBoolean(true);
+            while (changed.get()) {
+                changed.set(false);
+                mPassProgress.set(0);
+                runInRanges(executor, new RangeTask() {
+                    @Override
+                    public void run(int start, int end) {
+                        if (computeDominators(start, end)) {
+                            changed.set(true);
+                        }
+                    }
+                });
+                mPass++;
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Runs one pass of the algorithm over the nodes [start, end), and returns true if any
+     * dominator changed.
+     */
+    private boolean computeDominators(int start, int end) {
+        boolean changed = false;
+        for (int i = start; i < end; i++) {
+            if ((i & 0xfff) == 0) {
+                mPassProgress.addAndGet(0x1000);
+            }
+            if (mRootNodes[i]) {
+                continue;
+            }
+
+            // Start from a predecessor that comes before the node, which keeps every dominator
+            // before its node in the topological ordering, and thus intersect() terminating even
+            // while other threads update the array. There always is one (the parent in the DFS
+            // tree), but it may not have been processed yet.
+            int dominator = UNDEFINED;
+            for (int p = mPredecessorOffsets[i]; p < mPredecessorOffsets[i + 1]; p++) {
+                int predecessor = mPredecessors[p];
+                if (predecessor < i && mDominators[predecessor] != UNDEFINED) {
+                    dominator = predecessor;
+                    break;
+                }
+            }
+            if (dominator == UNDEFINED) {
+                continue;
+            }
+
+            for (int p = mPredecessorOffsets[i]; p < mPredecessorOffsets[i + 1]; p++) {
+                int predecessor = mPredecessors[p];
+                if (mDominators[predecessor] != UNDEFINED) {
+                    dominator = intersect(dominator, predecessor);
+                }
+            }
+
+            if (dominator != mDominators[i]) {
+                mDominators[i] = dominator;
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    private int intersect(int fingerA, int fingerB) {
+        while (fingerA != fingerB) {
+            while (fingerA > fingerB) {
+                fingerA = mDominators[fingerA];
+            }
+            while (fingerB > fingerA) {
+                fingerB = mDominators[fingerB];
+            }
+        }
+        return fingerA;
+    }
+
+    /**
+     * Sums the sizes of every subtree of the dominator tree, separately for each heap.
+     *
+     * @param heaps the heap index of every node
+     * @param sizes the shallow size of every node
+     * @return for each heap, the retained size of every node in that heap, including the node's
+     * own size; or null for heaps without any node
+     */
+    @NonNull
+    long[][] computeRetainedSizes(int heapCount, @NonNull final int[] heaps,
+            @NonNull final long[] sizes) {
+        final long[][] retained = new long[heapCount][];
+        boolean[] usedHeaps = new boolean[heapCount];
+        for (int i = 1; i < mNodeCount; i++) {
+            usedHeaps[heaps[i]] = true;
+        }
+
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(heapCount);
+        for (int heap = 0; heap < heapCount; heap++) {
+            if (!usedHeaps[heap]) {
+                continue;
+            }
+            final int heapIndex = heap;
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    retained[heapIndex] = computeHeapRetainedSizes(heapIndex, heaps, sizes);
+                    return null;
+                }
+            });
+        }
+
+        ExecutorService executor = createExecutor();
+        try {
+            invokeAll(executor, tasks);
+        } finally {
+            executor.shutdownNow();
+        }
+        return retained;
+    }
+
+    @NonNull
+    private long[] computeHeapRetainedSizes(int heapIndex, @NonNull int[] heaps,
+            @NonNull long[] sizes) {
+        long[] retained = new long[mNodeCount];
+        for (int i = 1; i < mNodeCount; i++) {
+            if (heaps[i] == heapIndex) {
+                retained[i] = sizes[i];
+            }
+        }
+
+        // Dominators always come before the nodes they dominate in the topological ordering, so a
+        // single backwards sweep accumulates the sizes of whole subtrees.
+        for (int i = mNodeCount - 1; i > 0; i--) {
+            retained[mDominators[i]] += retained[i];
+        }
+        return retained;
+    }
+
+    @NonNull
+    private ExecutorService createExecutor() {
+        return Executors.newFixedThreadPool(mThreads, new ThreadFactoryBuilder()
+                .setNameFormat("dominators-%d")
+                .setDaemon(true)
+                .build());
+    }
+
+    private void runInRanges(@NonNull ExecutorService executor, @NonNull final RangeTask task) {
+        int rangeSize = (mNodeCount + mThreads - 1) / mThreads;
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(mThreads);
+        for (int start = 0; start < mNodeCount; start += rangeSize) {
+            final int rangeStart = Math.max(1, start);
+            final int rangeEnd = Math.min(mNodeCount, start + rangeSize);
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    task.run(rangeStart, rangeEnd);
+                    return null;
+                }
+            });
+        }
+        invokeAll(executor, tasks);
+    }
+
+    private static void invokeAll(@NonNull ExecutorService executor,
+            @NonNull List<Callable<Void>> tasks) {
+        try {
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    private interface RangeTask {
+        void run(int start, int end);
+    }
+}
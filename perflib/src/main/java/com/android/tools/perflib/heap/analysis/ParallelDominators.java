@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.perflib.heap.analysis;
+
+import com.android.annotations.NonNull;
+import com.android.tools.perflib.heap.Instance;
+import com.android.tools.perflib.heap.RootObj;
+import com.android.tools.perflib.heap.Snapshot;
+
+/**
+ * Computes the dominators of the instances of a {@link Snapshot} on several threads, with
+ * {@link IterativeDominators}.
+ *
+ * Nodes are identified by their topological order: 0 is {@link Snapshot#SENTINEL_ROOT} and node
+ * {@code i} is the {@code i}-th instance of {@link Snapshot#getTopologicalOrdering()}. The
+ * predecessors and immediate dominators are plain int arrays, so no per-node objects are created.
+ */
+public final class ParallelDominators extends DominatorsBase {
+    private static final int UNDEFINED = IterativeDominators.UNDEFINED;
+
+    //  Number of nodes, including the sentinel root.
+    private final int mNodeCount;
+
+    @NonNull
+    private final Instance[] mInstances;
+
+    @NonNull
+    private final IterativeDominators mDominators;
+
+    public ParallelDominators(@NonNull Snapshot snapshot) {
+        this(snapshot, Runtime.getRuntime().availableProcessors());
+    }
+
+    public ParallelDominators(@NonNull Snapshot snapshot, int threads) {
+        super(snapshot);
+        mNodeCount = mTopSort.size() + 1;
+
+        mInstances = new Instance[mNodeCount];
+        mInstances[0] = Snapshot.SENTINEL_ROOT;
+        for (int i = 1; i < mNodeCount; i++) {
+            mInstances[i] = mTopSort.get(i - 1);
+        }
+
+        boolean[] rootNodes = new boolean[mNodeCount];
+        for (RootObj root : snapshot.getGCRoots()) {
+            int node = indexOf(root.getReferredInstance());
+            if (node > 0) {
+                rootNodes[node] = true;
+            }
+        }
+
+        int[] predecessorOffsets = new int[mNodeCount + 1];
+        for (int i = 1; i < mNodeCount; i++) {
+            int count = 0;
+            for (Instance predecessor : mInstances[i].getHardReverseReferences()) {
+                if (indexOf(predecessor) > 0) {
+                    count++;
+                }
+            }
+            predecessorOffsets[i + 1] = predecessorOffsets[i] + count;
+        }
+        int[] predecessors = new int[predecessorOffsets[mNodeCount]];
+        for (int i = 1; i < mNodeCount; i++) {
+            int offset = predecessorOffsets[i];
+            for (Instance predecessor : mInstances[i].getHardReverseReferences()) {
+                int node = indexOf(predecessor);
+                if (node > 0) {
+                    predecessors[offset++] = node;
+                }
+            }
+        }
+
+        mDominators = new IterativeDominators(mNodeCount, predecessorOffsets, predecessors,
+                rootNodes, threads);
+    }
+
+    /**
+     * Returns the node of a reachable instance, or -1 if the instance is not part of the
+     * topological ordering.
+     */
+    private int indexOf(Instance instance) {
+        if (instance == null || !instance.isReachable()) {
+            return UNDEFINED;
+        }
+        int node = instance.getTopologicalOrder();
+        return node > 0 && node < mNodeCount && mInstances[node] == instance ? node : UNDEFINED;
+    }
+
+    @NonNull
+    @Override
+    public ComputationProgress getComputationProgress() {
+        mDominators.updateProgress(mCurrentProgress);
+        return mCurrentProgress;
+    }
+
+    @Override
+    public void computeDominators() {
+        mDominators.computeDominators();
+        int[] dominators = mDominators.getDominators();
+        for (int i = 1; i < mNodeCount; i++) {
+            mInstances[i].setImmediateDominator(mInstances[dominators[i]]);
+        }
+    }
+
+    @Override
+    public void computeRetainedSizes() {
+        int heapCount = mSnapshot.getHeaps().size();
+        int[] heaps = new int[mNodeCount];
+        long[] sizes = new long[mNodeCount];
+        for (int i = 1; i < mNodeCount; i++) {
+            heaps[i] = mSnapshot.getHeapIndex(mInstances[i].getHeap());
+            sizes[i] = mInstances[i].getSize();
+        }
+
+        long[][] retained = mDominators.computeRetainedSizes(heapCount, heaps, sizes);
+        for (int heap = 0; heap < heapCount; heap++) {
+            if (retained[heap] == null) {
+                continue;
+            }
+            // The retained size of every instance already accounts for its own size.
+            for (int i = 1; i < mNodeCount; i++) {
+                long delta = heaps[i] == heap ? retained[heap][i] - sizes[i] : retained[heap][i];
+                if (delta != 0) {
+                    mInstances[i].addRetainedSize(heap, delta);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,365 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.perflib.heap.analysis;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.tools.perflib.heap.ClassObj;
+import com.android.tools.perflib.heap.Heap;
+import com.android.tools.perflib.heap.Instance;
+import com.android.tools.perflib.heap.Snapshot;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import gnu.trove.THashSet;
+import gnu.trove.TLongIntHashMap;
+import gnu.trove.TObjectIntHashMap;
+
+/**
+ * Differences between two snapshots of the same process, typically taken before and after some
+ * scenario.
+ *
+ * An instance of the second snapshot matches an instance of the first one if they have the same id
+ * and the same class name. Matching goes through a map from ids to class indices, so no per
+ * instance object is allocated. Classes are matched by name, since class objects may move between
+ * captures.
+ *
+ * Retained sizes and newly retained subtrees are only meaningful if the dominators of the
+ * snapshots have been computed (see {@link Snapshot#computeDominators()}). The retained size of a
+ * class is the size of the union of the dominator subtrees of its instances, so instances
+ * dominated by another instance of the same class are not counted twice.
+ */
+public final class SnapshotDiff {
+    @NonNull
+    private final Map<String, ClassDiff> mClassDiffs = new HashMap<String, ClassDiff>();
+
+    @NonNull
+    private final List<Instance> mNewlyRetained = new ArrayList<Instance>();
+
+    @NonNull
+    private final List<Instance> mNewInstances = new ArrayList<Instance>();
+
+    private SnapshotDiff() {
+    }
+
+    /**
+     * Compares all the heaps of the two snapshots.
+     */
+    @NonNull
+    public static SnapshotDiff compute(@NonNull Snapshot before, @NonNull Snapshot after) {
+        return compute(before, after, after.getHeaps());
+    }
+
+    /**
+     * Compares the given heaps of {@code after} with the heaps of the same name of
+     * {@code before}.
+     */
+    @NonNull
+    public static SnapshotDiff compute(@NonNull Snapshot before, @NonNull Snapshot after,
+            @NonNull Collection<Heap> heaps) {
+        SnapshotDiff diff = new SnapshotDiff();
+
+        List<Heap> beforeHeaps = new ArrayList<Heap>(heaps.size());
+        for (Heap heap : heaps) {
+            Heap beforeHeap = before.getHeap(heap.getName());
+            if (beforeHeap != null) {
+                beforeHeaps.add(beforeHeap);
+            }
+        }
+
+        // Class indices are 1-based, so that 0 (what the trove maps return for missing keys)
+        // never matches.
+        TObjectIntHashMap<String> classIndices = new TObjectIntHashMap<String>();
+        TLongIntHashMap beforeClassIndices = new TLongIntHashMap();
+        Set<Instance> nestedBefore = getNestedInstances(before);
+        for (ClassObj classObj : getClasses(before)) {
+            int classIndex = getClassIndex(classIndices, classObj.getClassName());
+            ClassDiff classDiff = diff.getClassDiff(classObj.getClassName());
+            for (Heap heap : beforeHeaps) {
+                for (Instance instance : classObj.getHeapInstances(heap.getId())) {
+                    beforeClassIndices.put(instance.getId(), classIndex);
+                    classDiff.mInstancesBefore++;
+                    classDiff.mShallowSizeBefore += instance.getSize();
+                    if (!nestedBefore.contains(instance)) {
+                        classDiff.mRetainedSizeBefore += getRetainedSize(instance);
+                    }
+                }
+            }
+        }
+
+        Set<Instance> nestedAfter = getNestedInstances(after);
+        for (ClassObj classObj : getClasses(after)) {
+            int classIndex = getClassIndex(classIndices, classObj.getClassName());
+            ClassDiff classDiff = diff.getClassDiff(classObj.getClassName());
+            for (Heap heap : heaps) {
+                for (Instance instance : classObj.getHeapInstances(heap.getId())) {
+                    classDiff.mInstancesAfter++;
+                    classDiff.mShallowSizeAfter += instance.getSize();
+                    if (!nestedAfter.contains(instance)) {
+                        classDiff.mRetainedSizeAfter += getRetainedSize(instance);
+                    }
+                    if (beforeClassIndices.get(instance.getId()) != classIndex) {
+                        classDiff.mNewInstances.add(instance);
+                        diff.mNewInstances.add(instance);
+                    }
+                }
+            }
+        }
+
+        // New instances dominated by an instance that already existed (or by the GC roots) are
+        // the roots of newly retained subtrees.
+        for (Instance instance : diff.mNewInstances) {
+            Instance dominator = instance.getImmediateDominator();
+            if (dominator == null) {
+                continue;
+            }
+            boolean existed;
+            if (dominator == Snapshot.SENTINEL_ROOT) {
+                existed = true;
+            } else if (dominator instanceof ClassObj) {
+                existed = before.findClass(((ClassObj) dominator).getClassName()) != null;
+            } else {
+                existed = beforeClassIndices.get(dominator.getId())
+                        == getClassIndex(classIndices, dominator.getClassObj());
+            }
+            if (existed) {
+                diff.mNewlyRetained.add(instance);
+            }
+        }
+        Collections.sort(diff.mNewlyRetained, new Comparator<Instance>() {
+            @Override
+            public int compare(Instance a, Instance b) {
+                long sizeA = a.getTotalRetainedSize();
+                long sizeB = b.getTotalRetainedSize();
+                return sizeA > sizeB ? -1 : sizeA < sizeB ? 1 : 0;
+            }
+        });
+        return diff;
+    }
+
+    @NonNull
+    private static List<ClassObj> getClasses(@NonNull Snapshot snapshot) {
+        List<ClassObj> classes = new ArrayList<ClassObj>();
+        for (Heap heap : snapshot.getHeaps()) {
+            classes.addAll(heap.getClasses());
+        }
+        return classes;
+    }
+
+    private static int getClassIndex(@NonNull TObjectIntHashMap<String> classIndices,
+            @NonNull String className) {
+        int index = classIndices.get(className);
+        if (index == 0) {
+            index = classIndices.size() + 1;
+            classIndices.put(className, index);
+        }
+        return index;
+    }
+
+    private static int getClassIndex(@NonNull TObjectIntHashMap<String> classIndices,
+            @Nullable ClassObj classObj) {
+        return classObj == null ? -1 : getClassIndex(classIndices, classObj.getClassName());
+    }
+
+    /**
+     * Returns the instances that have an ancestor of the same class in the dominator tree, and
+     * whose retained size is thus already part of the retained size of that ancestor.
+     */
+    @NonNull
+    private static Set<Instance> getNestedInstances(@NonNull Snapshot snapshot) {
+        Set<Instance> nested = new THashSet<Instance>();
+        List<Instance> topSort = snapshot.getTopologicalOrdering();
+        if (topSort == null) {
+            return nested;
+        }
+
+        Map<Instance, List<Instance>> children = new HashMap<Instance, List<Instance>>();
+        Deque<Instance> stack = new ArrayDeque<Instance>();
+        for (Instance instance : topSort) {
+            Instance dominator = instance.getImmediateDominator();
+            if (dominator == Snapshot.SENTINEL_ROOT) {
+                stack.push(instance);
+            } else if (dominator != null) {
+                List<Instance> dominated = children.get(dominator);
+                if (dominated == null) {
+                    dominated = new ArrayList<Instance>();
+                    children.put(dominator, dominated);
+                }
+                dominated.add(instance);
+            }
+        }
+
+        // Depth-first walk of the dominator tree, counting the instances of each class on the
+        // path from the root. Instances are pushed again to be popped once their subtree is done.
+        // As everywhere in the diff, classes are identified by name.
+        TObjectIntHashMap<String> pathCounts = new TObjectIntHashMap<String>();
+        Set<Instance> entered = new THashSet<Instance>();
+        while (!stack.isEmpty()) {
+            Instance instance = stack.pop();
+            ClassObj classObj = instance.getClassObj();
+            String className = classObj == null ? null : classObj.getClassName();
+            if (!entered.add(instance)) {
+                if (className != null) {
+                    pathCounts.put(className, pathCounts.get(className) - 1);
+                }
+                continue;
+            }
+            if (className != null) {
+                int count = pathCounts.get(className);
+                if (count > 0) {
+                    nested.add(instance);
+                }
+                pathCounts.put(className, count + 1);
+            }
+            stack.push(instance);
+            List<Instance> dominated = children.get(instance);
+            if (dominated != null) {
+                for (Instance child : dominated) {
+                    stack.push(child);
+                }
+            }
+        }
+        return nested;
+    }
+
+    private static long getRetainedSize(@NonNull Instance instance) {
+        // Unreachable instances, or all of them if dominators were not computed, retain themselves.
+        return instance.getImmediateDominator() == null ? instance.getSize()
+                : instance.getTotalRetainedSize();
+    }
+
+    @NonNull
+    private ClassDiff getClassDiff(@NonNull String className) {
+        ClassDiff classDiff = mClassDiffs.get(className);
+        if (classDiff == null) {
+            classDiff = new ClassDiff(className);
+            mClassDiffs.put(className, classDiff);
+        }
+        return classDiff;
+    }
+
+    /**
+     * Returns the differences of every class present in either snapshot, by decreasing retained
+     * size delta.
+     */
+    @NonNull
+    public List<ClassDiff> getClassDiffs() {
+        List<ClassDiff> classDiffs = new ArrayList<ClassDiff>(mClassDiffs.values());
+        Collections.sort(classDiffs, new Comparator<ClassDiff>() {
+            @Override
+            public int compare(ClassDiff a, ClassDiff b) {
+                long deltaA = a.getRetainedSizeDelta();
+                long deltaB = b.getRetainedSizeDelta();
+                return deltaA > deltaB ? -1 : deltaA < deltaB ? 1
+                        : a.getClassName().compareTo(b.getClassName());
+            }
+        });
+        return classDiffs;
+    }
+
+    @Nullable
+    public ClassDiff getClassDiff(@NonNull ClassObj classObj) {
+        return mClassDiffs.get(classObj.getClassName());
+    }
+
+    /**
+     * Returns the instances of the second snapshot that have no match in the first one.
+     */
+    @NonNull
+    public List<Instance> getNewInstances() {
+        return Collections.unmodifiableList(mNewInstances);
+    }
+
+    /**
+     * Returns the new instances whose immediate dominator already existed in the first snapshot,
+     * i.e. the roots of the dominator subtrees made only of new instances, by decreasing retained
+     * size.
+     */
+    @NonNull
+    public List<Instance> getNewlyRetainedRoots() {
+        return Collections.unmodifiableList(mNewlyRetained);
+    }
+
+    /**
+     * Aggregated differences of the instances of one class.
+     */
+    public static final class ClassDiff {
+        @NonNull
+        private final String mClassName;
+
+        private int mInstancesBefore;
+
+        private int mInstancesAfter;
+
+        //  Instances of the second snapshot without a match in the first one.
+        @NonNull
+        private final List<Instance> mNewInstances = new ArrayList<Instance>();
+
+        private long mShallowSizeBefore;
+
+        private long mShallowSizeAfter;
+
+        private long mRetainedSizeBefore;
+
+        private long mRetainedSizeAfter;
+
+        private ClassDiff(@NonNull String className) {
+            mClassName = className;
+        }
+
+        @NonNull
+        public String getClassName() {
+            return mClassName;
+        }
+
+        public int getInstanceCountBefore() {
+            return mInstancesBefore;
+        }
+
+        public int getInstanceCountAfter() {
+            return mInstancesAfter;
+        }
+
+        public int getInstanceCountDelta() {
+            return mInstancesAfter - mInstancesBefore;
+        }
+
+        /**
+         * Returns the instances of the second snapshot without a match in the first one.
+         */
+        @NonNull
+        public List<Instance> getNewInstances() {
+            return Collections.unmodifiableList(mNewInstances);
+        }
+
+        public long getShallowSizeDelta() {
+            return mShallowSizeAfter - mShallowSizeBefore;
+        }
+
+        public long getRetainedSizeDelta() {
+            return mRetainedSizeAfter - mRetainedSizeBefore;
+        }
+    }
+}
@@ -36,6 +36,21 @@ public class InMemoryBuffer implements DataBuffer {
         mBuffer = ByteBuffer.wrap(data);
     }
 
+    private InMemoryBuffer(@NonNull ByteBuffer buffer) {
+        mBuffer = buffer;
+    }
+
+    /**
+     * Creates a view of the same data with its own position, so that different threads can read
+     * it concurrently.
+     */
+    @NonNull
+    public InMemoryBuffer duplicate() {
+        ByteBuffer view = mBuffer.duplicate();
+        view.order(mBuffer.order());
+        return new InMemoryBuffer(view);
+    }
+
     @Override
     public void dispose() {}
 
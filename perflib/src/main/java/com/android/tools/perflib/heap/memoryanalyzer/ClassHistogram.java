@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.perflib.heap.memoryanalyzer;
+
+import com.android.annotations.NonNull;
+import com.android.tools.perflib.heap.ClassObj;
+import com.android.tools.perflib.heap.Heap;
+import com.android.tools.perflib.heap.HprofVisitor;
+import com.android.tools.perflib.heap.InstanceRecord;
+import com.android.tools.perflib.heap.Snapshot;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import gnu.trove.TLongObjectHashMap;
+
+/**
+ * Number of instances and shallow sizes per class and per heap, computed while instances are
+ * streamed (see {@link Snapshot#visitInstances(HprofVisitor)}). Memory use is bounded by the
+ * number of classes.
+ */
+public class ClassHistogram implements HprofVisitor {
+
+    @NonNull
+    private final Snapshot mSnapshot;
+
+    private final int mHeapCount;
+
+    //  For each class id, the instance count and the shallow size of every heap, interleaved.
+    @NonNull
+    private final TLongObjectHashMap<long[]> mCounts = new TLongObjectHashMap<long[]>();
+
+    public ClassHistogram(@NonNull Snapshot snapshot) {
+        mSnapshot = snapshot;
+        mHeapCount = snapshot.getHeaps().size();
+    }
+
+    @Override
+    public void visitInstance(@NonNull InstanceRecord record) {
+        ClassObj classObj = record.getClassObj();
+        if (classObj == null) {
+            return;
+        }
+        long[] counts = mCounts.get(classObj.getId());
+        if (counts == null) {
+            counts = new long[2 * mHeapCount];
+            mCounts.put(classObj.getId(), counts);
+        }
+        int heapIndex = mSnapshot.getHeapIndex(record.getHeap());
+        counts[2 * heapIndex]++;
+        counts[2 * heapIndex + 1] += record.getSize();
+    }
+
+    @Override
+    public void visitEnd() {
+    }
+
+    /**
+     * Returns the classes with at least one instance.
+     */
+    @NonNull
+    public List<ClassObj> getClasses() {
+        List<ClassObj> classes = new ArrayList<ClassObj>(mCounts.size());
+        for (long id : mCounts.keys()) {
+            ClassObj classObj = mSnapshot.findClass(id);
+            if (classObj != null) {
+                classes.add(classObj);
+            }
+        }
+        return classes;
+    }
+
+    public int getInstanceCount(@NonNull ClassObj classObj, @NonNull Heap heap) {
+        long[] counts = mCounts.get(classObj.getId());
+        return counts == null ? 0 : (int) counts[2 * mSnapshot.getHeapIndex(heap)];
+    }
+
+    public long getShallowSize(@NonNull ClassObj classObj, @NonNull Heap heap) {
+        long[] counts = mCounts.get(classObj.getId());
+        return counts == null ? 0 : counts[2 * mSnapshot.getHeapIndex(heap) + 1];
+    }
+}
@@ -17,18 +17,25 @@ package com.android.tools.perflib.heap.memoryanalyzer;
 
 import com.android.annotations.NonNull;
 import com.android.tools.perflib.analyzer.AnalysisResultEntry;
+import com.android.tools.perflib.heap.ArrayInstance;
 import com.android.tools.perflib.heap.ClassInstance;
 import com.android.tools.perflib.heap.ClassObj;
 import com.android.tools.perflib.heap.Heap;
 import com.android.tools.perflib.heap.Instance;
+import com.android.tools.perflib.heap.InstanceRecord;
 import com.android.tools.perflib.heap.Snapshot;
+import com.android.tools.perflib.heap.Type;
 import com.google.common.collect.HashMultimap;
+import com.google.common.hash.Hashing;
 
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
 
+import gnu.trove.TLongIntHashMap;
+import gnu.trove.TLongObjectHashMap;
+
 public class DuplicatedStringsAnalyzerTask extends MemoryAnalyzerTask {
 
     @Override
@@ -69,6 +76,54 @@ public class DuplicatedStringsAnalyzerTask extends MemoryAnalyzerTask {
         return results;
     }
 
+    /**
+     * Without the object graph, strings can't be matched to their character arrays, so duplicates
+     * are detected on the contents of the char[] instances instead, reachable or not. Only a 64 bit
+     * digest is kept per distinct content, plus the text of the duplicated ones.
+     */
+    @Override
+    StreamingAnalysis createStreamingAnalysis(@NonNull final Configuration configuration,
+            @NonNull Snapshot snapshot) {
+        return new StreamingAnalysis() {
+            private final TLongIntHashMap mCounts = new TLongIntHashMap();
+
+            private final TLongObjectHashMap<String> mDuplicates = new TLongObjectHashMap<String>();
+
+            private final List<AnalysisResultEntry> mResults = new ArrayList<AnalysisResultEntry>();
+
+            @Override
+            public void visitInstance(@NonNull InstanceRecord record) {
+                if (record.getArrayType() != Type.CHAR
+                        || !configuration.mHeaps.contains(record.getHeap())) {
+                    return;
+                }
+
+                ArrayInstance array = (ArrayInstance) record.createInstance();
+                byte[] contents = array.asRawByteArray(0, array.getLength());
+                long digest = Hashing.murmur3_128().hashBytes(contents).asLong();
+                int count = mCounts.get(digest) + 1;
+                mCounts.put(digest, count);
+                if (count == 2) {
+                    mDuplicates.put(digest, new String(array.asCharArray(0, array.getLength())));
+                }
+            }
+
+            @Override
+            public void visitEnd() {
+                for (long digest : mDuplicates.keys()) {
+                    mResults.add(new DuplicatedStringsEntry(mDuplicates.get(digest),
+                            mCounts.get(digest)));
+                }
+            }
+
+            @NonNull
+            @Override
+            public List<AnalysisResultEntry> getResults() {
+                return mResults;
+            }
+        };
+    }
+
     @NonNull
     @Override
     public String getTaskName() {
@@ -83,15 +138,23 @@ public class DuplicatedStringsAnalyzerTask extends MemoryAnalyzerTask {
 
     public static class DuplicatedStringsEntry extends MemoryAnalysisResultEntry {
 
+        private final int mCount;
+
         private DuplicatedStringsEntry(@NonNull String offendingString,
                 @NonNull List<Instance> duplicates) {
             super(offendingString, duplicates);
+            mCount = duplicates.size();
+        }
+
+        private DuplicatedStringsEntry(@NonNull String offendingString, int count) {
+            super(offendingString, Collections.<Instance>emptyList());
+            mCount = count;
         }
 
         @NonNull
         @Override
         public String getWarningMessage() {
-            return String.format("%d instances: \"%s\"", mOffender.getOffenders().size(),
+            return String.format("%d instances: \"%s\"", mCount,
                     mOffender.getOffendingDescription());
         }
 
@@ -21,12 +21,15 @@ import com.android.tools.perflib.heap.ClassInstance;
 import com.android.tools.perflib.heap.ClassObj;
 import com.android.tools.perflib.heap.Heap;
 import com.android.tools.perflib.heap.Instance;
+import com.android.tools.perflib.heap.InstanceRecord;
 import com.android.tools.perflib.heap.Snapshot;
 
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
+import gnu.trove.TLongHashSet;
+
 /**
  * When activities are destroyed, there should be no external references to them. Since activities
  * are normally GC root objects, this implies no reference should be pointing to these activities if
@@ -76,6 +79,55 @@ public class LeakedActivityAnalyzerTask extends MemoryAnalyzerTask {
         return results;
     }
 
+    /**
+     * Without the object graph, reachability is unknown: every destroyed or finished activity is
+     * reported as a leak candidate.
+     */
+    @Override
+    StreamingAnalysis createStreamingAnalysis(@NonNull final Configuration configuration,
+            @NonNull Snapshot snapshot) {
+        final TLongHashSet activityClassIds = new TLongHashSet();
+        for (ClassObj activityClass : snapshot.findAllDescendantClasses("android.app.Activity")) {
+            activityClassIds.add(activityClass.getId());
+        }
+
+        return new StreamingAnalysis() {
+            private final List<AnalysisResultEntry> mResults = new ArrayList<AnalysisResultEntry>();
+
+            @Override
+            public void visitInstance(@NonNull InstanceRecord record) {
+                if (record.getArrayType() != null
+                        || !configuration.mHeaps.contains(record.getHeap())) {
+                    return;
+                }
+                ClassObj classObj = record.getClassObj();
+                if (classObj == null || !activityClassIds.contains(classObj.getId())) {
+                    return;
+                }
+
+                ClassInstance instance = (ClassInstance) record.createInstance();
+                for (ClassInstance.FieldValue value : instance.getValues()) {
+                    if (("mFinished".equals(value.getField().getName())
+                            || "mDestroyed".equals(value.getField().getName()))
+                            && Boolean.TRUE.equals(value.getValue())) {
+                        mResults.add(new LeakedActivityEntry(classObj.getClassName()));
+                        break;
+                    }
+                }
+            }
+
+            @Override
+            public void visitEnd() {
+            }
+
+            @NonNull
+            @Override
+            public List<AnalysisResultEntry> getResults() {
+                return mResults;
+            }
+        };
+    }
+
     @NonNull
     @Override
     public String getTaskName() {
@@ -95,6 +147,10 @@ public class LeakedActivityAnalyzerTask extends MemoryAnalyzerTask {
             super(offenseDescription, Collections.singletonList(offendingInstance));
         }
 
+        private LeakedActivityEntry(@NonNull String offenseDescription) {
+            super(offenseDescription, Collections.<Instance>emptyList());
+        }
+
         @NonNull
         @Override
         public String getWarningMessage() {
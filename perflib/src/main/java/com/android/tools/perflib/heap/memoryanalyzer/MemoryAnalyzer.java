@@ -24,6 +24,8 @@ import com.android.tools.perflib.analyzer.AnalyzerTask;
 import com.android.tools.perflib.analyzer.Capture;
 import com.android.tools.perflib.analyzer.CaptureGroup;
 import com.android.tools.perflib.heap.Heap;
+import com.android.tools.perflib.heap.HprofVisitor;
+import com.android.tools.perflib.heap.InstanceRecord;
 import com.android.tools.perflib.heap.Snapshot;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
@@ -31,6 +33,7 @@ import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListenableFutureTask;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -104,15 +107,8 @@ public class MemoryAnalyzer extends Analyzer {
                     continue;
                 }
 
-                List<Heap> heapsToUse = new ArrayList<Heap>(snapshot.getHeaps().size());
-                for (Heap heap : snapshot.getHeaps()) {
-                    if ("app".equals(heap.getName())) {
-                        heapsToUse.add(heap);
-                        break;
-                    }
-                }
                 final MemoryAnalyzerTask.Configuration configuration
-                        = new MemoryAnalyzerTask.Configuration(heapsToUse);
+                        = createConfiguration(snapshot);
 
                 for (final MemoryAnalyzerTask task : mTasks) {
                     final ListenableFutureTask<List<AnalysisResultEntry>> futureTask =
@@ -166,6 +162,72 @@ public class MemoryAnalyzer extends Analyzer {
         return mOutstandingReport;
     }
 
+    /**
+     * Runs the tasks on a snapshot created by {@link Snapshot#createClassSnapshot}, without
+     * building the object graph: instances are streamed to the tasks as the hprof file is parsed
+     * again, so memory use is bounded by the number of classes rather than by the number of
+     * instances. This is meant for batch checks of large heap dumps.
+     *
+     * Tasks that need the object graph are skipped, and the results of the others may be less
+     * precise than with a full snapshot, as reachability is unknown.
+     *
+     * @param visitors additional visitors fed during the same pass, e.g. a {@link ClassHistogram}
+     */
+    @NonNull
+    public static List<AnalysisResultEntry> analyzeStreaming(@NonNull Snapshot snapshot,
+            @NonNull Set<? extends AnalyzerTask> tasks, @NonNull HprofVisitor... visitors) {
+        MemoryAnalyzerTask.Configuration configuration = createConfiguration(snapshot);
+        final List<HprofVisitor> allVisitors = new ArrayList<HprofVisitor>();
+        List<MemoryAnalyzerTask.StreamingAnalysis> analyses =
+                new ArrayList<MemoryAnalyzerTask.StreamingAnalysis>();
+        for (AnalyzerTask task : tasks) {
+            if (task instanceof MemoryAnalyzerTask) {
+                MemoryAnalyzerTask.StreamingAnalysis analysis = ((MemoryAnalyzerTask) task)
+                        .createStreamingAnalysis(configuration, snapshot);
+                if (analysis != null) {
+                    analyses.add(analysis);
+                    allVisitors.add(analysis);
+                }
+            }
+        }
+        allVisitors.addAll(Arrays.asList(visitors));
+
+        snapshot.visitInstances(new HprofVisitor() {
+            @Override
+            public void visitInstance(@NonNull InstanceRecord record) {
+                for (HprofVisitor visitor : allVisitors) {
+                    visitor.visitInstance(record);
+                }
+            }
+
+            @Override
+            public void visitEnd() {
+                for (HprofVisitor visitor : allVisitors) {
+                    visitor.visitEnd();
+                }
+            }
+        });
+
+        List<AnalysisResultEntry> results = new ArrayList<AnalysisResultEntry>();
+        for (MemoryAnalyzerTask.StreamingAnalysis analysis : analyses) {
+            results.addAll(analysis.getResults());
+        }
+        return results;
+    }
+
+    @NonNull
+    private static MemoryAnalyzerTask.Configuration createConfiguration(
+            @NonNull Snapshot snapshot) {
+        List<Heap> heapsToUse = new ArrayList<Heap>(snapshot.getHeaps().size());
+        for (Heap heap : snapshot.getHeaps()) {
+            if ("app".equals(heap.getName())) {
+                heapsToUse.add(heap);
+                break;
+            }
+        }
+        return new MemoryAnalyzerTask.Configuration(heapsToUse);
+    }
+
     @Override
     public void cancel() {
         if (mOutstandingReport == null || mAnalysisComplete) {
@@ -16,9 +16,11 @@
 package com.android.tools.perflib.heap.memoryanalyzer;
 
 import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
 import com.android.tools.perflib.analyzer.AnalysisResultEntry;
 import com.android.tools.perflib.analyzer.AnalyzerTask;
 import com.android.tools.perflib.heap.Heap;
+import com.android.tools.perflib.heap.HprofVisitor;
 import com.android.tools.perflib.heap.Snapshot;
 
 import java.util.Collection;
@@ -35,6 +37,27 @@ public abstract class MemoryAnalyzerTask implements AnalyzerTask {
         }
     }
 
+    /**
+     * A visitor computing the results of a task from streamed instances, without the object
+     * graph. See {@link MemoryAnalyzer#analyzeStreaming}.
+     */
+    interface StreamingAnalysis extends HprofVisitor {
+
+        @NonNull
+        List<AnalysisResultEntry> getResults();
+    }
+
     abstract List<AnalysisResultEntry> analyze(@NonNull Configuration configuration,
             @NonNull Snapshot snapshot);
+
+    /**
+     * Returns the streaming version of this task, or null if the task needs the object graph.
+     *
+     * @param snapshot a snapshot holding only classes, see {@link Snapshot#createClassSnapshot}
+     */
+    @Nullable
+    StreamingAnalysis createStreamingAnalysis(@NonNull Configuration configuration,
+            @NonNull Snapshot snapshot) {
+        return null;
+    }
 }
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.perflib.heap.memoryanalyzer;
+
+import com.android.annotations.NonNull;
+import com.android.tools.perflib.analyzer.AnalysisResultEntry;
+import com.android.tools.perflib.heap.ClassObj;
+import com.android.tools.perflib.heap.Instance;
+import com.android.tools.perflib.heap.Snapshot;
+import com.android.tools.perflib.heap.analysis.SnapshotDiff;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Compares the analyzed snapshot with a baseline snapshot taken earlier, and reports the classes
+ * that gained instances as well as the largest dominator subtrees made only of new instances.
+ */
+public class SnapshotDiffAnalyzerTask extends MemoryAnalyzerTask {
+
+    private static final int MAX_NEWLY_RETAINED_ENTRIES = 20;
+
+    @NonNull
+    private final Snapshot mBaseline;
+
+    public SnapshotDiffAnalyzerTask(@NonNull Snapshot baseline) {
+        mBaseline = baseline;
+    }
+
+    @Override
+    List<AnalysisResultEntry> analyze(@NonNull Configuration configuration,
+            @NonNull Snapshot snapshot) {
+        if (snapshot == mBaseline) {
+            return Collections.emptyList();
+        }
+
+        SnapshotDiff diff = SnapshotDiff.compute(mBaseline, snapshot, configuration.mHeaps);
+        List<AnalysisResultEntry> results = new ArrayList<AnalysisResultEntry>();
+
+        for (SnapshotDiff.ClassDiff classDiff : diff.getClassDiffs()) {
+            if (classDiff.getInstanceCountDelta() > 0) {
+                results.add(new HeapGrowthEntry(classDiff));
+            }
+        }
+
+        List<Instance> newlyRetained = diff.getNewlyRetainedRoots();
+        for (Instance instance : newlyRetained.subList(0,
+                Math.min(MAX_NEWLY_RETAINED_ENTRIES, newlyRetained.size()))) {
+            ClassObj classObj = instance.getClassObj();
+            results.add(new NewlyRetainedEntry(
+                    classObj == null ? instance.toString() : classObj.getClassName(), instance));
+        }
+        return results;
+    }
+
+    @NonNull
+    @Override
+    public String getTaskName() {
+        return "Compare Heap Dumps";
+    }
+
+    @NonNull
+    @Override
+    public String getTaskDescription() {
+        return "Detects objects allocated and retained since a baseline heap dump.";
+    }
+
+    public static class HeapGrowthEntry extends MemoryAnalysisResultEntry {
+
+        @NonNull
+        private final SnapshotDiff.ClassDiff mClassDiff;
+
+        private HeapGrowthEntry(@NonNull SnapshotDiff.ClassDiff classDiff) {
+            super(classDiff.getClassName(), classDiff.getNewInstances());
+            mClassDiff = classDiff;
+        }
+
+        @NonNull
+        public SnapshotDiff.ClassDiff getClassDiff() {
+            return mClassDiff;
+        }
+
+        @NonNull
+        @Override
+        public String getWarningMessage() {
+            return String.format("%s: %+d instances, %+d bytes shallow, %+d bytes retained",
+                    mClassDiff.getClassName(), mClassDiff.getInstanceCountDelta(),
+                    mClassDiff.getShallowSizeDelta(), mClassDiff.getRetainedSizeDelta());
+        }
+
+        @NonNull
+        @Override
+        public String getCategory() {
+            return "Heap Growth";
+        }
+    }
+
+    public static class NewlyRetainedEntry extends MemoryAnalysisResultEntry {
+
+        private NewlyRetainedEntry(@NonNull String offenseDescription,
+                @NonNull Instance offendingInstance) {
+            super(offenseDescription, Collections.singletonList(offendingInstance));
+        }
+
+        @NonNull
+        @Override
+        public String getWarningMessage() {
+            return String.format("%s retains %d bytes", mOffender.getOffendingDescription(),
+                    mOffender.getOffenders().get(0).getTotalRetainedSize());
+        }
+
+        @NonNull
+        @Override
+        public String getCategory() {
+            return "Newly Retained Objects";
+        }
+    }
+}
@@ -83,6 +83,35 @@ public class Call {
         mInclusiveGlobalTimeInCallees = sumInclusiveTimes(mCallees, ClockType.GLOBAL);
     }
 
+    Call(@NonNull CallTable calls, int call, @NonNull Stack<Long> backStack) {
+        mMethodId = calls.getMethodId(call);
+
+        mEntryThreadTime = calls.getEntryThreadTime(call);
+        mEntryGlobalTime = calls.getEntryGlobalTime(call);
+        mExitThreadTime = calls.getExitThreadTime(call);
+        mExitGlobalTime = calls.getExitGlobalTime(call);
+
+        mDepth = backStack.size();
+
+        mIsRecursive = calls.isRecursive(call);
+
+        if (calls.getFirstCallee(call) == CallTable.NONE) {
+            mCallees = Collections.emptyList();
+        } else {
+            backStack.push(mMethodId);
+            ImmutableList.Builder<Call> callees = new ImmutableList.Builder<Call>();
+            for (int callee = calls.getFirstCallee(call); callee != CallTable.NONE;
+                    callee = calls.getNextSibling(callee)) {
+                callees.add(new Call(calls, callee, backStack));
+            }
+            backStack.pop();
+            mCallees = callees.build();
+        }
+
+        mInclusiveThreadTimeInCallees = sumInclusiveTimes(mCallees, ClockType.THREAD);
+        mInclusiveGlobalTimeInCallees = sumInclusiveTimes(mCallees, ClockType.GLOBAL);
+    }
+
     private long sumInclusiveTimes(@NonNull List<Call> callees, ClockType clockType) {
         long sum = 0;
         for (Call c : callees) {
@@ -16,28 +16,29 @@
 
 package com.android.tools.perflib.vmtrace;
 
-import com.android.annotations.Nullable;
+import com.android.annotations.NonNull;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Stack;
+import gnu.trove.TIntArrayList;
+import gnu.trove.TIntStack;
 
 /**
  * {@link CallStackReconstructor} helps in reconstructing per thread call stacks from a sequence of
- * trace events (method entry/exit events).
+ * trace events (method entry/exit events). The calls are recorded in a {@link CallTable}, so no
+ * object is allocated per event.
  */
 public class CallStackReconstructor {
     /** Method id corresponding to the top level call under which all calls are nested. */
     private final long mTopLevelCallId;
 
+    private final CallTable mCalls = new CallTable();
+
     /** List of calls currently assumed to be at stack depth 0 (called from the top level) */
-    private final List<Call.Builder> mTopLevelCalls = new ArrayList<Call.Builder>();
+    private final TIntArrayList mTopLevelCalls = new TIntArrayList();
 
     /** Current call stack based on the sequence of received trace events. */
-    private final Stack<Call.Builder> mCallStack = new Stack<Call.Builder>();
+    private final TIntStack mCallStack = new TIntStack();
 
-    /** The single top level call under which the entire reconstructed call stack nests. */
-    private Call mTopLevelCall;
+    private boolean mFinished;
 
     /**
      * Constructs a call stack reconstructor with the method id under which
@@ -56,45 +57,44 @@ public class CallStackReconstructor {
     }
 
     private void enterMethod(long methodId, int threadTime, int globalTime) {
-        Call.Builder cb = new Call.Builder(methodId);
-        cb.setMethodEntryTime(threadTime, globalTime);
+        int call = mCalls.add(methodId);
+        mCalls.setEntryTime(call, threadTime, globalTime);
 
-        if (mCallStack.isEmpty()) {
-            mTopLevelCalls.add(cb);
+        if (mCallStack.size() == 0) {
+            mTopLevelCalls.add(call);
         } else {
-            Call.Builder caller = mCallStack.peek();
-            caller.addCallee(cb);
+            mCalls.addCallee(mCallStack.peek(), call);
         }
 
-        mCallStack.push(cb);
+        mCallStack.push(call);
     }
 
     private void exitMethod(long methodId, int threadTime, int globalTime) {
-        if (!mCallStack.isEmpty()) {
-            Call.Builder c = mCallStack.pop();
-            if (c.getMethodId() != methodId) {
+        if (mCallStack.size() > 0) {
+            int c = mCallStack.pop();
+            if (mCalls.getMethodId(c) != methodId) {
                 String msg = String
                         .format("Error during call stack reconstruction. Attempt to exit from method 0x%1$x while in method 0x%2$x",
-                                c.getMethodId(), methodId);
+                                mCalls.getMethodId(c), methodId);
                 throw new RuntimeException(msg);
             }
 
-            c.setMethodExitTime(threadTime, globalTime);
+            mCalls.setExitTime(c, threadTime, globalTime);
         } else {
             // We are exiting out of a method that was entered into before tracing was started.
             // In such a case, create this method
-            Call.Builder c = new Call.Builder(methodId);
+            int c = mCalls.add(methodId);
 
             // All the previous calls at the top level are now assumed to have been called from
             // this method. So mark this method as having called all of those methods, and reset
             // the top level to only include this method
-            for (Call.Builder cb : mTopLevelCalls) {
-                c.addCallee(cb);
+            for (int i = 0; i < mTopLevelCalls.size(); i++) {
+                mCalls.addCallee(c, mTopLevelCalls.get(i));
             }
             mTopLevelCalls.clear();
             mTopLevelCalls.add(c);
 
-            c.setMethodExitTime(threadTime, globalTime);
+            mCalls.setExitTime(c, threadTime, globalTime);
 
             // We don't know this method's entry times, so we try to guess:
             // If it has atleast 1 callee, then we know it must've been atleast before that callee's
@@ -103,69 +103,85 @@ public class CallStackReconstructor {
             int entryThreadTime = threadTime - 1;
             int entryGlobalTime = globalTime - 1;
 
-            if (c.getCallees() != null && !c.getCallees().isEmpty()) {
-                Call.Builder callee = c.getCallees().get(0);
-                entryThreadTime = Math.max(callee.getMethodEntryThreadTime() - 1, 0);
-                entryGlobalTime = Math.max(callee.getMethodEntryGlobalTime() - 1, 0);
+            int callee = mCalls.getFirstCallee(c);
+            if (callee != CallTable.NONE) {
+                entryThreadTime = Math.max(mCalls.getEntryThreadTime(callee) - 1, 0);
+                entryGlobalTime = Math.max(mCalls.getEntryGlobalTime(callee) - 1, 0);
             }
-            c.setMethodEntryTime(entryThreadTime, entryGlobalTime);
+            mCalls.setEntryTime(c, entryThreadTime, entryGlobalTime);
         }
     }
 
     /**
      * Generates a trace action equivalent to exiting from the given method
-     * @param methoId id of the method from which we are exiting
+     * @param methodId id of the method from which we are exiting
      * @param entryThreadTime method's thread entry time
      * @param entryGlobalTime method's global entry time
-     * @param callees from the method that we are exiting
+     * @param lastCallee the last call made by the method, or {@link CallTable#NONE}
      */
-    private void exitMethod(long methoId, int entryThreadTime, int entryGlobalTime,
-            @Nullable List<Call.Builder> callees) {
+    private void exitCall(long methodId, int entryThreadTime, int entryGlobalTime,
+            int lastCallee) {
         int lastExitThreadTime;
         int lastExitGlobalTime;
 
-        if (callees == null || callees.isEmpty()) {
+        if (lastCallee == CallTable.NONE) {
             // if the call doesn't have any callees, we assume that it just ran for 1 unit of time
             lastExitThreadTime = entryThreadTime + 1;
             lastExitGlobalTime = entryGlobalTime + 1;
         } else {
             // if it did call other methods, we assume that this call exited 1 unit of time after
             // its last callee exited
-            Call.Builder last = callees.get(callees.size() - 1);
-            lastExitThreadTime = last.getMethodExitThreadTime() + 1;
-            lastExitGlobalTime = last.getMethodExitGlobalTime() + 1;
+            lastExitThreadTime = mCalls.getExitThreadTime(lastCallee) + 1;
+            lastExitGlobalTime = mCalls.getExitGlobalTime(lastCallee) + 1;
         }
 
-        exitMethod(methoId, lastExitThreadTime, lastExitGlobalTime);
+        exitMethod(methodId, lastExitThreadTime, lastExitGlobalTime);
+    }
+
+    private int getLastCallee(int call) {
+        int last = CallTable.NONE;
+        for (int callee = mCalls.getFirstCallee(call); callee != CallTable.NONE;
+                callee = mCalls.getNextSibling(callee)) {
+            last = callee;
+        }
+        return last;
     }
 
     private void fixupCallStacks() {
-        if (mTopLevelCall != null) {
+        if (mFinished) {
             return;
         }
 
         // If there are any methods still on the call stack, then the trace doesn't have
         // exit trace action for them, so clean those up
-        while (!mCallStack.isEmpty()) {
-            Call.Builder cb = mCallStack.peek();
-            exitMethod(cb.getMethodId(), cb.getMethodEntryThreadTime(),
-                    cb.getMethodEntryGlobalTime(), cb.getCallees());
+        while (mCallStack.size() > 0) {
+            int c = mCallStack.peek();
+            exitCall(mCalls.getMethodId(c), mCalls.getEntryThreadTime(c),
+                    mCalls.getEntryGlobalTime(c), getLastCallee(c));
         }
 
         // Now that we have parsed the entire call stack, let us move all of it under a single
         // top level call.
-        exitMethod(mTopLevelCallId, 0, 0, mTopLevelCalls);
+        int lastTopLevelCall = mTopLevelCalls.isEmpty()
+                ? CallTable.NONE : mTopLevelCalls.get(mTopLevelCalls.size() - 1);
+        exitCall(mTopLevelCallId, 0, 0, lastTopLevelCall);
 
         // TODO: use global / thread times to infer context switches
 
-        // Build calls from their respective builders
         // Now that we've added the top level call, there should be only 1 top level call
         assert mTopLevelCalls.size() == 1;
-        mTopLevelCall = mTopLevelCalls.get(0).build(new Stack<Long>());
+        mCalls.finish(mTopLevelCalls.get(0));
+        mFinished = true;
     }
 
-    public Call getTopLevel() {
+    /** Returns the reconstructed calls, after closing the calls that were never exited. */
+    @NonNull
+    public CallTable getCallTable() {
         fixupCallStacks();
-        return mTopLevelCall;
+        return mCalls;
+    }
+
+    public Call getTopLevel() {
+        return getCallTable().getTopLevelCall();
     }
 }
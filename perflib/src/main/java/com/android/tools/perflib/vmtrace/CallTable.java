@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.vmtrace;
+
+import com.android.annotations.NonNull;
+import com.google.common.primitives.UnsignedInts;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Stack;
+import java.util.concurrent.TimeUnit;
+
+import gnu.trove.TLongIntHashMap;
+
+/**
+ * The calls of one thread, stored in parallel primitive arrays instead of one {@link Call} per
+ * invocation. Calls are identified by their index, in the order in which they were entered.
+ *
+ * {@link Call} objects are only created when {@link #getTopLevelCall()} is first invoked, for
+ * clients that need the object model (e.g. the call hierarchy renderer).
+ */
+public final class CallTable {
+    /** Index returned for a missing parent, callee or sibling. */
+    public static final int NONE = -1;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private int mSize;
+
+    private long[] mMethodIds = new long[INITIAL_CAPACITY];
+
+    /**
+     * Note: Like in {@link Call}, the times are unsigned integers stored as integers. The
+     * getters convert them into longs.
+     */
+    private int[] mEntryThreadTimes = new int[INITIAL_CAPACITY];
+    private int[] mEntryGlobalTimes = new int[INITIAL_CAPACITY];
+    private int[] mExitThreadTimes = new int[INITIAL_CAPACITY];
+    private int[] mExitGlobalTimes = new int[INITIAL_CAPACITY];
+
+    private int[] mParents = new int[INITIAL_CAPACITY];
+    private int[] mFirstCallees = new int[INITIAL_CAPACITY];
+    private int[] mLastCallees = new int[INITIAL_CAPACITY];
+    private int[] mNextSiblings = new int[INITIAL_CAPACITY];
+
+    /** Calls of a method that is already present in their backstack. */
+    private final BitSet mRecursive = new BitSet();
+
+    private int mTopLevel = NONE;
+
+    private Call mTopLevelCall;
+
+    /** Appends a call to the given method, not attached to any caller yet. */
+    int add(long methodId) {
+        if (mSize == mMethodIds.length) {
+            grow();
+        }
+        int call = mSize++;
+        mMethodIds[call] = methodId;
+        mParents[call] = NONE;
+        mFirstCallees[call] = NONE;
+        mLastCallees[call] = NONE;
+        mNextSiblings[call] = NONE;
+        return call;
+    }
+
+    private void grow() {
+        int capacity = mMethodIds.length * 2;
+        mMethodIds = Arrays.copyOf(mMethodIds, capacity);
+        mEntryThreadTimes = Arrays.copyOf(mEntryThreadTimes, capacity);
+        mEntryGlobalTimes = Arrays.copyOf(mEntryGlobalTimes, capacity);
+        mExitThreadTimes = Arrays.copyOf(mExitThreadTimes, capacity);
+        mExitGlobalTimes = Arrays.copyOf(mExitGlobalTimes, capacity);
+        mParents = Arrays.copyOf(mParents, capacity);
+        mFirstCallees = Arrays.copyOf(mFirstCallees, capacity);
+        mLastCallees = Arrays.copyOf(mLastCallees, capacity);
+        mNextSiblings = Arrays.copyOf(mNextSiblings, capacity);
+    }
+
+    /** Appends {@code callee}, which must not have a caller yet, to the callees of a call. */
+    void addCallee(int caller, int callee) {
+        mParents[callee] = caller;
+        if (mLastCallees[caller] == NONE) {
+            mFirstCallees[caller] = callee;
+        } else {
+            mNextSiblings[mLastCallees[caller]] = callee;
+        }
+        mLastCallees[caller] = callee;
+    }
+
+    void setEntryTime(int call, int threadTime, int globalTime) {
+        mEntryThreadTimes[call] = threadTime;
+        mEntryGlobalTimes[call] = globalTime;
+    }
+
+    void setExitTime(int call, int threadTime, int globalTime) {
+        mExitThreadTimes[call] = threadTime;
+        mExitGlobalTimes[call] = globalTime;
+    }
+
+    int getEntryThreadTime(int call) {
+        return mEntryThreadTimes[call];
+    }
+
+    int getEntryGlobalTime(int call) {
+        return mEntryGlobalTimes[call];
+    }
+
+    int getExitThreadTime(int call) {
+        return mExitThreadTimes[call];
+    }
+
+    int getExitGlobalTime(int call) {
+        return mExitGlobalTimes[call];
+    }
+
+    /**
+     * Marks the end of the reconstruction: sets the call under which all the others nest, trims
+     * the arrays and flags the recursive calls.
+     */
+    void finish(int topLevel) {
+        mTopLevel = topLevel;
+
+        mMethodIds = Arrays.copyOf(mMethodIds, mSize);
+        mEntryThreadTimes = Arrays.copyOf(mEntryThreadTimes, mSize);
+        mEntryGlobalTimes = Arrays.copyOf(mEntryGlobalTimes, mSize);
+        mExitThreadTimes = Arrays.copyOf(mExitThreadTimes, mSize);
+        mExitGlobalTimes = Arrays.copyOf(mExitGlobalTimes, mSize);
+        mParents = Arrays.copyOf(mParents, mSize);
+        mFirstCallees = Arrays.copyOf(mFirstCallees, mSize);
+        mNextSiblings = Arrays.copyOf(mNextSiblings, mSize);
+        // Only needed to append callees.
+        mLastCallees = null;
+
+        // Walk the hierarchy in invocation order, keeping track of the number of times each method
+        // is present in the backstack. The parent links replace an explicit stack.
+        TLongIntHashMap backStackCounts = new TLongIntHashMap();
+        int call = topLevel;
+        enter(call, backStackCounts);
+        while (true) {
+            if (mFirstCallees[call] != NONE) {
+                call = mFirstCallees[call];
+                enter(call, backStackCounts);
+                continue;
+            }
+            while (call != topLevel && mNextSiblings[call] == NONE) {
+                exit(call, backStackCounts);
+                call = mParents[call];
+            }
+            exit(call, backStackCounts);
+            if (call == topLevel) {
+                break;
+            }
+            call = mNextSiblings[call];
+            enter(call, backStackCounts);
+        }
+    }
+
+    private void enter(int call, @NonNull TLongIntHashMap backStackCounts) {
+        int count = backStackCounts.get(mMethodIds[call]);
+        if (count > 0) {
+            mRecursive.set(call);
+        }
+        backStackCounts.put(mMethodIds[call], count + 1);
+    }
+
+    private void exit(int call, @NonNull TLongIntHashMap backStackCounts) {
+        backStackCounts.put(mMethodIds[call], backStackCounts.get(mMethodIds[call]) - 1);
+    }
+
+    /** Returns the number of calls, including the top level one. */
+    public int size() {
+        return mSize;
+    }
+
+    /** Returns the call under which all the calls of the thread nest. */
+    public int getTopLevel() {
+        return mTopLevel;
+    }
+
+    public long getMethodId(int call) {
+        return mMethodIds[call];
+    }
+
+    /** Returns the caller of the given call, or {@link #NONE} for the top level call. */
+    public int getParent(int call) {
+        return mParents[call];
+    }
+
+    /** Returns the first call made by the given call, or {@link #NONE} if there is none. */
+    public int getFirstCallee(int call) {
+        return mFirstCallees[call];
+    }
+
+    /** Returns the next call made by the caller of the given call, or {@link #NONE}. */
+    public int getNextSibling(int call) {
+        return mNextSiblings[call];
+    }
+
+    /** Returns true if the same method is present in the backstack of the given call. */
+    public boolean isRecursive(int call) {
+        return mRecursive.get(call);
+    }
+
+    public long getEntryTime(int call, ClockType clockType, TimeUnit units) {
+        long entryTime = clockType == ClockType.THREAD ?
+                UnsignedInts.toLong(mEntryThreadTimes[call]) :
+                UnsignedInts.toLong(mEntryGlobalTimes[call]);
+        return units.convert(entryTime, VmTraceData.getDefaultTimeUnits());
+    }
+
+    public long getExitTime(int call, ClockType clockType, TimeUnit units) {
+        long exitTime = clockType == ClockType.THREAD ?
+                UnsignedInts.toLong(mExitThreadTimes[call]) :
+                UnsignedInts.toLong(mExitGlobalTimes[call]);
+        return units.convert(exitTime, VmTraceData.getDefaultTimeUnits());
+    }
+
+    public long getInclusiveTime(int call, ClockType clockType, TimeUnit units) {
+        long inclusiveTime = clockType == ClockType.THREAD ?
+                UnsignedInts.toLong(mExitThreadTimes[call] - mEntryThreadTimes[call]) :
+                UnsignedInts.toLong(mExitGlobalTimes[call] - mEntryGlobalTimes[call]);
+        return units.convert(inclusiveTime, VmTraceData.getDefaultTimeUnits());
+    }
+
+    public long getExclusiveTime(int call, ClockType clockType, TimeUnit units) {
+        long exclusiveTime = getInclusiveTime(call, clockType, VmTraceData.getDefaultTimeUnits());
+        for (int callee = mFirstCallees[call]; callee != NONE; callee = mNextSiblings[callee]) {
+            exclusiveTime -= getInclusiveTime(callee, clockType,
+                    VmTraceData.getDefaultTimeUnits());
+        }
+        return units.convert(exclusiveTime, VmTraceData.getDefaultTimeUnits());
+    }
+
+    /**
+     * Returns the top level call of the thread, creating the {@link Call} objects of the whole
+     * hierarchy on first use.
+     */
+    @NonNull
+    public synchronized Call getTopLevelCall() {
+        if (mTopLevelCall == null) {
+            mTopLevelCall = new Call(this, mTopLevel, new Stack<Long>());
+        }
+        return mTopLevelCall;
+    }
+}
@@ -168,6 +168,33 @@ public class MethodProfileData {
             }
         }
 
+        /** Same as {@link #addCallTime(Call, Call, ThreadInfo)}, for a call of a {@link CallTable}. */
+        public void addCallTime(CallTable calls, int call, ThreadInfo thread) {
+            int parent = calls.getParent(call);
+            for (ClockType type: ClockType.values()) {
+                long time = calls.getExclusiveTime(call, type, DATA_TIME_UNITS);
+                addExclusiveTime(getPerThreadStats(thread), time, type);
+                if (parent != CallTable.NONE) {
+                    addExclusiveTime(getPerCallerStats(thread, calls.getMethodId(parent)), time,
+                            type);
+                }
+
+                if (!calls.isRecursive(call)) {
+                    time = calls.getInclusiveTime(call, type, DATA_TIME_UNITS);
+                    addInclusiveTime(getPerThreadStats(thread), time, type);
+                    if (parent != CallTable.NONE) {
+                        addInclusiveTime(getPerCallerStats(thread, calls.getMethodId(parent)),
+                                time, type);
+                    }
+                    for (int callee = calls.getFirstCallee(call); callee != CallTable.NONE;
+                            callee = calls.getNextSibling(callee)) {
+                        addInclusiveTime(getPerCalleeStats(thread, calls.getMethodId(callee)),
+                                calls.getInclusiveTime(callee, type, DATA_TIME_UNITS), type);
+                    }
+                }
+            }
+        }
+
         private void addExclusiveTime(Call call, Call parent, ThreadInfo thread, ClockType type) {
             long time = call.getExclusiveTime(type, DATA_TIME_UNITS);
 
@@ -216,13 +243,19 @@ public class MethodProfileData {
         }
 
         private MethodStats getPerCallerStats(ThreadInfo thread, Call parent) {
-            return getMethodStatsFromTable(thread.getId(), parent.getMethodId(),
-                    mPerThreadStatsByCaller);
+            return getPerCallerStats(thread, parent.getMethodId());
+        }
+
+        private MethodStats getPerCallerStats(ThreadInfo thread, long parentId) {
+            return getMethodStatsFromTable(thread.getId(), parentId, mPerThreadStatsByCaller);
         }
 
         private MethodStats getPerCalleeStats(ThreadInfo thread, Call callee) {
-            return getMethodStatsFromTable(thread.getId(), callee.getMethodId(),
-                    mPerThreadStatsByCallee);
+            return getPerCalleeStats(thread, callee.getMethodId());
+        }
+
+        private MethodStats getPerCalleeStats(ThreadInfo thread, long calleeId) {
+            return getMethodStatsFromTable(thread.getId(), calleeId, mPerThreadStatsByCallee);
         }
 
         private MethodStats getMethodStatsFromTable(Integer threadId, Long methodId,
@@ -245,6 +278,22 @@ public class MethodProfileData {
             }
         }
 
+        /**
+         * Same as {@link #incrementInvocationCount(Call, Call, ThreadInfo)}, for a call of a
+         * {@link CallTable}.
+         */
+        public void incrementInvocationCount(CallTable calls, int call, ThreadInfo thread) {
+            getPerThreadStats(thread).mInvocationCount++;
+            int parent = calls.getParent(call);
+            if (parent != CallTable.NONE) {
+                getPerCallerStats(thread, calls.getMethodId(parent)).mInvocationCount++;
+            }
+            for (int callee = calls.getFirstCallee(call); callee != CallTable.NONE;
+                    callee = calls.getNextSibling(callee)) {
+                getPerCalleeStats(thread, calls.getMethodId(callee)).mInvocationCount++;
+            }
+        }
+
         public MethodProfileData build() {
             return new MethodProfileData(this);
         }
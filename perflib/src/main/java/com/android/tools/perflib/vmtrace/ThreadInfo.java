@@ -26,13 +26,13 @@ public class ThreadInfo {
     /** Thread name */
     private final String mName;
 
-    /** Top level call in this thread */
-    private final Call mTopLevelCall;
+    /** Calls made in this thread */
+    private final CallTable mCalls;
 
-    public ThreadInfo(int threadId, @NonNull String name, @Nullable Call topLevelCall) {
+    public ThreadInfo(int threadId, @NonNull String name, @Nullable CallTable calls) {
         mId = threadId;
         mName = name;
-        mTopLevelCall = topLevelCall;
+        mCalls = calls;
     }
 
     public int getId() {
@@ -44,8 +44,17 @@ public class ThreadInfo {
         return mName;
     }
 
+    @Nullable
+    public CallTable getCallTable() {
+        return mCalls;
+    }
+
+    /**
+     * Returns the top level call in this thread. The call hierarchy is created on first use, use
+     * {@link #getCallTable()} to avoid materializing it.
+     */
     @Nullable
     public Call getTopLevelCall() {
-        return mTopLevelCall;
+        return mCalls != null ? mCalls.getTopLevelCall() : null;
     }
 }
@@ -33,6 +33,8 @@ import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
+import gnu.trove.TLongHashSet;
+
 /**
  * The {@link VmTraceData} class stores all the information from a Dalvik method trace file.
  * Specifically, it provides:
@@ -76,7 +78,7 @@ public class VmTraceData {
                 name = String.format("%1$s-%2$d", name, id);
             }
 
-            info = new ThreadInfo(id, name, b.mTopLevelCalls.get(id));
+            info = new ThreadInfo(id, name, b.mCallTables.get(id));
             mThreadInfo.put(name, info);
         }
     }
@@ -121,7 +123,7 @@ public class VmTraceData {
             @Override
             public boolean apply(
                     com.android.tools.perflib.vmtrace.ThreadInfo input) {
-                return input.getTopLevelCall() != null;
+                return input.getCallTable() != null;
             }
         }));
     }
@@ -152,12 +154,12 @@ public class VmTraceData {
      * in given thread.
      */
     public double getDurationPercentage(long methodTime, ThreadInfo thread, ClockType clockType) {
-        Call topCall = getThread(thread.getName()).getTopLevelCall();
-        if (topCall == null) {
+        CallTable calls = getThread(thread.getName()).getCallTable();
+        if (calls == null) {
             return 100.;
         }
 
-        MethodInfo topInfo = getMethod(topCall.getMethodId());
+        MethodInfo topInfo = getMethod(calls.getMethodId(calls.getTopLevel()));
 
         // always use inclusive time to obtain the top level's time when computing percentages
         TimeSelector selector = TimeSelector.create(clockType, true);
@@ -223,8 +225,8 @@ public class VmTraceData {
         private final SparseArray<CallStackReconstructor> mStackReconstructors
                 = new SparseArray<CallStackReconstructor>(10);
 
-        /** Map from thread id to the top level call for that thread. */
-        private final SparseArray<Call> mTopLevelCalls = new SparseArray<Call>(10);
+        /** Map from thread id to the calls of that thread. */
+        private final SparseArray<CallTable> mCallTables = new SparseArray<CallTable>(10);
 
         public void setVersion(int version) {
             mVersion = version;
@@ -269,17 +271,13 @@ public class VmTraceData {
                 mThreads.put(threadId, String.format("Thread id: %1$d", threadId));
             }
 
-            // create method info if it doesn't exist
-            if (mMethods.get(methodId) == null) {
-                MethodInfo info = new MethodInfo(methodId, "unknown", "unknown", "unknown",
-                        "unknown", -1);
-                mMethods.put(methodId, info);
-            }
+            // method infos of unknown methods are created once all the actions are known, in build()
 
             if (DEBUG) {
                 MethodInfo methodInfo = mMethods.get(methodId);
                 System.out.printf("Thread %1$30s: (%2$8x) %3$-40s %4$20s\n",
-                        mThreads.get(threadId), methodId, methodInfo.getShortName(), methodAction);
+                        mThreads.get(threadId), methodId,
+                        methodInfo != null ? methodInfo.getShortName() : "unknown", methodAction);
             }
 
             CallStackReconstructor reconstructor = mStackReconstructors.get(threadId);
@@ -305,7 +303,19 @@ public class VmTraceData {
             for (int i = 0; i < mStackReconstructors.size(); i++) {
                 int threadId = mStackReconstructors.keyAt(i);
                 CallStackReconstructor reconstructor = mStackReconstructors.valueAt(i);
-                mTopLevelCalls.put(threadId, reconstructor.getTopLevel());
+                CallTable calls = reconstructor.getCallTable();
+                mCallTables.put(threadId, calls);
+
+                // create method info for the methods that do not exist
+                TLongHashSet methodIds = new TLongHashSet();
+                for (int call = 0; call < calls.size(); call++) {
+                    long methodId = calls.getMethodId(call);
+                    if (methodIds.add(methodId) && mMethods.get(methodId) == null) {
+                        MethodInfo info = new MethodInfo(methodId, "unknown", "unknown",
+                                "unknown", "unknown", -1);
+                        mMethods.put(methodId, info);
+                    }
+                }
             }
 
             return new VmTraceData(this);
@@ -20,7 +20,6 @@ import com.android.annotations.NonNull;
 import com.android.annotations.VisibleForTesting;
 import com.android.ddmlib.ByteBufferUtil;
 import com.google.common.base.Charsets;
-import com.google.common.collect.Maps;
 import com.google.common.io.Closeables;
 import com.google.common.primitives.UnsignedInts;
 
@@ -31,8 +30,9 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.Map;
-import java.util.Set;
+
+import gnu.trove.TLongObjectHashMap;
+import gnu.trove.TLongObjectIterator;
 
 public class VmTraceParser {
     private static final int TRACE_MAGIC = 0x574f4c53; // 'SLOW'
@@ -389,35 +389,37 @@ public class VmTraceParser {
 
         ProfileDataBuilder builder = new ProfileDataBuilder();
         for (ThreadInfo thread : data.getThreads()) {
-            Call c = thread.getTopLevelCall();
-            if (c == null) {
+            CallTable calls = thread.getCallTable();
+            if (calls == null) {
                 continue;
             }
 
-            builder.computeCallStats(c, null, thread);
+            builder.computeCallStats(calls, thread);
         }
 
-        for (Long methodId : builder.getMethodsWithProfileData()) {
-            MethodInfo method = data.getMethod(methodId);
-            method.setProfileData(builder.getProfileData(methodId));
+        TLongObjectIterator<MethodProfileData.Builder> it = builder.iterator();
+        while (it.hasNext()) {
+            it.advance();
+            MethodInfo method = data.getMethod(it.key());
+            method.setProfileData(it.value().build());
         }
     }
 
     private static class ProfileDataBuilder {
         /** Maps method ids to their corresponding method data builders */
-        private final Map<Long, MethodProfileData.Builder> mBuilderMap = Maps.newHashMap();
-
-        public void computeCallStats(Call c, Call parent, ThreadInfo thread) {
-            long methodId = c.getMethodId();
-            MethodProfileData.Builder builder = getProfileDataBuilder(methodId);
-            builder.addCallTime(c, parent, thread);
-            builder.incrementInvocationCount(c, parent, thread);
-            if (c.isRecursive()) {
-                builder.setRecursive();
-            }
-
-            for (Call callee: c.getCallees()) {
-                computeCallStats(callee, c, thread);
+        private final TLongObjectHashMap<MethodProfileData.Builder> mBuilderMap =
+                new TLongObjectHashMap<MethodProfileData.Builder>();
+
+        public void computeCallStats(CallTable calls, ThreadInfo thread) {
+            // The parent and callees of each call are stored in the table, so the order in which
+            // calls are visited does not matter.
+            for (int call = 0; call < calls.size(); call++) {
+                MethodProfileData.Builder builder = getProfileDataBuilder(calls.getMethodId(call));
+                builder.addCallTime(calls, call, thread);
+                builder.incrementInvocationCount(calls, call, thread);
+                if (calls.isRecursive(call)) {
+                    builder.setRecursive();
+                }
             }
         }
 
@@ -431,12 +433,9 @@ public class VmTraceParser {
             return builder;
         }
 
-        public Set<Long> getMethodsWithProfileData() {
-            return mBuilderMap.keySet();
-        }
-
-        public MethodProfileData getProfileData(Long methodId) {
-            return mBuilderMap.get(methodId).build();
+        @NonNull
+        public TLongObjectIterator<MethodProfileData.Builder> iterator() {
+            return mBuilderMap.iterator();
         }
     }
 }
@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap;
+
+import com.android.tools.perflib.captures.MemoryMappedFileBuffer;
+import com.android.tools.perflib.heap.analysis.CompactDominators;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class CompactSnapshotTest extends TestCase {
+
+    private Snapshot mSnapshot;
+
+    private Snapshot mCompactSnapshot;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        File file = new File(getClass().getResource("/dialer.android-hprof").getFile());
+        mSnapshot = Snapshot.createSnapshot(new MemoryMappedFileBuffer(file));
+        mCompactSnapshot = Snapshot.createSnapshot(new MemoryMappedFileBuffer(file), true);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+
+        mSnapshot.dispose();
+        mSnapshot = null;
+        mCompactSnapshot.dispose();
+        mCompactSnapshot = null;
+    }
+
+    public void testParsingDoesNotCreateInstances() {
+        assertFalse(mSnapshot.isCompact());
+        assertTrue(mCompactSnapshot.isCompact());
+
+        InstanceTable table = mCompactSnapshot.getInstanceTable();
+        assertNotNull(table);
+        assertEquals(0, table.getMaterializedCount());
+
+        mCompactSnapshot.getReferenceGraph();
+        assertEquals(0, table.getMaterializedCount());
+    }
+
+    public void testClassStatistics() {
+        for (Heap heap : mSnapshot.getHeaps()) {
+            Heap compactHeap = mCompactSnapshot.getHeap(heap.getName());
+            assertNotNull(compactHeap);
+            assertEquals(heap.getInstancesCount(), compactHeap.getInstancesCount());
+
+            for (ClassObj classObj : heap.getClasses()) {
+                ClassObj compactClass = compactHeap.getClass(classObj.getId());
+                assertNotNull(compactClass);
+                assertEquals(classObj.getInstanceCount(), compactClass.getInstanceCount());
+                assertEquals(classObj.getShallowSize(), compactClass.getShallowSize());
+            }
+        }
+        assertEquals(0, mCompactSnapshot.getInstanceTable().getMaterializedCount());
+    }
+
+    public void testLazyInstances() {
+        ClassObj stringArray = mCompactSnapshot.findClass("java.lang.String[]");
+        assertNotNull(stringArray);
+        List<Instance> instances = stringArray.getInstancesList();
+        assertEquals(1396, instances.size());
+        assertEquals(1396, mCompactSnapshot.getInstanceTable().getMaterializedCount());
+
+        for (Instance instance : instances) {
+            assertSame(instance, mCompactSnapshot.findInstance(instance.getId()));
+            assertSame(stringArray, instance.getClassObj());
+        }
+    }
+
+    public void testReferenceGraph() {
+        mSnapshot.resolveReferences();
+        ReferenceGraph graph = mCompactSnapshot.getReferenceGraph();
+        InstanceTable table = graph.getInstanceTable();
+
+        int checked = 0;
+        for (int node = 0; node < graph.getNodeCount(); node++) {
+            Instance instance = mSnapshot.findInstance(table.getId(node));
+            assertNotNull(instance);
+            assertEquals(instance.getSize(), table.getSize(node));
+
+            Set<Long> expected = new HashSet<Long>();
+            for (Instance reference : instance.getHardForwardReferences()) {
+                if (reference != instance) {
+                    expected.add(reference.getId());
+                }
+            }
+            Set<Long> actual = new HashSet<Long>();
+            for (int edge = graph.getForwardStart(node); edge < graph.getForwardEnd(node);
+                    edge++) {
+                actual.add(table.getId(graph.getForwardTarget(edge)));
+            }
+            assertEquals(expected, actual);
+            assertEquals(expected.size(), graph.getForwardEnd(node) - graph.getForwardStart(node));
+
+            for (int edge = graph.getReverseStart(node); edge < graph.getReverseEnd(node);
+                    edge++) {
+                int source = graph.getReverseSource(edge);
+                boolean found = false;
+                for (int e = graph.getForwardStart(source); e < graph.getForwardEnd(source); e++) {
+                    found |= graph.getForwardTarget(e) == node;
+                }
+                assertTrue(found);
+            }
+            checked++;
+        }
+        assertEquals(table.size(), checked);
+        assertEquals(graph.getEdgeCount(), countReverseEdges(graph));
+    }
+
+    public void testReferenceGraphIsBuiltOnceWithoutMovingTheBuffer() throws Exception {
+        // Instances are read from the snapshot's buffer while the graph is built.
+        mCompactSnapshot.getBuffer().setPosition(1234);
+        final ReferenceGraph[] graphs = new ReferenceGraph[4];
+        Thread[] threads = new Thread[graphs.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    graphs[index] = mCompactSnapshot.getReferenceGraph();
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(1234, mCompactSnapshot.getBuffer().position());
+        for (ReferenceGraph graph : graphs) {
+            assertSame(graphs[0], graph);
+        }
+    }
+
+    public void testDuplicateIdsShareRow() {
+        InstanceTable table = new InstanceTable(mCompactSnapshot);
+        int row = table.add(1, InstanceTable.KIND_CLASS_INSTANCE, 2, 0, 0, 0, 0);
+        assertEquals(row, table.add(1, InstanceTable.KIND_CLASS_INSTANCE, 3, 0, 0, 0, 16));
+        assertEquals(1, table.size());
+        assertEquals(3, table.getClassId(row));
+        assertEquals(1, table.getHeapRows(0).length);
+
+        // As with Heap, objects of different heaps don't replace each other.
+        assertTrue(row != table.add(1, InstanceTable.KIND_CLASS_INSTANCE, 3, 1, 0, 0, 32));
+        assertEquals(2, table.size());
+        assertEquals(1, table.getHeapRows(1).length);
+    }
+
+    public void testDominators() {
+        mSnapshot.computeDominators();
+        mCompactSnapshot.computeDominators();
+        InstanceTable table = mCompactSnapshot.getInstanceTable();
+        assertEquals(0, table.getMaterializedCount());
+
+        CompactDominators dominators = mCompactSnapshot.getCompactDominators();
+        assertNotNull(dominators);
+        List<Instance> topSort = mSnapshot.getTopologicalOrdering();
+        assertEquals(topSort.size(), dominators.getReachableCount());
+        for (Instance instance : topSort) {
+            int row = table.indexOf(instance.getId());
+            assertTrue(dominators.getTopologicalOrder(row) > 0);
+            assertEquals(instance.getDistanceToGcRoot(), dominators.getDistanceToGcRoot(row));
+            Instance dominator = instance.getImmediateDominator();
+            int dominatorRow = dominators.getImmediateDominator(row);
+            if (dominator == Snapshot.SENTINEL_ROOT) {
+                assertEquals(CompactDominators.SENTINEL_ROOT, dominatorRow);
+            } else if (dominator == null) {
+                assertEquals(CompactDominators.NONE, dominatorRow);
+            } else {
+                assertEquals(dominator.getId(), table.getId(dominatorRow));
+            }
+            for (int heap = 0; heap < mSnapshot.getHeaps().size(); heap++) {
+                assertEquals(instance.getRetainedSize(heap), dominators.getRetainedSize(row, heap));
+            }
+        }
+        assertEquals(0, table.getMaterializedCount());
+        assertEquals(mSnapshot.getReachableInstances().size(),
+                mCompactSnapshot.getReachableInstances().size());
+    }
+
+    public void testInstancesReadCompactResults() {
+        mSnapshot.computeDominators();
+        mCompactSnapshot.computeDominators();
+
+        ClassObj stringArray = mCompactSnapshot.findClass("java.lang.String[]");
+        for (Instance compactInstance : stringArray.getInstancesList()) {
+            Instance instance = mSnapshot.findInstance(compactInstance.getId());
+            assertEquals(instance.getDistanceToGcRoot(), compactInstance.getDistanceToGcRoot());
+            assertEquals(instance.getTopologicalOrder() > 0,
+                    compactInstance.getTopologicalOrder() > 0);
+            assertEquals(instance.getTotalRetainedSize(), compactInstance.getTotalRetainedSize());
+            assertEquals(idOf(instance.getImmediateDominator()),
+                    idOf(compactInstance.getImmediateDominator()));
+            assertEquals(idsOf(instance.getHardForwardReferences()),
+                    idsOf(compactInstance.getHardForwardReferences()));
+            assertEquals(idsOf(instance.getHardReverseReferences()),
+                    idsOf(compactInstance.getHardReverseReferences()));
+        }
+    }
+
+    private static long idOf(Instance instance) {
+        return instance == null ? -1 : instance.getId();
+    }
+
+    private static Set<Long> idsOf(List<Instance> instances) {
+        Set<Long> ids = new HashSet<Long>();
+        for (Instance instance : instances) {
+            ids.add(instance.getId());
+        }
+        return ids;
+    }
+
+    private static int countReverseEdges(ReferenceGraph graph) {
+        int count = 0;
+        for (int node = 0; node < graph.getNodeCount(); node++) {
+            count += graph.getReverseEnd(node) - graph.getReverseStart(node);
+        }
+        return count;
+    }
+}
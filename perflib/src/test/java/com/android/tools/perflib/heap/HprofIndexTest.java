@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.perflib.heap;
+
+import com.android.tools.perflib.heap.analysis.CompactDominators;
+import com.google.common.io.Files;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class HprofIndexTest extends TestCase {
+
+    private File mTempDir;
+
+    private File mHprofFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        mTempDir = Files.createTempDir();
+        mHprofFile = new File(mTempDir, "dialer.hprof");
+        Files.copy(new File(getClass().getResource("/dialer.android-hprof").getFile()),
+                mHprofFile);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+
+        File[] files = mTempDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mTempDir.delete();
+    }
+
+    public void testAnalysisIsRestored() throws Exception {
+        Snapshot first = Snapshot.createSnapshot(mHprofFile, false);
+        first.computeDominators();
+        assertTrue(HprofIndex.getIndexFile(mHprofFile).isFile());
+
+        Snapshot second = Snapshot.createSnapshot(mHprofFile, false);
+        try {
+            second.computeDominators();
+
+            List<Instance> expected = first.getTopologicalOrdering();
+            List<Instance> actual = second.getTopologicalOrdering();
+            assertEquals(expected.size(), actual.size());
+            assertEquals(first.getReachableInstances().size(),
+                    second.getReachableInstances().size());
+
+            for (int i = 0; i < expected.size(); i++) {
+                Instance expectedInstance = expected.get(i);
+                Instance actualInstance = actual.get(i);
+                assertEquals(expectedInstance.getId(), actualInstance.getId());
+                assertEquals(expectedInstance.getTotalRetainedSize(),
+                        actualInstance.getTotalRetainedSize());
+                assertEquals(expectedInstance.getDistanceToGcRoot(),
+                        actualInstance.getDistanceToGcRoot());
+                assertEquals(idOf(expectedInstance.getImmediateDominator()),
+                        idOf(actualInstance.getImmediateDominator()));
+                assertEquals(idOf(expectedInstance.getNextInstanceToGcRoot()),
+                        idOf(actualInstance.getNextInstanceToGcRoot()));
+            }
+
+            // References are resolved when first asked for.
+            for (int i = 0; i < expected.size(); i += 97) {
+                assertEquals(idsOf(expected.get(i).getHardForwardReferences()),
+                        idsOf(actual.get(i).getHardForwardReferences()));
+                assertEquals(idsOf(expected.get(i).getHardReverseReferences()),
+                        idsOf(actual.get(i).getHardReverseReferences()));
+            }
+        } finally {
+            first.dispose();
+            second.dispose();
+        }
+    }
+
+    public void testReferenceGraphIsRestored() throws Exception {
+        Snapshot first = Snapshot.createSnapshot(mHprofFile, true);
+        ReferenceGraph expected = first.getReferenceGraph();
+        first.computeDominators();
+
+        Snapshot second = Snapshot.createSnapshot(mHprofFile, true);
+        try {
+            ReferenceGraph actual = second.getReferenceGraph();
+            assertNotSame(expected, actual);
+            assertEquals(expected.getNodeCount(), actual.getNodeCount());
+            assertEquals(expected.getEdgeCount(), actual.getEdgeCount());
+            for (int edge = 0; edge < expected.getEdgeCount(); edge++) {
+                assertEquals(expected.getForwardTarget(edge), actual.getForwardTarget(edge));
+            }
+            for (int node = 0; node < expected.getNodeCount(); node++) {
+                assertEquals(expected.getReverseStart(node), actual.getReverseStart(node));
+                assertEquals(expected.getSoftReferent(node), actual.getSoftReferent(node));
+            }
+        } finally {
+            first.dispose();
+            second.dispose();
+        }
+    }
+
+    public void testCompactAnalysisIsRestored() throws Exception {
+        Snapshot first = Snapshot.createSnapshot(mHprofFile, true);
+        first.computeDominators();
+
+        Snapshot second = Snapshot.createSnapshot(mHprofFile, true);
+        try {
+            second.computeDominators();
+            CompactDominators expected = first.getCompactDominators();
+            CompactDominators actual = second.getCompactDominators();
+            assertNotNull(actual);
+            assertNotSame(expected, actual);
+            assertEquals(0, second.getInstanceTable().getMaterializedCount());
+
+            assertEquals(expected.getReachableCount(), actual.getReachableCount());
+            for (int row = 0; row < first.getInstanceTable().size(); row++) {
+                assertEquals(expected.getTopologicalOrder(row), actual.getTopologicalOrder(row));
+                assertEquals(expected.getImmediateDominator(row),
+                        actual.getImmediateDominator(row));
+                assertEquals(expected.getDistanceToGcRoot(row), actual.getDistanceToGcRoot(row));
+                assertEquals(expected.getNextRowToGcRoot(row), actual.getNextRowToGcRoot(row));
+                assertEquals(expected.getTotalRetainedSize(row),
+                        actual.getTotalRetainedSize(row));
+            }
+        } finally {
+            first.dispose();
+            second.dispose();
+        }
+    }
+
+    public void testStaleIndexIsIgnored() throws Exception {
+        Snapshot first = Snapshot.createSnapshot(mHprofFile, false);
+        first.computeDominators();
+        first.dispose();
+
+        // Touching the contents of the dump invalidates the index.
+        File index = HprofIndex.getIndexFile(mHprofFile);
+        byte[] contents = Files.toByteArray(mHprofFile);
+        contents[contents.length - 1] ^= 1;
+        Files.write(contents, mHprofFile);
+
+        assertTrue(index.isFile());
+        assertFalse(HprofIndex.open(mHprofFile).isValid());
+    }
+
+    public void testCorruptIndexIsIgnored() throws Exception {
+        Snapshot first = Snapshot.createSnapshot(mHprofFile, true);
+        first.computeDominators();
+        first.dispose();
+        File indexFile = HprofIndex.getIndexFile(mHprofFile);
+        byte[] index = Files.toByteArray(indexFile);
+
+        // The number of reachable instances follows the magic, version, key and heap count.
+        byte[] corrupt = index.clone();
+        int countOffset = 4 + 4 + 4 + 16 + 4;
+        corrupt[countOffset] = 0x7f;
+        assertIndexIsIgnored(corrupt);
+
+        assertIndexIsIgnored(Arrays.copyOf(index, index.length / 2));
+    }
+
+    private void assertIndexIsIgnored(byte[] index) throws Exception {
+        Files.write(index, HprofIndex.getIndexFile(mHprofFile));
+        Snapshot snapshot = Snapshot.createSnapshot(mHprofFile, true);
+        try {
+            assertTrue(HprofIndex.open(mHprofFile).isValid());
+            snapshot.computeDominators();
+            assertNotNull(snapshot.getCompactDominators());
+            assertTrue(snapshot.getCompactDominators().getReachableCount() > 0);
+        } finally {
+            snapshot.dispose();
+        }
+    }
+
+    public void testIndexIsReplacedWhileMapped() throws Exception {
+        Snapshot first = Snapshot.createSnapshot(mHprofFile, false);
+        first.computeDominators();
+        first.dispose();
+
+        HprofIndex index = HprofIndex.open(mHprofFile);
+        assertTrue(index.isValid());
+        Snapshot second = Snapshot.createSnapshot(mHprofFile, false);
+        try {
+            second.computeDominators();
+            index.write(second, mHprofFile);
+            assertFalse(new File(HprofIndex.getIndexFile(mHprofFile).getPath() + ".tmp").exists());
+            assertTrue(HprofIndex.open(mHprofFile).isValid());
+        } finally {
+            second.dispose();
+        }
+    }
+
+    public void testKeySamplesContents() throws Exception {
+        byte[] key = HprofIndex.computeKey(mHprofFile);
+        long lastModified = mHprofFile.lastModified();
+        byte[] contents = Files.toByteArray(mHprofFile);
+        contents[0] ^= 1;
+        Files.write(contents, mHprofFile);
+        assertTrue(mHprofFile.setLastModified(lastModified));
+        assertFalse(Arrays.equals(key, HprofIndex.computeKey(mHprofFile)));
+    }
+
+    private static Set<Long> idsOf(List<Instance> instances) {
+        Set<Long> ids = new HashSet<Long>();
+        for (Instance instance : instances) {
+            ids.add(instance.getId());
+        }
+        return ids;
+    }
+
+    private static long idOf(Instance instance) {
+        return instance == null ? -1 : instance.getId();
+    }
+}
@@ -17,12 +17,19 @@
 package com.android.tools.perflib.heap;
 
 import com.android.tools.perflib.captures.MemoryMappedFileBuffer;
+import com.android.tools.perflib.heap.io.InMemoryBuffer;
+import com.google.common.io.Files;
 
 import junit.framework.TestCase;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+
+import gnu.trove.TObjectProcedure;
 
 public class HprofParserTest extends TestCase {
 
@@ -186,4 +193,111 @@ public class HprofParserTest extends TestCase {
         assertTrue(subSoftReferenceClass.getIsSoftReference());
         assertTrue(subSubSoftReferenceClass.getIsSoftReference());
     }
+
+    public void testParallelParsing() throws Exception {
+        assertParallelParsingMatches(1 << 24);
+    }
+
+    public void testParallelParsingOfSplitRecords() throws Exception {
+        // Small enough to split the heap dump records of the sample into many segments.
+        assertParallelParsingMatches(4096);
+    }
+
+    private void assertParallelParsingMatches(long maxSegmentLength) throws Exception {
+        File file = new File(getClass().getResource("/dialer.android-hprof").getFile());
+        Snapshot sequential = Snapshot.createSnapshot(new InMemoryBuffer(Files.toByteArray(file)));
+
+        MemoryMappedFileBuffer buffer = new MemoryMappedFileBuffer(file);
+        Snapshot parallel = new Snapshot(buffer);
+        HprofParser.parseBuffer(parallel, buffer, 4, maxSegmentLength);
+
+        try {
+            assertEquals(describeRoots(sequential), describeRoots(parallel));
+            assertEquals(sequential.getHeaps().size(), parallel.getHeaps().size());
+            for (Heap heap : sequential.getHeaps()) {
+                Heap parallelHeap = parallel.getHeap(heap.getName());
+                assertNotNull(parallelHeap);
+                assertEquals(heap.getId(), parallelHeap.getId());
+                assertEquals(describeClasses(heap), describeClasses(parallelHeap));
+                assertEquals(describeInstances(heap), describeInstances(parallelHeap));
+            }
+        } finally {
+            parallel.dispose();
+        }
+    }
+
+    private static List<String> describeRoots(Snapshot snapshot) {
+        List<String> roots = new ArrayList<String>();
+        for (RootObj root : snapshot.getGCRoots()) {
+            roots.add(root.getRootType() + "@" + root.getId() + " thread " + root.mThread
+                    + " heap " + root.getHeap().getName() + " " + describe(root.getStack()));
+        }
+        return roots;
+    }
+
+    private static Map<Long, String> describeClasses(Heap heap) {
+        Map<Long, String> classes = new HashMap<Long, String>();
+        for (ClassObj classObj : heap.getClasses()) {
+            StringBuilder description = new StringBuilder(classObj.getClassName())
+                    .append(" extends ").append(describe(classObj.getSuperClassObj()))
+                    .append(" loader ").append(describe(classObj.getClassLoader()))
+                    .append(" size ").append(classObj.getInstanceSize())
+                    .append(" instances ").append(classObj.getInstanceCount())
+                    .append(" shallow ").append(classObj.getShallowSize())
+                    .append(" ").append(describe(classObj.getStack()));
+            for (Field field : classObj.getFields()) {
+                description.append(" ").append(field.getType()).append(" ")
+                        .append(field.getName());
+            }
+            for (Map.Entry<Field, Object> entry : classObj.getStaticFieldValues().entrySet()) {
+                description.append(" static ").append(entry.getKey().getName()).append("=")
+                        .append(describe(entry.getValue()));
+            }
+            classes.put(classObj.getId(), description.toString());
+        }
+        return classes;
+    }
+
+    private static Map<Long, String> describeInstances(Heap heap) {
+        final Map<Long, String> instances = new HashMap<Long, String>();
+        heap.forEachInstance(new TObjectProcedure<Instance>() {
+            @Override
+            public boolean execute(Instance instance) {
+                instance.resolveReferences();
+                StringBuilder description = new StringBuilder(
+                        describe(instance.getClassObj()))
+                        .append(" size ").append(instance.getSize())
+                        .append(" ").append(describe(instance.getStack()));
+                if (instance instanceof ClassInstance) {
+                    for (ClassInstance.FieldValue value : ((ClassInstance) instance).getValues()) {
+                        description.append(" ").append(value.getField().getName()).append("=")
+                                .append(describe(value.getValue()));
+                    }
+                } else {
+                    ArrayInstance array = (ArrayInstance) instance;
+                    description.append(" ").append(array.getArrayType());
+                    for (Object value : array.getValues()) {
+                        description.append(" ").append(describe(value));
+                    }
+                }
+                for (Instance reference : instance.getHardForwardReferences()) {
+                    description.append(" ->").append(describe(reference));
+                }
+                instances.put(instance.getId(), description.toString());
+                return true;
+            }
+        });
+        assertEquals(heap.getInstancesCount(), instances.size());
+        return instances;
+    }
+
+    private static String describe(Object value) {
+        if (value instanceof Instance) {
+            return "@" + ((Instance) value).getId();
+        }
+        if (value instanceof StackTrace) {
+            return "trace " + ((StackTrace) value).getSerialNumber();
+        }
+        return String.valueOf(value);
+    }
 }
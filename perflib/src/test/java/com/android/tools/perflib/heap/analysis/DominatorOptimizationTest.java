@@ -37,6 +37,25 @@ public class DominatorOptimizationTest extends TestCase {
         optimizedSnapshot.prepareDominatorComputation();
         optimizedSnapshot.doComputeDominators(new LinkEvalDominators(optimizedSnapshot));
 
+        assertSameDominators(groundTruthSnapshot, optimizedSnapshot);
+    }
+
+    public void testParallelCorrectness() throws IOException {
+        File file = new File(getClass().getResource("/dialer.android-hprof").getFile());
+
+        Snapshot groundTruthSnapshot = Snapshot.createSnapshot(new MemoryMappedFileBuffer(file));
+        groundTruthSnapshot.prepareDominatorComputation();
+        groundTruthSnapshot.doComputeDominators(new LinkEvalDominators(groundTruthSnapshot));
+
+        Snapshot parallelSnapshot = Snapshot.createSnapshot(new MemoryMappedFileBuffer(file));
+        parallelSnapshot.prepareDominatorComputation();
+        parallelSnapshot.doComputeDominators(new ParallelDominators(parallelSnapshot, 4));
+
+        assertSameDominators(groundTruthSnapshot, parallelSnapshot);
+    }
+
+    private static void assertSameDominators(Snapshot groundTruthSnapshot,
+            Snapshot optimizedSnapshot) {
         for (Heap groundTruthHeap : groundTruthSnapshot.getHeaps()) {
             int heapId = groundTruthHeap.getId();
             final Heap optimizedHeap = optimizedSnapshot.getHeap(heapId);
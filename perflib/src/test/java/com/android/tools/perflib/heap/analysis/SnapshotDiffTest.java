@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.perflib.heap.analysis;
+
+import com.android.tools.perflib.heap.Instance;
+import com.android.tools.perflib.heap.Snapshot;
+import com.android.tools.perflib.heap.SnapshotBuilder;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+
+public class SnapshotDiffTest extends TestCase {
+
+    private Snapshot mBefore;
+
+    private Snapshot mAfter;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        mBefore = new SnapshotBuilder(4)
+                .addReferences(1, 2)
+                .addReferences(2, 3)
+                .addRoot(1)
+                .build();
+        mBefore.computeDominators();
+
+        mAfter = new SnapshotBuilder(6)
+                .addReferences(1, 2, 5)
+                .addReferences(2, 3)
+                .addReferences(5, 6)
+                .addRoot(1)
+                .build();
+        mAfter.computeDominators();
+    }
+
+    public void testSameSnapshot() {
+        SnapshotDiff diff = SnapshotDiff.compute(mBefore, mBefore);
+        assertTrue(diff.getNewInstances().isEmpty());
+        assertTrue(diff.getNewlyRetainedRoots().isEmpty());
+        for (SnapshotDiff.ClassDiff classDiff : diff.getClassDiffs()) {
+            assertEquals(0, classDiff.getInstanceCountDelta());
+            assertEquals(0, classDiff.getShallowSizeDelta());
+            assertEquals(0, classDiff.getRetainedSizeDelta());
+        }
+    }
+
+    public void testNewInstances() {
+        SnapshotDiff diff = SnapshotDiff.compute(mBefore, mAfter);
+
+        List<Instance> newInstances = diff.getNewInstances();
+        assertEquals(2, newInstances.size());
+        assertNotNull(mAfter.findInstance(5));
+        assertTrue(newInstances.contains(mAfter.findInstance(5)));
+        assertTrue(newInstances.contains(mAfter.findInstance(6)));
+
+        // Node 6 is dominated by node 5, which is new too.
+        List<Instance> newlyRetained = diff.getNewlyRetainedRoots();
+        assertEquals(1, newlyRetained.size());
+        assertEquals(5, newlyRetained.get(0).getId());
+    }
+
+    public void testClassDiffs() {
+        List<SnapshotDiff.ClassDiff> classDiffs = SnapshotDiff.compute(mBefore, mAfter)
+                .getClassDiffs();
+
+        // Instances have the size of their id, and instance i is of class "Class(i/2)".
+        assertEquals("Class0", classDiffs.get(0).getClassName());
+        assertEquals(0, classDiffs.get(0).getInstanceCountDelta());
+        assertEquals(11, classDiffs.get(0).getRetainedSizeDelta());
+
+        assertEquals("Class2", classDiffs.get(1).getClassName());
+        assertEquals(1, classDiffs.get(1).getInstanceCountDelta());
+        assertEquals(5, classDiffs.get(1).getShallowSizeDelta());
+        assertEquals(11, classDiffs.get(1).getRetainedSizeDelta());
+        assertEquals(1, classDiffs.get(1).getNewInstances().size());
+
+        assertEquals("Class3", classDiffs.get(2).getClassName());
+        assertEquals(1, classDiffs.get(2).getInstanceCountDelta());
+        assertEquals(6, classDiffs.get(2).getShallowSizeDelta());
+        assertEquals(6, classDiffs.get(2).getRetainedSizeDelta());
+
+        assertEquals("Class1", classDiffs.get(3).getClassName());
+        assertEquals(0, classDiffs.get(3).getInstanceCountDelta());
+        assertEquals(0, classDiffs.get(3).getRetainedSizeDelta());
+    }
+
+    public void testNestedInstancesAreCountedOnce() {
+        Snapshot before = new SnapshotBuilder(1).addRoot(1).build();
+        before.computeDominators();
+
+        // Instance 3 is dominated by instance 2 of the same class. Instance 5 is dominated by
+        // instance 4 of the same class through instance 6, and is counted in both classes.
+        Snapshot after = new SnapshotBuilder(6)
+                .addReferences(1, 2, 4)
+                .addReferences(2, 3)
+                .addReferences(4, 6)
+                .addReferences(6, 5)
+                .addRoot(1)
+                .build();
+        after.computeDominators();
+
+        SnapshotDiff diff = SnapshotDiff.compute(before, after);
+        assertEquals(5, getClassDiff(diff, "Class1").getRetainedSizeDelta());
+        assertEquals(15, getClassDiff(diff, "Class2").getRetainedSizeDelta());
+        assertEquals(11, getClassDiff(diff, "Class3").getRetainedSizeDelta());
+    }
+
+    private static SnapshotDiff.ClassDiff getClassDiff(SnapshotDiff diff, String className) {
+        for (SnapshotDiff.ClassDiff classDiff : diff.getClassDiffs()) {
+            if (classDiff.getClassName().equals(className)) {
+                return classDiff;
+            }
+        }
+        fail("No class " + className);
+        return null;
+    }
+}
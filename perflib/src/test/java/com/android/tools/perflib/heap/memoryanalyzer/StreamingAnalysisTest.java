@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.perflib.heap.memoryanalyzer;
+
+import com.android.tools.perflib.analyzer.AnalysisResultEntry;
+import com.android.tools.perflib.captures.MemoryMappedFileBuffer;
+import com.android.tools.perflib.heap.ClassObj;
+import com.android.tools.perflib.heap.Heap;
+import com.android.tools.perflib.heap.Instance;
+import com.android.tools.perflib.heap.Snapshot;
+import com.google.common.collect.ImmutableSet;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class StreamingAnalysisTest extends TestCase {
+
+    private Snapshot mSnapshot;
+
+    private Snapshot mClassSnapshot;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        File file = new File(getClass().getResource("/dialer.android-hprof").getFile());
+        mSnapshot = Snapshot.createSnapshot(new MemoryMappedFileBuffer(file));
+        mClassSnapshot = Snapshot.createClassSnapshot(new MemoryMappedFileBuffer(file));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+
+        mSnapshot.dispose();
+        mSnapshot = null;
+        mClassSnapshot.dispose();
+        mClassSnapshot = null;
+    }
+
+    public void testClassSnapshotHasNoInstances() {
+        assertEquals(mSnapshot.getHeaps().size(), mClassSnapshot.getHeaps().size());
+        for (Heap heap : mClassSnapshot.getHeaps()) {
+            assertEquals(0, heap.getInstancesCount());
+            Heap fullHeap = mSnapshot.getHeap(heap.getName());
+            assertNotNull(fullHeap);
+            assertEquals(fullHeap.getClasses().size(), heap.getClasses().size());
+        }
+        assertTrue(mClassSnapshot.getGCRoots().isEmpty());
+    }
+
+    public void testClassHistogram() {
+        ClassHistogram histogram = new ClassHistogram(mClassSnapshot);
+        MemoryAnalyzer.analyzeStreaming(mClassSnapshot,
+                Collections.<MemoryAnalyzerTask>emptySet(), histogram);
+
+        int checked = 0;
+        for (Heap heap : mSnapshot.getHeaps()) {
+            Heap streamedHeap = mClassSnapshot.getHeap(heap.getName());
+            assertNotNull(streamedHeap);
+            for (ClassObj classObj : heap.getClasses()) {
+                ClassObj streamedClass = mClassSnapshot.findClass(classObj.getId());
+                assertNotNull(streamedClass);
+
+                List<Instance> instances = classObj.getHeapInstances(heap.getId());
+                long size = 0;
+                for (Instance instance : instances) {
+                    size += instance.getSize();
+                }
+                assertEquals(instances.size(), histogram.getInstanceCount(streamedClass,
+                        streamedHeap));
+                assertEquals(size, histogram.getShallowSize(streamedClass, streamedHeap));
+                checked += instances.size();
+            }
+        }
+        assertTrue(checked > 0);
+    }
+
+    public void testStreamingResults() {
+        mSnapshot.computeDominators();
+        MemoryAnalyzerTask.Configuration configuration = new MemoryAnalyzerTask.Configuration(
+                Collections.singletonList(mSnapshot.getHeap("app")));
+        List<String> leakedActivities = new ArrayList<String>();
+        for (AnalysisResultEntry entry : new LeakedActivityAnalyzerTask()
+                .analyze(configuration, mSnapshot)) {
+            leakedActivities.add(entry.getOffender().getOffendingDescription());
+        }
+
+        List<AnalysisResultEntry> results = MemoryAnalyzer.analyzeStreaming(mClassSnapshot,
+                ImmutableSet.of(new LeakedActivityAnalyzerTask(),
+                        new DuplicatedStringsAnalyzerTask()));
+
+        List<String> activityCandidates = new ArrayList<String>();
+        int duplicatedStrings = 0;
+        for (AnalysisResultEntry entry : results) {
+            if (entry instanceof LeakedActivityAnalyzerTask.LeakedActivityEntry) {
+                activityCandidates.add(entry.getOffender().getOffendingDescription());
+            } else {
+                assertTrue(entry instanceof DuplicatedStringsAnalyzerTask.DuplicatedStringsEntry);
+                assertTrue(entry.getWarningMessage().matches("(?s)\\d+ instances: \".*\""));
+                duplicatedStrings++;
+            }
+        }
+
+        // Candidates include the activities that turn out to be reachable.
+        assertTrue(activityCandidates.containsAll(leakedActivities));
+        assertTrue(duplicatedStrings > 0);
+    }
+}
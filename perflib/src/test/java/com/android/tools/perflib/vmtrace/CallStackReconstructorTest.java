@@ -213,4 +213,46 @@ public class CallStackReconstructorTest extends TestCase {
         assertEquals(0x1, call3.getMethodId());
         assertTrue(call3.isRecursive());
     }
+
+    public void testCallTable() {
+        CallStackReconstructor reconstructor = new CallStackReconstructor(0xff);
+
+        reconstructor.addTraceAction(0x2, TraceAction.METHOD_ENTER, 11, 11);
+        reconstructor.addTraceAction(0x2, TraceAction.METHOD_EXIT, 14, 14);
+        reconstructor.addTraceAction(0x1, TraceAction.METHOD_EXIT, 15, 15); // missing entry
+        reconstructor.addTraceAction(0x3, TraceAction.METHOD_ENTER, 16, 16);
+        reconstructor.addTraceAction(0x3, TraceAction.METHOD_ENTER, 17, 17);
+
+        CallTable calls = reconstructor.getCallTable();
+        assertEquals(5, calls.size());
+
+        int top = calls.getTopLevel();
+        assertEquals(0xff, calls.getMethodId(top));
+        assertEquals(CallTable.NONE, calls.getParent(top));
+
+        int call1 = calls.getFirstCallee(top);
+        assertEquals(0x1, calls.getMethodId(call1));
+        assertEquals(10, calls.getEntryTime(call1, ClockType.THREAD, TimeUnit.MICROSECONDS));
+        int call3 = calls.getNextSibling(call1);
+        assertEquals(0x3, calls.getMethodId(call3));
+        assertEquals(CallTable.NONE, calls.getNextSibling(call3));
+        assertFalse(calls.isRecursive(call3));
+
+        int call2 = calls.getFirstCallee(call1);
+        assertEquals(0x2, calls.getMethodId(call2));
+        assertEquals(call1, calls.getParent(call2));
+        assertEquals(15 - 10 - (14 - 11),
+                calls.getExclusiveTime(call1, ClockType.THREAD, TimeUnit.MICROSECONDS));
+
+        // The nested call that was never exited is assumed to run for 1 unit of time.
+        int nested = calls.getFirstCallee(call3);
+        assertTrue(calls.isRecursive(nested));
+        assertEquals(1, calls.getInclusiveTime(nested, ClockType.THREAD, TimeUnit.MICROSECONDS));
+
+        // Calls are only created on demand, and only once.
+        Call topLevel = calls.getTopLevelCall();
+        assertSame(topLevel, reconstructor.getTopLevel());
+        assertEquals(" -> 255 -> 1 -> 2\n        -> 3 -> 3", topLevel.toString());
+        assertTrue(topLevel.getCallees().get(1).getCallees().get(0).isRecursive());
+    }
 }
@@ -21,50 +21,115 @@ import gnu.trove.TIntObjectHashMap;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 
 /**
  * A decoder of various RPC primitive types.
  * The encoding format is documented at the following link:
  * https://android.googlesource.com/platform/tools/gpu/+/master/binary/doc.go
+ *
+ * <p>The primitives are decoded from a {@link ByteBuffer}: either the buffer the decoder was
+ * created on, or a buffer refilled with large reads from the stream it was created on. The decoder
+ * may therefore read ahead of what it has decoded from the stream.
  */
 public class Decoder {
+  private static final int BUFFER_SIZE = 8192;
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
   @NotNull private final TIntObjectHashMap<Entity> mEntities;
   @NotNull private final TIntObjectHashMap<BinaryObject> mObjects;
-  @NotNull private final InputStream mInputStream;
-  @NotNull private final byte[] mBuffer;
+  @Nullable private final InputStream mInputStream;
+  @NotNull private final ByteBuffer mBuffer;
   @NotNull private final EncodingControl mControl = new EncodingControl();
 
   public Decoder(@NotNull InputStream in) {
+    this(in, (ByteBuffer)ByteBuffer.allocate(BUFFER_SIZE).limit(0));
+  }
+
+  /**
+   * Creates a decoder reading the remaining bytes of the buffer, without copying them.
+   */
+  public Decoder(@NotNull ByteBuffer buffer) {
+    this(null, buffer);
+  }
+
+  private Decoder(@Nullable InputStream in, @NotNull ByteBuffer buffer) {
     mEntities = new TIntObjectHashMap<Entity>();
     mObjects = new TIntObjectHashMap<BinaryObject>();
     mInputStream = in;
-    mBuffer = new byte[9];
+    mBuffer = buffer;
     mEntities.put(0, null);
     mObjects.put(0, null);
   }
 
-  public void read(byte[] buf, int count) throws IOException {
-    int off = 0;
-    while (off < count) {
-      off += mInputStream.read(buf, off, count - off);
+  /**
+   * Reads more bytes from the stream into the buffer.
+   *
+   * @return false if there is nothing more to read.
+   */
+  private boolean fill() throws IOException {
+    if (mInputStream == null) {
+      return false;
+    }
+    mBuffer.compact();
+    try {
+      int n = mInputStream.read(mBuffer.array(), mBuffer.arrayOffset() + mBuffer.position(),
+                                mBuffer.remaining());
+      if (n < 0) {
+        return false;
+      }
+      mBuffer.position(mBuffer.position() + n);
+      return true;
+    }
+    finally {
+      mBuffer.flip();
     }
   }
 
-  private void read(int count) throws IOException {
-    read(mBuffer, count);
+  /** Makes sure the buffer holds at least count bytes, which must not exceed its capacity. */
+  private void require(int count) throws IOException {
+    while (mBuffer.remaining() < count) {
+      if (!fill()) {
+        throw new EOFException();
+      }
+    }
+  }
+
+  public void read(byte[] buf, int count) throws IOException {
+    int off = Math.min(count, mBuffer.remaining());
+    mBuffer.get(buf, 0, off);
+    while (off < count) {
+      if (mInputStream != null && count - off >= mBuffer.capacity()) {
+        // Large reads go straight to the destination.
+        int n = mInputStream.read(buf, off, count - off);
+        if (n < 0) {
+          throw new EOFException();
+        }
+        off += n;
+      }
+      else {
+        if (!fill()) {
+          throw new EOFException();
+        }
+        int n = Math.min(count - off, mBuffer.remaining());
+        mBuffer.get(buf, off, n);
+        off += n;
+      }
+    }
   }
 
   public boolean bool() throws IOException {
-    read(1);
-    return mBuffer[0] != 0;
+    require(1);
+    return mBuffer.get() != 0;
   }
 
   public byte int8() throws IOException {
-    read(1);
-    return mBuffer[0];
+    require(1);
+    return mBuffer.get();
   }
 
   public byte uint8() throws IOException {
@@ -82,16 +147,17 @@ public class Decoder {
   }
 
   private long uintv() throws IOException {
-    read(1);
+    require(1);
+    byte tag = mBuffer.get();
     int count = 0;
-    while (((0x80 >> count) & mBuffer[0]) != 0) count++;
-    long v = mBuffer[0] & (0xff >> count);
+    while (((0x80 >> count) & tag) != 0) count++;
+    long v = tag & (0xff >> count);
     if (count == 0) {
       return v;
     }
-    read(count);
+    require(count);
     for (int i = 0; i < count; i++) {
-      v = (v << 8) | (mBuffer[i] & 0xffL);
+      v = (v << 8) | (mBuffer.get() & 0xffL);
     }
     return v;
   }
@@ -144,16 +210,16 @@ public class Decoder {
 
   public String string() throws IOException {
     int size = uint32();
-    byte[] bytes = new byte[size];
-    for (int i = 0; i < size; i++) {
-      bytes[i] = int8();
-    }
-    try {
-      return new String(bytes, "UTF-8");
-    }
-    catch (UnsupportedEncodingException e) {
-      throw new RuntimeException(e); // Should never happen
+    if (mBuffer.hasArray() && size <= mBuffer.capacity()) {
+      // Decode in place.
+      require(size);
+      String string = new String(mBuffer.array(), mBuffer.arrayOffset() + mBuffer.position(), size, UTF_8);
+      mBuffer.position(mBuffer.position() + size);
+      return string;
     }
+    byte[] bytes = new byte[size];
+    read(bytes, size);
+    return new String(bytes, UTF_8);
   }
 
   public String nonCompactString() throws IOException {
@@ -220,6 +286,11 @@ public class Decoder {
     return mObjects.get(sid);
   }
 
+  /**
+   * Returns the stream the decoder was created on, if any. Note that the decoder may have read
+   * ahead of what it has decoded.
+   */
+  @Nullable
   public InputStream stream() {
     return mInputStream;
   }
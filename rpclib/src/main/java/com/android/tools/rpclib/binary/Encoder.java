@@ -142,9 +142,7 @@ public class Encoder {
 
       byte[] bytes = v.getBytes("UTF-8");
       uint32(bytes.length);
-      for (byte b : bytes) {
-        int8(b);
-      }
+      mOutputStream.write(bytes, 0, bytes.length);
     }
     catch (UnsupportedEncodingException e) {
       throw new RuntimeException(e); // Should never happen
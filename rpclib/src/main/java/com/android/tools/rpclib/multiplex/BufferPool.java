@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.rpclib.multiplex;
+
+import com.android.annotations.concurrency.GuardedBy;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayDeque;
+
+/**
+ * A pool of the buffers the {@link Multiplexer} receives data into. The buffers come back to the
+ * pool once the {@link PipeInputStream} of their channel has been read past them.
+ */
+class BufferPool {
+  private final int mBufferSize;
+  private final int mMaxPooled;
+  @GuardedBy("this") private final ArrayDeque<byte[]> mBuffers = new ArrayDeque<byte[]>();
+
+  BufferPool(int bufferSize, int maxPooled) {
+    mBufferSize = bufferSize;
+    mMaxPooled = maxPooled;
+  }
+
+  /** Returns a buffer of at least the given size. */
+  @NotNull
+  byte[] acquire(int size) {
+    if (size > mBufferSize) {
+      return new byte[size];
+    }
+    synchronized (this) {
+      byte[] buffer = mBuffers.poll();
+      if (buffer != null) {
+        return buffer;
+      }
+    }
+    return new byte[mBufferSize];
+  }
+
+  /** Returns a buffer to the pool; it must not be used anymore. */
+  void release(@NotNull byte[] buffer) {
+    if (buffer.length != mBufferSize) {
+      return;
+    }
+    synchronized (this) {
+      if (mBuffers.size() < mMaxPooled) {
+        mBuffers.add(buffer);
+      }
+    }
+  }
+}
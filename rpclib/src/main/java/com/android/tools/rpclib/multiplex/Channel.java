@@ -15,6 +15,7 @@
  */
 package com.android.tools.rpclib.multiplex;
 
+import com.android.annotations.concurrency.GuardedBy;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.Closeable;
@@ -29,6 +30,8 @@ public class Channel implements Closeable {
   private final long mId;
   private final EventHandler mEventHandler;
   private boolean mIsClosed;
+  @GuardedBy("this") private Runnable mReceiveListener;
+  @GuardedBy("this") private boolean mHasReceived;
 
   public Channel(long id, @NotNull EventHandler events) {
     PipeInputStream in = new PipeInputStream();
@@ -48,26 +51,65 @@ public class Channel implements Closeable {
     return mOutputStream;
   }
 
+  /**
+   * Sets the listener to run once the first data, or the close of the channel, has been received.
+   * The listener is run right away if that has already happened. It is run on the thread receiving
+   * from the connection, so it must not block: reading from the {@link #getInputStream() input}
+   * should be handed off to another thread.
+   */
+  public void setReceiveListener(@NotNull Runnable listener) {
+    synchronized (this) {
+      if (!mHasReceived) {
+        mReceiveListener = listener;
+        return;
+      }
+    }
+    listener.run();
+  }
+
   @Override
-  public synchronized void close() throws IOException {
-    if (!mIsClosed) {
+  public void close() throws IOException {
+    synchronized (this) {
+      if (mIsClosed) {
+        return;
+      }
       mIsClosed = true;
       mEventHandler.closeChannel(mId);
-      mInputStream.close();
+      // Unblock any pending read of the input.
+      mPipeInputStream.getSource().close();
       mOutputStream.close();
     }
+    notifyReceived();
   }
 
-  void receive(byte[] data) throws IOException {
-    mPipeInputStream.getSource().write(data);
+  void receive(byte[] data, int count, BufferPool pool) {
+    mPipeInputStream.receive(data, count, pool);
+    notifyReceived();
   }
 
-  synchronized void closeNoEvent() throws IOException {
-    if (!mIsClosed) {
+  void closeNoEvent() throws IOException {
+    synchronized (this) {
+      if (mIsClosed) {
+        return;
+      }
       mIsClosed = true;
-      mInputStream.close();
+      // Unblock any pending read of the input.
+      mPipeInputStream.getSource().close();
       mOutputStream.close();
     }
+    notifyReceived();
+  }
+
+  private void notifyReceived() {
+    Runnable listener;
+    synchronized (this) {
+      mHasReceived = true;
+      listener = mReceiveListener;
+      mReceiveListener = null;
+    }
+    if (listener != null) {
+      listener.run();
+    }
   }
 
   interface EventHandler {
@@ -32,12 +32,14 @@ import java.util.concurrent.atomic.AtomicLong;
 
 public class Multiplexer {
   @NotNull private static final Logger LOG = Logger.getInstance(Multiplexer.class);
+  private static final int MAX_POOLED_BUFFERS = 64;
   private final Decoder mDecoder;
   private final Encoder mEncoder;
   private final NewChannelListener mNewChannelListener;
   private final Channel.EventHandler mChannelEventHandler;
   private final Sender mSender;
   private final AtomicLong mNextChannelId;
+  private final BufferPool mBufferPool;
   @GuardedBy("mChannelMap") private final Map<Long, Channel> mChannelMap;
 
   public Multiplexer(@NotNull InputStream in, @NotNull OutputStream out, int mtu,
@@ -50,6 +52,7 @@ public class Multiplexer {
     mSender = new Sender(mtu, executorService);
     mChannelMap = new HashMap<Long, Channel>();
     mNextChannelId = new AtomicLong(0);
+    mBufferPool = new BufferPool(mtu, MAX_POOLED_BUFFERS);
     executorService.execute(new Receiver());
   }
 
@@ -154,15 +157,14 @@ public class Multiplexer {
             }
             case Message.DATA: {
               int count = mDecoder.uint32();
-              byte[] buf = new byte[count];
-              for (int offset = 0; offset < count;) {
-                offset += mDecoder.stream().read(buf, offset, count-offset);
-              }
+              byte[] buf = mBufferPool.acquire(count);
+              mDecoder.read(buf, count);
               Channel channel = getChannel(id);
               if (channel != null) {
-                channel.receive(buf);
+                channel.receive(buf, count, mBufferPool);
               }
               else {
+                mBufferPool.release(buf);
                 // Likely this channel was closed this side, and we're receiving data
                 // that should be dropped on the floor.
                 LOG.info("Received data on unknown channel " + id);
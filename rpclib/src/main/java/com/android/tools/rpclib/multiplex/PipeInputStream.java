@@ -15,6 +15,8 @@
  */
 package com.android.tools.rpclib.multiplex;
 
+import org.jetbrains.annotations.Nullable;
+
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -31,9 +33,12 @@ import java.util.concurrent.Semaphore;
  * <p/>
  * Note: This is similar to {@link java.io.PipedInputStream} and {@link java.io.PipedOutputStream}, except this
  * implementation does not use an internal ring buffer, and and does not suffer from 1 second stalls (JDK-4404700).
+ * <p/>
+ * {@link #read(byte[], int, int)} only blocks until some data is available, like reading from a socket, so
+ * a reader asking for more than has been written gets what there is.
  */
 public class PipeInputStream extends InputStream {
-  private static final Item ITEM_CLOSE = new Item(null, 0, 0);
+  private static final Item ITEM_CLOSE = new Item(null, 0, 0, null);
   private final OutputStream mSource;
   private final LinkedList<Item> mQueue;
   private final Semaphore mSemaphore;
@@ -55,25 +60,49 @@ public class PipeInputStream extends InputStream {
     return (read(mByte, 0, 1) > 0) ? mByte[0] : -1;
   }
 
+  /**
+   * Queues the given bytes to be read, and hands the buffer back to the pool once they have been.
+   */
+  void receive(byte[] data, int count, @Nullable BufferPool pool) {
+    if (count > 0) {
+      synchronized (mQueue) {
+        mQueue.addLast(new Item(data, 0, count, pool));
+      }
+      mSemaphore.release();
+    }
+    else if (pool != null) {
+      pool.release(data);
+    }
+  }
+
   @Override
   public int read(byte b[], int off, int len) throws IOException {
     int n = 0;
     boolean closed = false;
     while (!closed && len > n) {
       try {
-        mSemaphore.acquire();
+        if (n == 0) {
+          mSemaphore.acquire();
+        }
+        else if (!mSemaphore.tryAcquire()) {
+          // Return what has been read rather than wait for more.
+          break;
+        }
         synchronized (mQueue) {
           Item item = mQueue.getFirst();
           if (item != ITEM_CLOSE) {
             n += item.read(b, off + n, len - n);
             if (item.remaining() == 0) {
               mQueue.removeFirst();
+              item.recycle();
             }
             else {
               mSemaphore.release();
             }
           }
           else {
+            // Leave the close for the next reads.
+            mSemaphore.release();
             closed = true;
           }
         }
@@ -92,11 +121,19 @@ public class PipeInputStream extends InputStream {
     private final byte[] mData;
     private final int mCount;
     private int mOffset;
+    @Nullable private final BufferPool mPool;
 
-    public Item(byte[] data, int offset, int count) {
+    public Item(byte[] data, int offset, int count, @Nullable BufferPool pool) {
       mData = data;
-      mCount = count;
+      mCount = offset + count;
       mOffset = offset;
+      mPool = pool;
+    }
+
+    public void recycle() {
+      if (mPool != null) {
+        mPool.release(mData);
+      }
     }
 
     public int read(byte[] out, int offset, int count) {
@@ -124,7 +161,7 @@ public class PipeInputStream extends InputStream {
     public void write(byte b[], int off, int len) throws IOException {
       if (len > 0) {
         synchronized (mQueue) {
-          mQueue.addLast(new Item(b, off, len));
+          mQueue.addLast(new Item(b, off, len, null));
         }
         mSemaphore.release();
       }
@@ -90,13 +90,16 @@ class Sender {
     }
 
     /**
-     * Encodes the item to the provided {@link Encoder}, unblocking any calls to {@link #sync}.
+     * Encodes the item to the provided {@link Encoder}, unblocking any calls to {@link #sync} once
+     * the item has been fully sent.
      *
      * @return true if the item was fully sent, or false if there is more to send.
      */
     final boolean send(Encoder e) {
+      boolean done = true;
       try {
-        return encode(e);
+        done = encode(e);
+        return done;
       }
       catch (IOException exception) {
         synchronized (this) {
@@ -105,9 +108,11 @@ class Sender {
         return true;
       }
       finally {
-        synchronized (this) {
-          mDone = true;
-          notifyAll();
+        if (done) {
+          synchronized (this) {
+            mDone = true;
+            notifyAll();
+          }
         }
       }
     }
@@ -235,7 +240,8 @@ class Sender {
 
     SendData(long channel, byte[] data, int off, int len) {
       super(channel);
-      mData = data.clone();
+      // No copy: the writer is blocked in sync() until all the data has been sent.
+      mData = data;
       mOffset = off;
       mLength = len;
     }
@@ -15,30 +15,54 @@
  */
 package com.android.tools.rpclib.rpccore;
 
+import com.android.annotations.concurrency.GuardedBy;
 import com.android.tools.rpclib.binary.BinaryObject;
 import com.android.tools.rpclib.binary.Decoder;
 import com.android.tools.rpclib.binary.Encoder;
 import com.android.tools.rpclib.multiplex.Channel;
 import com.android.tools.rpclib.multiplex.Multiplexer;
+import com.google.common.util.concurrent.AbstractFuture;
+import com.google.common.util.concurrent.ListenableFuture;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class Broadcaster {
+  /** The default maximum number of calls sent by {@link #sendAsync} awaiting their response. */
+  public static final int DEFAULT_MAX_IN_FLIGHT = 64;
+
   private final Multiplexer mMultiplexer;
   private final int mMtu;
   private final int mVersion;
+  private final ExecutorService mExecutorService;
+  private final int mMaxInFlight;
+  private final Runnable mWriter = new Writer();
+  @GuardedBy("mQueuedCalls") private final Queue<AsyncCall> mQueuedCalls = new ArrayDeque<AsyncCall>();
+  @GuardedBy("mQueuedCalls") private int mInFlight;
+  @GuardedBy("mQueuedCalls") private boolean mIsWriting;
 
   public Broadcaster(@NotNull InputStream in, @NotNull OutputStream out, int mtu,
                      @NotNull ExecutorService executorService,
                      int version) {
+    this(in, out, mtu, executorService, version, DEFAULT_MAX_IN_FLIGHT);
+  }
+
+  public Broadcaster(@NotNull InputStream in, @NotNull OutputStream out, int mtu,
+                     @NotNull ExecutorService executorService,
+                     int version, int maxInFlight) {
     mMultiplexer = new Multiplexer(in, out, mtu, executorService, null);
     mMtu = mtu;
     mVersion = version;
+    mExecutorService = executorService;
+    mMaxInFlight = maxInFlight;
   }
 
   private void writeHeader(@NotNull Encoder encoder) throws IOException {
@@ -50,36 +74,226 @@ public class Broadcaster {
     encoder.int8((byte)(mVersion < 2 ? '0' : '1'));
   }
 
+  private void writeCall(@NotNull Channel channel, @NotNull BinaryObject call) throws IOException {
+    BufferedOutputStream out = new BufferedOutputStream(channel.getOutputStream(), mMtu);
+    Encoder e = new Encoder(out);
+
+    // Write the RPC header
+    writeHeader(e);
+
+    // Write the call
+    e.object(call);
+
+    // Flush the buffer
+    out.flush();
+  }
+
+  private static BinaryObject readResponse(@NotNull Channel channel) throws IOException, RpcException {
+    Decoder d = new Decoder(channel.getInputStream());
+
+    // Wait for and read the response
+    BinaryObject res = d.object();
+
+    // Check to see if the response was an error
+    if (res instanceof RpcException) {
+      throw (RpcException)res;
+    }
+
+    return res;
+  }
+
   public BinaryObject Send(@NotNull BinaryObject call) throws IOException, RpcException {
     Channel channel = mMultiplexer.openChannel();
 
     try {
-      BufferedOutputStream out = new BufferedOutputStream(channel.getOutputStream(), mMtu);
-      Encoder e = new Encoder(out);
-      Decoder d = new Decoder(channel.getInputStream());
+      writeCall(channel, call);
+      return readResponse(channel);
+    }
+    finally {
+      // Close the channel
+      channel.close();
+    }
+  }
+
+  /**
+   * Sends the call without blocking the calling thread.
+   *
+   * <p>Unlike {@link #Send}, no thread waits for the server while it works on the call: the
+   * calls are written one after the other by a single task of the executor of the broadcaster,
+   * and the response of each is decoded once it starts arriving. The calls are pipelined over
+   * the connection, up to the maximum number of calls in flight given to the constructor;
+   * further calls wait in order for a free slot.
+   *
+   * <p>Cancelling the returned {@link ListenableFuture}, for instance by a
+   * {@link com.android.tools.rpclib.futures.SingleInFlight} controller passed to
+   * {@link Rpc#listen}, drops the call if it is still waiting, and otherwise closes its channel.
+   *
+   * @param call     the call to send.
+   * @param executor the {@link Executor} the returned {@link ListenableFuture} is completed on.
+   * @return the response, failed with the {@link RpcException} if the server returned an error.
+   */
+  @NotNull
+  public ListenableFuture<BinaryObject> sendAsync(@NotNull BinaryObject call, @NotNull Executor executor) {
+    AsyncCall asyncCall = new AsyncCall(call, executor);
+    boolean startWriter;
+    synchronized (mQueuedCalls) {
+      mQueuedCalls.add(asyncCall);
+      startWriter = shouldStartWriter();
+    }
+    if (startWriter) {
+      mExecutorService.execute(mWriter);
+    }
+    return asyncCall;
+  }
+
+  /** Frees the slot of a call in flight, letting the next waiting call be written. */
+  private void releaseSlot() {
+    boolean startWriter;
+    synchronized (mQueuedCalls) {
+      mInFlight--;
+      startWriter = shouldStartWriter();
+    }
+    if (startWriter) {
+      mExecutorService.execute(mWriter);
+    }
+  }
 
-      // Write the RPC header
-      writeHeader(e);
+  @GuardedBy("mQueuedCalls")
+  private boolean shouldStartWriter() {
+    if (mIsWriting || mQueuedCalls.isEmpty() || mInFlight >= mMaxInFlight) {
+      return false;
+    }
+    mIsWriting = true;
+    return true;
+  }
 
-      // Write the call
-      e.object(call);
+  /** Writes the waiting calls while there are free slots. */
+  private class Writer implements Runnable {
+    @Override
+    public void run() {
+      while (true) {
+        AsyncCall call;
+        synchronized (mQueuedCalls) {
+          if (mQueuedCalls.isEmpty() || mInFlight >= mMaxInFlight) {
+            mIsWriting = false;
+            return;
+          }
+          call = mQueuedCalls.remove();
+          mInFlight++;
+        }
+        call.write();
+      }
+    }
+  }
 
-      // Flush the buffer
-      out.flush();
+  private class AsyncCall extends AbstractFuture<BinaryObject> {
+    @NotNull private final BinaryObject mCall;
+    @NotNull private final Executor mExecutor;
+    private final AtomicBoolean mIsFinished = new AtomicBoolean();
+    @GuardedBy("this") private Channel mChannel;
 
-      // Wait for and read the response
-      BinaryObject res = d.object();
+    AsyncCall(@NotNull BinaryObject call, @NotNull Executor executor) {
+      mCall = call;
+      mExecutor = executor;
+    }
 
-      // Check to see if the response was an error
-      if (res instanceof RpcException) {
-        throw (RpcException)res;
+    /** Opens the channel and writes the call, once the call has a slot. */
+    void write() {
+      if (isCancelled()) {
+        finish();
+        return;
+      }
+      try {
+        Channel channel = mMultiplexer.openChannel();
+        synchronized (this) {
+          mChannel = channel;
+        }
+        if (isCancelled()) {
+          // Cancelled while the channel was opening.
+          finish();
+          return;
+        }
+        writeCall(channel, mCall);
+        channel.setReceiveListener(new Runnable() {
+          @Override
+          public void run() {
+            mExecutorService.execute(new Runnable() {
+              @Override
+              public void run() {
+                receive();
+              }
+            });
+          }
+        });
       }
+      catch (Exception e) {
+        fail(e);
+      }
+    }
 
-      return res;
+    private void receive() {
+      final BinaryObject res;
+      try {
+        res = readResponse(getChannel());
+      }
+      catch (Exception e) {
+        fail(e);
+        return;
+      }
+      finish();
+      mExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          set(res);
+        }
+      });
     }
-    finally {
-      // Close the channel
-      channel.close();
+
+    private void fail(final Exception e) {
+      finish();
+      mExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          setException(e);
+        }
+      });
+    }
+
+    /** Closes the channel of the call and frees its slot; only the first call has any effect. */
+    private void finish() {
+      if (!mIsFinished.compareAndSet(false, true)) {
+        return;
+      }
+      Channel channel = getChannel();
+      if (channel != null) {
+        try {
+          channel.close();
+        }
+        catch (IOException ignored) {}
+      }
+      releaseSlot();
+    }
+
+    private synchronized Channel getChannel() {
+      return mChannel;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      if (!super.cancel(mayInterruptIfRunning)) {
+        return false;
+      }
+      boolean wasQueued;
+      synchronized (mQueuedCalls) {
+        wasQueued = mQueuedCalls.remove(this);
+      }
+      if (!wasQueued) {
+        // Without a channel yet, write() finishes the call once it has one.
+        if (getChannel() != null) {
+          finish();
+        }
+      }
+      return true;
     }
   }
 }
@@ -20,7 +20,11 @@ import org.jetbrains.annotations.NotNull;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 public class DecoderTest extends TestCase {
   public void testDecodeBool() throws IOException {
@@ -229,4 +233,63 @@ public class DecoderTest extends TestCase {
       }
     }
   }
+
+  public void testDecodeFromBuffer() throws IOException {
+    ByteBuffer buffer = ByteBuffer.wrap(new byte[]{
+      0x7f, // skipped
+      0x05, 'H', 'e', 'l', 'l', 'o',
+      (byte)0x80, (byte)0x80, // 128
+      0x01
+    });
+    buffer.position(1);
+
+    Decoder d = new Decoder(buffer);
+    assertEquals("Hello", d.string());
+    assertEquals(128, d.uint32());
+    assertEquals(true, d.bool());
+    try {
+      d.int8();
+      fail();
+    }
+    catch (EOFException expected) {
+    }
+  }
+
+  public void testDecodeAcrossReads() throws IOException {
+    // Strings and slices larger than the read-ahead buffer of the decoder, from a stream
+    // returning a few bytes at a time.
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    Encoder e = new Encoder(output);
+    char[] chars = new char[20000];
+    Arrays.fill(chars, 'x');
+    String string = new String(chars);
+    byte[] bytes = new byte[50000];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte)i;
+    }
+    e.string(string);
+    e.uint32(bytes.length);
+    e.write(bytes, bytes.length);
+    e.float64(1.5);
+
+    final ByteArrayInputStream bytesInput = new ByteArrayInputStream(output.toByteArray());
+    InputStream input = new InputStream() {
+      @Override
+      public int read() throws IOException {
+        return bytesInput.read();
+      }
+
+      @Override
+      public int read(@NotNull byte[] b, int off, int len) throws IOException {
+        return bytesInput.read(b, off, Math.min(len, 7));
+      }
+    };
+
+    Decoder d = new Decoder(input);
+    assertEquals(string, d.string());
+    byte[] decoded = new byte[d.uint32()];
+    d.read(decoded, decoded.length);
+    assertTrue(Arrays.equals(bytes, decoded));
+    assertEquals(1.5, d.float64());
+  }
 }
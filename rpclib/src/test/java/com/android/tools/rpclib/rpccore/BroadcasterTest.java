@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tools.rpclib.rpccore;
+
+import com.android.tools.rpclib.binary.BinaryObject;
+import com.android.tools.rpclib.binary.Decoder;
+import com.android.tools.rpclib.binary.Encoder;
+import com.android.tools.rpclib.binary.TypeA;
+import com.android.tools.rpclib.multiplex.Channel;
+import com.android.tools.rpclib.multiplex.Multiplexer;
+import com.android.tools.rpclib.multiplex.NewChannelListener;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class BroadcasterTest extends TestCase {
+  private static final int MTU = 1024;
+
+  private ExecutorService mClientExecutor;
+  private ExecutorService mServerExecutor;
+  private Broadcaster mBroadcaster;
+  private CountDownLatch mRespond;
+  private final AtomicInteger mCalls = new AtomicInteger();
+  private final AtomicInteger mPending = new AtomicInteger();
+  private final AtomicInteger mMaxPending = new AtomicInteger();
+
+  @Override
+  protected void tearDown() throws Exception {
+    if (mRespond != null) {
+      while (mRespond.getCount() > 0) {
+        mRespond.countDown();
+      }
+    }
+    mClientExecutor.shutdownNow();
+    mServerExecutor.shutdownNow();
+    super.tearDown();
+  }
+
+  /**
+   * Connects a {@link Broadcaster} to a server echoing the data of the {@link TypeA} calls,
+   * once {@link #mRespond} has been counted down.
+   */
+  private void connect(int clientThreads, int maxInFlight, int respondAfter) throws IOException {
+    mRespond = new CountDownLatch(respondAfter);
+    mClientExecutor = Executors.newFixedThreadPool(clientThreads);
+    mServerExecutor = Executors.newCachedThreadPool();
+    PipedInputStream clientIn = new PipedInputStream(MTU * 16);
+    PipedInputStream serverIn = new PipedInputStream(MTU * 16);
+    PipedOutputStream clientOut = new PipedOutputStream(serverIn);
+    PipedOutputStream serverOut = new PipedOutputStream(clientIn);
+
+    new Multiplexer(serverIn, serverOut, MTU, mServerExecutor, new NewChannelListener() {
+      @Override
+      public void onNewChannel(@NotNull final Channel channel) {
+        mServerExecutor.execute(new Runnable() {
+          @Override
+          public void run() {
+            serve(channel);
+          }
+        });
+      }
+    });
+    mBroadcaster = new Broadcaster(clientIn, clientOut, MTU, mClientExecutor, 2, maxInFlight);
+  }
+
+  private void serve(Channel channel) {
+    try {
+      Decoder d = new Decoder(channel.getInputStream());
+      for (int i = 0; i < 4; i++) {
+        d.int8(); // RPC header
+      }
+      TypeA call = (TypeA)d.object();
+      int pending = mPending.incrementAndGet();
+      while (true) {
+        int max = mMaxPending.get();
+        if (pending <= max || mMaxPending.compareAndSet(max, pending)) {
+          break;
+        }
+      }
+      mCalls.incrementAndGet();
+      mRespond.countDown();
+      mRespond.await();
+      mPending.decrementAndGet();
+
+      BufferedOutputStream out = new BufferedOutputStream(channel.getOutputStream(), MTU);
+      new Encoder(out).object(new TypeA().setData(call.getData()));
+      out.flush();
+      channel.close();
+    }
+    catch (Exception ignored) {
+      // The client went away.
+    }
+  }
+
+  private static TypeA get(ListenableFuture<BinaryObject> future) throws Exception {
+    return (TypeA)Rpc.get(future, 10, TimeUnit.SECONDS);
+  }
+
+  public void testSend() throws Exception {
+    connect(4, Broadcaster.DEFAULT_MAX_IN_FLIGHT, 0);
+    assertEquals("sync", ((TypeA)mBroadcaster.Send(new TypeA().setData("sync"))).getData());
+    assertEquals("async", get(mBroadcaster.sendAsync(new TypeA().setData("async"),
+                                                     MoreExecutors.sameThreadExecutor())).getData());
+  }
+
+  public void testManyCallsOnFewThreads() throws Exception {
+    // The server only answers once it has received all the calls, which would never happen
+    // if each call blocked one of the four threads of the client.
+    int count = 200;
+    connect(4, count, count);
+    List<ListenableFuture<BinaryObject>> futures = new ArrayList<ListenableFuture<BinaryObject>>();
+    for (int i = 0; i < count; i++) {
+      futures.add(mBroadcaster.sendAsync(new TypeA().setData("call " + i),
+                                         MoreExecutors.sameThreadExecutor()));
+    }
+    for (int i = 0; i < count; i++) {
+      assertEquals("call " + i, get(futures.get(i)).getData());
+    }
+  }
+
+  public void testMaxInFlight() throws Exception {
+    connect(4, 3, 0);
+    List<ListenableFuture<BinaryObject>> futures = new ArrayList<ListenableFuture<BinaryObject>>();
+    for (int i = 0; i < 50; i++) {
+      futures.add(mBroadcaster.sendAsync(new TypeA().setData("call " + i),
+                                         MoreExecutors.sameThreadExecutor()));
+    }
+    for (int i = 0; i < 50; i++) {
+      assertEquals("call " + i, get(futures.get(i)).getData());
+    }
+    assertTrue(mMaxPending.get() <= 3);
+  }
+
+  public void testCancel() throws Exception {
+    // With a single slot, the second call only goes out once the first one is cancelled.
+    // The server holds the first call until it gets the second one.
+    connect(4, 1, 2);
+    ListenableFuture<BinaryObject> first = mBroadcaster.sendAsync(new TypeA().setData("first"),
+                                                                  MoreExecutors.sameThreadExecutor());
+    ListenableFuture<BinaryObject> second = mBroadcaster.sendAsync(new TypeA().setData("second"),
+                                                                   MoreExecutors.sameThreadExecutor());
+    ListenableFuture<BinaryObject> third = mBroadcaster.sendAsync(new TypeA().setData("third"),
+                                                                  MoreExecutors.sameThreadExecutor());
+    assertTrue(third.cancel(true));
+    while (mCalls.get() == 0) {
+      Thread.sleep(10);
+    }
+    assertTrue(first.cancel(true));
+    assertEquals("second", get(second).getData());
+    try {
+      Rpc.get(first, 1, TimeUnit.SECONDS);
+      fail();
+    }
+    catch (CancellationException expected) {
+    }
+    assertEquals(2, mCalls.get());
+  }
+}
@@ -20,12 +20,10 @@ import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
 import com.android.annotations.VisibleForTesting;
 import com.android.utils.XmlUtils;
-import com.google.common.base.Charsets;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
-import com.google.common.io.Files;
 
 import org.w3c.dom.Attr;
 import org.w3c.dom.Document;
@@ -306,6 +304,9 @@ abstract class DataMerger<I extends DataItem<F>, F extends DataFile<I>, S extend
     /**
      * Writes a single blob file to store all that the DataMerger knows about.
      *
+     * The blob is binary (see {@link MergerBlob}) and the {@link DataSet}s which did not change
+     * since they were loaded from the previous blob are copied as is.
+     *
      * @param blobRootFolder the root folder where blobs are store.
      * @param consumer the merge consumer that was used by the merge.
      *
@@ -315,42 +316,52 @@ abstract class DataMerger<I extends DataItem<F>, F extends DataFile<I>, S extend
      */
     public void writeBlobTo(@NonNull File blobRootFolder, @NonNull MergeConsumer<I> consumer)
             throws MergingException {
-        // write "compact" blob
         DocumentBuilder builder;
 
         try {
             builder = mFactory.newDocumentBuilder();
-            Document document = builder.newDocument();
-
-            Node rootNode = document.createElement(NODE_MERGER);
-            // add the version code.
-            NodeUtils.addAttribute(document, rootNode, null, ATTR_VERSION, MERGE_BLOB_VERSION);
-
-            document.appendChild(rootNode);
 
+            List<byte[]> dataSetSections = Lists.newArrayListWithCapacity(mDataSets.size());
             for (S dataSet : mDataSets) {
-                Node dataSetNode = document.createElement(NODE_DATA_SET);
-                rootNode.appendChild(dataSetNode);
+                byte[] section = dataSet.getBlobSection();
+                if (section == null) {
+                    Document document = builder.newDocument();
+                    Node dataSetNode = document.createElement(NODE_DATA_SET);
+                    document.appendChild(dataSetNode);
+
+                    dataSet.appendToXml(dataSetNode, document, consumer);
 
-                dataSet.appendToXml(dataSetNode, document, consumer);
+                    section = MergerBlob.encode(dataSetNode);
+                    dataSet.setBlobSection(section);
+                }
+                dataSetSections.add(section);
             }
 
             // write merged items
+            Document document = builder.newDocument();
+            Node rootNode = document.createElement(NODE_MERGER);
+            document.appendChild(rootNode);
             writeAdditionalData(document, rootNode);
 
-            String content = XmlUtils.toXml(document);
+            MergerBlob blob = new MergerBlob(dataSetSections, MergerBlob.encode(rootNode));
 
             try {
                 createDir(blobRootFolder);
             } catch (IOException ioe) {
                 throw MergingException.wrapException(ioe).withFile(blobRootFolder).build();
             }
-            File file = new File(blobRootFolder, FN_MERGER_XML);
+            File file = new File(blobRootFolder, MergerBlob.FN_MERGER_BIN);
             try {
-                Files.write(content, file, Charsets.UTF_8);
+                blob.write(file);
             } catch (IOException ioe) {
                 throw MergingException.wrapException(ioe).withFile(file).build();
             }
+
+            // Don't leave a stale blob from an older version behind.
+            File xmlFile = new File(blobRootFolder, FN_MERGER_XML);
+            if (xmlFile.isFile()) {
+                xmlFile.delete();
+            }
         } catch (ParserConfigurationException e) {
             throw MergingException.wrapException(e).build();
         }
@@ -369,6 +380,9 @@ abstract class DataMerger<I extends DataItem<F>, F extends DataFile<I>, S extend
      * If <code>false</code>, the items are marked as touched, and this can be used to feed a new
      * {@link ResourceRepository} object.
      *
+     * The binary blob is read if present and valid, otherwise the XML blob written by older
+     * versions is.
+     *
      * @param blobRootFolder the folder containing the blob.
      * @param incrementalState whether to load into an incremental state or a new state.
      * @return true if the blob was loaded.
@@ -378,11 +392,92 @@ abstract class DataMerger<I extends DataItem<F>, F extends DataFile<I>, S extend
      */
     public boolean loadFromBlob(@NonNull File blobRootFolder, boolean incrementalState)
             throws MergingException {
-        File file = new File(blobRootFolder, FN_MERGER_XML);
-        if (!file.isFile()) {
+        File binaryFile = new File(blobRootFolder, MergerBlob.FN_MERGER_BIN);
+        boolean loaded = binaryFile.isFile() && loadFromBinaryBlob(binaryFile, incrementalState);
+        if (!loaded) {
+            File file = new File(blobRootFolder, FN_MERGER_XML);
+            if (!file.isFile()) {
+                return false;
+            }
+            loaded = loadFromXmlBlob(file, incrementalState);
+        }
+
+        if (!loaded) {
             return false;
         }
 
+        if (incrementalState) {
+            setPostBlobLoadStateToWritten();
+        } else {
+            setPostBlobLoadStateToTouched();
+        }
+
+        return true;
+    }
+
+    /**
+     * Loads the binary blob. A blob which is truncated or corrupted is not loaded, like a blob
+     * written by another version, so that the caller falls back to a full merge.
+     */
+    private boolean loadFromBinaryBlob(@NonNull File file, boolean incrementalState)
+            throws MergingException {
+        try {
+            // Decode everything before creating any data set, so nothing is half loaded.
+            MergerBlob blob;
+            List<Node> dataSetNodes = Lists.newArrayList();
+            Node rootNode = null;
+            DocumentBuilder builder = mFactory.newDocumentBuilder();
+            try {
+                blob = MergerBlob.read(file);
+                if (blob == null) {
+                    return false;
+                }
+
+                for (byte[] section : blob.getDataSets()) {
+                    Document document = builder.newDocument();
+                    Node node = MergerBlob.decode(section, document);
+                    document.appendChild(node);
+                    dataSetNodes.add(node);
+                }
+
+                // The additional data is only needed to update the merged folder.
+                if (incrementalState) {
+                    Document document = builder.newDocument();
+                    rootNode = MergerBlob.decode(blob.getAdditionalData(), document);
+                    document.appendChild(rootNode);
+                }
+            } catch (IOException e) {
+                return false;
+            }
+
+            for (int i = 0, n = dataSetNodes.size(); i < n; i++) {
+                S dataSet = createFromXml(dataSetNodes.get(i));
+                if (dataSet != null) {
+                    // Written back as is until the set changes.
+                    dataSet.setBlobSection(blob.getDataSets().get(i));
+                    addDataSet(dataSet);
+                }
+            }
+
+            if (rootNode != null) {
+                NodeList nodes = rootNode.getChildNodes();
+                for (int i = 0, n = nodes.getLength(); i < n; i++) {
+                    Node node = nodes.item(i);
+                    if (node.getNodeType() == Node.ELEMENT_NODE
+                            && getAdditionalDataTagName().equals(node.getLocalName())) {
+                        loadAdditionalData(node, incrementalState);
+                    }
+                }
+            }
+
+            return true;
+        } catch (ParserConfigurationException e) {
+            throw MergingException.wrapException(e).withFile(file).build();
+        }
+    }
+
+    private boolean loadFromXmlBlob(@NonNull File file, boolean incrementalState)
+            throws MergingException {
         try {
             Document document = XmlUtils.parseUtfXmlFile(file, true /*namespaceAware*/);
 
@@ -422,12 +517,6 @@ abstract class DataMerger<I extends DataItem<F>, F extends DataFile<I>, S extend
                 }
             }
 
-            if (incrementalState) {
-                setPostBlobLoadStateToWritten();
-            } else {
-                setPostBlobLoadStateToTouched();
-            }
-
             return true;
         } catch (SAXParseException e) {
             throw MergingException.wrapException(e).withFile(file).build();
@@ -457,9 +546,11 @@ abstract class DataMerger<I extends DataItem<F>, F extends DataFile<I>, S extend
     }
 
     public void cleanBlob(@NonNull File blobRootFolder) {
-        File file = new File(blobRootFolder, FN_MERGER_XML);
-        if (file.isFile()) {
-            file.delete();
+        for (String name : new String[] { MergerBlob.FN_MERGER_BIN, FN_MERGER_XML }) {
+            File file = new File(blobRootFolder, name);
+            if (file.isFile()) {
+                file.delete();
+            }
         }
     }
 
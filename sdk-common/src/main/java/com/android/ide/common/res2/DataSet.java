@@ -90,6 +90,13 @@ abstract class DataSet<I extends DataItem<F>, F extends DataFile<I>> implements
      */
     private final Map<File, F> mDataFileMap = Maps.newHashMap();
 
+    /**
+     * The section of the merger blob holding this set, if it did not change since it was loaded
+     * or written. See {@link MergerBlob}.
+     */
+    @Nullable
+    private byte[] mBlobSection;
+
     /**
      * Creates a DataSet with a given configName. The name is used to identify the set
      * across sessions.
@@ -136,6 +143,7 @@ abstract class DataSet<I extends DataItem<F>, F extends DataFile<I>> implements
      * @param files the source files to add.
      */
     public void addSources(Collection<File> files) {
+        invalidateBlobSection();
         mSourceFiles.addAll(files);
     }
 
@@ -144,6 +152,7 @@ abstract class DataSet<I extends DataItem<F>, F extends DataFile<I>> implements
      * @param file the source file.
      */
     public void addSource(File file) {
+        invalidateBlobSection();
         mSourceFiles.add(file);
     }
 
@@ -234,6 +243,7 @@ abstract class DataSet<I extends DataItem<F>, F extends DataFile<I>> implements
      * @throws MergingException if something goes wrong
      */
     public void loadFromFiles(ILogger logger) throws MergingException {
+        invalidateBlobSection();
         List<Message> errors = Lists.newArrayList();
         for (File file : mSourceFiles) {
             if (file.isDirectory()) {
@@ -425,6 +435,7 @@ abstract class DataSet<I extends DataItem<F>, F extends DataFile<I>> implements
     public boolean updateWith(File sourceFolder, File changedFile, FileStatus fileStatus,
                               ILogger logger)
             throws MergingException {
+        invalidateBlobSection();
         switch (fileStatus) {
             case NEW:
                 return handleNewFile(sourceFolder, changedFile, logger);
@@ -438,6 +449,7 @@ abstract class DataSet<I extends DataItem<F>, F extends DataFile<I>> implements
     }
 
     protected boolean handleRemovedFile(File removedFile) {
+        invalidateBlobSection();
         F dataFile = getDataFile(removedFile);
 
         if (dataFile == null) {
@@ -467,6 +479,7 @@ abstract class DataSet<I extends DataItem<F>, F extends DataFile<I>> implements
     protected void processNewDataFile(@NonNull File sourceFolder,
                                       @NonNull F dataFile,
                                       boolean setTouched) throws MergingException {
+        invalidateBlobSection();
         Collection<I> dataItems = dataFile.getItems();
 
         addDataFile(sourceFolder, dataFile);
@@ -483,6 +496,7 @@ abstract class DataSet<I extends DataItem<F>, F extends DataFile<I>> implements
             @NonNull File sourceFolder,
             @NonNull File changedFile,
             @NonNull ILogger logger) throws MergingException {
+        invalidateBlobSection();
         F dataFile = mDataFileMap.get(changedFile);
         for (I item : dataFile.getItems()) {
             item.setTouched();
@@ -490,7 +504,29 @@ abstract class DataSet<I extends DataItem<F>, F extends DataFile<I>> implements
         return true;
     }
 
+    /**
+     * Returns the section of the merger blob holding this set, or null if the set changed since
+     * it was loaded or written.
+     */
+    @Nullable
+    byte[] getBlobSection() {
+        return mBlobSection;
+    }
+
+    void setBlobSection(@Nullable byte[] blobSection) {
+        mBlobSection = blobSection;
+    }
+
+    /**
+     * Drops the section of the merger blob holding this set, such that it is encoded again the
+     * next time the blob is written. To be called whenever the files or items of the set change.
+     */
+    void invalidateBlobSection() {
+        mBlobSection = null;
+    }
+
     protected void addItem(@NonNull I item, @Nullable String key) throws MergingException {
+        invalidateBlobSection();
         if (key == null) {
             key = item.getKey();
         }
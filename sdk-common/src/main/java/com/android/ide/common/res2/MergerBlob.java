@@ -0,0 +1,404 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ide.common.res2;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.DOMException;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.XMLConstants;
+
+/**
+ * The binary blob a {@link DataMerger} saves its state to.
+ *
+ * The blob starts with a header and the format version, followed by one section for each
+ * {@link DataSet}, in order, and a section for the additional data of the merger.
+ *
+ * A section holds the same DOM tree as the matching element of the XML blob, encoded such that it
+ * can be rebuilt without parsing any XML. Sections are prefixed by their length, so the section of
+ * a {@link DataSet} which did not change since it was loaded can be written back as is.
+ */
+final class MergerBlob {
+
+    static final String FN_MERGER_BIN = "merger.bin";
+
+    private static final String HEADER = "Android merger state";
+    private static final int FORMAT_VERSION = 1;
+
+    private static final byte NODE_END = 0;
+    private static final byte NODE_ELEMENT = 1;
+    private static final byte NODE_TEXT = 2;
+    private static final byte NODE_CDATA = 3;
+    private static final byte NODE_COMMENT = 4;
+
+    @NonNull
+    private final List<byte[]> mDataSets;
+    @NonNull
+    private final byte[] mAdditionalData;
+
+    MergerBlob(@NonNull List<byte[]> dataSets, @NonNull byte[] additionalData) {
+        mDataSets = dataSets;
+        mAdditionalData = additionalData;
+    }
+
+    /** Returns the sections of the {@link DataSet}s. */
+    @NonNull
+    List<byte[]> getDataSets() {
+        return mDataSets;
+    }
+
+    /** Returns the section of the additional data of the merger. */
+    @NonNull
+    byte[] getAdditionalData() {
+        return mAdditionalData;
+    }
+
+    /**
+     * Reads a blob.
+     *
+     * @param file the blob file
+     * @return the blob, or null if it was written with another version.
+     * @throws IOException if the file cannot be read, or is truncated or corrupted
+     */
+    @Nullable
+    static MergerBlob read(@NonNull File file) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.toByteArray(file));
+        try {
+            if (!HEADER.equals(readString(buffer))
+                    || buffer.getInt() != FORMAT_VERSION
+                    || !DataMerger.MERGE_BLOB_VERSION.equals(readString(buffer))) {
+                return null;
+            }
+
+            int count = buffer.getInt();
+            if (count < 0 || count > buffer.remaining() / 4) {
+                throw new IOException("Corrupted merger blob " + file);
+            }
+            List<byte[]> dataSets = Lists.newArrayListWithCapacity(count);
+            for (int i = 0; i < count; i++) {
+                dataSets.add(readBytes(buffer));
+            }
+            return new MergerBlob(dataSets, readBytes(buffer));
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated merger blob " + file, e);
+        }
+    }
+
+    /** Writes the blob to the given file. */
+    void write(@NonNull File file) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeString(out, HEADER);
+        out.writeInt(FORMAT_VERSION);
+        writeString(out, DataMerger.MERGE_BLOB_VERSION);
+        out.writeInt(mDataSets.size());
+        for (byte[] section : mDataSets) {
+            out.writeInt(section.length);
+            out.write(section);
+        }
+        out.writeInt(mAdditionalData.length);
+        out.write(mAdditionalData);
+        out.close();
+
+        Files.write(bytes.toByteArray(), file);
+    }
+
+    /**
+     * Encodes an element and its children into a section.
+     */
+    @NonNull
+    static byte[] encode(@NonNull Node node) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            encodeNode(out, node, Maps.<String, Integer>newHashMap());
+            out.close();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            // Writing to memory
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Rebuilds the element encoded in the section, in the given document.
+     *
+     * @throws IOException if the section is corrupted
+     */
+    @NonNull
+    static Node decode(@NonNull byte[] section, @NonNull Document document) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(section);
+        try {
+            Node node = decodeNode(buffer, buffer.get(), document, Lists.<String>newArrayList());
+            if (node == null) {
+                throw new IOException("Empty merger blob section");
+            }
+            return node;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated merger blob section", e);
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Corrupted merger blob section", e);
+        } catch (DOMException e) {
+            // e.g. an element name made of garbage.
+            throw new IOException("Corrupted merger blob section", e);
+        }
+    }
+
+    private static void encodeNode(
+            @NonNull DataOutputStream out,
+            @NonNull Node node,
+            @NonNull Map<String, Integer> pool) throws IOException {
+        switch (node.getNodeType()) {
+            case Node.ELEMENT_NODE: {
+                out.writeByte(NODE_ELEMENT);
+                writePooled(out, node.getNamespaceURI(), pool);
+                writePooled(out, node.getNodeName(), pool);
+
+                NamedNodeMap attributes = node.getAttributes();
+                writeVarInt(out, attributes.getLength());
+                for (int i = 0, n = attributes.getLength(); i < n; i++) {
+                    Node attribute = attributes.item(i);
+                    writePooled(out, attribute.getNamespaceURI(), pool);
+                    writePooled(out, attribute.getNodeName(), pool);
+                    writePooled(out, attribute.getNodeValue(), pool);
+                }
+
+                NodeList children = node.getChildNodes();
+                for (int i = 0, n = children.getLength(); i < n; i++) {
+                    encodeNode(out, children.item(i), pool);
+                }
+                out.writeByte(NODE_END);
+                break;
+            }
+            case Node.TEXT_NODE:
+                out.writeByte(NODE_TEXT);
+                writePooled(out, node.getNodeValue(), pool);
+                break;
+            case Node.CDATA_SECTION_NODE:
+                out.writeByte(NODE_CDATA);
+                writePooled(out, node.getNodeValue(), pool);
+                break;
+            case Node.COMMENT_NODE:
+                out.writeByte(NODE_COMMENT);
+                writePooled(out, node.getNodeValue(), pool);
+                break;
+            default:
+                // Not part of the blob, as in the XML form
+                break;
+        }
+    }
+
+    /**
+     * Decodes the node of the given kind, or returns null at the end of the children of an
+     * element.
+     */
+    @Nullable
+    private static Node decodeNode(
+            @NonNull ByteBuffer buffer,
+            byte kind,
+            @NonNull Document document,
+            @NonNull List<String> pool) throws IOException {
+        switch (kind) {
+            case NODE_END:
+                return null;
+            case NODE_ELEMENT: {
+                Element element = createElement(document,
+                        readPooled(buffer, pool), readRequired(buffer, pool));
+                for (int i = 0, n = readVarInt(buffer); i < n; i++) {
+                    setAttribute(document, element, readPooled(buffer, pool),
+                            readRequired(buffer, pool), readRequired(buffer, pool));
+                }
+                while (true) {
+                    Node child = decodeNode(buffer, buffer.get(), document, pool);
+                    if (child == null) {
+                        break;
+                    }
+                    element.appendChild(child);
+                }
+                return element;
+            }
+            case NODE_TEXT:
+                return document.createTextNode(readPooled(buffer, pool));
+            case NODE_CDATA:
+                return document.createCDATASection(readPooled(buffer, pool));
+            case NODE_COMMENT:
+                return document.createComment(readPooled(buffer, pool));
+            default:
+                throw new IOException("Unknown node kind " + kind + " in merger blob");
+        }
+    }
+
+    @NonNull
+    private static Element createElement(
+            @NonNull Document document,
+            @Nullable String namespace,
+            @NonNull String name) {
+        if (namespace == null && name.indexOf(':') != -1) {
+            // A prefix without a namespace can only be created without namespace support
+            return document.createElement(name);
+        }
+        return document.createElementNS(namespace, name);
+    }
+
+    private static void setAttribute(
+            @NonNull Document document,
+            @NonNull Element element,
+            @Nullable String namespace,
+            @NonNull String name,
+            @NonNull String value) {
+        if (namespace == null && name.indexOf(':') != -1) {
+            if (name.startsWith(XMLConstants.XMLNS_ATTRIBUTE + ':')) {
+                namespace = XMLConstants.XMLNS_ATTRIBUTE_NS_URI;
+            } else {
+                Attr attr = document.createAttribute(name);
+                attr.setValue(value);
+                element.setAttributeNode(attr);
+                return;
+            }
+        }
+        element.setAttributeNS(namespace, name, value);
+    }
+
+    /**
+     * Writes a string of the section: the first time a string is seen it is written out, after
+     * that only its index is.
+     */
+    private static void writePooled(
+            @NonNull DataOutputStream out,
+            @Nullable String string,
+            @NonNull Map<String, Integer> pool) throws IOException {
+        if (string == null) {
+            writeVarInt(out, 0);
+            return;
+        }
+        Integer index = pool.get(string);
+        if (index != null) {
+            writeVarInt(out, index);
+        } else {
+            // Index 0 is null, new strings are added at the end.
+            index = pool.size() + 1;
+            pool.put(string, index);
+            writeVarInt(out, index);
+            writeString(out, string);
+        }
+    }
+
+    @Nullable
+    private static String readPooled(@NonNull ByteBuffer buffer, @NonNull List<String> pool) {
+        int index = readVarInt(buffer);
+        if (index == 0) {
+            return null;
+        }
+        if (index <= pool.size()) {
+            return pool.get(index - 1);
+        }
+        if (index != pool.size() + 1) {
+            throw new IndexOutOfBoundsException("String " + index + " of " + pool.size());
+        }
+        String string = readString(buffer);
+        pool.add(string);
+        return string;
+    }
+
+    /** Reads a string of the section which cannot be null, such as a name. */
+    @NonNull
+    private static String readRequired(@NonNull ByteBuffer buffer, @NonNull List<String> pool)
+            throws IOException {
+        String string = readPooled(buffer, pool);
+        if (string == null) {
+            throw new IOException("Missing name or value in merger blob section");
+        }
+        return string;
+    }
+
+    private static void writeString(@NonNull DataOutputStream out, @NonNull String string)
+            throws IOException {
+        byte[] bytes = string.getBytes(Charsets.UTF_8);
+        writeVarInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    @NonNull
+    private static String readString(@NonNull ByteBuffer buffer) {
+        int length = readLength(buffer, readVarInt(buffer));
+        String string = new String(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                length, Charsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return string;
+    }
+
+    @NonNull
+    private static byte[] readBytes(@NonNull ByteBuffer buffer) {
+        byte[] bytes = new byte[readLength(buffer, buffer.getInt())];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Checks a length read from the buffer, so that a corrupted length ends up as a
+     * {@link BufferUnderflowException} rather than as a huge or negative array size.
+     */
+    private static int readLength(@NonNull ByteBuffer buffer, int length) {
+        if (length < 0 || length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        return length;
+    }
+
+    private static void writeVarInt(@NonNull DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(@NonNull ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (shift > 28) {
+                // more than 5 bytes, this is not an int.
+                throw new BufferUnderflowException();
+            }
+            byte b = buffer.get();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+}
@@ -242,6 +242,7 @@ public class ResourceSet extends DataSet<ResourceItem, ResourceFile> {
             @NonNull File sourceFolder,
             @NonNull File changedFile,
             @NonNull ILogger logger) throws MergingException {
+        invalidateBlobSection();
         FolderData folderData = getFolderData(changedFile.getParentFile());
         if (folderData == null) {
             return true;
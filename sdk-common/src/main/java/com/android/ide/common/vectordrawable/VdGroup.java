@@ -47,9 +47,6 @@ class VdGroup extends VdElement{
     private float mTranslateX = 0;
     private float mTranslateY = 0;
 
-    // Used at draw time, basically accumulative matrix from root to current group.
-    private AffineTransform mTempStackedMatrix = new AffineTransform();
-
     // The current group's transformation.
     private AffineTransform mLocalMatrix = new AffineTransform();
 
@@ -100,12 +97,14 @@ class VdGroup extends VdElement{
 
     @Override
     public void draw(Graphics2D g, AffineTransform currentMatrix, float scaleX, float scaleY) {
+        // Accumulative matrix from root to current group. This is not kept in a field, so that
+        // the same tree can be drawn by several threads at once.
         // SWING default is pre-concatenate
-        mTempStackedMatrix.setTransform(currentMatrix);
-        mTempStackedMatrix.concatenate(mLocalMatrix);
+        AffineTransform stackedMatrix = new AffineTransform(currentMatrix);
+        stackedMatrix.concatenate(mLocalMatrix);
 
         for (int i = 0; i < mChildren.size(); i++) {
-            mChildren.get(i).draw(g, mTempStackedMatrix, scaleX, scaleY);
+            mChildren.get(i).draw(g, stackedMatrix, scaleX, scaleY);
         }
     }
 
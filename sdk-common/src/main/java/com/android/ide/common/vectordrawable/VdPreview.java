@@ -272,16 +272,43 @@ public class VdPreview {
         if (xmlFileContent == null || xmlFileContent.isEmpty()) {
             return null;
         }
-        VdParser p = new VdParser();
-        VdTree vdTree;
 
-        InputStream inputStream = new ByteArrayInputStream(
-                xmlFileContent.getBytes(Charsets.UTF_8));
-        vdTree = p.parse(inputStream, vdErrorLog);
+        VdTree vdTree = parseVectorTree(xmlFileContent.getBytes(Charsets.UTF_8), vdErrorLog);
         if (vdTree == null) {
             return null;
         }
 
+        return getPreviewFromVectorTree(targetSize, vdTree, vdErrorLog);
+    }
+
+    /**
+     * Parses the VectorDrawable's XML content into a tree, which can then be drawn at several
+     * sizes with {@link #getPreviewFromVectorTree(TargetSize, VdTree, StringBuilder)}.
+     *
+     * @param xmlFileContent VectorDrawable's XML file's content, encoded in UTF-8.
+     * @param vdErrorLog     log for the parsing errors and warnings.
+     * @return the parsed tree, or null if errors happened.
+     */
+    @Nullable
+    public static VdTree parseVectorTree(@NonNull byte[] xmlFileContent,
+                                         @Nullable StringBuilder vdErrorLog) {
+        VdParser p = new VdParser();
+        return p.parse(new ByteArrayInputStream(xmlFileContent), vdErrorLog);
+    }
+
+    /**
+     * This generates an image from an already parsed VectorDrawable. The same tree can be drawn
+     * by several threads at once.
+     *
+     * @param targetSize the size of result image.
+     * @param vdTree     the tree parsed from VectorDrawable's XML.
+     * @param vdErrorLog log for the errors and warnings.
+     * @return an preview image according to the VectorDrawable's tree
+     */
+    @NonNull
+    public static BufferedImage getPreviewFromVectorTree(@NonNull TargetSize targetSize,
+                                                         @NonNull VdTree vdTree,
+                                                         @Nullable StringBuilder vdErrorLog) {
         // If the forceImageSize is set (>0), then we honor that.
         // Otherwise, we will ask the vectorDrawable for the prefer size, then apply the imageScale.
         float vdWidth = vdTree.getBaseWidth();
@@ -33,8 +33,11 @@ import java.util.regex.Pattern;
 
 /**
  * Used to represent the whole VectorDrawable XML file's tree.
+ *
+ * <p>Once parsed, a tree can be drawn into several images at once, from different threads (see
+ * {@link VdPreview#getPreviewFromVectorTree}).
  */
-class VdTree {
+public class VdTree {
     private static Logger logger = Logger.getLogger(VdTree.class.getSimpleName());
 
     private static final String SHAPE_VECTOR = "vector";
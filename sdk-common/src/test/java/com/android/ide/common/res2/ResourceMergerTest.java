@@ -46,6 +46,7 @@ import org.w3c.dom.NodeList;
 import java.io.File;
 import java.io.IOException;
 import java.nio.charset.Charset;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
@@ -365,6 +366,58 @@ public class ResourceMergerTest extends BaseTestCase {
         compareResourceMaps(merger, loadedMerger, true /*full compare*/);
     }
 
+    public void testMergeBlobCopiesUnchangedSets() throws Exception {
+        ResourceMerger merger = getResourceMerger();
+
+        File folder = Files.createTempDir();
+        merger.writeBlobTo(folder, getConsumer());
+        assertTrue(new File(folder, MergerBlob.FN_MERGER_BIN).isFile());
+        assertFalse(new File(folder, DataMerger.FN_MERGER_XML).isFile());
+
+        ResourceMerger loadedMerger = new ResourceMerger(0);
+        assertTrue(loadedMerger.loadFromBlob(folder, true /*incrementalState*/));
+        List<ResourceSet> loadedSets = loadedMerger.getDataSets();
+        byte[] section = loadedSets.get(0).getBlobSection();
+        assertNotNull(section);
+
+        File folder2 = Files.createTempDir();
+        loadedMerger.writeBlobTo(folder2, getConsumer());
+        assertSame(section, loadedSets.get(0).getBlobSection());
+
+        ResourceMerger reloadedMerger = new ResourceMerger(0);
+        assertTrue(reloadedMerger.loadFromBlob(folder2, true /*incrementalState*/));
+        compareResourceMaps(merger, reloadedMerger, true /*full compare*/);
+
+        loadedSets.get(0).invalidateBlobSection();
+        assertNull(loadedSets.get(0).getBlobSection());
+
+        loadedMerger.cleanBlob(folder2);
+        assertFalse(new File(folder2, MergerBlob.FN_MERGER_BIN).isFile());
+    }
+
+    public void testCorruptedMergeBlobIsNotLoaded() throws Exception {
+        ResourceMerger merger = getResourceMerger();
+
+        File folder = Files.createTempDir();
+        merger.writeBlobTo(folder, getConsumer());
+        File blobFile = new File(folder, MergerBlob.FN_MERGER_BIN);
+        byte[] blob = Files.toByteArray(blobFile);
+
+        // truncated, in the middle of a section.
+        Files.write(Arrays.copyOf(blob, blob.length / 2), blobFile);
+        ResourceMerger loadedMerger = new ResourceMerger(0);
+        assertFalse(loadedMerger.loadFromBlob(folder, true /*incrementalState*/));
+        assertTrue(loadedMerger.getDataSets().isEmpty());
+
+        // overwritten with garbage after the header.
+        byte[] garbage = Arrays.copyOf(blob, blob.length);
+        Arrays.fill(garbage, 40, garbage.length, (byte) 0xff);
+        Files.write(garbage, blobFile);
+        loadedMerger = new ResourceMerger(0);
+        assertFalse(loadedMerger.loadFromBlob(folder, true /*incrementalState*/));
+        assertTrue(loadedMerger.getDataSets().isEmpty());
+    }
+
     /**
      * Tests the path replacement in the merger.xml file loaded from testData/
      * @throws Exception